@@ -0,0 +1,150 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+/**
+ * <pre>
+ * The ARP cache of an emulated node: maps fish addresses to EmulatorARPData.
+ * Entries live in an array indexed by fish address. Updates copy the array and publish the copy
+ * through a volatile field, so the send and receive paths look neighbors up without locks or
+ * boxing while the Trawler's updates are applied from another thread.
+ * </pre>
+ */
+public class ARPTable {
+
+    private volatile EmulatorARPData[] entries;
+
+    /**
+     * Create an empty ARP cache
+     */
+    public ARPTable() {
+	this.entries = new EmulatorARPData[Packet.MAX_ADDRESS + 1];
+    }
+
+    /**
+     * Look up a neighbor
+     * @param fishAddr Fishnet address of the neighbor
+     * @return The neighbor's ARP data, or null if it is not a neighbor
+     */
+    public EmulatorARPData get(int fishAddr) {
+	return this.entries[fishAddr];
+    }
+
+    /**
+     * Get a consistent view of the whole cache, for example to send to every neighbor.
+     * The returned array must not be modified
+     * @return An array indexed by fish address, with null for addresses that are not neighbors
+     */
+    public EmulatorARPData[] snapshot() {
+	return this.entries;
+    }
+
+    /**
+     * Add or replace a neighbor
+     * @param fishAddr Fishnet address of the neighbor
+     * @param arpData The neighbor's ARP data
+     */
+    public synchronized void put(int fishAddr, EmulatorARPData arpData) {
+	EmulatorARPData[] copy = this.entries.clone();
+	copy[fishAddr] = arpData;
+	this.entries = copy;
+    }
+
+    /**
+     * Learn a neighbor's address from a packet it sent. The entry is replaced only if the neighbor has none
+     * or has moved to another address. The check is repeated under the table's lock, so an entry with edge
+     * options added by the Trawler in the meantime is kept rather than overwritten by one without options
+     * @param fishAddr Fishnet address of the neighbor
+     * @param ipAddress IP address the packet came from
+     * @param port Port the packet came from
+     */
+    public void learn(int fishAddr, InetAddress ipAddress, int port) {
+	if(matches(this.entries[fishAddr], ipAddress, port)) {
+	    return;
+	}
+	synchronized(this) {
+	    if(!matches(this.entries[fishAddr], ipAddress, port)) {
+		// we don't have edge options, defer emulation until we learn ARP data from the Trawler
+		this.put(fishAddr, new EmulatorARPData(ipAddress, port));
+	    }
+	}
+    }
+
+    /**
+     * Remove a neighbor
+     * @param fishAddr Fishnet address of the neighbor
+     */
+    public synchronized void remove(int fishAddr) {
+	if(this.entries[fishAddr] == null) {
+	    return;
+	}
+	EmulatorARPData[] copy = this.entries.clone();
+	copy[fishAddr] = null;
+	this.entries = copy;
+    }
+
+    /**
+     * Remove all neighbors
+     */
+    public synchronized void clear() {
+	this.entries = new EmulatorARPData[Packet.MAX_ADDRESS + 1];
+    }
+
+    /**
+     * Apply one binary record received from the Trawler
+     * @param type The type of the record, as returned by TrawlerNodeARPCommands.receiveBinaryCommand()
+     * @param data The data of the record, as filled in by TrawlerNodeARPCommands.receiveBinaryCommand()
+     */
+    public void applyTrawlerCommand(int type, ArrayList data) {
+	if(type == TrawlerNodeARPCommands.BINARY_RESET) {
+	    this.clear();
+	    return;
+	}
+	int fishAddr = ((Integer)data.get(1)).intValue();
+	if(!Packet.validAddress(fishAddr)) {
+	    return;
+	}
+	if(type == TrawlerNodeARPCommands.BINARY_REMOVE) {
+	    this.remove(fishAddr);
+	}else if(type == TrawlerNodeARPCommands.BINARY_ADD) {
+	    this.put(fishAddr, (EmulatorARPData)data.get(2));
+	}
+    }
+
+    /**
+     * Apply one update received from the Trawler
+     * @param trawlerCmd The command received
+     */
+    public void applyTrawlerCommand(String trawlerCmd) {
+	try {
+	    ArrayList addNeighborData = new ArrayList();
+	    int neighborToRemove;
+	    if(TrawlerNodeARPCommands.receiveReset(trawlerCmd)) {
+		// Clear ARP Cache
+		this.clear();
+	    }else if( (neighborToRemove = TrawlerNodeARPCommands.receiveRemoveNeighbor(trawlerCmd)) >= 0 ) {
+		// Remove a neighbor
+		if(Packet.validAddress(neighborToRemove)) {
+		    this.remove(neighborToRemove);
+		}
+	    }else if(TrawlerNodeARPCommands.receiveAddNeighbor(trawlerCmd, addNeighborData)) {
+		// Add a neighbor
+		Integer fishAddr = (Integer)addNeighborData.get(0);
+		EmulatorARPData arpData = (EmulatorARPData)addNeighborData.get(1);
+		if(Packet.validAddress(fishAddr.intValue())) {
+		    this.put(fishAddr.intValue(), arpData);
+		}
+	    }else {
+		System.err.println("Unrecognized command from trawler: " + trawlerCmd);
+	    }
+	}catch(Exception e) {
+	    System.err.println("Encountered Exception while trying to refresh ARP cache. Stack trace: ");
+	    e.printStackTrace();
+	}
+    }
+
+    /******************** Private Functions ********************/
+
+    private static boolean matches(EmulatorARPData arpData, InetAddress ipAddress, int port) {
+	return arpData != null && arpData.getPort() == port && arpData.getIPAddress().equals(ipAddress);
+    }
+}
@@ -0,0 +1,104 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.io.IOException;
+
+/**
+ * <pre>
+ * Splits the bytes read from a channel into lines, so that line oriented input such as Trawler
+ * commands or keyboard input can be read from a non-blocking channel registered with a Selector.
+ * fill() reads whatever the channel has available, and readLine() returns the complete lines
+ * received so far, keeping any partial line until the rest of it arrives.
+ * A channel that switches to messages of a 2 byte length followed by that many bytes, such as the
+ * binary Trawler commands after the handshake, is read with readMessage() instead.
+ * </pre>
+ */
+public class ChannelLineReader {
+
+    private static final String CHARSET = "US-ASCII";
+    private static final int INITIAL_SIZE = 4096;
+
+    private ReadableByteChannel channel;
+    private ByteBuffer buffer;   // kept ready for reading from the channel
+
+    /**
+     * Create a new reader
+     * @param channel The channel to read from
+     */
+    public ChannelLineReader(ReadableByteChannel channel) {
+	this.channel = channel;
+	this.buffer = ByteBuffer.allocate(INITIAL_SIZE);
+    }
+
+    /**
+     * Read whatever the channel has available
+     * @return The number of bytes read, 0 if none were available, or -1 if the channel has reached end-of-stream
+     * @throws IOException If the read fails
+     */
+    public int fill() throws IOException {
+	if(!this.buffer.hasRemaining()) {
+	    // a line longer than the buffer, make room for the rest of it
+	    ByteBuffer bigger = ByteBuffer.allocate(this.buffer.capacity() * 2);
+	    this.buffer.flip();
+	    bigger.put(this.buffer);
+	    this.buffer = bigger;
+	}
+	return this.channel.read(this.buffer);
+    }
+
+    /**
+     * Get the next complete line received. The line terminator is not included
+     * @return The next line, or null if no complete line has been received
+     */
+    public String readLine() {
+	byte[] data = this.buffer.array();
+	int end = this.buffer.position();
+	for(int i = 0; i < end; i++) {
+	    if(data[i] == '\n') {
+		int length = (i > 0 && data[i - 1] == '\r') ? i - 1 : i;
+		String line = Utility.byteArrayToString(data, 0, length);
+		this.buffer.flip();
+		this.buffer.position(i + 1);
+		this.buffer.compact();
+		return line;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Get the next complete length prefixed message received
+     * @return The bytes of the message, without the length, or null if no complete message has been received
+     */
+    public ByteBuffer readMessage() {
+	byte[] data = this.buffer.array();
+	int end = this.buffer.position();
+	if(end < 2) {
+	    return null;
+	}
+	int length = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+	if(end < 2 + length) {
+	    return null;
+	}
+	byte[] message = new byte[length];
+	System.arraycopy(data, 2, message, 0, length);
+	this.buffer.flip();
+	this.buffer.position(2 + length);
+	this.buffer.compact();
+	return ByteBuffer.wrap(message);
+    }
+
+    /**
+     * Read the next line, waiting for it to arrive. Only valid while the channel is in blocking mode
+     * @return The next line
+     * @throws IOException If the read fails or the channel reaches end-of-stream first
+     */
+    public String readLineBlocking() throws IOException {
+	String line;
+	while((line = this.readLine()) == null) {
+	    if(this.fill() < 0) {
+		throw new IOException("End of stream reached while waiting for a line");
+	    }
+	}
+	return line;
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * <pre>
+ * Source of time for a Manager. Fishnet keeps time in microseconds.
+ * A Manager waits for its next event by converting the time left on its clock into real time,
+ * so a clock that runs faster or slower than real time also makes the manager wait less or more.
+ * </pre>
+ */
+public interface Clock {
+
+    /**
+     * Get the current time
+     * @return The current time in microseconds
+     */
+    public long micros();
+
+    /**
+     * Convert a length of time on this clock into real time
+     * @param durationMicros The length of time in microseconds, as measured by this clock
+     * @return The same length of time in real nanoseconds, as measured by System.nanoTime()
+     */
+    public long toRealNanos(long durationMicros);
+}
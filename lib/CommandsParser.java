@@ -35,6 +35,11 @@ import java.io.IOException;
  *		the node/edge is preserved
  *	echo text -- print the text
  *	exit  -- cleanly stop the simulation/emulation run and print statistics
+ *	traffic <pattern> <options>  -- start the traffic generator of every node this simulator/emulator runs.
+ *		a traffic <pattern> <options> starts that of node a only. See TrafficGenerator for patterns and options
+ *	log [capture] <a|all> <level>  -- choose the levels of node a's messages that are printed, or kept to be dumped
+ *	log file <filename|->  -- write nodes' messages to a file from a background thread, or back to the console
+ *	log dump <a|all>  -- print the last messages kept for node a. See NodeLog for levels and defaults
  *	a <msg>  -- deliver text <msg> to node a (for simulation mode only)
  *	<msg> -- deliver text <msg> to this node (for emulation mode only)
  *		Note that msg cannot start with any keyword defined above
@@ -112,6 +117,22 @@ public abstract class CommandsParser {
     }
 
 
+    /**
+     * Returns the time a time command puts off later commands till, without processing anything.
+     * Used to schedule a whole command file in advance.
+     * @param line A command line.
+     * @param start The time an absolute time command counts from, in microseconds
+     * @param now The time a relative time command counts from, in microseconds
+     * @return The time in microseconds. Returns -1 if the line is not a time command
+     */
+    public long getTime(String line, long start, long now) {
+	if(this.skipLine(line)) {
+	    return -1;
+	}
+	return this.parseTime(line.split(" "), start, now);
+    }
+
+
     /******************** Protected Functions ********************/
 
     /**
@@ -146,17 +167,35 @@ public abstract class CommandsParser {
     protected long parseCommonCmds(String[] cmd, long now) {
 	this.exit(cmd);
 
-	if(this.echo(cmd)) {
+	if(this.echo(cmd) || this.parseLog(cmd)) {
 	    return -1;
 	}
 
 	long deferTill = this.parseTime(cmd, now);
-	if(deferTill == -1 && !cmd[0].equals("time")) {
+	if(deferTill == -1 && cmd[0].equals("traffic")) {
+	    this.traffic(cmd);
+	}else if(deferTill == -1 && !cmd[0].equals("time")) {
 	    this.parseNodeCmd(cmd);
 	}
 	return deferTill;
     }
 
+    /**
+     * Returns the log of the nodes this parser gives commands to, or null if it gives commands to no nodes.
+     * The log command is only taken when there is one
+     */
+    protected NodeLog getLog() {
+	return null;
+    }
+
+    /**
+     * Give a traffic command to every node. By default the command goes to parseNodeCmd as is,
+     * which is right for an emulator running a single node
+     */
+    protected void traffic(String[] cmd) {
+	this.parseNodeCmd(cmd);
+    }
+
     // These following functions are overriden by TrawlerCommandsParser so that it can notify trawler of change
 
     protected void createNewEdge(int nodeA, int nodeB, EdgeOptions options) {
@@ -304,6 +343,43 @@ public abstract class CommandsParser {
 
 
 
+    // Returns true if cmd is a log command
+    private boolean parseLog(String[] cmd) {
+	NodeLog log = this.getLog();
+	if(log == null || !cmd[0].equals("log")) {
+	    return false;
+	}
+	try {
+	    if(cmd.length == 3 && cmd[1].equals("dump")) {
+		log.dump(this.parseLogAddr(cmd[2]), System.out);
+	    }else if(cmd.length == 3 && cmd[1].equals("file")) {
+		log.setFile(cmd[2].equals("-") ? null : cmd[2]);
+	    }else if(cmd.length == 4 && cmd[1].equals("capture")) {
+		log.setCaptureLevel(this.parseLogAddr(cmd[2]), NodeLog.parseLevel(cmd[3]));
+	    }else if(cmd.length == 3) {
+		log.setWriteLevel(this.parseLogAddr(cmd[1]), NodeLog.parseLevel(cmd[2]));
+	    }else {
+		throw new IllegalArgumentException("Wrong number of arguments");
+	    }
+	}catch(Exception e) {
+	    System.err.println("Error parsing " + cmd[0] + " command: " + e);
+	    this.printStrArray(cmd, System.err);
+	}
+	return true;
+    }
+
+    // Returns -1 for all nodes
+    private int parseLogAddr(String addr) throws IllegalArgumentException {
+	if(addr.equals("all")) {
+	    return -1;
+	}
+	int nodeAddr = Integer.parseInt(addr);
+	if(!Packet.validAddress(nodeAddr)) {
+	    throw new IllegalArgumentException("Invalid node address: " + addr);
+	}
+	return nodeAddr;
+    }
+
     // Echo string if cmd is echo
     // Return value indicates whether command was echo or not
     private boolean echo(String[] cmd) {
@@ -317,13 +393,17 @@ public abstract class CommandsParser {
     // Return -1 if there is no time cmd, else return delay
     // Have to convert parsed time (which is in milliseconds) to microseconds
     private long parseTime(String[] cmd, long now){
+	return this.parseTime(cmd, 0, now);
+    }
+
+    private long parseTime(String[] cmd, long start, long now){
 	long deferTill = -1;
 	if(cmd[0].equals("time")) {
 	    try {
 		if(cmd[1].equals("+")) {
 		    deferTill = now + (Integer.valueOf(cmd[2]).longValue() * 1000);
 		}else {
-		    deferTill = Integer.valueOf(cmd[1]).longValue() * 1000;
+		    deferTill = start + Integer.valueOf(cmd[1]).longValue() * 1000;
 		}
 	    }catch(Exception e) {
 		System.err.println("Error parsing time command: ");
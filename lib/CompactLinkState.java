@@ -0,0 +1,384 @@
+/**
+ * <pre>
+ * Compact alternative to LinkState. Neighbors are carried as a bitset over the
+ * 256-entry fishnet address space together with a per-link cost, and changes can
+ * be advertised as a delta against an earlier advertisement instead of the full list.
+ *
+ * Two formats are used, told apart by the first byte:
+ *
+ *   FULL:   format (1 byte) = FULL
+ *           neighbor bitset: 32 bytes, bit (addr % 8) of byte (addr / 8) set for each neighbor
+ *           link costs: 1 byte per neighbor, in ascending address order
+ *
+ *   DELTA:  format (1 byte) = DELTA
+ *           base sequence number: 4 bytes, the advertisement this delta applies to
+ *           number of neighbors added or whose cost changed: 1 byte
+ *           added neighbors: 2 bytes each, <fishnet address, link cost>
+ *           removed neighbors: 1 byte each, <fishnet address>, up to the end of the payload
+ *
+ *  Like LinkState, this is carried as the payload of a class Packet, so the sequence number
+ *  of the advertisement itself is the one in the Packet header.
+ * </pre>
+ */
+public class CompactLinkState {
+
+    public static final int FULL = 0;
+    public static final int DELTA = 1;
+
+    public static final int BITSET_SIZE = (Packet.MAX_ADDRESS + 1) / 8;  // bytes
+    public static final int FULL_HEADER_SIZE = 1 + BITSET_SIZE;
+    public static final int DELTA_HEADER_SIZE = 1 + 4 + 1;
+    public static final int MAX_NEIGHBORS = Packet.MAX_PAYLOAD_SIZE - FULL_HEADER_SIZE;
+    public static final int MIN_COST = 1;
+    public static final int MAX_COST = 255;
+
+    private int format;
+    private int baseSeq;
+    private int[] neighbors;   // ascending addresses in FULL form, added neighbors in DELTA form
+    private int[] costs;       // cost of the link to each entry of neighbors
+    private int[] removed;     // only used in DELTA form
+
+    /**
+     * Creates a full advertisement in which every link has cost 1
+     * @param neighbors An array of ints containing the neighbors' addresses
+     * @throws IllegalArgumentException If there are too many neighbors or an address is invalid
+     */
+    public CompactLinkState(int[] neighbors) throws IllegalArgumentException {
+	this(neighbors, null);
+    }
+
+    /**
+     * Creates a full advertisement
+     * @param neighbors An array of ints containing the neighbors' addresses
+     * @param costs The cost of the link to each neighbor. Can be null, in which case every link has cost 1
+     * @throws IllegalArgumentException If there are too many neighbors, an address is invalid or a cost is out of range
+     */
+    public CompactLinkState(int[] neighbors, int[] costs) throws IllegalArgumentException {
+	if(neighbors.length > MAX_NEIGHBORS) {
+	    throw new IllegalArgumentException("Number of neighbors is greater than max allowed neighbors. Neighbors given: " +
+					       neighbors.length + " Max allowed: " + MAX_NEIGHBORS);
+	}
+	if(costs != null && costs.length != neighbors.length) {
+	    throw new IllegalArgumentException("Number of costs does not match number of neighbors");
+	}
+
+	// sort by address through the bitset so that pack() and equality checks see a canonical order
+	byte[] bitset = new byte[BITSET_SIZE];
+	int[] costByAddr = new int[Packet.MAX_ADDRESS + 1];
+	for(int i = 0; i < neighbors.length; i++) {
+	    checkAddress(neighbors[i]);
+	    int cost = (costs == null) ? MIN_COST : costs[i];
+	    checkCost(cost);
+	    bitset[neighbors[i] >> 3] |= (byte)(1 << (neighbors[i] & 7));
+	    costByAddr[neighbors[i]] = cost;
+	}
+	this.format = FULL;
+	this.baseSeq = 0;
+	this.neighbors = bitsetToAddresses(bitset, 0);
+	this.costs = new int[this.neighbors.length];
+	for(int i = 0; i < this.neighbors.length; i++) {
+	    this.costs[i] = costByAddr[this.neighbors[i]];
+	}
+	this.removed = new int[0];
+    }
+
+    private CompactLinkState(int baseSeq, int[] added, int[] addedCosts, int[] removed) throws IllegalArgumentException {
+	if(DELTA_HEADER_SIZE + 2 * added.length + removed.length > Packet.MAX_PAYLOAD_SIZE) {
+	    throw new IllegalArgumentException("Delta is too big to fit in a packet. Added: " + added.length +
+					       " Removed: " + removed.length);
+	}
+	for(int i = 0; i < added.length; i++) {
+	    checkAddress(added[i]);
+	    checkCost(addedCosts[i]);
+	}
+	for(int i = 0; i < removed.length; i++) {
+	    checkAddress(removed[i]);
+	}
+	this.format = DELTA;
+	this.baseSeq = baseSeq;
+	this.neighbors = added;
+	this.costs = addedCosts;
+	this.removed = removed;
+    }
+
+    /**
+     * Creates a delta advertisement
+     * @param baseSeq Sequence number of the advertisement this delta applies to
+     * @param added Addresses of neighbors that were added or whose link cost changed
+     * @param addedCosts The cost of the link to each added neighbor
+     * @param removed Addresses of neighbors that were removed
+     * @return A delta advertisement
+     * @throws IllegalArgumentException If the delta does not fit in a packet, or an address or cost is invalid
+     */
+    public static CompactLinkState delta(int baseSeq, int[] added, int[] addedCosts, int[] removed)
+	throws IllegalArgumentException {
+	if(addedCosts.length != added.length) {
+	    throw new IllegalArgumentException("Number of costs does not match number of added neighbors");
+	}
+	return new CompactLinkState(baseSeq, added, addedCosts, removed);
+    }
+
+    /**
+     * Computes the delta that turns one full advertisement into another
+     * @param baseSeq Sequence number under which from was advertised
+     * @param from The advertisement the receivers already have
+     * @param to The advertisement to describe
+     * @return A delta advertisement, or null if the delta would not be smaller than the full advertisement of to
+     */
+    public static CompactLinkState diff(int baseSeq, CompactLinkState from, CompactLinkState to) {
+	if(from.isDelta() || to.isDelta()) {
+	    throw new IllegalArgumentException("Can only diff full advertisements");
+	}
+	int[] fromCost = from.costsByAddress();
+	int[] toCost = to.costsByAddress();
+	int numAdded = 0;
+	int numRemoved = 0;
+	for(int addr = 0; addr <= Packet.MAX_ADDRESS; addr++) {
+	    if(toCost[addr] != 0 && toCost[addr] != fromCost[addr]) {
+		numAdded++;
+	    }else if(toCost[addr] == 0 && fromCost[addr] != 0) {
+		numRemoved++;
+	    }
+	}
+	if(DELTA_HEADER_SIZE + 2 * numAdded + numRemoved >= to.packedSize()) {
+	    return null;
+	}
+	int[] added = new int[numAdded];
+	int[] addedCosts = new int[numAdded];
+	int[] removed = new int[numRemoved];
+	numAdded = 0;
+	numRemoved = 0;
+	for(int addr = 0; addr <= Packet.MAX_ADDRESS; addr++) {
+	    if(toCost[addr] != 0 && toCost[addr] != fromCost[addr]) {
+		added[numAdded] = addr;
+		addedCosts[numAdded++] = toCost[addr];
+	    }else if(toCost[addr] == 0 && fromCost[addr] != 0) {
+		removed[numRemoved++] = addr;
+	    }
+	}
+	return new CompactLinkState(baseSeq, added, addedCosts, removed);
+    }
+
+    /**
+     * Applies this delta to the full advertisement it was computed against
+     * @param base The full advertisement with sequence number getBaseSeq()
+     * @return The resulting full advertisement
+     * @throws IllegalArgumentException If this is not a delta or base is not a full advertisement
+     */
+    public CompactLinkState applyTo(CompactLinkState base) throws IllegalArgumentException {
+	if(!this.isDelta() || base.isDelta()) {
+	    throw new IllegalArgumentException("Can only apply a delta to a full advertisement");
+	}
+	int[] costByAddr = base.costsByAddress();
+	for(int i = 0; i < this.neighbors.length; i++) {
+	    costByAddr[this.neighbors[i]] = this.costs[i];
+	}
+	for(int i = 0; i < this.removed.length; i++) {
+	    costByAddr[this.removed[i]] = 0;
+	}
+	int count = 0;
+	for(int addr = 0; addr <= Packet.MAX_ADDRESS; addr++) {
+	    if(costByAddr[addr] != 0) {
+		count++;
+	    }
+	}
+	int[] neighbors = new int[count];
+	int[] costs = new int[count];
+	count = 0;
+	for(int addr = 0; addr <= Packet.MAX_ADDRESS; addr++) {
+	    if(costByAddr[addr] != 0) {
+		neighbors[count] = addr;
+		costs[count++] = costByAddr[addr];
+	    }
+	}
+	return new CompactLinkState(neighbors, costs);
+    }
+
+    /**
+     * @return True if this is a delta advertisement, false if it is a full one
+     */
+    public boolean isDelta() {
+	return this.format == DELTA;
+    }
+
+    /**
+     * @return The sequence number of the advertisement this delta applies to. 0 for a full advertisement
+     */
+    public int getBaseSeq() {
+	return this.baseSeq;
+    }
+
+    /**
+     * @return The neighbors' addresses in a full advertisement, or the added neighbors' addresses in a delta
+     */
+    public int[] getNeighbors() {
+	return this.neighbors;
+    }
+
+    /**
+     * @return The link cost of each entry of getNeighbors()
+     */
+    public int[] getCosts() {
+	return this.costs;
+    }
+
+    /**
+     * @return The removed neighbors' addresses. Always empty for a full advertisement
+     */
+    public int[] getRemoved() {
+	return this.removed;
+    }
+
+    /**
+     * @return The number of bytes pack() will return
+     */
+    public int packedSize() {
+	if(this.isDelta()) {
+	    return DELTA_HEADER_SIZE + 2 * this.neighbors.length + this.removed.length;
+	}
+	return FULL_HEADER_SIZE + this.neighbors.length;
+    }
+
+    /**
+     * Packs the advertisement
+     * @return A byte[] containing a packed representation of this advertisement
+     */
+    public byte[] pack() {
+	byte[] packed = new byte[this.packedSize()];
+	int pos = 0;
+	packed[pos++] = (byte)this.format;
+	if(this.isDelta()) {
+	    packed[pos++] = (byte)(this.baseSeq >>> 24);
+	    packed[pos++] = (byte)(this.baseSeq >>> 16);
+	    packed[pos++] = (byte)(this.baseSeq >>> 8);
+	    packed[pos++] = (byte)this.baseSeq;
+	    packed[pos++] = (byte)this.neighbors.length;
+	    for(int i = 0; i < this.neighbors.length; i++) {
+		packed[pos++] = (byte)this.neighbors[i];
+		packed[pos++] = (byte)this.costs[i];
+	    }
+	    for(int i = 0; i < this.removed.length; i++) {
+		packed[pos++] = (byte)this.removed[i];
+	    }
+	}else {
+	    for(int i = 0; i < this.neighbors.length; i++) {
+		packed[pos + (this.neighbors[i] >> 3)] |= (byte)(1 << (this.neighbors[i] & 7));
+	    }
+	    pos += BITSET_SIZE;
+	    for(int i = 0; i < this.costs.length; i++) {
+		packed[pos++] = (byte)this.costs[i];
+	    }
+	}
+	return packed;
+    }
+
+    /**
+     * Unpacks a packed representation of a CompactLinkState advertisement
+     * @param linkState A packed representation of a CompactLinkState advertisement
+     * @return A CompactLinkState object, or null if the byte[] representation was corrupted
+     */
+    public static CompactLinkState unpack(byte[] linkState) {
+	try {
+	    if(linkState.length == 0) {
+		return null;
+	    }
+	    if(linkState[0] == FULL) {
+		if(linkState.length < FULL_HEADER_SIZE) {
+		    return null;
+		}
+		int[] neighbors = bitsetToAddresses(linkState, 1);
+		if(linkState.length != FULL_HEADER_SIZE + neighbors.length) {
+		    return null;
+		}
+		int[] costs = new int[neighbors.length];
+		for(int i = 0; i < costs.length; i++) {
+		    costs[i] = linkState[FULL_HEADER_SIZE + i] & 0xff;
+		}
+		return new CompactLinkState(neighbors, costs);
+	    }
+	    if(linkState[0] == DELTA) {
+		if(linkState.length < DELTA_HEADER_SIZE) {
+		    return null;
+		}
+		int baseSeq = ((linkState[1] & 0xff) << 24) | ((linkState[2] & 0xff) << 16) |
+		              ((linkState[3] & 0xff) << 8)  |  (linkState[4] & 0xff);
+		int numAdded = linkState[5] & 0xff;
+		int numRemoved = linkState.length - DELTA_HEADER_SIZE - 2 * numAdded;
+		if(numRemoved < 0) {
+		    return null;
+		}
+		int[] added = new int[numAdded];
+		int[] addedCosts = new int[numAdded];
+		int[] removed = new int[numRemoved];
+		int pos = DELTA_HEADER_SIZE;
+		for(int i = 0; i < numAdded; i++) {
+		    added[i] = linkState[pos++] & 0xff;
+		    addedCosts[i] = linkState[pos++] & 0xff;
+		}
+		for(int i = 0; i < numRemoved; i++) {
+		    removed[i] = linkState[pos++] & 0xff;
+		}
+		return new CompactLinkState(baseSeq, added, addedCosts, removed);
+	    }
+	}catch(IllegalArgumentException e) {
+	    System.err.println("Could not unpack CompactLinkState packet. Exception: " + e);
+	}
+	return null;
+    }
+
+    /**
+     * Return a string representation of this advertisement
+     * @return A string representation of this advertisement
+     */
+    public String toString() {
+	StringBuffer buf = new StringBuffer(this.isDelta() ? "Delta since " + this.baseSeq + ":" : "Full:");
+	for(int i = 0; i < this.neighbors.length; i++) {
+	    buf.append(" " + this.neighbors[i] + "(" + this.costs[i] + ")");
+	}
+	for(int i = 0; i < this.removed.length; i++) {
+	    buf.append(" -" + this.removed[i]);
+	}
+	return buf.toString();
+    }
+
+    /******************** Private Functions ********************/
+
+    // returns an array indexed by address holding the link cost, 0 if there is no link
+    private int[] costsByAddress() {
+	int[] costByAddr = new int[Packet.MAX_ADDRESS + 1];
+	for(int i = 0; i < this.neighbors.length; i++) {
+	    costByAddr[this.neighbors[i]] = this.costs[i];
+	}
+	return costByAddr;
+    }
+
+    private static int[] bitsetToAddresses(byte[] bitset, int offset) {
+	int count = 0;
+	for(int i = 0; i < BITSET_SIZE; i++) {
+	    count += Integer.bitCount(bitset[offset + i] & 0xff);
+	}
+	int[] addresses = new int[count];
+	count = 0;
+	for(int i = 0; i < BITSET_SIZE; i++) {
+	    int bits = bitset[offset + i] & 0xff;
+	    while(bits != 0) {
+		int bit = Integer.numberOfTrailingZeros(bits);
+		addresses[count++] = (i << 3) | bit;
+		bits &= bits - 1;
+	    }
+	}
+	return addresses;
+    }
+
+    private static void checkAddress(int addr) throws IllegalArgumentException {
+	if(!Packet.validAddress(addr)) {
+	    throw new IllegalArgumentException("Invalid neighbor address: " + addr);
+	}
+    }
+
+    private static void checkCost(int cost) throws IllegalArgumentException {
+	if(cost < MIN_COST || cost > MAX_COST) {
+	    throw new IllegalArgumentException("Link cost out of range: " + cost);
+	}
+    }
+}
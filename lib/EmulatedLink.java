@@ -21,6 +21,9 @@ public class EmulatedLink {
     private EdgeOptions options;
     // When can the next packet be put onto the wire (in microseconds)
     private long nextPktSendTime;
+    // packets dropped due to buffer overflow and lost due to transmission error on this link
+    private long numDropped;
+    private long numLost;
 
     /**
      * Create an emulated physical link
@@ -29,6 +32,8 @@ public class EmulatedLink {
     public EmulatedLink(EdgeOptions options) {
         this.options = options;
         this.nextPktSendTime = 0;
+        this.numDropped = 0;
+        this.numLost = 0;
     }
 
     /**
@@ -51,6 +56,7 @@ public class EmulatedLink {
         if (finishTime - now > this.options.getBT() * 1000) {
             // buffer overflow, drop packet
             manager.packetDropped();
+            this.numDropped++;
             return -1;
         }
         this.nextPktSendTime = finishTime;
@@ -58,9 +64,26 @@ public class EmulatedLink {
         if(Math.random() < this.options.getLossRate()) {
             // packet lost due to transmission error
             manager.packetLost();
+            this.numLost++;
             return -1;
         }
 
         return  finishTime + (this.options.getDelay() * 1000);
     }
+
+    /**
+     * Get the number of packets this link dropped due to buffer overflow
+     * @return long The number of packets dropped
+     */
+    public long getNumDropped() {
+        return this.numDropped;
+    }
+
+    /**
+     * Get the number of packets this link lost due to transmission error
+     * @return long The number of packets lost
+     */
+    public long getNumLost() {
+        return this.numLost;
+    }
 }
@@ -1,20 +1,19 @@
-import java.net.Socket;
 import java.net.InetAddress;
-import java.io.PrintWriter;
-import java.io.IOException;
 
 /**
  * <pre>
  * Keeps track of information about an emulated node
  * Emulated node uses a TCP socket to talk to the Trawler, but send and receive messages directly
  * to other emulated nodes using UDP.
+ * The Trawler notices a node is gone as soon as its connection closes and removes it, so commands
+ * to a node whose connection is closed are simply dropped.
  * </pre>
  */
 public class EmulatedNode {
 
-    private Socket socket;               // Socket used to talk to node
-    private PrintWriter out;             // Output stream to send data across socket
+    private TrawlerConnection connection; // Connection used to talk to node
     private int fishAddr;                // Fish address assigned to node
+    private boolean hosted;              // True if the node shares its connection with the other nodes of an EmulatorHost
 
     //This is the ip address and port that node uses to talk to other nodes via UDP
     private InetAddress ipAddress;       // The IP address of node.
@@ -22,19 +21,31 @@ public class EmulatedNode {
 
     /**
      * Create a new EmulatedNode
-     * @param socket The socket to use to talk to the emulated node
-     * @param out An outputstream to use to send data across the socket
+     * @param connection The connection to use to talk to the emulated node
      * @param fishAddr The fishnet address of the emulated node
      * @param ipAddress The IP address of the machine that the node is on
      * @param port The port that the emulated node will use to talk to other nodes
      */
-    public EmulatedNode(Socket socket, PrintWriter out, int fishAddr, InetAddress ipAddress, int port) {
-	this.socket = socket;
+    public EmulatedNode(TrawlerConnection connection, int fishAddr, InetAddress ipAddress, int port) {
+	this.connection = connection;
 	this.fishAddr = fishAddr;
 	this.ipAddress = ipAddress;
 	this.port = port;
 
-	this.out = out;
+	this.hosted = false;
+    }
+
+    /**
+     * Create a new EmulatedNode
+     * @param connection The connection to use to talk to the emulated node
+     * @param fishAddr The fishnet address of the emulated node
+     * @param ipAddress The IP address of the machine that the node is on
+     * @param port The port that the emulated node will use to talk to other nodes
+     * @param hosted True if the node is run by an EmulatorHost, and shares the connection with the host's other nodes
+     */
+    public EmulatedNode(TrawlerConnection connection, int fishAddr, InetAddress ipAddress, int port, boolean hosted) {
+	this(connection, fishAddr, ipAddress, port);
+	this.hosted = hosted;
     }
 
 
@@ -46,8 +57,6 @@ public class EmulatedNode {
      */
     public void putEdge(EmulatedNode peerNode) {
 	if(!this.isAlive()) {
-	    this.close();
-	    Trawler.GetInstance().remove(this);
 	    return;
 	}
 
@@ -63,11 +72,17 @@ public class EmulatedNode {
         Edge e = Topology.GetInstance().getLiveEdge(this.getFishAddr(),
                                                     peerNode.getFishAddr());
         EdgeOptions options = e.getOptions();
+	if(this.connection.isBinary()) {
+	    this.connection.sendRecord(TrawlerNodeARPCommands.addNeighborBinary(this.fishAddr, peerNode.getFishAddr(),
+										peerNode.getIPAddress(), peerNode.getPort(),
+										options));
+	    return;
+	}
         String cmd = TrawlerNodeARPCommands.addNeighborOptions(peerNode.getFishAddr(),
                                                                peerNode.getIPAddress(),
                                                                peerNode.getPort(),
                                                                options);
-        out.println(cmd);
+        this.send(cmd);
     }
 
     /**
@@ -76,11 +91,13 @@ public class EmulatedNode {
      */
     public void removeEdge(int peerFishAddr) {
 	if(!this.isAlive()) {
-	    this.close();
-	    Trawler.GetInstance().remove(this);
 	    return;
 	}
-	out.println(TrawlerNodeARPCommands.removeNeighbor(peerFishAddr));
+	if(this.connection.isBinary()) {
+	    this.connection.sendRecord(TrawlerNodeARPCommands.removeNeighborBinary(this.fishAddr, peerFishAddr));
+	    return;
+	}
+	this.send(TrawlerNodeARPCommands.removeNeighbor(peerFishAddr));
     }
 
     /**
@@ -88,25 +105,28 @@ public class EmulatedNode {
      */
     public void reset() {
 	if(!this.isAlive()) {
-	    this.close();
-	    Trawler.GetInstance().remove(this);
 	    return;
 	}
-	out.println(TrawlerNodeARPCommands.reset());
+	if(this.connection.isBinary()) {
+	    this.connection.sendRecord(TrawlerNodeARPCommands.resetBinary(this.fishAddr));
+	    return;
+	}
+	this.send(TrawlerNodeARPCommands.reset());
     }
 
     /**
      * Close the the connection to the emulated node
      */
     public void close() {
-	try {
-	    out.close();
-	    socket.close();
-	}catch(IOException e) {
-	    System.err.println("Encountered IO Exception while trying to close socket in EmulatedNode: " + this.fishAddr +
-			       "Exception Stack Trace:");
-	    e.printStackTrace();
-	}
+	this.connection.close();
+    }
+
+    /**
+     * Get the connection used to talk to this node
+     * @return The connection, shared with the other nodes of an EmulatorHost
+     */
+    public TrawlerConnection getConnection() {
+	return this.connection;
     }
 
     /**
@@ -138,18 +158,31 @@ public class EmulatedNode {
      * @return A string containing details of this emulated node
      */
     public String toString() {
-	return new String("<TCP: " + this.socket.getInetAddress() + ":" + this.socket.getPort() + " Fish: " + this.fishAddr +
+	return new String("<TCP: " + this.connection.getAddress() + ":" + this.connection.getPort() + " Fish: " + this.fishAddr +
 			  " UDP: " + this.ipAddress + ":" + this.port + ">");
     }
 
+    /**
+     * Check if the emulated node is run by an EmulatorHost
+     * @return True if the node shares its connection with the other nodes of an EmulatorHost
+     */
+    public boolean isHosted() {
+	return this.hosted;
+    }
+
     /**
      * Check if the emulated node is still alive
      * @return True if the node is still alive
      */
     public boolean isAlive() {
-	return (!socket.isClosed() &&
-		!out.checkError()  &&
-		!socket.isOutputShutdown());
+	return this.connection.isOpen();
+    }
 
+    // Hosted nodes share the connection, so commands say which node they are for
+    private void send(String cmd) {
+	if(this.hosted) {
+	    cmd = TrawlerNodeARPCommands.hostedCommand(this.fishAddr, cmd);
+	}
+	this.connection.send(cmd);
     }
 }
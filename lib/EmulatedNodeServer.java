@@ -1,5 +1,4 @@
 import java.lang.Thread;
-import java.util.ArrayList;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.io.IOException;
@@ -12,31 +11,40 @@ import java.io.IOException;
 public class EmulatedNodeServer extends Thread {
 
     public static final int ID = 1;
+    public static final int MAX_QUEUED_PACKETS = 4096;
 
     private DatagramSocket socket;
-    private ArrayList packetsReceived;
-    private static int MAX_PACKET_LENGTH = EmulatorPacket.MAX_PACKET_SIZE;
+    private MpscQueue packetsReceived;
+    private volatile long numOverflows;  // packets dropped because the queue was full
     private MultiplexIO multiplexIO;
+    private PacketBufferPool pool;
 
     /**
      * Creates a new EmulatedNodeServer
      * @param socket The UDP socket to listen on
+     * @param multiplexIO Notified of every packet received
+     * @param pool The pool to receive packets into. Buffers must hold at least EmulatorPacket.MAX_DATAGRAM_SIZE bytes
      */
-    public EmulatedNodeServer(DatagramSocket socket, MultiplexIO multiplexIO) {
+    public EmulatedNodeServer(DatagramSocket socket, MultiplexIO multiplexIO, PacketBufferPool pool) {
 	this.socket = socket;
-	this.packetsReceived = new ArrayList();
+	this.packetsReceived = new MpscQueue(MAX_QUEUED_PACKETS);
+	this.numOverflows = 0;
 	this.multiplexIO = multiplexIO;
+	this.pool = pool;
     }
 
     /**
      * This starts the server
      */
     public void run() {
+	PacketBuffer buffer = null;
 	while(true) {
-	    byte[] buf = new byte[MAX_PACKET_LENGTH];
+	    if(buffer == null) {
+		buffer = this.pool.acquire();
+	    }
 
 	    // receive request
-	    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+	    DatagramPacket packet = buffer.getReceiveDatagram();
 	    try {
 		socket.receive(packet);
 	    }catch(IOException e) {
@@ -44,7 +52,13 @@ public class EmulatedNodeServer extends Thread {
 		e.printStackTrace();
 		continue;
 	    }
-	    this.storePacket(packet);
+	    buffer.setLength(packet.getLength());
+	    if(!this.packetsReceived.offer(buffer)) {
+		// manager is too far behind, drop the packet like a full socket buffer would
+		this.numOverflows++;
+		continue;
+	    }
+	    buffer = null;
             /*
              * Apr. 1, 2006
              * Hao Wang
@@ -66,22 +80,31 @@ public class EmulatedNodeServer extends Thread {
      * Tests if there are more packets stored
      * @return True if there are more packets stored in memory
      */
-    public synchronized boolean hasPackets() {
+    public boolean hasPackets() {
 	return !this.packetsReceived.isEmpty();
     }
 
     /**
-     * Gets the first packet stored
-     * @return The first packet stored
+     * @return The number of packets stored
      */
-    public synchronized DatagramPacket getPacket() {
-	if(this.packetsReceived.isEmpty()) {
-	    return null;
-	}
-	return (DatagramPacket)this.packetsReceived.remove(0);
+    public int getQueueDepth() {
+	return this.packetsReceived.size();
+    }
+
+    /**
+     * @return The number of packets dropped because the manager did not keep up
+     */
+    public long getNumOverflows() {
+	return this.numOverflows;
     }
 
-    private synchronized void storePacket(DatagramPacket packet) {
-	this.packetsReceived.add(packet);
+    /**
+     * Gets the first packet stored. The caller owns the returned buffer and must release it.
+     * The sender's address is available from the buffer's receive datagram.
+     * Must only be called from the manager thread
+     * @return The first packet stored, or null if there is none
+     */
+    public PacketBuffer getPacket() {
+	return (PacketBuffer)this.packetsReceived.poll();
     }
 }
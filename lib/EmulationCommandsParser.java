@@ -1,7 +1,8 @@
 /**
  * <pre>   
  * Parser for the Emulator
- * Emulator is interested in all commands except topology commands
+ * Emulator is interested in all commands except topology commands.
+ * It also takes "stats", which prints the emulator's statistics
  * </pre>   
  */
 public class EmulationCommandsParser extends CommandsParser {
@@ -30,6 +31,10 @@ public class EmulationCommandsParser extends CommandsParser {
 
 	String[] cmd = line.split(" ");
 
+	if(cmd[0].equals("stats")) {
+	    this.emulator.printStats();
+	    return -1;
+	}
 	return this.parseCommonCmds(cmd, now);
     }  
 
@@ -44,6 +49,10 @@ public class EmulationCommandsParser extends CommandsParser {
 	this.emulator.sendNodeMsg(0, msg);
     }
 
+    protected NodeLog getLog() {
+	return this.emulator.getLog();
+    }
+
     protected void exit(String[] cmd) {
 	if(cmd[0].equals("exit")) {
 	    emulator.stop();
@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * <pre>
+ * Abstract class with the parts of running emulated nodes that Emulator and EmulatorHost share:
+ * running due events, the single threaded loop around a Selector, receiving datagrams, Trawler updates
+ * and keyboard input, and handing outgoing packets to the Pacer.
+ * A datagram holds several packets back to back if the sender coalesces. They are checked here and
+ * given one at a time to deliverPacket(), which decides which node gets them. Trawler updates are given
+ * to applyTrawlerLine() or applyTrawlerRecord(), which decide which ARP cache they change.
+ * </pre>
+ */
+public abstract class EmulationManager extends Manager {
+
+    // Used when running around a Selector. The Trawler channel is null if there is no Trawler
+    protected Selector selector;
+    protected DatagramChannel udpChannel;
+    protected SocketChannel trawlerChannel;
+    protected ChannelLineReader trawlerLines;
+    private StdinPipe keyboard;
+    private ChannelLineReader keyboardLines;
+
+    protected PacketBufferPool pool;
+    protected Pacer pacer;  // puts every outgoing packet on the wire
+    protected boolean binaryControl; // Trawler sends binary messages instead of lines
+
+    // Receive batching. Packets processed per wake-up
+    protected int batchSize;
+    private long numBatches;
+    private long numBatchedPackets;
+    private int maxBatch;
+
+    /**
+     * Initialize the manager
+     * @param options Tunables of the emulated nodes
+     */
+    protected EmulationManager(EmulatorOptions options) {
+	super(options.createClock());
+	this.batchSize = options.getBatchSize();
+    }
+
+    /**
+     * Prints how packets were received in batches
+     * @param out Where to print
+     */
+    public void printBatches(PrintStream out) {
+	out.println("Receive batches: " + this.numBatches + " Packets: " + this.numBatchedPackets +
+		    " Average batch: " + (this.numBatches == 0 ? 0 : this.numBatchedPackets / (double)this.numBatches) +
+		    " Max batch: " + this.maxBatch);
+    }
+
+    /**
+     * Give one packet received from a neighbor to the node or nodes it is for
+     * @param packet The datagram the packet came in
+     * @param srcAddr Fishnet address of the sender
+     * @param destAddr Fishnet address the packet is for
+     * @param offset Where the packet starts in the datagram's data
+     * @param packetLength Length of the packet, header included
+     */
+    protected abstract void deliverPacket(PacketBuffer packet, int srcAddr, int destAddr, int offset, int packetLength);
+
+    /**
+     * Apply one update received from the Trawler as a line
+     * @param trawlerCmd The line received
+     */
+    protected abstract void applyTrawlerLine(String trawlerCmd);
+
+    /**
+     * Apply one binary record received from the Trawler
+     * @param type The type of the record, as returned by TrawlerNodeARPCommands.receiveBinaryCommand()
+     * @param data The data of the record, as filled in by TrawlerNodeARPCommands.receiveBinaryCommand()
+     */
+    protected abstract void applyTrawlerRecord(int type, ArrayList data);
+
+    /**
+     * Called before the selector loop waits
+     * @return False if input is waiting somewhere the selector does not see, so the loop must not sleep
+     */
+    protected boolean prepareToWait() {
+	return true;
+    }
+
+    /**
+     * Called every time the selector loop wakes up, after the selected channels have been read
+     */
+    protected void afterWakeUp() {
+    }
+
+    // Runs all due events and returns the time (in microseconds) to wait till before the next
+    // event or fish file command is due. Returns -1 if there is nothing to wait for
+    protected long runDueEvents(long deferParsingTill) {
+	long now = this.nowMicros();
+	Event nextEvent = null;
+
+	while(!this.sortedEvents.isEmpty() &&
+	      (nextEvent = this.sortedEvents.getNextEvent()).timeToOccur() <= now) {
+	    this.sortedEvents.removeNextEvent();
+	    try {
+		nextEvent.callback().invoke();
+	    }catch(Exception e) {
+		System.err.println("Exception while trying to invoke method in " + this.getClass().getName() + ". Error: " + e);
+		e.printStackTrace();
+	    }
+	}
+
+	if(this.sortedEvents.isEmpty()) {
+	    return deferParsingTill;
+	}
+	if(deferParsingTill == -1) {
+	    return nextEvent.timeToOccur();
+	}
+	return Math.min(nextEvent.timeToOccur(), deferParsingTill);
+    }
+
+    // Switch the channels opened by the subclass to non-blocking mode and register them
+    protected void openSelector() throws IOException {
+	this.selector = Selector.open();
+	this.udpChannel.configureBlocking(false);
+	this.udpChannel.register(this.selector, SelectionKey.OP_READ);
+	if(this.trawlerChannel != null) {
+	    this.trawlerChannel.configureBlocking(false);
+	    this.trawlerChannel.register(this.selector, SelectionKey.OP_READ);
+	}
+	this.keyboard = new StdinPipe();
+	this.keyboard.source().configureBlocking(false);
+	this.keyboard.source().register(this.selector, SelectionKey.OP_READ);
+	this.keyboardLines = new ChannelLineReader(this.keyboard.source());
+	this.keyboard.start();
+    }
+
+    /**
+     * <pre>
+     * Single threaded main loop
+     * do:
+     *   Read commands from the fishnet file if there is one
+     *   Process any defered events
+     *   Wait on the selector till the next event or an incoming message, Trawler update or keyboard input
+     *   Process everything the selector reports ready
+     * loop
+     * </pre>
+     */
+    protected void runSelectorLoop() {
+	long deferParsingTill = 0;
+
+	long waitTime; // time in microseconds
+	while(true) {
+	    try {
+		deferParsingTill = this.runDueCommands();
+
+		waitTime = this.runDueEvents(deferParsingTill);
+
+		if(!this.prepareToWait()) {
+		    this.selector.selectNow();
+		}else if(waitTime == -1) {
+		    this.selector.select();
+		}else {
+		    // round up to whole milliseconds so we do not wake up just before the deadline
+		    long timeout = (this.clock.toRealNanos(waitTime - this.nowMicros()) + 999999) / 1000000;
+		    if(timeout > 0) {
+			this.selector.select(timeout);
+		    }else {
+			this.selector.selectNow();
+		    }
+		}
+
+		Iterator iter = this.selector.selectedKeys().iterator();
+		while(iter.hasNext()) {
+		    SelectionKey key = (SelectionKey)iter.next();
+		    iter.remove();
+		    if(!key.isValid()) {
+			continue;
+		    }
+		    if(key.channel() == this.udpChannel) {
+			this.receivePackets();
+		    }else if(key.channel() == this.trawlerChannel) {
+			this.readTrawler(key);
+		    }else {
+			this.readKeyboard(key);
+		    }
+		}
+		this.afterWakeUp();
+	    }catch(Exception e) {
+		System.err.println("Exception occured in " + this.getClass().getName() + ". Stack trace: ");
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    /**
+     * Hand a packet to the Pacer, after the neighbor's emulated link if it has one
+     * @param packet The packet, packed for the wire. The Pacer takes its own reference
+     * @param destAddr Fishnet address of the neighbor
+     * @param arpData ARP data of the neighbor
+     * @param size Size of the fishnet packet, which the emulated link is charged for
+     * @return True if the packet was scheduled, false if the link or the Pacer dropped it
+     */
+    /*
+     * Mar. 12, 2006
+     * Hao Wang
+     *
+     * Support physical link emulation
+     */
+    /*
+     * Apr. 14, 2006
+     * Hao Wang
+     *
+     * Bug: Broadcast packet may be sent to wrong nodes, because UDP destination
+     *      information is overwritten by later call to schedulePkt
+     * Fix: Set UDP destination information individually
+     */
+    protected boolean schedulePkt(PacketBuffer packet, int destAddr, EmulatorARPData arpData, int size) {
+        EmulatedLink link = arpData.getEmulatedLink();
+        long releaseTime = System.nanoTime();
+        if (link != null) {
+            // physical link emulation, delay transmission
+            long currentTime = this.nowMicros();
+            long timeToDeliver = link.schedulePkt(this, size, currentTime);
+
+            if(timeToDeliver == -1) {
+                return false;  // packet dropped/lost
+            }
+            releaseTime += this.clock.toRealNanos(timeToDeliver - currentTime);
+        }
+        if (!this.pacer.schedule(packet, destAddr, arpData, releaseTime)) {
+            this.packetDropped();
+            return false;
+        }
+        return true;
+    }
+
+    // Hands the packets to deliverPacket() straight out of the receive buffer, then releases the buffer
+    protected void processPacket(PacketBuffer packet) {
+	try {
+	    byte[] data = packet.getData();
+	    int length = packet.getLength();
+	    int offset = 0;
+	    int packetLength;
+	    while(offset < length && (packetLength = this.processPacket(packet, data, offset, length - offset)) > 0) {
+		offset += packetLength;
+	    }
+	}finally {
+	    packet.release();
+	}
+    }
+
+    protected void recordBatch(int count) {
+	if(count == 0) {
+	    return;
+	}
+	this.numBatches++;
+	this.numBatchedPackets += count;
+	this.maxBatch = Math.max(this.maxBatch, count);
+    }
+
+    /******************** Private Functions ********************/
+
+    // Returns the length of the packet at offset, or -1 if it is corrupt
+    private int processPacket(PacketBuffer packet, byte[] data, int offset, int length) {
+	int packetLength = (length < EmulatorPacket.HEADER_SIZE) ? -1 : EmulatorPacket.packedLength(data, offset);
+	if(packetLength < EmulatorPacket.HEADER_SIZE || packetLength > length) {
+	    // Corrupt data.
+	    System.err.println("Was unable to extract packet received from " + packet.getAddress() + ":" + packet.getPort());
+	    return -1;
+	}
+	this.deliverPacket(packet, EmulatorPacket.packedSrc(data, offset), EmulatorPacket.packedDest(data, offset),
+			   offset, packetLength);
+	return packetLength;
+    }
+
+    // Process up to batchSize datagrams waiting on the non-blocking channel
+    private void receivePackets() throws IOException {
+	int count = 0;
+	try {
+	    while(count < this.batchSize && this.receivePacket()) {
+		count++;
+	    }
+	}finally {
+	    // anything left is still readable, so the selector reports it again right away
+	    this.recordBatch(count);
+	}
+    }
+
+    // Returns false if no datagram was waiting
+    private boolean receivePacket() throws IOException {
+	PacketBuffer packet = this.pool.acquire();
+	InetSocketAddress from;
+	try {
+	    from = (InetSocketAddress)this.udpChannel.receive(packet.getReceiveBuffer());
+	}catch(IOException e) {
+	    packet.release();
+	    throw e;
+	}
+	if(from == null) {
+	    packet.release();
+	    return false;
+	}
+	packet.setReceived(from.getAddress(), from.getPort());
+	this.processPacket(packet);
+	return true;
+    }
+
+    private void readTrawler(SelectionKey key) throws IOException {
+	int count = this.trawlerLines.fill();
+	if(this.binaryControl) {
+	    ByteBuffer message;
+	    ArrayList data = new ArrayList();
+	    while((message = this.trawlerLines.readMessage()) != null) {
+		int type;
+		while((type = TrawlerNodeARPCommands.receiveBinaryCommand(message, data)) >= 0) {
+		    this.applyTrawlerRecord(type, data);
+		    data.clear();
+		}
+	    }
+	}else {
+	    String trawlerCmd;
+	    while((trawlerCmd = this.trawlerLines.readLine()) != null) {
+		this.applyTrawlerLine(trawlerCmd);
+	    }
+	}
+	if(count < 0) {
+	    System.err.println("Trawler closed the connection. Is Trawler dead?..");
+	    key.cancel();
+	    this.trawlerChannel.close();
+	}
+    }
+
+    private void readKeyboard(SelectionKey key) throws IOException {
+	int count = this.keyboardLines.fill();
+	String line;
+	while((line = this.keyboardLines.readLine()) != null) {
+	    this.parser.parseLine(line, this.nowMicros());
+	}
+	if(count < 0) {
+	    key.cancel();
+	}
+    }
+}
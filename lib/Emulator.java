@@ -1,24 +1,25 @@
 import java.net.Socket;
 import java.net.DatagramSocket;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
 import java.io.PrintWriter;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.lang.NumberFormatException;
 import java.lang.Integer;
-import java.util.HashMap;
 import java.util.ArrayList;
-import java.util.Iterator;
 
 /**
  * Manages an emulated node
  */
-public class Emulator extends Manager {
-    private static int MAX_BYTE_RATE = 100000; // don't send more than 100KB/s
+public class Emulator extends EmulationManager {
+    static final int MAX_BYTE_RATE = 100000; // don't send more than 100KB/s, unless overridden by the maxrate option
 
     private Socket trawler;
     private PrintWriter trawlerWriter;
@@ -29,8 +30,12 @@ public class Emulator extends Manager {
     private EmulatedNodeServer server;
     private IOThreadEmulator io;
     private MultiplexIO multiplexIO;
-    private HashMap arp;  // Address resolution protocol. Maps fish addresses to [ip address, ip port]
+    private ARPTable arp;  // Address resolution protocol. Maps fish addresses to [ip address, ip port]
+    private TrawlerListener trawlerListener;
+    private SharedMemoryTransport shm;  // to neighbors on the same machine. Null if not used
 
+    private EmulatorStats stats;
+    private boolean timestamps;  // append send times to outgoing packets
 
     /**
      * Create a new emulator
@@ -44,12 +49,41 @@ public class Emulator extends Manager {
      */
     public Emulator(String trawlerName, int trawlerPort, int localUDPPort) throws UnknownHostException, SocketException,
 										  IOException, IllegalArgumentException {
-	super(Utility.fishTime());
+	this(trawlerName, trawlerPort, localUDPPort, new EmulatorOptions());
+    }
+
+    /**
+     * Create a new emulator
+     * @param trawlerName Name of the machine that the Trawler is on
+     * @param trawlerPort The port that the Trawler is listening on
+     * @param localUDPPort The UDP port that this node should use to talk to its neighbors
+     * @param options Tunables of this emulator
+     * @throws UnknownHostException If the trawlerName cannot be resolved
+     * @throws SocketException If there is an error in creating a TCP socket
+     * @throws IOException If there is an error in writing to the TCP socket
+     * @throws IllegalArgumentException If the local port given is already in use
+     */
+    public Emulator(String trawlerName, int trawlerPort, int localUDPPort, EmulatorOptions options)
+	throws UnknownHostException, SocketException, IOException, IllegalArgumentException {
+	super(options);
 	super.setParser(new EmulationCommandsParser(this));
-	this.trawler = new Socket(trawlerName, trawlerPort);
-	this.trawlerWriter = new PrintWriter(trawler.getOutputStream(), true);
-	this.trawlerReader = new BufferedReader(new InputStreamReader(trawler.getInputStream()));
-	this.udpSocket = new DatagramSocket(localUDPPort);
+	this.stats = new EmulatorStats();
+	this.timestamps = options.useTimestamps();
+	// only with nio
+	this.binaryControl = options.useNIO() && options.useBinaryControl();
+	if(options.useNIO()) {
+	    InetAddress trawlerAddress = InetAddress.getByName(trawlerName);
+	    this.trawlerChannel = SocketChannel.open(new InetSocketAddress(trawlerAddress, trawlerPort));
+	    this.trawlerLines = new ChannelLineReader(this.trawlerChannel);
+	    this.udpChannel = DatagramChannel.open();
+	    this.udpChannel.socket().bind(new InetSocketAddress(localUDPPort));
+	    this.udpSocket = this.udpChannel.socket();
+	}else {
+	    this.trawler = new Socket(trawlerName, trawlerPort);
+	    this.trawlerWriter = new PrintWriter(trawler.getOutputStream(), true);
+	    this.trawlerReader = new BufferedReader(new InputStreamReader(trawler.getInputStream()));
+	    this.udpSocket = new DatagramSocket(localUDPPort);
+	}
 	try {
 	    this.fishAddress = this.getFishAddress();
 	}catch(NumberFormatException e) {
@@ -61,10 +95,70 @@ public class Emulator extends Manager {
 	    System.err.println("Port " + localUDPPort + " is already in use. Pick another");
 	    throw new IllegalArgumentException("Illegal local port " + localUDPPort);
 	}
+	this.arp = new ARPTable();
+	InetAddress localAddress = (this.trawlerChannel != null) ? this.trawlerChannel.socket().getLocalAddress() :
+	    this.trawler.getLocalAddress();
+	this.startNode(options, localAddress);
+    }
+
+    /**
+     * Create a new emulator that takes its port and neighbors from a static map instead of the Trawler
+     * @param map The map of the emulation
+     * @param fishAddr The fishnet address of this node. Must be in the map
+     * @param options Tunables of this emulator
+     * @throws SocketException If the node's UDP port cannot be opened
+     * @throws IOException If there is an error in opening the UDP port
+     * @throws IllegalArgumentException If the map has no node with the given address
+     */
+    public Emulator(StaticMap map, int fishAddr, EmulatorOptions options)
+	throws SocketException, IOException, IllegalArgumentException {
+	super(options);
+	super.setParser(new EmulationCommandsParser(this));
+	if(!map.hasNode(fishAddr)) {
+	    throw new IllegalArgumentException("Node " + fishAddr + " is not in the map");
+	}
+	this.stats = new EmulatorStats();
+	this.timestamps = options.useTimestamps();
+	this.binaryControl = false;
+	int localUDPPort = map.getPort(fishAddr);
+	if(options.useNIO()) {
+	    this.udpChannel = DatagramChannel.open();
+	    this.udpChannel.socket().bind(new InetSocketAddress(localUDPPort));
+	    this.udpSocket = this.udpChannel.socket();
+	}else {
+	    this.udpSocket = new DatagramSocket(localUDPPort);
+	}
+	this.fishAddress = fishAddr;
+	if(map.getDilation() != 1.0) {
+	    this.setDilation(map.getDilation());
+	}
+	this.arp = new ARPTable();
+	System.out.println("Node " + fishAddr + ": loaded " + map.loadNeighbors(fishAddr, this.arp) + " neighbors from the map");
+	this.startNode(options, map.getIPAddress(fishAddr));
+    }
+
+    // The part of starting up that does not depend on where the address and neighbors came from.
+    // localAddress is the IP address neighbors see this node at
+    private void startNode(EmulatorOptions options, InetAddress localAddress) throws IOException {
 	this.node = new Node(this, this.fishAddress);
-	this.arp = new HashMap();
+	// big enough for datagrams coalesced by any neighbor
+	this.pool = new PacketBufferPool(EmulatorPacket.MAX_DATAGRAM_SIZE);
+	if(options.useSharedMemory()) {
+	    this.shm = new SharedMemoryTransport(localAddress, this.udpSocket.getLocalPort());
+	}
+	this.pacer = new Pacer(this.udpSocket, this.udpChannel, this.pool, options, this.shm);
+	this.pacer.start();
+	if(options.useNIO()) {
+	    this.openSelector();
+	    return;
+	}
+	if(this.trawlerReader != null) {
+	    // updates from the trawler are applied as they arrive, off the send path
+	    this.trawlerListener = new TrawlerListener(this.trawlerReader, this.arp);
+	    this.trawlerListener.start();
+	}
 	this.multiplexIO= new MultiplexIO();
-	this.server = new EmulatedNodeServer(this.udpSocket, this.multiplexIO);
+	this.server = new EmulatedNodeServer(this.udpSocket, this.multiplexIO, this.pool);
 	this.io = new IOThreadEmulator(this.multiplexIO);
 	this.server.start();
 	this.io.start();
@@ -85,79 +179,57 @@ public class Emulator extends Manager {
      * do:
      *   Read commands from the fishnet file if there is one
      *   Process any defered events
-     *   Process 1 pending incoming message. Timeout when next event is supposed to occur
+     *   Wait for incoming messages or keyboard input. Timeout when next event is supposed to occur
+     *   Process all pending keyboard input and up to batchSize pending incoming messages
      * loop
      * </pre>
      */
     public void start() {
 	this.node.start();
 
+	if(this.selector != null) {
+	    this.runSelectorLoop();
+	    return;
+	}
+
 	long deferParsingTill = 0;
 
-	Event nextEvent = null;
 	long waitTime; // time in microseconds
 	while(true) {
 	    try {
-		long now = Utility.fishTime();
-
-		deferParsingTill = this.readFishFile(deferParsingTill);
-
-		// Run all due events
-		while(!this.sortedEvents.isEmpty() &&
-		      (nextEvent = this.sortedEvents.getNextEvent()).timeToOccur() <= now) {
-
-		    this.sortedEvents.removeNextEvent();
-		    try {
-			nextEvent.callback().invoke();
-		    }catch(Exception e) {
-			System.err.println("Exception while trying to invoke method in Emulator. Error: " + e);
-			e.printStackTrace();
-		    }
-		}
+		deferParsingTill = this.runDueCommands();
 
-		/*
-                 * Apr. 3, 2006
-                 * Hao Wang
-                 *
-                 * Bug Fix: Emulator scheduling
-                 * 1. busy waiting when no events or parsing pending
-                 * 2. 'deferParsingTill' misused as delay
-                 * 3. pending events may cause delayed parsing
-                 */
-                /*
-                 * if(this.sortedEvents.isEmpty()) {
-                 *     waitTime = Math.max(-1, deferParsingTill);
-                 *     //waitTime = -1;
-                 * }else {
-                 *     waitTime = nextEvent.timeToOccur() - now;
-                 * }
-                 */
-                /*
-                 * Note: waitTime now is the time to wait TILL, not to wait for
-                 */
-                if (this.sortedEvents.isEmpty()) {
-                    waitTime = deferParsingTill;
-                } else {
-                    if (deferParsingTill == -1) {
-                        waitTime = nextEvent.timeToOccur();
-                    } else {
-                        waitTime =
-                            Math.min(nextEvent.timeToOccur(), deferParsingTill);
-                    }
-                }
+		waitTime = this.runDueEvents(deferParsingTill);
 
                 /*
                  * if( waitTime == -1 || (Utility.fishTime() < (now + waitTime)) ) {
                  *     int channelID = this.getIOChannelID(waitTime, now + waitTime);
                  */
-		if( waitTime == -1 || (Utility.fishTime() < (waitTime)) ) {
-		    int channelID = this.getIOChannelID(waitTime);
-		    if(channelID == EmulatedNodeServer.ID) {
-			this.processPacket(this.server.getPacket());
-		    }else if(channelID == IOThreadEmulator.ID) {
-			this.parser.parseLine(this.io.readLine(), Utility.fishTime());
+		if( waitTime == -1 || (this.nowMicros() < (waitTime)) ) {
+		    if(this.getIOChannelID(waitTime) != -1) {
+			// Everything pending is handled below, so the remaining notifications are stale.
+			// Clear them first: anything stored after this point notifies again
+			this.multiplexIO.clear();
+			while(!this.io.isEmpty()) {
+			    this.parser.parseLine(this.io.readLine(), this.nowMicros());
+			}
+			this.stats.recordQueueDepth(this.server.getQueueDepth());
+			int count = 0;
+			PacketBuffer packet;
+			while(count < this.batchSize && (packet = this.server.getPacket()) != null) {
+			    this.processPacket(packet);
+			    count++;
+			}
+			this.recordBatch(count);
+			if(this.server.hasPackets()) {
+			    // batch is full, come back for the rest once due events have run
+			    this.multiplexIO.write(EmulatedNodeServer.ID);
+			}
 		    }
 		}
+		if(this.shm != null) {
+		    this.receiveSharedMemory();
+		}
 	    }catch(Exception e) {
 		System.err.println("Exception occured in Emulator. Stack trace: ");
 		e.printStackTrace();
@@ -175,13 +247,13 @@ public class Emulator extends Manager {
      */
     public boolean sendPkt(int from, int to, byte[] pkt) throws IllegalArgumentException {
 	super.sendPkt(from, to, pkt);  // check arguments
-	this.refreshARP();
-	EmulatorPacket emulatorPacket = new EmulatorPacket(to, from, pkt);
-	byte[] payload = emulatorPacket.pack();
-	if(payload == null) {
-	    return false;
+	// one buffer is shared by every neighbor the packet is scheduled for, each holding its own reference
+	PacketBuffer physicalPacket = this.pool.acquire();
+	physicalPacket.setLength(EmulatorPacket.packInto(to, from, pkt, physicalPacket.getData(), 0));
+	if(this.timestamps) {
+	    physicalPacket.setLength(EmulatorPacket.appendTimestamp(physicalPacket.getData(), 0, System.nanoTime()));
 	}
-	DatagramPacket physicalPacket = new DatagramPacket(payload, payload.length);
+	EmulatorARPData arpData;
 	try {
             /*
              * Mar. 12, 2006
@@ -194,19 +266,19 @@ public class Emulator extends Manager {
                  * this.broadcastPacket(physicalPacket);
                  */
 		this.broadcastPacket(physicalPacket, pkt.length);
-	    }else if(this.arp.containsKey(new Integer(to))) {
+	    }else if((arpData = this.arp.get(to)) != null) {
                 /*
                  * this.physicalSend(physicalPacket, to);
                  */
-                this.schedulePkt(physicalPacket, to, pkt.length);
+                if(this.schedulePkt(physicalPacket, to, arpData, pkt.length)) {
+                    this.stats.recordSend(to, pkt.length);
+                }
 	    }else {
 		System.err.println("Node " + to + " is not a neighbor of node " + from);
 		return false;
 	    }
-	}catch(IOException e) {
-	    System.err.println("IOException occured while trying to send to node: " + to + ". Exception: " + e);
-	    e.printStackTrace();
-	    return false;
+	}finally {
+	    physicalPacket.release();
 	}
 	return true;
     }
@@ -223,93 +295,100 @@ public class Emulator extends Manager {
     }
 
     /**
-     * Retrieve current time in milliseconds
-     * @return Current time in milliseconds
+     * Prints the emulator's statistics: per neighbor traffic, link drops and losses, receive batching
+     * and queueing, one-way latency and pacing
      */
-    public long now() {
-	return Utility.fishTime() / 1000;
+    public void printStats() {
+	this.stats.print(System.err);
+	EmulatorStats.printLinks(System.err, this.arp.snapshot());
+	this.printBatches(System.err);
+	if(this.server != null) {
+	    System.err.println("Receive queue overflows: " + this.server.getNumOverflows());
+	}
+	if(this.shm != null) {
+	    System.err.println("Shared memory sent: " + this.shm.getNumSent() + " datagrams Received: " + this.shm.getNumReceived() +
+			       " Sent by UDP because the ring was full: " + this.shm.getNumFallbacks());
+	}
+	this.pacer.print(System.err);
     }
 
-    private int getFishAddress() throws NumberFormatException, IOException {
-	this.trawlerWriter.println(this.udpSocket.getLocalPort());
-	return Integer.parseInt(this.trawlerReader.readLine());
+    /**
+     * Stops Fishnet, printing the emulator's statistics along with the usual ones
+     */
+    public void stop() {
+	this.printStats();
+	if(this.shm != null) {
+	    this.shm.close();
+	}
+	super.stop();
     }
 
-    /*
-     * Mar. 12, 2006
-     * Hao Wang
-     *
-     * Support physical link emulation
+    /**
+     * @return False if packets are waiting in shared memory, so the main loop must not sleep
      */
-    /*
-     * Apr. 14, 2006
-     * Hao Wang
-     *
-     * Bug: Broadcast packet may be sent to wrong nodes, because UDP destination
-     *      information is overwritten by later call to schedulePkt
-     * Fix: Set UDP destination information individually
+    protected boolean prepareToWait() {
+	return this.shm == null || this.shm.prepareToWait();
+    }
+
+    /**
+     * Reads what has arrived in shared memory
      */
-    private void schedulePkt(DatagramPacket packet, int destAddr, int size) throws IOException {
-        EmulatorARPData arpData = (EmulatorARPData) this.arp.get(new Integer(destAddr));
-        EmulatedLink link = arpData.getEmulatedLink();
-        if (link == null) {
-            // no physical link emulation, send immediately
-            packet.setAddress(arpData.getIPAddress());
-            packet.setPort(arpData.getPort());
-            this.udpSocket.send(packet);
-        } else {
-            // physical link emulation, schedule transmission
-            long currentTime = Utility.fishTime();
-            long timeToDeliver = link.schedulePkt(this, size, currentTime);
+    protected void afterWakeUp() {
+	if(this.shm != null) {
+	    this.receiveSharedMemory();
+	}
+    }
 
-            if(timeToDeliver == -1) {
-                return;  // packet dropped/lost
-            }
+    /**
+     * Apply one update received from the Trawler as a line
+     * @param trawlerCmd The line received
+     */
+    protected void applyTrawlerLine(String trawlerCmd) {
+	this.arp.applyTrawlerCommand(trawlerCmd);
+    }
 
-            /*
-             * Apr. 1, 2006
-             * Hao Wang
-             *
-             * Bug: Emulator freezes due to timer not aligned on milliseconds
-             * Fix: Align timeToDeliver to next milliseconds
-             */
-            long usecFraction = timeToDeliver % 1000;
-            if (usecFraction != 0) {
-                timeToDeliver += 1000 - usecFraction;
-            }
+    /**
+     * Apply one binary record received from the Trawler
+     * @param type The type of the record
+     * @param data The data of the record
+     */
+    protected void applyTrawlerRecord(int type, ArrayList data) {
+	this.arp.applyTrawlerCommand(type, data);
+    }
 
-            String[] paramTypes = {
-                "java.net.DatagramPacket",
-                "java.net.InetAddress",
-                "java.lang.Integer"
-            };
-            Object[] params = {
-                packet,
-                arpData.getIPAddress(),
-                Integer.valueOf(arpData.getPort())
-            };
-            this.addEvent(timeToDeliver, "physicalSend", this, paramTypes, params);
-        }
+    private int getFishAddress() throws NumberFormatException, IOException {
+	if(this.trawlerChannel != null) {
+	    // channel is still blocking at this point
+	    String handshake = String.valueOf(this.udpSocket.getLocalPort());
+	    if(this.binaryControl) {
+		handshake = TrawlerNodeARPCommands.binary(handshake);
+	    }
+	    ByteBuffer line = ByteBuffer.wrap(Utility.stringToByteArray(handshake + "\n"));
+	    while(line.hasRemaining()) {
+		this.trawlerChannel.write(line);
+	    }
+	    return this.receiveFishAddress(this.trawlerLines.readLineBlocking());
+	}
+	this.trawlerWriter.println(this.udpSocket.getLocalPort());
+	return this.receiveFishAddress(this.trawlerReader.readLine());
     }
 
-    /*
-     * Apr. 14, 2006
-     * Hao Wang
-     *
-     * Bug: Broadcast packet may be sent to wrong nodes, because UDP destination
-     *      information is overwritten by later call to schedulePkt
-     * Fix: Set UDP destination information individually
-     */
-    public void physicalSend(DatagramPacket packet,
-                             InetAddress address,
-                             Integer port) throws IOException {
-        packet.setAddress(address);
-        packet.setPort(port.intValue());
-        this.udpSocket.send(packet);
+    private int receiveFishAddress(String reply) throws NumberFormatException {
+	this.setDilation(TrawlerNodeARPCommands.receiveDilation(reply));
+	return Integer.parseInt(TrawlerNodeARPCommands.receiveAddresses(reply));
     }
 
-    public void physicalSend(DatagramPacket packet) throws IOException {
-        this.udpSocket.send(packet);
+    // Process up to batchSize datagrams waiting in shared memory. Anything left is seen by
+    // SharedMemoryTransport.prepareToWait(), so the main loop does not sleep before reading it
+    private void receiveSharedMemory() {
+	this.shm.finishWait(this.arp.snapshot());
+	int count = 0;
+	PacketBuffer packet;
+	while(count < this.batchSize && (packet = this.shm.poll(this.pool)) != null) {
+	    this.processPacket(packet);
+	    count++;
+	}
+	this.recordBatch(count);
     }
 
     /*
@@ -318,87 +397,41 @@ public class Emulator extends Manager {
      *
      * Use physical link emulation if necessary
      */
-    private void broadcastPacket(DatagramPacket packet, int size) throws IOException {
-        Iterator iter = this.arp.keySet().iterator();
-        while(iter.hasNext()) {
-            Integer neighborAddr = (Integer)iter.next();
-            this.schedulePkt(packet, neighborAddr.intValue(), size);
+    private void broadcastPacket(PacketBuffer packet, int size) {
+        EmulatorARPData[] neighbors = this.arp.snapshot();
+        for (int i = 0; i < neighbors.length; i++) {
+            if (neighbors[i] != null) {
+                if (this.schedulePkt(packet, i, neighbors[i], size)) {
+                    this.stats.recordSend(i, size);
+                }
+            }
         }
     }
 
     /**
-     * RefreshArp -- Make sure our arp cache is up to date, by checking to see
-     * 	if the trawler has given us any updates
+     * Give one packet received from a neighbor to the node, if it is for the node
+     * @param packet The datagram the packet came in
+     * @param srcAddr Fishnet address of the sender
+     * @param destAddr Fishnet address the packet is for
+     * @param offset Where the packet starts in the datagram's data
+     * @param packetLength Length of the packet, header included
      */
-    private void refreshARP() {
-	try {
-	    while(this.trawlerReader.ready()) {
-		String trawlerCmd = trawlerReader.readLine();
-		ArrayList addNeighborData = new ArrayList();
-		int neighborToRemove;
-		if(TrawlerNodeARPCommands.receiveReset(trawlerCmd)) {
-		    // Clear ARP Cache
-		    this.arp.clear();
-		}else if( (neighborToRemove = TrawlerNodeARPCommands.receiveRemoveNeighbor(trawlerCmd)) >= 0 ) {
-		    // Remove a neighbor
-		    this.arp.remove(new Integer(neighborToRemove));
-		}else if(TrawlerNodeARPCommands.receiveAddNeighbor(trawlerCmd, addNeighborData)) {
-		    // Add a neighbor
-		    Integer fishAddr = (Integer)addNeighborData.get(0);
-		    EmulatorARPData arpData = (EmulatorARPData)addNeighborData.get(1);
-		    if(Packet.validAddress(fishAddr.intValue())) {
-			this.arp.put(fishAddr, arpData);
-		    }
-		}else {
-		    System.err.println("Unrecognized command from trawler: " + trawlerCmd);
-		}
-	    }
-	}catch(IOException e) {
-	    System.err.println("Encountered IOException while trying to refresh ARP cache. Is Trawler dead?..\n Stack trace: ");
-	    e.printStackTrace();
-	}catch(Exception e) {
-	    System.err.println("Encountered Exception while trying to refresh ARP cache. Stack trace: ");
-	    e.printStackTrace();
-	}
-    }
-
-    private void processPacket(DatagramPacket packet) {
-	InetAddress ipAddress = packet.getAddress();
-	int port = packet.getPort();
-	EmulatorPacket emulatorPacket = EmulatorPacket.unpack(packet.getData());
-	if(emulatorPacket == null) {
-	    // Corrupt data.
-	    System.err.println("Was unable to extract packet received from " + ipAddress + ":" + port);
-	    return;
-	}
-	Integer srcAddr = new Integer(emulatorPacket.getSrc());
-	int destAddr = emulatorPacket.getDest();
+    protected void deliverPacket(PacketBuffer packet, int srcAddr, int destAddr, int offset, int packetLength) {
         /*
          * Mar. 11, 2006
          * Hao Wang
          *
          * Check for existing ARP data
          */
-        /*
-         * this.arp.put(srcAddr, new EmulatorARPData(ipAddress, port));
-         */
-        boolean newARPData = false;
-        if (!this.arp.containsKey(srcAddr)) {
-            newARPData = true;
-        } else {
-            EmulatorARPData arpData = (EmulatorARPData)this.arp.get(srcAddr);
-            if (!arpData.getIPAddress().equals(ipAddress) ||
-                arpData.getPort() != port) {
-                newARPData = true;
-            }
-        }
-        if (newARPData) {
-            // we don't have edge options, defer emulation until
-            // we learn ARP data from trwaler
-            this.arp.put(srcAddr, new EmulatorARPData(ipAddress,port));
-        }
+        this.arp.learn(srcAddr, packet.getAddress(), packet.getPort());
 	if(destAddr == this.fishAddress || destAddr == Packet.BROADCAST_ADDRESS) {
-	    this.node.onReceive(srcAddr, emulatorPacket.getPayload());
+	    byte[] data = packet.getData();
+	    if(EmulatorPacket.hasTimestamp(data, offset)) {
+		this.stats.recordLatency(EmulatorPacket.packedTimestamp(data, offset), System.nanoTime());
+	    }
+	    int payloadLength = EmulatorPacket.packedPayloadLength(data, offset);
+	    this.stats.recordReceive(srcAddr, payloadLength);
+	    this.node.onReceive(srcAddr, data, offset + EmulatorPacket.HEADER_SIZE, payloadLength);
 	}
 	// drop if not for me. This can happen if we took a port that was recently occupied by another node
     }
@@ -429,27 +462,16 @@ public class Emulator extends Manager {
 //  }
 
     private int getIOChannelID(long endTime) {
+        if (this.shm != null && !this.shm.prepareToWait()) {
+            // packets are waiting in shared memory, do not sleep
+            return this.multiplexIO.read();
+        }
         if (endTime == -1) {
             // wait indefinitely (until some IO event occurs)
-            try {
-                synchronized (this.multiplexIO) {
-                    while (this.multiplexIO.isEmpty()) {
-                        this.multiplexIO.wait();
-                    }
-                }
-            } catch (InterruptedException e) {}
+            this.multiplexIO.await();
         } else {
             // wait until endTime or some IO event occurs
-            long waitTime;
-            try {
-                synchronized (this.multiplexIO) {
-                    while (this.multiplexIO.isEmpty() &&
-                           (waitTime = endTime - Utility.fishTime()) > 0) {
-                        // divide by 1000 since waitTime is in microseconds
-                        this.multiplexIO.wait(waitTime / 1000);
-                    }
-                }
-            } catch (InterruptedException e) {}
+            this.multiplexIO.await(endTime, this.clock);
         }
 
 	return this.multiplexIO.read();
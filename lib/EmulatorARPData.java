@@ -1,4 +1,5 @@
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 /**
  * <pre>
@@ -9,6 +10,10 @@ public class EmulatorARPData {
 
     private InetAddress ipAddress;
     private int port;
+    private InetSocketAddress socketAddress;  // resolved once, for sending through a DatagramChannel
+    // ring to the neighbor if it is on the same machine, looked up by the pacer thread
+    private SharedMemoryRing sharedMemoryRing;
+    private long sharedMemoryRecheckTime;
 
     /*
      * Feb. 28, 2006
@@ -26,6 +31,7 @@ public class EmulatorARPData {
     public EmulatorARPData(InetAddress ipAddress, int port) {
 	this.ipAddress = ipAddress;
 	this.port = port;
+	this.socketAddress = new InetSocketAddress(ipAddress, port);
 
         /*
          * Feb. 28, 2006
@@ -45,6 +51,7 @@ public class EmulatorARPData {
     public EmulatorARPData(InetAddress ipAddress, int port, EdgeOptions options) {
         this.ipAddress = ipAddress;
         this.port = port;
+        this.socketAddress = new InetSocketAddress(ipAddress, port);
         this.link = new EmulatedLink(options);
     }
 
@@ -64,6 +71,39 @@ public class EmulatorARPData {
 	return this.port;
     }
 
+    /**
+     * Get the IP address and port together
+     * @return The socket address of the neighboring node
+     */
+    public InetSocketAddress getSocketAddress() {
+	return this.socketAddress;
+    }
+
+    /**
+     * Get the shared memory ring to the neighboring node
+     * @return The ring, or null if packets to the neighbor go by UDP
+     */
+    public SharedMemoryRing getSharedMemoryRing() {
+	return this.sharedMemoryRing;
+    }
+
+    /**
+     * Set the shared memory ring to the neighboring node
+     * @param ring The ring, or null if packets to the neighbor go by UDP
+     * @param recheckTime When to look for the ring again, in milliseconds as returned by System.currentTimeMillis()
+     */
+    public void setSharedMemoryRing(SharedMemoryRing ring, long recheckTime) {
+	this.sharedMemoryRing = ring;
+	this.sharedMemoryRecheckTime = recheckTime;
+    }
+
+    /**
+     * @return When to look for the shared memory ring again. 0 if it was never looked for
+     */
+    public long getSharedMemoryRecheckTime() {
+	return this.sharedMemoryRecheckTime;
+    }
+
     /**
      * Return the emulated physical link, or null if no emulation
      * @return EmulatedLink The emulated physical link
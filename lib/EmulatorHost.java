@@ -0,0 +1,275 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * <pre>
+ * Runs many emulated nodes in one process.
+ * All the nodes share one UDP port, one connection to the Trawler and one thread, which waits on a Selector.
+ * Every datagram is addressed to a single node (see Pacer), so incoming packets are handed to the node
+ * named by the destination address in their EmulatorPacket header.
+ *
+ * Each node has its own ARP cache and emulated links, exactly as if it were run by its own Emulator.
+ * Keyboard and fishnet file commands for a node are given as "a msg", like for the Simulator.
+ * </pre>
+ */
+public class EmulatorHost extends EmulationManager {
+
+    private boolean timestamps;   // append send times to outgoing packets
+
+    private int[] fishAddrs;      // addresses of the hosted nodes
+    private Node[] nodes;         // indexed by fish address, null if not hosted here
+    private ARPTable[] arps;      // ARP cache of each hosted node, indexed by fish address
+    private EmulatorStats[] stats; // statistics of each hosted node, indexed by fish address
+
+    /**
+     * Create a new host
+     * @param trawlerName Name of the machine that the Trawler is on
+     * @param trawlerPort The port that the Trawler is listening on
+     * @param localUDPPort The UDP port that the nodes share to talk to their neighbors
+     * @param numNodes The number of nodes to run
+     * @param options Tunables of the emulated nodes. The host always runs around a Selector, so nio is ignored
+     * @throws UnknownHostException If the trawlerName cannot be resolved
+     * @throws IOException If there is an error in talking to the Trawler or opening the UDP port
+     * @throws IllegalArgumentException If the Trawler refused to register the nodes
+     */
+    public EmulatorHost(String trawlerName, int trawlerPort, int localUDPPort, int numNodes, EmulatorOptions options)
+	throws UnknownHostException, IOException, IllegalArgumentException {
+	super(options);
+	super.setParser(new HostedCommandsParser(this));
+	if(numNodes <= 0 || numNodes >= Packet.BROADCAST_ADDRESS) {
+	    throw new IllegalArgumentException("Invalid number of nodes given to host. Nodes given: " + numNodes);
+	}
+	this.timestamps = options.useTimestamps();
+	this.binaryControl = options.useBinaryControl();
+
+	InetAddress trawlerAddress = InetAddress.getByName(trawlerName);
+	this.trawlerChannel = SocketChannel.open(new InetSocketAddress(trawlerAddress, trawlerPort));
+	this.trawlerLines = new ChannelLineReader(this.trawlerChannel);
+	this.udpChannel = DatagramChannel.open();
+	this.udpChannel.socket().bind(new InetSocketAddress(localUDPPort));
+
+	this.fishAddrs = this.register(localUDPPort, numNodes);
+	this.nodes = new Node[Packet.MAX_ADDRESS + 1];
+	this.arps = new ARPTable[Packet.MAX_ADDRESS + 1];
+	this.stats = new EmulatorStats[Packet.MAX_ADDRESS + 1];
+	for(int i = 0; i < this.fishAddrs.length; i++) {
+	    int fishAddr = this.fishAddrs[i];
+	    this.nodes[fishAddr] = new Node(this, fishAddr);
+	    this.arps[fishAddr] = new ARPTable();
+	    this.stats[fishAddr] = new EmulatorStats();
+	}
+
+	// big enough for datagrams coalesced by any neighbor
+	this.pool = new PacketBufferPool(EmulatorPacket.MAX_DATAGRAM_SIZE);
+	this.pacer = new Pacer(this.udpChannel.socket(), this.udpChannel, this.pool, options, null);
+	this.pacer.start();
+	this.openSelector();
+    }
+
+    /**
+     * <pre>
+     * Starts all the hosted nodes
+     * do:
+     *   Read commands from the fishnet file if there is one
+     *   Process any defered events
+     *   Wait on the selector till the next event or an incoming message, Trawler update or keyboard input
+     *   Process everything the selector reports ready
+     * loop
+     * </pre>
+     */
+    public void start() {
+	for(int i = 0; i < this.fishAddrs.length; i++) {
+	    this.nodes[this.fishAddrs[i]].start();
+	}
+	this.runSelectorLoop();
+    }
+
+    /**
+     * Send the pkt to the specified node
+     * @param from The node that is sending the packet
+     * @param to Int spefying the destination node
+     * @param pkt The packet to be sent, serialized to a byte array
+     * @return True if the packet was sent, false otherwise
+     * @throws IllegalArgumentException If the arguments are invalid
+     */
+    public boolean sendPkt(int from, int to, byte[] pkt) throws IllegalArgumentException {
+	super.sendPkt(from, to, pkt);  // check arguments
+	ARPTable arp = this.arps[from];
+	if(arp == null) {
+	    throw new IllegalArgumentException("Node " + from + " is not run by this host");
+	}
+	// one buffer is shared by every neighbor the packet is scheduled for, each holding its own reference
+	PacketBuffer physicalPacket = this.pool.acquire();
+	physicalPacket.setLength(EmulatorPacket.packInto(to, from, pkt, physicalPacket.getData(), 0));
+	if(this.timestamps) {
+	    physicalPacket.setLength(EmulatorPacket.appendTimestamp(physicalPacket.getData(), 0, System.nanoTime()));
+	}
+	try {
+	    if(to == Packet.BROADCAST_ADDRESS) {
+		EmulatorARPData[] neighbors = arp.snapshot();
+		for(int i = 0; i < neighbors.length; i++) {
+		    if(neighbors[i] != null) {
+			this.schedulePkt(physicalPacket, from, i, neighbors[i], pkt.length);
+		    }
+		}
+	    }else if(arp.get(to) != null) {
+		this.schedulePkt(physicalPacket, from, to, arp.get(to), pkt.length);
+	    }else {
+		System.err.println("Node " + to + " is not a neighbor of node " + from);
+		return false;
+	    }
+	}finally {
+	    physicalPacket.release();
+	}
+	return true;
+    }
+
+    /**
+     * @return The addresses of the hosted nodes
+     */
+    public int[] getFishAddrs() {
+	return this.fishAddrs;
+    }
+
+    /**
+     * Sends the msg to the the specified node
+     * @param nodeAddr Address of the node to whom the message should be sent
+     * @param msg The msg to send to the node
+     * @return True if msg sent, false if the node is not run by this host
+     */
+    public boolean sendNodeMsg(int nodeAddr, String msg) {
+	if(nodeAddr < 0 || nodeAddr >= this.nodes.length || this.nodes[nodeAddr] == null) {
+	    return false;
+	}
+	this.nodes[nodeAddr].onCommand(msg);
+	return true;
+    }
+
+    /**
+     * Prints the host's statistics: per neighbor traffic, one-way latency, link drops and losses of every
+     * hosted node, receive batching and pacing
+     */
+    public void printStats() {
+	for(int i = 0; i < this.fishAddrs.length; i++) {
+	    System.err.println("Node " + this.fishAddrs[i] + ":");
+	    this.stats[this.fishAddrs[i]].print(System.err);
+	    EmulatorStats.printLinks(System.err, this.arps[this.fishAddrs[i]].snapshot());
+	}
+	this.printBatches(System.err);
+	this.pacer.print(System.err);
+    }
+
+    /**
+     * Stops Fishnet, printing the host's statistics along with the usual ones
+     */
+    public void stop() {
+	this.printStats();
+	super.stop();
+    }
+
+    /**
+     * Give one packet received from a neighbor to the hosted node it is for
+     * @param packet The datagram the packet came in
+     * @param srcAddr Fishnet address of the sender
+     * @param destAddr Fishnet address the packet is for
+     * @param offset Where the packet starts in the datagram's data
+     * @param packetLength Length of the packet, header included
+     */
+    protected void deliverPacket(PacketBuffer packet, int srcAddr, int destAddr, int offset, int packetLength) {
+	if(destAddr != Packet.BROADCAST_ADDRESS) {
+	    // drop if not for one of our nodes. This can happen if we took a port that was recently occupied
+	    if(this.nodes[destAddr] != null) {
+		this.deliver(destAddr, srcAddr, packet, offset, packetLength);
+	    }
+	    return;
+	}
+	// Only sent by emulators that do not address each neighbor. Give it to every node the sender is a neighbor of
+	for(int i = 0; i < this.fishAddrs.length; i++) {
+	    if(this.arps[this.fishAddrs[i]].get(srcAddr) != null) {
+		this.deliver(this.fishAddrs[i], srcAddr, packet, offset, packetLength);
+	    }
+	}
+    }
+
+    /**
+     * Apply one update received from the Trawler as a line, naming the hosted node it is for
+     * @param trawlerCmd The line received
+     */
+    protected void applyTrawlerLine(String trawlerCmd) {
+	int fishAddr = TrawlerNodeARPCommands.receiveHostedAddress(trawlerCmd);
+	if(fishAddr < 0 || fishAddr >= this.arps.length || this.arps[fishAddr] == null) {
+	    System.err.println("Unrecognized command from trawler: " + trawlerCmd);
+	    return;
+	}
+	this.arps[fishAddr].applyTrawlerCommand(TrawlerNodeARPCommands.receiveHostedCommand(trawlerCmd));
+    }
+
+    /**
+     * Apply one binary record received from the Trawler. Records in one message may be for any of the hosted nodes
+     * @param type The type of the record
+     * @param data The data of the record
+     */
+    protected void applyTrawlerRecord(int type, ArrayList data) {
+	int fishAddr = ((Integer)data.get(0)).intValue();
+	if(this.arps[fishAddr] == null) {
+	    System.err.println("Record from trawler for a node not hosted here: " + fishAddr);
+	}else {
+	    this.arps[fishAddr].applyTrawlerCommand(type, data);
+	}
+    }
+
+    /******************** Private Functions ********************/
+
+    // Sends the handshake and returns the addresses the Trawler assigned to the nodes
+    private int[] register(int localUDPPort, int numNodes) throws IOException, IllegalArgumentException {
+	// channel is still blocking at this point
+	String handshake = TrawlerNodeARPCommands.host(localUDPPort, numNodes);
+	if(this.binaryControl) {
+	    handshake = TrawlerNodeARPCommands.binary(handshake);
+	}
+	ByteBuffer line = ByteBuffer.wrap(Utility.stringToByteArray(handshake + "\n"));
+	while(line.hasRemaining()) {
+	    this.trawlerChannel.write(line);
+	}
+	String reply = this.trawlerLines.readLineBlocking();
+	this.setDilation(TrawlerNodeARPCommands.receiveDilation(reply));
+	reply = TrawlerNodeARPCommands.receiveAddresses(reply);
+	String[] args = reply.split(" ");
+	if(args.length != numNodes) {
+	    // Trawler returns broadcast address to signal it cannot take the nodes
+	    throw new IllegalArgumentException("Trawler refused to register " + numNodes + " nodes on port " + localUDPPort);
+	}
+	int[] assigned = new int[numNodes];
+	for(int i = 0; i < numNodes; i++) {
+	    assigned[i] = Integer.parseInt(args[i]);
+	    if(!Packet.validAddress(assigned[i]) || assigned[i] == Packet.BROADCAST_ADDRESS) {
+		throw new IllegalArgumentException("Trawler assigned an invalid address: " + assigned[i]);
+	    }
+	}
+	System.out.println("Hosting nodes: " + reply);
+	return assigned;
+    }
+
+    private void schedulePkt(PacketBuffer packet, int srcAddr, int destAddr, EmulatorARPData arpData, int size) {
+	if(this.schedulePkt(packet, destAddr, arpData, size)) {
+	    this.stats[srcAddr].recordSend(destAddr, size);
+	}
+    }
+
+    private void deliver(int destAddr, int srcAddr, PacketBuffer packet, int offset, int packetLength) {
+	this.arps[destAddr].learn(srcAddr, packet.getAddress(), packet.getPort());
+	byte[] data = packet.getData();
+	if(EmulatorPacket.hasTimestamp(data, offset)) {
+	    this.stats[destAddr].recordLatency(EmulatorPacket.packedTimestamp(data, offset), System.nanoTime());
+	}
+	int payloadLength = EmulatorPacket.packedPayloadLength(data, offset);
+	this.stats[destAddr].recordReceive(srcAddr, payloadLength);
+	this.nodes[destAddr].onReceive(srcAddr, data, offset + EmulatorPacket.HEADER_SIZE, payloadLength);
+    }
+}
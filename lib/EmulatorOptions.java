@@ -0,0 +1,288 @@
+/**
+ * <pre>
+ * Class to represent the tunables of an emulated node.
+ * Options are given on the Fishnet command line after the fishnet file, as name=value pairs:
+ *
+ *	nio=true|false  -- run the emulator on a single thread around a Selector instead of
+ *			   using a receive thread and a keyboard thread. Default false
+ *	batch=<int>	-- the most incoming packets processed each time the emulator wakes up,
+ *			   before it goes back to run due timers. Default 64
+ *	maxrate=<int>	-- the most bytes per second the node sends, over all its links.
+ *			   0 for no limit. Default Emulator.MAX_BYTE_RATE
+ *	coalesce=<int>	-- how long, in microseconds, to hold an outgoing packet so that other packets to
+ *			   the same neighbor can go in the same datagram. 0 for no coalescing. Default 0
+ *	coalescemax=<int> -- the largest coalesced datagram, in bytes.
+ *			   Default and most EmulatorPacket.MAX_DATAGRAM_SIZE
+ *	timescale=<double> -- how fast the node's clock runs compared to real time. Timers,
+ *			   link delays and bandwidths are all measured on this clock. Default 1.
+ *			   Time dilation given by the Trawler slows the clock down further
+ *	timestamps=true|false -- append the send time to every outgoing packet, so that receivers
+ *			   on the same machine can measure one-way latency. Default false
+ *	shm=true|false	-- pass packets to and from neighbors on the same machine through memory
+ *			   mapped ring files instead of UDP. Neighbors that do not use it get UDP. Default false
+ *	binary=true|false -- ask the Trawler for binary neighbor updates instead of text commands.
+ *			   Only used with nio=true and by hosts. Default true
+ * </pre>
+ */
+public class EmulatorOptions {
+    boolean nio;
+    int batchSize;
+    long maxByteRate;
+    double timescale;
+    long coalesceWindow;
+    int coalesceSize;
+    boolean timestamps;
+    boolean sharedMemory;
+    boolean binaryControl;
+
+    /**
+     * Initializes all options to their defaults
+     */
+    public EmulatorOptions() {
+	nio = false;
+	batchSize = 64;
+	maxByteRate = Emulator.MAX_BYTE_RATE;
+	timescale = 1.0;
+	coalesceWindow = 0;
+	coalesceSize = EmulatorPacket.MAX_DATAGRAM_SIZE;
+	timestamps = false;
+	sharedMemory = false;
+	binaryControl = true;
+    }
+
+    /**
+     * Sets an option from its command line form
+     * @param option The option, as name=value
+     * @throws IllegalArgumentException If the option is not recognized or its value is not valid
+     */
+    public void parse(String option) throws IllegalArgumentException {
+	int index = option.indexOf('=');
+	if(index <= 0) {
+	    throw new IllegalArgumentException("Emulator options must be given as name=value. Got: " + option);
+	}
+	String name = option.substring(0, index);
+	String value = option.substring(index + 1);
+	try {
+	    if(name.equals("nio")) {
+		this.setNIO(parseBoolean(value));
+	    }else if(name.equals("batch")) {
+		this.setBatchSize(Integer.parseInt(value));
+	    }else if(name.equals("maxrate")) {
+		this.setMaxByteRate(Long.parseLong(value));
+	    }else if(name.equals("coalesce")) {
+		this.setCoalesceWindow(Long.parseLong(value));
+	    }else if(name.equals("coalescemax")) {
+		this.setCoalesceSize(Integer.parseInt(value));
+	    }else if(name.equals("timescale")) {
+		this.setTimescale(Double.parseDouble(value));
+	    }else if(name.equals("timestamps")) {
+		this.setTimestamps(parseBoolean(value));
+	    }else if(name.equals("shm")) {
+		this.setSharedMemory(parseBoolean(value));
+	    }else if(name.equals("binary")) {
+		this.setBinaryControl(parseBoolean(value));
+	    }else {
+		throw new IllegalArgumentException("Unknown emulator option: " + name);
+	    }
+	}catch(NumberFormatException e) {
+	    throw new IllegalArgumentException("Invalid value for emulator option " + name + ": " + value);
+	}
+    }
+
+    /**
+     * Tests if a command line argument is an emulator option rather than a file name
+     * @param arg The command line argument
+     * @return True if arg has the form name=value
+     */
+    public static boolean isOption(String arg) {
+	return arg.indexOf('=') > 0;
+    }
+
+    /**
+     * Sets whether the emulator runs on a single thread around a Selector
+     * @param nio True to use a Selector
+     */
+    public void setNIO(boolean nio) {
+	this.nio = nio;
+    }
+
+    /**
+     * Returns whether the emulator runs on a single thread around a Selector
+     * @return True if the emulator uses a Selector
+     */
+    public boolean useNIO() {
+	return nio;
+    }
+
+    /**
+     * Sets the most incoming packets processed per wake-up
+     * @param batchSize The batch size, at least 1
+     * @throws IllegalArgumentException If batchSize is less than 1
+     */
+    public void setBatchSize(int batchSize) throws IllegalArgumentException {
+	if(batchSize < 1) {
+	    throw new IllegalArgumentException("Batch size must be at least 1. Got: " + batchSize);
+	}
+	this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns the most incoming packets processed per wake-up
+     * @return The batch size
+     */
+    public int getBatchSize() {
+	return batchSize;
+    }
+
+    /**
+     * Sets the most bytes per second the node sends
+     * @param maxByteRate The rate in bytes per second, or 0 for no limit
+     * @throws IllegalArgumentException If maxByteRate is negative
+     */
+    public void setMaxByteRate(long maxByteRate) throws IllegalArgumentException {
+	if(maxByteRate < 0) {
+	    throw new IllegalArgumentException("Max byte rate must not be negative. Got: " + maxByteRate);
+	}
+	this.maxByteRate = maxByteRate;
+    }
+
+    /**
+     * Returns the most bytes per second the node sends
+     * @return The rate in bytes per second, or 0 for no limit
+     */
+    public long getMaxByteRate() {
+	return maxByteRate;
+    }
+
+    /**
+     * Sets how fast the node's clock runs compared to real time
+     * @param timescale Microseconds on the node's clock per real microsecond. Must be > 0
+     * @throws IllegalArgumentException If timescale is not > 0
+     */
+    public void setTimescale(double timescale) throws IllegalArgumentException {
+	if(!(timescale > 0)) {
+	    throw new IllegalArgumentException("Timescale must be > 0. Got: " + timescale);
+	}
+	this.timescale = timescale;
+    }
+
+    /**
+     * Returns how fast the node's clock runs compared to real time
+     * @return Microseconds on the node's clock per real microsecond
+     */
+    public double getTimescale() {
+	return timescale;
+    }
+
+    /**
+     * Sets how long to hold outgoing packets for others to the same neighbor
+     * @param coalesceWindow The time in microseconds, or 0 for no coalescing
+     * @throws IllegalArgumentException If coalesceWindow is negative
+     */
+    public void setCoalesceWindow(long coalesceWindow) throws IllegalArgumentException {
+	if(coalesceWindow < 0) {
+	    throw new IllegalArgumentException("Coalescing window must not be negative. Got: " + coalesceWindow);
+	}
+	this.coalesceWindow = coalesceWindow;
+    }
+
+    /**
+     * Returns how long to hold outgoing packets for others to the same neighbor
+     * @return The time in microseconds, or 0 for no coalescing
+     */
+    public long getCoalesceWindow() {
+	return coalesceWindow;
+    }
+
+    /**
+     * Sets the largest coalesced datagram
+     * @param coalesceSize The size in bytes, between EmulatorPacket.MAX_PACKET_SIZE and EmulatorPacket.MAX_DATAGRAM_SIZE
+     * @throws IllegalArgumentException If coalesceSize is out of range
+     */
+    public void setCoalesceSize(int coalesceSize) throws IllegalArgumentException {
+	if(coalesceSize < EmulatorPacket.MAX_PACKET_SIZE || coalesceSize > EmulatorPacket.MAX_DATAGRAM_SIZE) {
+	    throw new IllegalArgumentException("Coalesced datagram size must be between " + EmulatorPacket.MAX_PACKET_SIZE +
+					       " and " + EmulatorPacket.MAX_DATAGRAM_SIZE + ". Got: " + coalesceSize);
+	}
+	this.coalesceSize = coalesceSize;
+    }
+
+    /**
+     * Returns the largest coalesced datagram
+     * @return The size in bytes
+     */
+    public int getCoalesceSize() {
+	return coalesceSize;
+    }
+
+    /**
+     * Sets whether outgoing packets carry their send time
+     * @param timestamps True to append send times
+     */
+    public void setTimestamps(boolean timestamps) {
+	this.timestamps = timestamps;
+    }
+
+    /**
+     * Returns whether outgoing packets carry their send time
+     * @return True if send times are appended
+     */
+    public boolean useTimestamps() {
+	return timestamps;
+    }
+
+    /**
+     * Sets whether packets to neighbors on the same machine go through shared memory
+     * @param sharedMemory True to use shared memory
+     */
+    public void setSharedMemory(boolean sharedMemory) {
+	this.sharedMemory = sharedMemory;
+    }
+
+    /**
+     * Returns whether packets to neighbors on the same machine go through shared memory
+     * @return True if shared memory is used
+     */
+    public boolean useSharedMemory() {
+	return sharedMemory;
+    }
+
+    /**
+     * Sets whether the node asks the Trawler for binary neighbor updates
+     * @param binaryControl True for binary updates, false for text commands
+     */
+    public void setBinaryControl(boolean binaryControl) {
+	this.binaryControl = binaryControl;
+    }
+
+    /**
+     * Returns whether the node asks the Trawler for binary neighbor updates
+     * @return True if binary updates are used
+     */
+    public boolean useBinaryControl() {
+	return binaryControl;
+    }
+
+    /**
+     * Creates the clock an emulated node keeps time by. Emulated nodes keep real time,
+     * unless asked to run faster or slower than real time
+     * @return A new clock
+     */
+    public Clock createClock() {
+	Clock clock = new MonotonicClock();
+	if(this.timescale != 1.0) {
+	    clock = new ScaledClock(clock, this.timescale);
+	}
+	return clock;
+    }
+
+    private static boolean parseBoolean(String value) throws NumberFormatException {
+	if(value.equals("true")) {
+	    return true;
+	}
+	if(value.equals("false")) {
+	    return false;
+	}
+	throw new NumberFormatException(value);
+    }
+}
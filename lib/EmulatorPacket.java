@@ -9,6 +9,9 @@ public class EmulatorPacket {
 
     public static int HEADER_SIZE = 3; // bytes
     public static int MAX_PACKET_SIZE = Packet.MAX_PACKET_SIZE + HEADER_SIZE;
+    public static int TIMESTAMP_SIZE = 8; // bytes
+    public static int MAX_FRAME_SIZE = MAX_PACKET_SIZE + TIMESTAMP_SIZE; // a packet with a send time appended
+    public static int MAX_DATAGRAM_SIZE = 1472; // bytes. Largest UDP payload in one Ethernet frame. Packets may be coalesced up to this
 
     private int destAddr;
     private int srcAddr;
@@ -82,6 +85,128 @@ public class EmulatorPacket {
 	return byteStream.toByteArray();
     }
     
+    /**
+     * Packs a packet straight into a buffer, in the format used by pack()
+     * @param destAddr The fishnet address of the destination node
+     * @param srcAddr The fishnet address of the source node
+     * @param payload The payload of the packet
+     * @param buf The buffer to write to. Must hold at least HEADER_SIZE + payload.length bytes from offset
+     * @param offset Where in buf to write the packet
+     * @return The number of bytes written
+     * @throws IllegalArgumentException If the size of the payload is too big
+     */
+    public static int packInto(int destAddr, int srcAddr, byte[] payload, byte[] buf, int offset) throws IllegalArgumentException {
+	int length = HEADER_SIZE + payload.length;
+	if(length > MAX_PACKET_SIZE) {
+	    throw new IllegalArgumentException("Payload is too big");
+	}
+	buf[offset] = (byte)destAddr;
+	buf[offset + 1] = (byte)srcAddr;
+	buf[offset + 2] = (byte)length;
+	System.arraycopy(payload, 0, buf, offset + HEADER_SIZE, payload.length);
+	return length;
+    }
+
+    /**
+     * Appends a send time to a packet packed by packInto(), for measuring one-way latency.
+     * The packet length then counts the send time too. The time goes after the Fishnet packet,
+     * which carries its own length, so receivers can tell whether a send time is there
+     * @param buf Buffer holding the packed packet. Must hold TIMESTAMP_SIZE more bytes after the packet
+     * @param offset Where in buf the packet starts
+     * @param nanos The send time, from System.nanoTime()
+     * @return The new length of the packet in bytes
+     */
+    public static int appendTimestamp(byte[] buf, int offset, long nanos) {
+	int length = packedLength(buf, offset);
+	for(int i = 0; i < TIMESTAMP_SIZE; i++) {
+	    buf[offset + length + i] = (byte)(nanos >>> (8 * (TIMESTAMP_SIZE - 1 - i)));
+	}
+	length += TIMESTAMP_SIZE;
+	buf[offset + 2] = (byte)length;
+	return length;
+    }
+
+    /**
+     * Tests if a packed packet has a send time appended
+     * @param buf Buffer holding the packed packet
+     * @param offset Where in buf the packet starts
+     * @return True if the packet has a send time
+     */
+    public static boolean hasTimestamp(byte[] buf, int offset) {
+	int payloadLength = packedLength(buf, offset) - HEADER_SIZE;
+	return payloadLength >= Packet.HEADER_SIZE + TIMESTAMP_SIZE &&
+	    (buf[offset + HEADER_SIZE + 4] & 0xff) == payloadLength - TIMESTAMP_SIZE;
+    }
+
+    /**
+     * Reads the send time of a packed packet. Only valid if hasTimestamp() is true
+     * @param buf Buffer holding the packed packet
+     * @param offset Where in buf the packet starts
+     * @return The send time, from System.nanoTime() on the sender
+     */
+    public static long packedTimestamp(byte[] buf, int offset) {
+	int start = offset + packedLength(buf, offset) - TIMESTAMP_SIZE;
+	long nanos = 0;
+	for(int i = 0; i < TIMESTAMP_SIZE; i++) {
+	    nanos = (nanos << 8) | (buf[start + i] & 0xff);
+	}
+	return nanos;
+    }
+
+    /**
+     * Reads the length of the payload of a packed packet, without the header or send time
+     * @param buf Buffer holding the packed packet
+     * @param offset Where in buf the packet starts
+     * @return The length of the payload in bytes
+     */
+    public static int packedPayloadLength(byte[] buf, int offset) {
+	int payloadLength = packedLength(buf, offset) - HEADER_SIZE;
+	if(hasTimestamp(buf, offset)) {
+	    payloadLength -= TIMESTAMP_SIZE;
+	}
+	return payloadLength;
+    }
+
+    /**
+     * Reads the destination address of a packed packet without unpacking it
+     * @param buf Buffer holding the packed packet
+     * @param offset Where in buf the packet starts
+     * @return The fishnet address of the destination node
+     */
+    public static int packedDest(byte[] buf, int offset) {
+	return buf[offset] & 0xff;
+    }
+
+    /**
+     * Overwrites the destination address of a packed packet
+     * @param buf Buffer holding the packed packet
+     * @param offset Where in buf the packet starts
+     * @param destAddr The fishnet address of the new destination node
+     */
+    public static void setPackedDest(byte[] buf, int offset, int destAddr) {
+	buf[offset] = (byte)destAddr;
+    }
+
+    /**
+     * Reads the source address of a packed packet without unpacking it
+     * @param buf Buffer holding the packed packet
+     * @param offset Where in buf the packet starts
+     * @return The fishnet address of the source node
+     */
+    public static int packedSrc(byte[] buf, int offset) {
+	return buf[offset + 1] & 0xff;
+    }
+
+    /**
+     * Reads the length, header included, of a packed packet without unpacking it
+     * @param buf Buffer holding the packed packet
+     * @param offset Where in buf the packet starts
+     * @return The length of the packet in bytes
+     */
+    public static int packedLength(byte[] buf, int offset) {
+	return buf[offset + 2] & 0xff;
+    }
+
     /**
      * Unpacks a byte array to create a EmulatorPacket object
      * Assumes the array has been formatted using pack method
@@ -0,0 +1,132 @@
+import java.io.PrintStream;
+
+/**
+ * <pre>
+ * Statistics kept by an emulator for one node: packets and bytes sent to and received from each neighbor,
+ * the depth of the receive queue, and the one-way latency of packets that carry a send time.
+ * Counters are primitives in arrays indexed by fish address, so recording allocates nothing.
+ * Only the thread running the nodes records and prints them.
+ *
+ * Latency is the time from when the sending emulator was handed the packet to when the receiving
+ * node is handed it, so it includes link emulation, pacing and queueing on both ends. Send times
+ * come from System.nanoTime() on the sender, so latency is only meaningful between nodes running
+ * on the same machine, which share that clock. Latencies are counted in a histogram whose bucket i
+ * holds latencies of less than 2^i microseconds that are not in a lower bucket.
+ * </pre>
+ */
+public class EmulatorStats {
+
+    private static final int NUM_LATENCY_BUCKETS = 32;
+
+    private long[] txPackets;
+    private long[] txBytes;
+    private long[] rxPackets;
+    private long[] rxBytes;
+
+    private long numQueueSamples;
+    private long queueDepthSum;
+    private int maxQueueDepth;
+
+    private long numLatencies;
+    private long latencySum;   // nanoseconds
+    private long maxLatency;   // nanoseconds
+    private long[] latencyBuckets;
+
+    /**
+     * Create a new set of statistics, with every counter at 0
+     */
+    public EmulatorStats() {
+	this.txPackets = new long[Packet.MAX_ADDRESS + 1];
+	this.txBytes = new long[Packet.MAX_ADDRESS + 1];
+	this.rxPackets = new long[Packet.MAX_ADDRESS + 1];
+	this.rxBytes = new long[Packet.MAX_ADDRESS + 1];
+	this.latencyBuckets = new long[NUM_LATENCY_BUCKETS];
+    }
+
+    /**
+     * Count a packet handed to the pacer for a neighbor
+     * @param neighbor Fish address of the neighbor
+     * @param size The size of the Fishnet packet in bytes
+     */
+    public void recordSend(int neighbor, int size) {
+	this.txPackets[neighbor]++;
+	this.txBytes[neighbor] += size;
+    }
+
+    /**
+     * Count a packet received from a neighbor
+     * @param neighbor Fish address of the neighbor
+     * @param size The size of the Fishnet packet in bytes
+     */
+    public void recordReceive(int neighbor, int size) {
+	this.rxPackets[neighbor]++;
+	this.rxBytes[neighbor] += size;
+    }
+
+    /**
+     * Count the depth of the receive queue seen when the emulator woke up
+     * @param depth The number of packets waiting
+     */
+    public void recordQueueDepth(int depth) {
+	this.numQueueSamples++;
+	this.queueDepthSum += depth;
+	this.maxQueueDepth = Math.max(this.maxQueueDepth, depth);
+    }
+
+    /**
+     * Count the latency of a packet that carried a send time
+     * @param sentNanos The send time carried by the packet
+     * @param receivedNanos When the packet was received, from System.nanoTime()
+     */
+    public void recordLatency(long sentNanos, long receivedNanos) {
+	long latency = Math.max(receivedNanos - sentNanos, 0);
+	this.numLatencies++;
+	this.latencySum += latency;
+	this.maxLatency = Math.max(this.maxLatency, latency);
+	int bucket = 64 - Long.numberOfLeadingZeros(latency / 1000);
+	this.latencyBuckets[Math.min(bucket, NUM_LATENCY_BUCKETS - 1)]++;
+    }
+
+    /**
+     * Print the counters of every neighbor that was sent to or received from, the receive
+     * queue depth if it was sampled, and the latency histogram if any latency was measured
+     * @param out Where to print
+     */
+    public void print(PrintStream out) {
+	for(int i = 0; i <= Packet.MAX_ADDRESS; i++) {
+	    if(this.txPackets[i] > 0 || this.rxPackets[i] > 0) {
+		out.println("Neighbor " + i + ": Sent: " + this.txPackets[i] + " packets " + this.txBytes[i] + " bytes" +
+			    " Received: " + this.rxPackets[i] + " packets " + this.rxBytes[i] + " bytes");
+	    }
+	}
+	if(this.numQueueSamples > 0) {
+	    out.println("Receive queue depth. Average: " + (this.queueDepthSum / (double)this.numQueueSamples) +
+			" Max: " + this.maxQueueDepth);
+	}
+	if(this.numLatencies > 0) {
+	    out.println("One-way latency. Packets: " + this.numLatencies +
+			" Average: " + (this.latencySum / (double)this.numLatencies / 1000) + " usec" +
+			" Max: " + (this.maxLatency / 1000) + " usec");
+	    for(int i = 0; i < NUM_LATENCY_BUCKETS; i++) {
+		if(this.latencyBuckets[i] > 0) {
+		    out.println("  < " + (1L << i) + " usec: " + this.latencyBuckets[i]);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Print the drop and loss counts of the emulated links to a node's neighbors.
+     * Counts start over when the Trawler reconfigures a link
+     * @param out Where to print
+     * @param neighbors The node's ARP cache, indexed by fish address
+     */
+    public static void printLinks(PrintStream out, EmulatorARPData[] neighbors) {
+	for(int i = 0; i < neighbors.length; i++) {
+	    EmulatedLink link = (neighbors[i] == null) ? null : neighbors[i].getEmulatedLink();
+	    if(link != null) {
+		out.println("Link to " + i + ": Dropped: " + link.getNumDropped() + " Lost: " + link.getNumLost());
+	    }
+	}
+    }
+}
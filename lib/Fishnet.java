@@ -5,13 +5,23 @@ import java.net.SocketException;
 
 /**
  * <pre>   
- * Class with main method that starts up a Manager. Either an Emulator or a Simulator
+ * Class with main method that starts up a Manager. Either an Emulator, an EmulatorHost or a Simulator
  * Usage:  java Fishnet <simulate> <num nodes> <topo file> [fishnet file] [timescale]
  *         or
- *         java Fishnet <emulate> <trawler host name> <trawler port> <local port to use> [fishnet file]
+ *         java Fishnet <emulate> <trawler host name> <trawler port> <local port to use> [fishnet file] [option=value ...]
+ *         or
+ *         java Fishnet <host> <trawler host name> <trawler port> <local port to use> <num nodes> [fishnet file] [option=value ...]
+ *         or
+ *         java Fishnet <emulate-static> <map file> <fish address> [fishnet file] [option=value ...]
  *         
  *         Arguments in <> are required and arguments in [] are optional. Fishnet file is a file with commands for a node
  *         Topofile is the topology file to use. It also have commands for a node.
+ *         Timescale is how many units of simulated time pass per unit of real time. By default it is 0, and the
+ *         simulation runs as fast as it can without waiting for typed commands between events.
+ *         Options tune the emulator, see EmulatorOptions.
+ *         Host runs many emulated nodes in one process. Its fishnet file addresses nodes like the topo file does.
+ *         Emulate-static runs an emulated node without a Trawler. Its port and neighbors come from a map file,
+ *         see StaticMap.
  * </pre>   
  */
 public class Fishnet {
@@ -19,10 +29,17 @@ public class Fishnet {
     private static void usage() {
 	System.out.println("Usage:  java Fishnet <simulate> <num nodes> <topo file> [fishnet file] [timescale]\n" + 
 			   "or\n" + 
-			   "java Fishnet <emulate> <trawler host name> <trawler port> <local port to use> [fishnet file]\n\n" +          
+			   "java Fishnet <emulate> <trawler host name> <trawler port> <local port to use> [fishnet file] [option=value ...]\n" +
+			   "or\n" +
+			   "java Fishnet <host> <trawler host name> <trawler port> <local port to use> <num nodes> [fishnet file] [option=value ...]\n" +
+			   "or\n" +
+			   "java Fishnet <emulate-static> <map file> <fish address> [fishnet file] [option=value ...]\n\n" +
 			   "Arguments in <> are required and arguments in [] are optional.\n" +  
 			   "Fishnet file is a file with commands for a node\n" + 
-			   "Topofile is the topology file to use. It also have commands for a node.");
+			   "Topofile is the topology file to use. It also have commands for a node.\n" +
+			   "Timescale is simulated time per real time. By default 0: run as fast as possible.\n" +
+			   "Emulator options: nio=true|false batch=<packets per wake-up> maxrate=<bytes/sec> timescale=<factor>\n" +
+			   "                  coalesce=<usec> coalescemax=<bytes> timestamps=true|false shm=true|false");
     }
 
     /**
@@ -71,8 +88,58 @@ public class Fishnet {
 		String trawlerName = args[1];
 		int trawlerPort = Integer.parseInt(args[2]);
 		int localUDPPort = Integer.parseInt(args[3]);
+		String fishnetFile = noFile;
+		EmulatorOptions options = new EmulatorOptions();
+		try {
+		    for(int i = 4; i < args.length; i++) {
+			if(EmulatorOptions.isOption(args[i])) {
+			    options.parse(args[i]);
+			}else if(i == 4) {
+			    fishnetFile = args[i];
+			}else {
+			    throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+			}
+		    }
+		    manager = new Emulator(trawlerName, trawlerPort, localUDPPort, options);
+		}catch(UnknownHostException e) {
+		    System.err.println("Trawler host name is unkown! Exception: " + e);
+		    return;
+		}catch(SocketException e) {
+		    System.err.println("Could not bind to the given local port: " + localUDPPort + ". Exception: " + e);
+		    return;
+		}catch(IOException e) {
+		    System.err.println("Encountered exception while trying to connect to Trawler. Exception " + e);
+		    return;
+		}catch(IllegalArgumentException e) {
+		    System.err.println("Illegal arguments given to Emulator. Exception: " + e);
+		    return;
+		}
+		if(!noFile.equals(fishnetFile)) {
+		    manager.setFishnetFile(fishnetFile);
+		}
+	    }else if(args[0].equals("host")) {
+		if(args.length < 5) {
+		    System.err.println("Missing arguments to emulator host");
+		    usage();
+		    return;
+		}
+		String trawlerName = args[1];
+		int trawlerPort = Integer.parseInt(args[2]);
+		int localUDPPort = Integer.parseInt(args[3]);
+		int numNodes = Integer.parseInt(args[4]);
+		String fishnetFile = noFile;
+		EmulatorOptions options = new EmulatorOptions();
 		try {
-		    manager = new Emulator(trawlerName, trawlerPort, localUDPPort);
+		    for(int i = 5; i < args.length; i++) {
+			if(EmulatorOptions.isOption(args[i])) {
+			    options.parse(args[i]);
+			}else if(i == 5) {
+			    fishnetFile = args[i];
+			}else {
+			    throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+			}
+		    }
+		    manager = new EmulatorHost(trawlerName, trawlerPort, localUDPPort, numNodes, options);
 		}catch(UnknownHostException e) {
 		    System.err.println("Trawler host name is unkown! Exception: " + e);
 		    return;
@@ -82,12 +149,44 @@ public class Fishnet {
 		}catch(IOException e) {
 		    System.err.println("Encountered exception while trying to connect to Trawler. Exception " + e);
 		    return;
+		}catch(IllegalArgumentException e) {
+		    System.err.println("Illegal arguments given to EmulatorHost. Exception: " + e);
+		    return;
+		}
+		if(!noFile.equals(fishnetFile)) {
+		    manager.setFishnetFile(fishnetFile);
+		}
+	    }else if(args[0].equals("emulate-static")) {
+		String mapFile = args[1];
+		int fishAddr = Integer.parseInt(args[2]);
+		String fishnetFile = noFile;
+		EmulatorOptions options = new EmulatorOptions();
+		try {
+		    for(int i = 3; i < args.length; i++) {
+			if(EmulatorOptions.isOption(args[i])) {
+			    options.parse(args[i]);
+			}else if(i == 3) {
+			    fishnetFile = args[i];
+			}else {
+			    throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+			}
+		    }
+		    manager = new Emulator(StaticMap.load(mapFile), fishAddr, options);
+		}catch(FileNotFoundException e) {
+		    System.err.println("Incorrect map file name given to Emulator. Exception: " + e);
+		    return;
+		}catch(SocketException e) {
+		    System.err.println("Could not bind to the port of node " + fishAddr + ". Exception: " + e);
+		    return;
+		}catch(IOException e) {
+		    System.err.println("Encountered exception while trying to read map file. Exception " + e);
+		    return;
 		}catch(IllegalArgumentException e) {
 		    System.err.println("Illegal arguments given to Emulator. Exception: " + e);
 		    return;
 		}
-		if(args.length > 4 && !noFile.equals(args[4])) {
-		    manager.setFishnetFile(args[4]);
+		if(!noFile.equals(fishnetFile)) {
+		    manager.setFishnetFile(fishnetFile);
 		}
 	    }else {
 		System.err.println("Unknown arguments");
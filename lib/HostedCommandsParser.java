@@ -0,0 +1,85 @@
+/**
+ * <pre>
+ * Parser for the EmulatorHost
+ * EmulatorHost is interested in all commands except topology commands.
+ * Since it runs many nodes, messages are given as "a msg", like for the Simulator.
+ * It also takes "stats", which prints the host's statistics
+ * </pre>
+ */
+public class HostedCommandsParser extends CommandsParser {
+
+    private EmulatorHost host;
+
+    /**
+     * Create a new parser
+     * @param host The emulator host that should be used to get messages to nodes
+     */
+    public HostedCommandsParser(EmulatorHost host) {
+	super();
+	this.host = host;
+    }
+
+    /**
+     * Process one line of topology file or keyboard input.
+     * @param line A command line.
+     * @param now The current time in microseconds
+     * @return How long to defer further processing. Returns -1 if do not have to defer
+     */
+    public long parseLine(String line, long now) {
+	if(this.skipLine(line)) {
+	    return -1;
+	}
+
+	String[] cmd = line.split(" ");
+
+	if(cmd[0].equals("stats")) {
+	    this.host.printStats();
+	    return -1;
+	}
+	return this.parseCommonCmds(cmd, now);
+    }
+
+    protected void parseNodeCmd(String[] cmd) {
+	if(cmd.length < 2) {
+	    return;
+	}
+	try {
+	    int nodeAddr = Integer.parseInt(cmd[0]);
+	    String msg = "";
+	    for(int i = 1; i < cmd.length; i++) {
+		msg += cmd[i] + " ";
+	    }
+	    // remove last space added by above loop
+	    msg = msg.substring(0, msg.length() - 1);
+	    if(!this.host.sendNodeMsg(nodeAddr, msg)) {
+		System.err.println("Node address: " + nodeAddr + " is not run by this host!");
+	    }
+	}catch(Exception e) {
+	    System.err.println("Error parsing command to node: ");
+	    this.printStrArray(cmd, System.err);
+	}
+    }
+
+    // Give the command to every node
+    protected void traffic(String[] cmd) {
+	String msg = "";
+	for(int i = 0; i < cmd.length; i++) {
+	    msg += cmd[i] + " ";
+	}
+	msg = msg.substring(0, msg.length() - 1);
+	int[] fishAddrs = this.host.getFishAddrs();
+	for(int i = 0; i < fishAddrs.length; i++) {
+	    this.host.sendNodeMsg(fishAddrs[i], msg);
+	}
+    }
+
+    protected NodeLog getLog() {
+	return this.host.getLog();
+    }
+
+    protected void exit(String[] cmd) {
+	if(cmd[0].equals("exit")) {
+	    host.stop();
+	}
+    }
+}
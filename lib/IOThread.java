@@ -1,16 +1,40 @@
 import java.lang.Thread;
-import java.util.LinkedList;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
 
+/**
+ * <pre>
+ * Reads keyboard input in a seperate thread and queues it, one line at a time, for the manager loop.
+ * The manager is woken through a MultiplexIO when input arrives
+ * </pre>
+ */
 public class IOThread extends Thread {
 
-    LinkedList inputLines;   // in 1.5, was LinkedList<String> inputLines;
+    public static final int ID = 2;
+    private static final int MAX_QUEUED_LINES = 1024;
+
+    MpscQueue inputLines;
     BufferedReader reader;
+    MultiplexIO multiplexIO;
+    int channelID;
 
+    /**
+     * Create a new IOThread that wakes the manager through its own MultiplexIO
+     */
     public IOThread() {
-	this.inputLines = new LinkedList();
+	this(new MultiplexIO(), ID);
+    }
+
+    /**
+     * Create a new IOThread
+     * @param multiplexIO Written to with channelID whenever a line is queued
+     * @param channelID The channel ID of this thread
+     */
+    public IOThread(MultiplexIO multiplexIO, int channelID) {
+	this.inputLines = new MpscQueue(MAX_QUEUED_LINES);
 	this.reader = new BufferedReader(new InputStreamReader(System.in));
+	this.multiplexIO = multiplexIO;
+	this.channelID = channelID;
     }
 
     public void run() {
@@ -23,21 +47,47 @@ public class IOThread extends Thread {
 	}
     }
 
-    public synchronized boolean isEmpty() {
+    public boolean isEmpty() {
 	return this.inputLines.isEmpty();
     }
 
-    public synchronized String readLine() {
-	if (this.inputLines.size() > 0) {
-	    return (String) this.inputLines.removeFirst();
-	} else {
-	    return null;
+    /**
+     * Get the oldest line of input. Must only be called from the manager thread
+     * @return The oldest line, or null if there is none
+     */
+    public String readLine() {
+	return (String) this.inputLines.poll();
+    }
+
+    /**
+     * Park the calling thread until there is input or the given time is reached
+     * @param endTime The time, in microseconds on the given clock, to give up waiting at
+     * @param clock The clock endTime is measured by
+     */
+    public void awaitInput(long endTime, Clock clock) {
+	this.multiplexIO.await(endTime, clock);
+	this.multiplexIO.clear();
+    }
+
+    protected void addLine(String line) {
+	if(line == null) {
+	    // end of input. The queue cannot hold null, and there is nothing more to read
+	    this.waitForever();
+	}
+	// keyboard input is never dropped, wait for the manager to catch up
+	while(!this.inputLines.offer(line)) {
+	    Thread.yield();
 	}
-	// in 1.5, this if/else block was return this.inputLines.poll();
+	this.multiplexIO.write(this.channelID);
     }
 
-    protected synchronized void addLine(String line) {
-	this.inputLines.add(line);
-	this.notifyAll();
+    private void waitForever() {
+	while(true) {
+	    try {
+		Thread.sleep(Long.MAX_VALUE);
+	    }catch(InterruptedException e) {
+		// keep waiting
+	    }
+	}
     }
 }
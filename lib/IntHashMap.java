@@ -0,0 +1,154 @@
+/**
+ * <pre>
+ * Hash table from int keys to objects, for keys such as sequence numbers that would otherwise have to be boxed.
+ * Keys are kept in an int array and found by linear probing from a multiplicative hash, so a lookup does not
+ * allocate. The table doubles when it is half full. A removed entry is filled by moving later entries of the
+ * same probe run back, so no deleted markers build up.
+ * Not thread safe.
+ * </pre>
+ */
+public class IntHashMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys;
+    private Object[] values;  // null where the slot is free
+    private int mask;
+    private int size;
+
+    /**
+     * Create an empty map
+     */
+    public IntHashMap() {
+	this.keys = new int[MIN_CAPACITY];
+	this.values = new Object[MIN_CAPACITY];
+	this.mask = MIN_CAPACITY - 1;
+	this.size = 0;
+    }
+
+    /**
+     * @param key The key
+     * @return The value for the key, or null if there is none
+     */
+    public Object get(int key) {
+	int index = this.find(key);
+	return (index == -1) ? null : this.values[index];
+    }
+
+    /**
+     * @param key The key
+     * @return True if the map has a value for the key
+     */
+    public boolean containsKey(int key) {
+	return this.find(key) != -1;
+    }
+
+    /**
+     * Set the value for a key
+     * @param key The key
+     * @param value The value. Must not be null
+     * @return The value the key had before, or null if it had none
+     */
+    public Object put(int key, Object value) {
+	if(value == null) {
+	    throw new IllegalArgumentException("IntHashMap values must not be null");
+	}
+	int index = hash(key) & this.mask;
+	while(this.values[index] != null) {
+	    if(this.keys[index] == key) {
+		Object old = this.values[index];
+		this.values[index] = value;
+		return old;
+	    }
+	    index = (index + 1) & this.mask;
+	}
+	this.keys[index] = key;
+	this.values[index] = value;
+	this.size++;
+	if(this.size * 2 > this.values.length) {
+	    this.resize(this.values.length * 2);
+	}
+	return null;
+    }
+
+    /**
+     * Remove the value for a key
+     * @param key The key
+     * @return The value removed, or null if the key had none
+     */
+    public Object remove(int key) {
+	int index = this.find(key);
+	if(index == -1) {
+	    return null;
+	}
+	Object old = this.values[index];
+	this.values[index] = null;
+	this.size--;
+	// move back the entries after it that would no longer be found
+	int free = index;
+	int next = (index + 1) & this.mask;
+	while(this.values[next] != null) {
+	    int home = hash(this.keys[next]) & this.mask;
+	    // the entry may move to the free slot if its home is not between the free slot and where it is
+	    if(((next - home) & this.mask) >= ((next - free) & this.mask)) {
+		this.keys[free] = this.keys[next];
+		this.values[free] = this.values[next];
+		this.values[next] = null;
+		free = next;
+	    }
+	    next = (next + 1) & this.mask;
+	}
+	return old;
+    }
+
+    /**
+     * @return The number of keys with values
+     */
+    public int size() {
+	return this.size;
+    }
+
+    /**
+     * @return True if the map has no values
+     */
+    public boolean isEmpty() {
+	return this.size == 0;
+    }
+
+    /******************** Private Functions ********************/
+
+    private static int hash(int key) {
+	int h = key * 0x9e3779b9;
+	return h ^ (h >>> 16);
+    }
+
+    // Returns the slot of the key, or -1 if it is not in the map
+    private int find(int key) {
+	int index = hash(key) & this.mask;
+	while(this.values[index] != null) {
+	    if(this.keys[index] == key) {
+		return index;
+	    }
+	    index = (index + 1) & this.mask;
+	}
+	return -1;
+    }
+
+    private void resize(int capacity) {
+	int[] oldKeys = this.keys;
+	Object[] oldValues = this.values;
+	this.keys = new int[capacity];
+	this.values = new Object[capacity];
+	this.mask = capacity - 1;
+	for(int i = 0; i < oldValues.length; i++) {
+	    if(oldValues[i] != null) {
+		int index = hash(oldKeys[i]) & this.mask;
+		while(this.values[index] != null) {
+		    index = (index + 1) & this.mask;
+		}
+		this.keys[index] = oldKeys[i];
+		this.values[index] = oldValues[i];
+	    }
+	}
+    }
+}
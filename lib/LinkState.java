@@ -11,6 +11,8 @@ import java.io.ByteArrayInputStream;
  *
  *  Note that this header is assumed to be the "payload" contents of a class Packet,
  *  so it does not need source, destination, TTL, sequence #, etc., information.
+ *
+ *  See CompactLinkState for a bitset encoding that also carries link costs and deltas.
  * </pre>   
  */
 public class LinkState {
@@ -0,0 +1,85 @@
+import java.lang.Thread;
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <pre>
+ * Writes log lines to a file in a seperate thread, so the manager loop never waits for the disk.
+ * Lines are handed over through an MpscQueue and written through a large buffer. The thread sleeps
+ * for a millisecond whenever the queue is empty, so the lines of a busy node go out in big writes.
+ * If the queue fills up the manager waits for the thread to catch up. Lines are never dropped.
+ * </pre>
+ */
+public class LogWriter extends Thread {
+
+    private static final int MAX_QUEUED_LINES = 1 << 16;
+    private static final int BUFFER_SIZE = 1 << 20;  // bytes
+    private static final long IDLE_NANOS = 1000000;
+
+    private MpscQueue lines;
+    private BufferedWriter out;
+    private String filename;
+    private volatile boolean closing;
+    private volatile boolean failed;  // lines are thrown away once a write fails
+
+    /**
+     * Create a new writer. Call start() to start writing
+     * @param filename The file to write to. It is truncated
+     * @throws FileNotFoundException If the file cannot be opened for writing
+     */
+    public LogWriter(String filename) throws FileNotFoundException {
+	this.lines = new MpscQueue(MAX_QUEUED_LINES);
+	this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename)), BUFFER_SIZE);
+	this.filename = filename;
+	this.closing = false;
+	this.failed = false;
+	this.setDaemon(true);
+    }
+
+    /**
+     * Queue a line to be written
+     * @param line The line, without line terminator
+     */
+    public void write(String line) {
+	while(!this.failed && !this.lines.offer(line)) {
+	    Thread.yield();
+	}
+    }
+
+    /**
+     * Write out every queued line, close the file and stop the thread
+     */
+    public void close() {
+	this.closing = true;
+	LockSupport.unpark(this);
+	try {
+	    this.join();
+	}catch(InterruptedException e) {
+	    System.err.println("Interrupted while waiting for log file " + this.filename + " to be written");
+	}
+    }
+
+    public void run() {
+	try {
+	    while(true) {
+		String line = (String)this.lines.poll();
+		if(line != null) {
+		    this.out.write(line);
+		    this.out.newLine();
+		}else if(this.closing) {
+		    break;
+		}else {
+		    LockSupport.parkNanos(IDLE_NANOS);
+		}
+	    }
+	    this.out.close();
+	}catch(IOException e) {
+	    this.failed = true;
+	    System.err.println("Failed to write log file " + this.filename + ". Exception: " + e);
+	}
+    }
+}
@@ -3,19 +3,27 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 
 /**
  * <pre>
  * Abstract class defining generic routines for running network code under Fishnet
+ * Fishnet and topology files are read whole when they are given. Their commands are kept in a list
+ * of events in the order they are due, apart from the timers, and run by runDueCommands() when
+ * their time comes, so a long script costs nothing between its commands.
  * </pre>
  */
 public abstract class Manager {
 
     private int pktsSent;
     private long start;
+    protected Clock clock;
     protected SortedEventQueue sortedEvents;
     protected CommandsParser parser;   // parser for fishnet commands file
-    protected BufferedReader reader;
+    private ArrayList scriptCommands;  // Events running commands from files, in the order they are due
+    private int nextScriptCommand;     // index of the next one to run
+    private Method runCommandMethod;   // looked up once for all the commands
+    private NodeLog log;               // where nodes' messages go
     /*
      * Mar. 12, 2006
      * Hao Wang
@@ -27,14 +35,17 @@ public abstract class Manager {
 
     /**
      * Initialize Manager.
-     * @param time Starting time in microseconds
+     * @param clock The clock the manager keeps time by. The current time on it is the starting time
      */
-    protected Manager(long time) {
+    protected Manager(Clock clock) {
 	this.pktsSent = 0;
-	this.start = time / 1000;
+	this.clock = clock;
+	this.start = clock.micros() / 1000;
 	this.sortedEvents = new SortedEventQueue();
 	this.parser = null;
-	this.reader = null;
+	this.scriptCommands = new ArrayList();
+	this.nextScriptCommand = 0;
+	this.log = new NodeLog(this);
         /*
          * Mar. 11, 2006
          * Hao Wang
@@ -53,6 +64,7 @@ public abstract class Manager {
      * Stops Fishnet. Normally this method should not return
      */
     public void stop() {
+	this.log.close();
 	System.err.println("Fishnet exiting after time: " + String.valueOf(this.now() - this.start) + " msec." +
 			   "\nNumber of packets sent: " + String.valueOf(this.pktsSent));
         /*
@@ -73,7 +85,7 @@ public abstract class Manager {
      *                               for some other reason cannot be opened for reading
      */
     public void setFishnetFile(String filename) throws FileNotFoundException {
-	this.reader = new BufferedReader(new FileReader(filename));
+	this.loadCommands(filename, this.parser, false);
     }
 
     /**
@@ -157,7 +169,43 @@ public abstract class Manager {
      * Retrieve current time in milliseconds
      * @return Current time in milliseconds
      */
-    public abstract long now();
+    public long now() {
+	return this.clock.micros() / 1000;
+    }
+
+    /**
+     * Retrieve current time in microseconds
+     * @return Current time in microseconds
+     */
+    public long nowMicros() {
+	return this.clock.micros();
+    }
+
+    /**
+     * Get the log nodes' messages go to
+     * @return The manager's log
+     */
+    public NodeLog getLog() {
+	return this.log;
+    }
+
+    /**
+     * Get the clock the manager keeps time by
+     * @return The manager's clock
+     */
+    public Clock getClock() {
+	return this.clock;
+    }
+
+    /**
+     * Replace the clock the manager keeps time by. Pending events keep the times they were scheduled for,
+     * so only replace the clock before starting the manager
+     * @param clock The new clock
+     */
+    public void setClock(Clock clock) {
+	this.clock = clock;
+	this.start = clock.micros() / 1000;
+    }
 
     /**
      * Sends the msg to the the specified node
@@ -167,6 +215,22 @@ public abstract class Manager {
      */
     public abstract boolean sendNodeMsg(int nodeAddr, String msg);
 
+    /**
+     * Slows the manager's clock down by the time dilation of an emulation, so that timers and links run
+     * at 1/dilation real speed. Only call this before starting the manager
+     * @param dilation How many real seconds make up one second of emulated time. Must be > 0
+     * @throws IllegalArgumentException If dilation is not > 0
+     */
+    public void setDilation(double dilation) throws IllegalArgumentException {
+	if(!(dilation > 0)) {
+	    throw new IllegalArgumentException("Time dilation must be > 0. Got: " + dilation);
+	}
+	if(dilation != 1.0) {
+	    this.setClock(new ScaledClock(this.clock, 1 / dilation));
+	    System.out.println("Time dilation: " + dilation);
+	}
+    }
+
     /**
      * Sets the amount to scale real time by. Is only valid for simiulator
      * @param timescale The amount to scale real time by
@@ -182,30 +246,88 @@ public abstract class Manager {
 
 
     /**
-     * Reads one line of the fish commands file and returns how long to delay further parsing if time command was found
-     * Call this function after now > 0
-     * @param deferTill Should be the value returned by this function. Can be initialized to 0 for first invocation
-     * @return How long (in microseconds) to defer further parsing till. -1 if reached eof. 0 if no delay
+     * Run a command from a fishnet or topology file. Has public accesibility since used as a callback
+     * @param parser The parser for the file the command came from
+     * @param line The command
      */
-    protected long readFishFile(long deferTill) {
-	String line;
-	if(this.reader != null && deferTill <= (this.now() * 1000)) {
-	    try {
-		line = this.reader.readLine();
-		if(line == null) {
-		    this.reader = null;
-		}else {
-		    return Math.max(this.parser.parseLine(line, this.now() * 1000), 0);
+    public void runCommand(CommandsParser parser, String line) {
+	parser.parseLine(line, this.nowMicros());
+    }
+
+    /**
+     * Read a whole command file and schedule its commands. Absolute times in the file count from the
+     * start of the manager and relative times from the time command before them
+     * @param filename The name of the file
+     * @param parser The parser for the file
+     * @param applyNow True to apply the commands before the first time command right away, as for a topology
+     *                 file, false to run them once the manager has started
+     * @throws FileNotFoundException If the named filed does not exist, is a directory rather than a regular file, or
+     *                               for some other reason cannot be opened for reading
+     */
+    protected void loadCommands(String filename, CommandsParser parser, boolean applyNow) throws FileNotFoundException {
+	BufferedReader reader = new BufferedReader(new FileReader(filename));
+	long now = this.nowMicros();
+	long dueTime = -1;
+	try {
+	    String line;
+	    while((line = reader.readLine()) != null) {
+		long time = parser.getTime(line, this.start * 1000, (dueTime == -1) ? now : dueTime);
+		if(time != -1) {
+		    dueTime = time;
+		}else if(dueTime == -1 && applyNow) {
+		    parser.parseLine(line, now);
+		}else if(!parser.skipLine(line)) {
+		    this.addScriptCommand((dueTime == -1) ? now : dueTime, parser, line);
 		}
-	    }catch(IOException e) {
-		System.err.println("IOException occured while trying to read fish file in Simulator!! Error: " + e);
-		this.reader = null;
 	    }
+	    reader.close();
+	}catch(IOException e) {
+	    System.err.println("IOException occured while trying to read file: " + filename + "\nException: " + e);
+	}
+    }
+
+    /**
+     * Runs the commands from files that are due. Call this function after now > 0
+     * @return The time (in microseconds) the next command is due. -1 if there are no more
+     */
+    protected long runDueCommands() {
+	while(this.nextScriptCommand < this.scriptCommands.size()) {
+	    Event command = (Event)this.scriptCommands.get(this.nextScriptCommand);
+	    if(command.timeToOccur() > this.nowMicros()) {
+		return command.timeToOccur();
+	    }
+	    this.nextScriptCommand++;
+	    try {
+		command.callback().invoke();
+	    }catch(Exception e) {
+		System.err.println("Exception while trying to run command. Error: " + e);
+		e.printStackTrace();
+	    }
+	}
+	this.scriptCommands.clear();
+	this.nextScriptCommand = 0;
+	return -1;
+    }
+
+    // Commands of one file are mostly in time order, so look for the place from the end. Commands due
+    // at the same time keep the order they were added in
+    private void addScriptCommand(long dueTime, CommandsParser parser, String line) {
+	try {
+	    if(this.runCommandMethod == null) {
+		String[] paramTypes = {"CommandsParser", "java.lang.String"};
+		this.runCommandMethod = Callback.getMethod("runCommand", this, paramTypes);
+	    }
+	}catch(Exception e) {
+	    System.err.println("Failed to schedule command: " + line + "\nException: " + e);
+	    return;
 	}
-	if(this.reader == null) {
-	    return -1;
+	Object[] params = {parser, line};
+	Callback cb = new Callback(this.runCommandMethod, this, params);
+	int index = this.scriptCommands.size();
+	while(index > this.nextScriptCommand && ((Event)this.scriptCommands.get(index - 1)).timeToOccur() > dueTime) {
+	    index--;
 	}
-	return deferTill;
+	this.scriptCommands.add(index, new Event(dueTime, cb));
     }
 
     protected void addEvent(long timeToOccur, String methodName, Object obj, String[] paramTypes, Object[] params) {
@@ -0,0 +1,28 @@
+/**
+ * <pre>
+ * Real time clock with microsecond resolution that never runs backwards.
+ * Time is counted with System.nanoTime() from the wall clock time at which the clock was created,
+ * so it reads close to Utility.fishTime() but is not affected when the system clock is adjusted.
+ * </pre>
+ */
+public class MonotonicClock implements Clock {
+
+    private long originMicros;
+    private long originNanos;
+
+    /**
+     * Create a clock starting at the current wall clock time
+     */
+    public MonotonicClock() {
+	this.originMicros = Utility.fishTime();
+	this.originNanos = System.nanoTime();
+    }
+
+    public long micros() {
+	return this.originMicros + (System.nanoTime() - this.originNanos) / 1000;
+    }
+
+    public long toRealNanos(long durationMicros) {
+	return durationMicros * 1000;
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <pre>
+ * Bounded lock-free queue for many producer threads and a single consumer thread.
+ * Used to hand packets and keyboard input from the I/O threads to the manager loop.
+ *
+ * The queue is a ring of slots, each with a sequence number telling whose turn it is:
+ *   sequence == position      -- the slot is free for the producer claiming position
+ *   sequence == position + 1  -- the slot holds the element at position, ready for the consumer
+ * Producers claim a position with a compare-and-set on the tail, and the consumer owns the head.
+ * The queue never blocks: offer() fails when the ring is full and poll() returns null when it is empty.
+ * Pair it with a MultiplexIO to let the consumer sleep while every queue it reads is empty.
+ * </pre>
+ */
+public class MpscQueue {
+
+    private int mask;
+    private Object[] elements;
+    private AtomicLongArray sequences;
+    private AtomicLong tail;     // next position for producers to claim
+    private volatile long head;  // next position for the consumer to read. Only written by the consumer
+
+    /**
+     * Create a new queue
+     * @param capacity The most elements the queue holds. Rounded up to a power of 2
+     */
+    public MpscQueue(int capacity) {
+	int size = 1;
+	while(size < capacity) {
+	    size <<= 1;
+	}
+	this.mask = size - 1;
+	this.elements = new Object[size];
+	this.sequences = new AtomicLongArray(size);
+	for(int i = 0; i < size; i++) {
+	    this.sequences.set(i, i);
+	}
+	this.tail = new AtomicLong(0);
+	this.head = 0;
+    }
+
+    /**
+     * Add an element to the queue. Can be called from any thread
+     * @param element The element to add. Must not be null
+     * @return True if the element was added, false if the queue is full
+     */
+    public boolean offer(Object element) {
+	long pos = this.tail.get();
+	while(true) {
+	    int index = (int)(pos & this.mask);
+	    long diff = this.sequences.get(index) - pos;
+	    if(diff == 0) {
+		if(this.tail.compareAndSet(pos, pos + 1)) {
+		    this.elements[index] = element;
+		    this.sequences.set(index, pos + 1);  // publishes the element to the consumer
+		    return true;
+		}
+		pos = this.tail.get();
+	    }else if(diff < 0) {
+		// the consumer has not freed this slot yet
+		return false;
+	    }else {
+		// another producer claimed pos
+		pos = this.tail.get();
+	    }
+	}
+    }
+
+    /**
+     * Remove the oldest element. Must only be called from the consumer thread
+     * @return The oldest element, or null if the queue is empty
+     */
+    public Object poll() {
+	long pos = this.head;
+	int index = (int)(pos & this.mask);
+	if(this.sequences.get(index) != pos + 1) {
+	    return null;
+	}
+	Object element = this.elements[index];
+	this.elements[index] = null;
+	this.sequences.set(index, pos + this.mask + 1);  // hands the slot back to producers
+	this.head = pos + 1;
+	return element;
+    }
+
+    /**
+     * Tests if there is an element ready for the consumer
+     * @return True if poll() would return null
+     */
+    public boolean isEmpty() {
+	long pos = this.head;
+	return this.sequences.get((int)(pos & this.mask)) != pos + 1;
+    }
+
+    /**
+     * @return The number of elements in the queue. Only a snapshot when producers are active
+     */
+    public int size() {
+	return (int)Math.max(0, this.tail.get() - this.head);
+    }
+
+    /**
+     * @return The most elements the queue holds
+     */
+    public int capacity() {
+	return this.mask + 1;
+    }
+}
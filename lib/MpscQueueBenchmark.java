@@ -0,0 +1,188 @@
+import java.util.LinkedList;
+
+/**
+ * <pre>
+ * Measures how fast I/O threads can hand elements to a manager loop, through an MpscQueue woken by a
+ * MultiplexIO, and through the synchronized list with wait and notifyAll that MultiplexIO used to be.
+ * Every producer thread offers its elements as fast as it can, waiting for room when the queue is full,
+ * and one consumer thread takes them all, sleeping whenever nothing is pending, as the manager loop does.
+ * Each producer's elements must come out in the order they went in.
+ *
+ * Usage: java MpscQueueBenchmark [producers] [elements per producer] [rounds]
+ *
+ *        Defaults are 4 producers, 500000 elements each and 5 rounds. Each round runs both paths,
+ *        and the best round of each is printed, so JIT warm up does not count.
+ * </pre>
+ */
+public class MpscQueueBenchmark {
+
+    private static final int QUEUE_CAPACITY = 1 << 12;  // same as EmulatedNodeServer's queue
+    private static final int CHANNEL_ID = 0;
+
+    public static void main(String[] args) {
+	if(args.length > 3) {
+	    System.err.println("Usage: java MpscQueueBenchmark [producers] [elements per producer] [rounds]");
+	    return;
+	}
+	int numProducers = 4;
+	int numElements = 500000;
+	int numRounds = 5;
+	try {
+	    if(args.length > 0) {
+		numProducers = Integer.parseInt(args[0]);
+	    }
+	    if(args.length > 1) {
+		numElements = Integer.parseInt(args[1]);
+	    }
+	    if(args.length > 2) {
+		numRounds = Integer.parseInt(args[2]);
+	    }
+	}catch(NumberFormatException e) {
+	    System.err.println("Invalid argument. Exception: " + e);
+	    return;
+	}
+	if(numProducers < 1 || numElements < 1 || numRounds < 1) {
+	    System.err.println("Arguments must be positive");
+	    return;
+	}
+
+	long bestQueue = Long.MAX_VALUE;
+	long bestSynchronized = Long.MAX_VALUE;
+	try {
+	    for(int round = 0; round < numRounds; round++) {
+		bestQueue = Math.min(bestQueue, runQueue(numProducers, numElements));
+		bestSynchronized = Math.min(bestSynchronized, runSynchronized(numProducers, numElements));
+	    }
+	}catch(InterruptedException e) {
+	    System.err.println("Interrupted");
+	    return;
+	}catch(IllegalStateException e) {
+	    System.err.println(e.getMessage());
+	    return;
+	}
+	long total = (long)numProducers * numElements;
+	System.out.println(numProducers + " producers, " + total + " elements, best of " + numRounds + " rounds");
+	report("MpscQueue + MultiplexIO", total, bestQueue);
+	report("synchronized LinkedList", total, bestSynchronized);
+	System.out.println("speedup: " + String.format("%.2f", (double)bestSynchronized / bestQueue));
+    }
+
+    /******************** Private Functions ********************/
+
+    private static void report(String name, long total, long nanos) {
+	System.out.println(name + ": " + String.format("%.1f", nanos / 1e6) + " msec, " +
+			   String.format("%.1f", total / (nanos / 1e9) / 1e6) + " M elements/sec, " +
+			   String.format("%.1f", (double)nanos / total) + " nsec/element");
+    }
+
+    // Elements are producer << 32 | sequence number, so the consumer can check the order
+    private static long element(int producer, int seq) {
+	return ((long)producer << 32) | seq;
+    }
+
+    private static void checkOrder(int[] nextSeq, long value) {
+	int producer = (int)(value >>> 32);
+	int seq = (int)value;
+	if(nextSeq[producer] != seq) {
+	    throw new IllegalStateException("Producer " + producer + ": expected element " + nextSeq[producer] + ", got " + seq);
+	}
+	nextSeq[producer]++;
+    }
+
+    private static long runQueue(int numProducers, final int numElements) throws InterruptedException {
+	final MpscQueue queue = new MpscQueue(QUEUE_CAPACITY);
+	final MultiplexIO multiplexIO = new MultiplexIO();
+	Thread[] producers = new Thread[numProducers];
+	for(int p = 0; p < numProducers; p++) {
+	    final int producer = p;
+	    producers[p] = new Thread() {
+		    public void run() {
+			for(int i = 0; i < numElements; i++) {
+			    Long value = Long.valueOf(element(producer, i));
+			    while(!queue.offer(value)) {
+				Thread.yield();
+			    }
+			    multiplexIO.write(CHANNEL_ID);
+			}
+		    }
+		};
+	}
+
+	long total = (long)numProducers * numElements;
+	int[] nextSeq = new int[numProducers];
+	long start = System.nanoTime();
+	for(int p = 0; p < numProducers; p++) {
+	    producers[p].start();
+	}
+	long received = 0;
+	while(received < total) {
+	    Object value = queue.poll();
+	    if(value != null) {
+		checkOrder(nextSeq, ((Long)value).longValue());
+		received++;
+		continue;
+	    }
+	    // as the manager loop does: forget the wake ups, then sleep only if the queue is still empty
+	    multiplexIO.clear();
+	    if(queue.isEmpty()) {
+		multiplexIO.await();
+	    }
+	}
+	long elapsed = System.nanoTime() - start;
+	for(int p = 0; p < numProducers; p++) {
+	    producers[p].join();
+	}
+	return elapsed;
+    }
+
+    private static long runSynchronized(int numProducers, final int numElements) throws InterruptedException {
+	final LinkedList list = new LinkedList();
+	Thread[] producers = new Thread[numProducers];
+	for(int p = 0; p < numProducers; p++) {
+	    final int producer = p;
+	    producers[p] = new Thread() {
+		    public void run() {
+			for(int i = 0; i < numElements; i++) {
+			    Long value = Long.valueOf(element(producer, i));
+			    synchronized(list) {
+				while(list.size() >= QUEUE_CAPACITY) {
+				    try {
+					list.wait();
+				    }catch(InterruptedException e) {
+					return;
+				    }
+				}
+				list.add(value);
+				list.notifyAll();
+			    }
+			}
+		    }
+		};
+	}
+
+	long total = (long)numProducers * numElements;
+	int[] nextSeq = new int[numProducers];
+	long start = System.nanoTime();
+	for(int p = 0; p < numProducers; p++) {
+	    producers[p].start();
+	}
+	long received = 0;
+	while(received < total) {
+	    Object value;
+	    synchronized(list) {
+		while(list.isEmpty()) {
+		    list.wait();
+		}
+		value = list.removeFirst();
+		list.notifyAll();
+	    }
+	    checkOrder(nextSeq, ((Long)value).longValue());
+	    received++;
+	}
+	long elapsed = System.nanoTime() - start;
+	for(int p = 0; p < numProducers; p++) {
+	    producers[p].join();
+	}
+	return elapsed;
+    }
+}
@@ -5,30 +5,100 @@
  * Eliminate the use of a polling thread to improve performance
  */
 
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * <pre>
+ * Lets the manager loop sleep until one of its I/O threads has something for it.
+ * Each I/O thread stores its data in its own MpscQueue and then calls write() with its channel ID.
+ * Pending channels are kept as bits of one word, so a write is a single atomic update and only
+ * wakes the manager if it is parked and the channel was not already pending.
+ * Channel IDs must be between 0 and 31.
+ * </pre>
+ */
 public class MultiplexIO {
 
-    private LinkedList data;  // in 1.5, was private LinkedList<Integer> data;
+    private AtomicInteger ready;      // bit i set if channel i has pending data
+    private volatile Thread waiter;   // the manager thread, while it is parked
 
     public MultiplexIO() {
-	this.data = new LinkedList();
+	this.ready = new AtomicInteger(0);
+	this.waiter = null;
+    }
+
+    /**
+     * Signal that a channel has pending data. Can be called from any thread
+     * @param channelID The channel that has pending data
+     */
+    public void write(int channelID) {
+	int bit = 1 << channelID;
+	int previous;
+	do {
+	    previous = this.ready.get();
+	    if((previous & bit) != 0) {
+		return;  // already pending, the manager will see it
+	    }
+	}while(!this.ready.compareAndSet(previous, previous | bit));
+
+	Thread thread = this.waiter;
+	if(thread != null) {
+	    LockSupport.unpark(thread);
+	}
     }
 
-    public synchronized void write(int b) {
-        this.data.add(new Integer(b));
-        this.notifyAll();
+    /**
+     * Take one pending channel
+     * @return The ID of a channel with pending data, or -1 if there is none
+     */
+    public int read() {
+	int previous;
+	int bit;
+	do {
+	    previous = this.ready.get();
+	    if(previous == 0) {
+		return -1;
+	    }
+	    bit = previous & -previous;
+	}while(!this.ready.compareAndSet(previous, previous & ~bit));
+	return Integer.numberOfTrailingZeros(bit);
     }
 
-    public synchronized int read() {
-	if(!this.isEmpty()) {
-	    return ((Integer) this.data.removeFirst()).intValue();
-	    // in 1.5 was return this.data.poll().intValue();
+    /**
+     * Forget all pending channels. Call before draining every channel's queue
+     */
+    public void clear() {
+	this.ready.set(0);
+    }
+
+    public boolean isEmpty() {
+	return this.ready.get() == 0;
+    }
+
+    /**
+     * Park the calling thread until some channel has pending data. Only one thread may wait
+     */
+    public void await() {
+	this.waiter = Thread.currentThread();
+	// waiter is published before checking, so a write() after this check will unpark us
+	while(this.isEmpty()) {
+	    LockSupport.park(this);
 	}
-	return -1;
+	this.waiter = null;
     }
 
-    public synchronized boolean isEmpty() {
-	return this.data.isEmpty();
+    /**
+     * Park the calling thread until some channel has pending data or the given time is reached.
+     * Only one thread may wait
+     * @param endTime The time, in microseconds on the given clock, to give up waiting at
+     * @param clock The clock endTime is measured by
+     */
+    public void await(long endTime, Clock clock) {
+	this.waiter = Thread.currentThread();
+	long waitTime;
+	while(this.isEmpty() && (waitTime = endTime - clock.micros()) > 0) {
+	    LockSupport.parkNanos(this, clock.toRealNanos(waitTime));
+	}
+	this.waiter = null;
     }
 }
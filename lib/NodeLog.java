@@ -0,0 +1,229 @@
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.function.Supplier;
+
+/**
+ * <pre>
+ * Log of the messages nodes print, kept by the Manager.
+ * Every message has a level. Each node has two masks of levels:
+ *   the write mask    -- levels that are printed. By default ERROR and OUTPUT, as nodes always did
+ *   the capture mask  -- levels that are kept in the node's ring buffer, which holds the last
+ *                        CAPTURE_SIZE messages and is printed on demand by dump(). By default the same levels
+ * A message with a level in neither mask is thrown away before it is formatted, so nodes should leave debug
+ * and trace messages in their code, given as a Supplier that builds the message only if it is logged.
+ * A lambda that captures variables is still allocated on every call, so messages on per-packet paths are
+ * better guarded with isEnabled().
+ *
+ * Messages are printed on System.out, and errors on System.err, as they are logged, unless a log file is
+ * given. Then they are handed to a LogWriter, which writes them to the file from its own thread through
+ * a large buffer, so the manager loop does not wait for output.
+ *
+ * Commands, through the CommandsParser:
+ *	log <a|all> <level>          -- print node a's messages up to level. Levels: off error output debug trace
+ *	log capture <a|all> <level>  -- keep node a's messages up to level in its ring buffer
+ *	log file <filename|->        -- write the messages of all nodes to a file, or back to System.out with -
+ *	log dump <a|all>             -- print the ring buffer of node a
+ * </pre>
+ */
+public class NodeLog {
+
+    public static final int ERROR  = 0;
+    public static final int OUTPUT = 1;
+    public static final int DEBUG  = 2;
+    public static final int TRACE  = 3;
+    public static final int OFF    = -1;
+
+    public static final int CAPTURE_SIZE = 256;  // messages kept per node
+    private static final String[] LEVEL_NAMES = {"error", "output", "debug", "trace"};
+    private static final int DEFAULT_MASK = (1 << ERROR) | (1 << OUTPUT);
+
+    private Manager manager;
+    private int[] writeMasks;      // indexed by node address
+    private int[] captureMasks;
+    private int[] enabledMasks;    // write | capture, checked first by everything
+    private LogWriter writer;      // null when printing on System.out and System.err
+    private String[][] captured;   // ring buffers, made when a node first captures a message
+    private long[][] capturedTimes;
+    private byte[][] capturedLevels;
+    private int[] numCaptured;     // number of messages ever captured, per node
+
+    /**
+     * Create a new log
+     * @param manager The manager whose nodes log here. Gives the time of each message
+     */
+    public NodeLog(Manager manager) {
+	this.manager = manager;
+	this.writeMasks = new int[Packet.MAX_ADDRESS + 1];
+	this.captureMasks = new int[Packet.MAX_ADDRESS + 1];
+	this.enabledMasks = new int[Packet.MAX_ADDRESS + 1];
+	for(int i = 0; i <= Packet.MAX_ADDRESS; i++) {
+	    this.writeMasks[i] = DEFAULT_MASK;
+	    this.captureMasks[i] = DEFAULT_MASK;
+	    this.enabledMasks[i] = DEFAULT_MASK;
+	}
+	this.writer = null;
+	this.captured = new String[Packet.MAX_ADDRESS + 1][];
+	this.capturedTimes = new long[Packet.MAX_ADDRESS + 1][];
+	this.capturedLevels = new byte[Packet.MAX_ADDRESS + 1][];
+	this.numCaptured = new int[Packet.MAX_ADDRESS + 1];
+    }
+
+    /**
+     * Check if a node's message would be printed or captured. Cheap enough to guard every message with
+     * @param addr Address of the node
+     * @param level Level of the message
+     * @return True if the message should be built and logged
+     */
+    public boolean isEnabled(int addr, int level) {
+	return (this.enabledMasks[addr & Packet.MAX_ADDRESS] & (1 << level)) != 0;
+    }
+
+    /**
+     * Log a node's message
+     * @param addr Address of the node
+     * @param level Level of the message
+     * @param msg The message
+     */
+    public void log(int addr, int level, String msg) {
+	addr &= Packet.MAX_ADDRESS;
+	int bit = 1 << level;
+	if((this.enabledMasks[addr] & bit) == 0) {
+	    return;
+	}
+	String line = "Node " + addr + ": " + msg;
+	if((this.captureMasks[addr] & bit) != 0) {
+	    this.capture(addr, level, line);
+	}
+	if((this.writeMasks[addr] & bit) != 0) {
+	    if(this.writer != null) {
+		this.writer.write(line);
+	    }else if(level == ERROR) {
+		System.err.println(line);
+	    }else {
+		System.out.println(line);
+	    }
+	}
+    }
+
+    /**
+     * Log a node's message, building it only if it is printed or captured
+     * @param addr Address of the node
+     * @param level Level of the message
+     * @param msg Builds the message
+     */
+    public void log(int addr, int level, Supplier<String> msg) {
+	if(this.isEnabled(addr, level)) {
+	    this.log(addr, level, msg.get());
+	}
+    }
+
+    /**
+     * Set the levels a node prints
+     * @param addr Address of the node, or -1 for all nodes
+     * @param level The highest level printed, or OFF
+     */
+    public void setWriteLevel(int addr, int level) {
+	for(int i = 0; i <= Packet.MAX_ADDRESS; i++) {
+	    if(addr == -1 || addr == i) {
+		this.writeMasks[i] = this.levelToMask(level);
+		this.enabledMasks[i] = this.writeMasks[i] | this.captureMasks[i];
+	    }
+	}
+    }
+
+    /**
+     * Set the levels a node keeps in its ring buffer
+     * @param addr Address of the node, or -1 for all nodes
+     * @param level The highest level captured, or OFF
+     */
+    public void setCaptureLevel(int addr, int level) {
+	for(int i = 0; i <= Packet.MAX_ADDRESS; i++) {
+	    if(addr == -1 || addr == i) {
+		this.captureMasks[i] = this.levelToMask(level);
+		this.enabledMasks[i] = this.writeMasks[i] | this.captureMasks[i];
+	    }
+	}
+    }
+
+    /**
+     * Write messages to a file through a LogWriter, or back on System.out and System.err
+     * @param filename The name of the file, or null for System.out and System.err
+     * @throws FileNotFoundException If the file cannot be opened for writing
+     */
+    public void setFile(String filename) throws FileNotFoundException {
+	LogWriter newWriter = null;
+	if(filename != null) {
+	    newWriter = new LogWriter(filename);
+	    newWriter.start();
+	}
+	this.close();
+	this.writer = newWriter;
+    }
+
+    /**
+     * Print the messages in a node's ring buffer, oldest first
+     * @param addr Address of the node, or -1 for all nodes
+     * @param stream Where to print them
+     */
+    public void dump(int addr, PrintStream stream) {
+	for(int i = 0; i <= Packet.MAX_ADDRESS; i++) {
+	    if((addr != -1 && addr != i) || this.captured[i] == null) {
+		continue;
+	    }
+	    String[] ring = this.captured[i];
+	    int count = Math.min(this.numCaptured[i], ring.length);
+	    stream.println("Node " + i + ": last " + count + " of " + this.numCaptured[i] + " captured messages");
+	    for(int n = this.numCaptured[i] - count; n < this.numCaptured[i]; n++) {
+		int index = n % ring.length;
+		stream.println(this.capturedTimes[i][index] + " " + LEVEL_NAMES[this.capturedLevels[i][index]] + " " + ring[index]);
+	    }
+	}
+    }
+
+    /**
+     * Write out everything logged so far and stop the LogWriter, if there is one
+     */
+    public void close() {
+	if(this.writer != null) {
+	    this.writer.close();
+	    this.writer = null;
+	}
+    }
+
+    /**
+     * Parse a level name
+     * @param name One of off, error, output, debug, trace
+     * @return The level
+     * @throws IllegalArgumentException If the name is not a level
+     */
+    public static int parseLevel(String name) throws IllegalArgumentException {
+	if(name.equals("off")) {
+	    return OFF;
+	}
+	for(int i = 0; i < LEVEL_NAMES.length; i++) {
+	    if(LEVEL_NAMES[i].equals(name)) {
+		return i;
+	    }
+	}
+	throw new IllegalArgumentException("Unknown log level: " + name);
+    }
+
+    /******************** Private Functions ********************/
+
+    private int levelToMask(int level) {
+	return (1 << (level + 1)) - 1;
+    }
+
+    private void capture(int addr, int level, String line) {
+	if(this.captured[addr] == null) {
+	    this.captured[addr] = new String[CAPTURE_SIZE];
+	    this.capturedTimes[addr] = new long[CAPTURE_SIZE];
+	    this.capturedLevels[addr] = new byte[CAPTURE_SIZE];
+	}
+	int index = this.numCaptured[addr] % CAPTURE_SIZE;
+	this.captured[addr][index] = line;
+	this.capturedTimes[addr][index] = this.manager.now();
+	this.capturedLevels[addr][index] = (byte)level;
+	this.numCaptured[addr]++;
+    }
+}
@@ -0,0 +1,611 @@
+import java.lang.Thread;
+import java.net.DatagramSocket;
+import java.net.DatagramPacket;
+import java.nio.channels.DatagramChannel;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <pre>
+ * In a seperate thread, this class puts an emulated node's packets on the wire at the times the
+ * emulated links computed for them. Every outgoing packet goes through the pacer.
+ *
+ * Release times are kept in nanoseconds from System.nanoTime(), so packets a few microseconds apart
+ * leave a few microseconds apart instead of in bursts on millisecond boundaries. The pacer parks
+ * until it is SPIN_NANOS away from the next release time and then spins the rest of the way,
+ * since parking alone cannot wake up that precisely.
+ *
+ * The pacer also limits the node's total output to maxByteRate with a token bucket. The bucket
+ * holds BURST_NANOS worth of bytes, but always at least one datagram of the largest size.
+ * Packets waiting for tokens are delayed, not dropped.
+ *
+ * Each datagram is addressed to one neighbor, so its destination address is set to that neighbor
+ * as it is sent, even for broadcasts. This lets a host running many nodes behind one socket
+ * tell which of them a datagram is for. The packet handed to the node is not changed.
+ *
+ * With coalescing on, a due packet is held for up to the coalescing window, and then sent in one
+ * datagram together with every other due packet for the same neighbor, up to a size limit.
+ * EmulatorPackets carry their own length, so the receiver splits the datagram again.
+ * A neighbor that already has a full datagram due is not held.
+ * Due packets are moved from the queue to a queue of their neighbor, by fishnet address, which keeps
+ * a count of its due bytes. Neighbors with due packets wait their turn in the order their first packet
+ * came due. A neighbor with more due than fits in one datagram goes to the back of the line after
+ * sending one, so a busy neighbor does not hold up the others. Only the pacer thread touches the
+ * neighbor queues, so coalescing never holds the lock schedule() takes for more than moving packets.
+ *
+ * Given a SharedMemoryTransport, datagrams to neighbors on the same machine go through shared
+ * memory when the neighbor is reading it, and by UDP otherwise.
+ * </pre>
+ */
+public class Pacer extends Thread {
+
+    public static final int MAX_QUEUED_PACKETS = 4096;
+    private static final long SPIN_NANOS = 100000;
+    private static final long BURST_NANOS = 10000000;
+
+    private DatagramSocket udpSocket;
+    private DatagramChannel udpChannel;
+    private PacketBufferPool pool;  // for coalesced datagrams and wake-ups
+    private SharedMemoryTransport shm;  // tried before UDP. Null if not used
+
+    private long coalesceNanos;  // how long to hold a packet for others to the same neighbor. 0 for no coalescing
+    private int coalesceBytes;   // the largest coalesced datagram
+
+    // Binary heap of queued packets ordered by release time, then by order of scheduling.
+    // Guarded by this
+    private long[] releaseTimes;
+    private long[] sequences;
+    private PacketBuffer[] packets;
+    private EmulatorARPData[] destinations;
+    private int[] linkDests;
+    private int size;
+    private long nextSequence;
+    private int numDue;  // packets moved to the neighbor queues and not sent yet. Guarded by this
+
+    // Packets that are due, when coalescing, in a queue per neighbor. Only used by the pacer thread.
+    // Entries are slots of the due arrays, linked by dueNext. Free slots are linked from freeSlot
+    private long[] dueReleaseTimes;
+    private PacketBuffer[] duePackets;
+    private EmulatorARPData[] dueDestinations;
+    private int[] dueLinkDests;
+    private int[] dueNext;
+    private int freeSlot;
+    private int[] queueHeads;  // first slot of each neighbor's queue, by fishnet address. -1 if empty
+    private int[] queueTails;
+    private int[] queueBytes;  // due bytes in each neighbor's queue
+    private int[] ready;       // ring of the neighbors with due packets, in the order they get to send
+    private int readyHead;
+    private int numReady;
+
+    // Token bucket, only used by the pacer thread.
+    // bucketTime is when the bucket would be full again if nothing else were sent
+    private long byteRate;
+    private long burstNanos;
+    private long bucketTime;
+
+    // Statistics. Written only by the pacer thread
+    private volatile long numSent;
+    private volatile long numDatagrams;
+    private volatile long numCoalescedDatagrams;  // datagrams sent with more than one packet
+    private volatile int maxFramesPerDatagram;
+    private volatile long numReleased;  // datagrams taken off the queue, sent or not. Lateness is averaged over these
+    private volatile long numFailed;
+    private volatile long numShaped;
+    private volatile long latenessSum;
+    private volatile long maxLateness;
+
+    /**
+     * Create a new Pacer
+     * @param udpSocket The socket to send from
+     * @param udpChannel The channel of udpSocket, if it has one. Null otherwise
+     * @param pool The pool to take coalesced datagrams from. Buffers must hold EmulatorPacket.MAX_DATAGRAM_SIZE bytes
+     * @param options Tunables of the node: the byte rate limit and coalescing
+     * @param shm Shared memory to neighbors on the same machine, or null to always use UDP
+     */
+    public Pacer(DatagramSocket udpSocket, DatagramChannel udpChannel, PacketBufferPool pool, EmulatorOptions options,
+		 SharedMemoryTransport shm) {
+	long maxByteRate = options.getMaxByteRate();
+	this.udpSocket = udpSocket;
+	this.udpChannel = udpChannel;
+	this.pool = pool;
+	this.shm = shm;
+	this.coalesceNanos = options.getCoalesceWindow() * 1000;
+	this.coalesceBytes = options.getCoalesceSize();
+	this.releaseTimes = new long[MAX_QUEUED_PACKETS];
+	this.sequences = new long[MAX_QUEUED_PACKETS];
+	this.packets = new PacketBuffer[MAX_QUEUED_PACKETS];
+	this.destinations = new EmulatorARPData[MAX_QUEUED_PACKETS];
+	this.linkDests = new int[MAX_QUEUED_PACKETS];
+	this.size = 0;
+	this.nextSequence = 0;
+	this.numDue = 0;
+	if(this.coalesceNanos > 0) {
+	    this.dueReleaseTimes = new long[MAX_QUEUED_PACKETS];
+	    this.duePackets = new PacketBuffer[MAX_QUEUED_PACKETS];
+	    this.dueDestinations = new EmulatorARPData[MAX_QUEUED_PACKETS];
+	    this.dueLinkDests = new int[MAX_QUEUED_PACKETS];
+	    this.dueNext = new int[MAX_QUEUED_PACKETS];
+	    for(int i = 0; i < MAX_QUEUED_PACKETS; i++) {
+		this.dueNext[i] = i + 1;
+	    }
+	    this.dueNext[MAX_QUEUED_PACKETS - 1] = -1;
+	    this.freeSlot = 0;
+	    this.queueHeads = new int[Packet.MAX_ADDRESS + 1];
+	    this.queueTails = new int[Packet.MAX_ADDRESS + 1];
+	    this.queueBytes = new int[Packet.MAX_ADDRESS + 1];
+	    Arrays.fill(this.queueHeads, -1);
+	    Arrays.fill(this.queueTails, -1);
+	    this.ready = new int[Packet.MAX_ADDRESS + 1];
+	    this.readyHead = 0;
+	    this.numReady = 0;
+	}
+	this.byteRate = maxByteRate;
+	if(maxByteRate > 0) {
+	    int largest = Math.max((this.coalesceNanos > 0) ? this.coalesceBytes : 0, EmulatorPacket.MAX_FRAME_SIZE);
+	    this.burstNanos = Math.max(BURST_NANOS, largest * 1000000000L / maxByteRate);
+	}
+	this.bucketTime = System.nanoTime();
+	this.setDaemon(true);
+    }
+
+    /**
+     * Queue a packet to be sent. The pacer takes its own reference to the buffer
+     * @param packet The packet to send
+     * @param linkDest The fishnet address of the neighbor to send the packet to
+     * @param dest The ARP data of that neighbor
+     * @param releaseTime When to send the packet, in nanoseconds as returned by System.nanoTime()
+     * @return True if the packet was queued, false if the queue is full
+     */
+    public boolean schedule(PacketBuffer packet, int linkDest, EmulatorARPData dest, long releaseTime) {
+	synchronized(this) {
+	    if(this.size + this.numDue == MAX_QUEUED_PACKETS) {
+		return false;
+	    }
+	    packet.retain();
+	    int i = this.size++;
+	    long sequence = this.nextSequence++;
+	    // sift up
+	    while(i > 0) {
+		int parent = (i - 1) >> 1;
+		if(!this.before(releaseTime, sequence, parent)) {
+		    break;
+		}
+		this.move(parent, i);
+		i = parent;
+	    }
+	    this.set(i, releaseTime, sequence, packet, dest, linkDest);
+	    if(i != 0) {
+		return true;  // the pacer is not waiting for this one
+	    }
+	}
+	LockSupport.unpark(this);
+	return true;
+    }
+
+    public void run() {
+	if(this.coalesceNanos > 0) {
+	    this.runCoalescing();
+	    return;
+	}
+	while(true) {
+	    long releaseTime;
+	    int length;
+	    synchronized(this) {
+		if(this.size == 0) {
+		    releaseTime = 0;
+		    length = 0;
+		}else {
+		    releaseTime = this.releaseTimes[0];
+		    length = this.packets[0].getLength();
+		}
+	    }
+	    if(length == 0) {
+		// nothing queued
+		LockSupport.park(this);
+		continue;
+	    }
+
+	    long sendTime = Math.max(releaseTime, this.tokensAvailableAt(length));
+	    long waitTime = sendTime - System.nanoTime();
+	    if(waitTime > SPIN_NANOS) {
+		// woken early if an earlier packet is scheduled
+		LockSupport.parkNanos(this, waitTime - SPIN_NANOS);
+		continue;
+	    }
+	    while(System.nanoTime() < sendTime) {
+		Thread.onSpinWait();
+	    }
+
+	    PacketBuffer datagram;
+	    EmulatorARPData dest;
+	    synchronized(this) {
+		// the head may have been replaced by an earlier packet, which is due as well
+		releaseTime = this.releaseTimes[0];
+		dest = this.destinations[0];
+		datagram = this.packets[0];
+		EmulatorPacket.setPackedDest(datagram.getData(), 0, this.linkDests[0]);
+		this.removeHead();
+	    }
+	    this.send(datagram, dest, 1, releaseTime, sendTime > releaseTime);
+	}
+    }
+
+    /**
+     * @return The number of packets put on the wire
+     */
+    public long getNumSent() {
+	return this.numSent;
+    }
+
+    /**
+     * @return The number of datagrams put on the wire. Fewer than packets if coalescing
+     */
+    public long getNumDatagrams() {
+	return this.numDatagrams;
+    }
+
+    /**
+     * @return The number of datagrams put on the wire that held more than one packet
+     */
+    public long getNumCoalescedDatagrams() {
+	return this.numCoalescedDatagrams;
+    }
+
+    /**
+     * @return The number of datagrams saved by coalescing: packets put on the wire less the datagrams they went in
+     */
+    public long getNumDatagramsSaved() {
+	return this.numSent - this.numDatagrams;
+    }
+
+    /**
+     * @return The average number of packets per datagram put on the wire. 1 without coalescing
+     */
+    public double getAverageFramesPerDatagram() {
+	return this.numDatagrams == 0 ? 0 : this.numSent / (double)this.numDatagrams;
+    }
+
+    /**
+     * @return The most packets put on the wire in one datagram
+     */
+    public int getMaxFramesPerDatagram() {
+	return Math.max(this.maxFramesPerDatagram, this.numDatagrams == 0 ? 0 : 1);
+    }
+
+    /**
+     * @return The number of packets the socket refused or failed to send
+     */
+    public long getNumFailed() {
+	return this.numFailed;
+    }
+
+    /**
+     * @return The number of packets held back by the byte rate limit
+     */
+    public long getNumShaped() {
+	return this.numShaped;
+    }
+
+    /**
+     * @return The average time, in nanoseconds, between when datagrams should have been sent and when they were.
+     *         A coalesced datagram counts once, late by as much as its first packet
+     */
+    public double getAverageLateness() {
+	return this.numReleased == 0 ? 0 : this.latenessSum / (double)this.numReleased;
+    }
+
+    /**
+     * @return The longest time, in nanoseconds, a packet was sent after it should have been
+     */
+    public long getMaxLateness() {
+	return this.maxLateness;
+    }
+
+    /**
+     * Print the pacer's counters, and the coalescing counters if coalescing is on
+     * @param out Where to print
+     */
+    public void print(PrintStream out) {
+	out.println("Pacer sent: " + this.numSent + " in " + this.numDatagrams + " datagrams" +
+		    " Failed: " + this.numFailed +
+		    " Rate limited: " + this.numShaped +
+		    " Average lateness: " + (this.getAverageLateness() / 1000) + " usec" +
+		    " Max lateness: " + (this.maxLateness / 1000) + " usec");
+	if(this.coalesceNanos > 0) {
+	    out.println("Coalescing saved: " + this.getNumDatagramsSaved() + " datagrams" +
+			" Coalesced datagrams: " + this.numCoalescedDatagrams +
+			" Packets per datagram. Average: " + this.getAverageFramesPerDatagram() +
+			" Max: " + this.getMaxFramesPerDatagram());
+	}
+    }
+
+    /******************** Private Functions ********************/
+
+    // The main loop when coalescing. Moves due packets to their neighbor's queue, then sends for the
+    // neighbor whose turn it is once its first packet has been held long enough
+    private void runCoalescing() {
+	int numSent = 0;  // packets taken off the neighbor queues since the lock was last held
+	while(true) {
+	    long now = System.nanoTime();
+	    long nextRelease;
+	    synchronized(this) {
+		this.numDue -= numSent;
+		numSent = 0;
+		while(this.size != 0 && this.releaseTimes[0] <= now) {
+		    this.enqueueDue(this.releaseTimes[0], this.packets[0], this.destinations[0], this.linkDests[0]);
+		    this.numDue++;
+		    this.removeHead();
+		}
+		nextRelease = (this.size == 0) ? Long.MAX_VALUE : this.releaseTimes[0];
+	    }
+
+	    long wakeTime;
+	    if(this.numReady == 0) {
+		if(nextRelease == Long.MAX_VALUE) {
+		    // nothing queued
+		    LockSupport.park(this);
+		    continue;
+		}
+		wakeTime = nextRelease;
+	    }else {
+		int neighbor = this.ready[this.readyHead];
+		int first = this.queueHeads[neighbor];
+		long releaseTime = this.dueReleaseTimes[first];
+		long holdTime = releaseTime;
+		// wait for more packets to the same neighbor, unless a full datagram is already due
+		if(this.queueBytes[neighbor] < this.coalesceBytes) {
+		    holdTime += this.coalesceNanos;
+		}
+		int length = Math.max(this.duePackets[first].getLength(), Math.min(this.queueBytes[neighbor], this.coalesceBytes));
+		long sendTime = Math.max(holdTime, this.tokensAvailableAt(length));
+		if(sendTime <= now) {
+		    numSent += this.sendDue(neighbor, releaseTime, sendTime > holdTime);
+		    continue;
+		}
+		// packets coming due may fill the datagram before then
+		wakeTime = Math.min(sendTime, nextRelease);
+	    }
+	    long waitTime = wakeTime - System.nanoTime();
+	    if(waitTime > SPIN_NANOS) {
+		// woken early if an earlier packet is scheduled
+		LockSupport.parkNanos(this, waitTime - SPIN_NANOS);
+		continue;
+	    }
+	    while(System.nanoTime() < wakeTime) {
+		Thread.onSpinWait();
+	    }
+	}
+    }
+
+    // Appends a due packet to its neighbor's queue, and puts the neighbor in line if it was not
+    private void enqueueDue(long releaseTime, PacketBuffer packet, EmulatorARPData dest, int linkDest) {
+	int slot = this.freeSlot;
+	this.freeSlot = this.dueNext[slot];
+	this.dueReleaseTimes[slot] = releaseTime;
+	this.duePackets[slot] = packet;
+	this.dueDestinations[slot] = dest;
+	this.dueLinkDests[slot] = linkDest;
+	this.dueNext[slot] = -1;
+	if(this.queueHeads[linkDest] == -1) {
+	    this.queueHeads[linkDest] = slot;
+	    this.addReady(linkDest);
+	}else {
+	    this.dueNext[this.queueTails[linkDest]] = slot;
+	}
+	this.queueTails[linkDest] = slot;
+	this.queueBytes[linkDest] += packet.getLength();
+    }
+
+    private void addReady(int neighbor) {
+	this.ready[(this.readyHead + this.numReady) % this.ready.length] = neighbor;
+	this.numReady++;
+    }
+
+    // Sends the first packets of the neighbor's queue, as many as fit in coalesceBytes, framed back to
+    // back in one datagram. Returns the number of packets sent
+    private int sendDue(int neighbor, long releaseTime, boolean shaped) {
+	this.readyHead = (this.readyHead + 1) % this.ready.length;
+	this.numReady--;
+	int first = this.queueHeads[neighbor];
+	EmulatorARPData dest = this.dueDestinations[first];
+	int length = this.duePackets[first].getLength();
+	int count = 1;
+	int slot = this.dueNext[first];
+	// a neighbor that moved since its first packet was queued gets the rest in another datagram
+	while(slot != -1 && length + this.duePackets[slot].getLength() <= this.coalesceBytes &&
+	      (this.dueDestinations[slot] == dest || this.dueDestinations[slot].getSocketAddress().equals(dest.getSocketAddress()))) {
+	    length += this.duePackets[slot].getLength();
+	    count++;
+	    slot = this.dueNext[slot];
+	}
+
+	PacketBuffer datagram;
+	if(count == 1) {
+	    datagram = this.duePackets[first];
+	    EmulatorPacket.setPackedDest(datagram.getData(), 0, this.dueLinkDests[first]);
+	}else {
+	    datagram = this.pool.acquire();
+	    byte[] data = datagram.getData();
+	    int offset = 0;
+	    for(slot = first; offset < length; slot = this.dueNext[slot]) {
+		PacketBuffer packet = this.duePackets[slot];
+		System.arraycopy(packet.getData(), 0, data, offset, packet.getLength());
+		EmulatorPacket.setPackedDest(data, offset, this.dueLinkDests[slot]);
+		offset += packet.getLength();
+		packet.release();
+	    }
+	    datagram.setLength(length);
+	}
+	// free the slots sent
+	slot = first;
+	for(int k = 0; k < count; k++) {
+	    int next = this.dueNext[slot];
+	    this.duePackets[slot] = null;
+	    this.dueDestinations[slot] = null;
+	    this.dueNext[slot] = this.freeSlot;
+	    this.freeSlot = slot;
+	    slot = next;
+	}
+	this.queueHeads[neighbor] = slot;
+	this.queueBytes[neighbor] -= length;
+	if(slot == -1) {
+	    this.queueTails[neighbor] = -1;
+	}else {
+	    // back of the line
+	    this.addReady(neighbor);
+	}
+	this.send(datagram, dest, count, releaseTime, shaped);
+	return count;
+    }
+
+    // Puts a datagram of count packets on the wire and keeps the statistics. shaped tells if the byte
+    // rate limit held it back
+    private void send(PacketBuffer datagram, EmulatorARPData dest, int count, long releaseTime, boolean shaped) {
+	long now = System.nanoTime();
+	this.takeTokens(datagram.getLength(), now);
+	this.numReleased++;
+	if(now > releaseTime) {
+	    long lateness = now - releaseTime;
+	    this.latenessSum += lateness;
+	    if(lateness > this.maxLateness) {
+		this.maxLateness = lateness;
+	    }
+	    if(shaped) {
+		this.numShaped++;
+	    }
+	}
+	try {
+	    if(this.physicalSend(datagram, dest)) {
+		this.numSent += count;
+		this.numDatagrams++;
+		if(count > 1) {
+		    this.numCoalescedDatagrams++;
+		    if(count > this.maxFramesPerDatagram) {
+			this.maxFramesPerDatagram = count;
+		    }
+		}
+	    }else {
+		this.numFailed += count;
+	    }
+	}catch(IOException e) {
+	    this.numFailed += count;
+	    System.err.println("IOException occured while trying to send to " + dest.getSocketAddress() + ". Exception: " + e);
+	    e.printStackTrace();
+	}
+    }
+
+    /*
+     * Apr. 14, 2006
+     * Hao Wang
+     *
+     * Bug: Broadcast packet may be sent to wrong nodes, because UDP destination
+     *      information is overwritten by later call to schedulePkt
+     * Fix: Set UDP destination information individually
+     */
+    // Sends the packet to one neighbor and releases the pacer's reference to the buffer.
+    // Returns false if the socket had no room for the packet
+    private boolean physicalSend(PacketBuffer packet, EmulatorARPData dest) throws IOException {
+	if(this.shm != null) {
+	    int result = this.shm.send(packet, dest);
+	    if(result != SharedMemoryTransport.NOT_SENT) {
+		packet.release();
+		if(result == SharedMemoryTransport.SENT_WAKE_UP) {
+		    // an empty datagram wakes the neighbor up
+		    PacketBuffer wakeUp = this.pool.acquire();
+		    this.udpSend(wakeUp, dest);
+		}
+		return true;
+	    }
+	}
+	return this.udpSend(packet, dest);
+    }
+
+    private boolean udpSend(PacketBuffer packet, EmulatorARPData dest) throws IOException {
+	try {
+	    if(this.udpChannel != null) {
+		// a full socket buffer on a non-blocking channel drops the datagram
+		return this.udpChannel.send(packet.getSendBuffer(), dest.getSocketAddress()) != 0;
+	    }
+	    DatagramPacket datagram = packet.getSendDatagram();
+	    datagram.setAddress(dest.getIPAddress());
+	    datagram.setPort(dest.getPort());
+	    this.udpSocket.send(datagram);
+	    return true;
+	}finally {
+	    packet.release();
+	}
+    }
+
+    // When the bucket will hold enough tokens to send length bytes. Time not yet drained from the
+    // bucket, plus the time to send length bytes, may be at most burstNanos
+    private long tokensAvailableAt(int length) {
+	if(this.byteRate <= 0) {
+	    return Long.MIN_VALUE;
+	}
+	return this.bucketTime + length * 1000000000L / this.byteRate - this.burstNanos;
+    }
+
+    private void takeTokens(int length, long now) {
+	if(this.byteRate <= 0) {
+	    return;
+	}
+	this.bucketTime = Math.max(this.bucketTime, now) + length * 1000000000L / this.byteRate;
+    }
+
+    // Tests if the given packet should be sent before the one at index i
+    private boolean before(long releaseTime, long sequence, int i) {
+	if(releaseTime != this.releaseTimes[i]) {
+	    return releaseTime < this.releaseTimes[i];
+	}
+	return sequence < this.sequences[i];
+    }
+
+    private void set(int i, long releaseTime, long sequence, PacketBuffer packet, EmulatorARPData dest, int linkDest) {
+	this.releaseTimes[i] = releaseTime;
+	this.sequences[i] = sequence;
+	this.packets[i] = packet;
+	this.destinations[i] = dest;
+	this.linkDests[i] = linkDest;
+    }
+
+    private void move(int from, int to) {
+	this.set(to, this.releaseTimes[from], this.sequences[from], this.packets[from], this.destinations[from],
+		 this.linkDests[from]);
+    }
+
+    private void removeHead() {
+	int last = --this.size;
+	long releaseTime = this.releaseTimes[last];
+	long sequence = this.sequences[last];
+	PacketBuffer packet = this.packets[last];
+	EmulatorARPData dest = this.destinations[last];
+	int linkDest = this.linkDests[last];
+	this.packets[last] = null;
+	this.destinations[last] = null;
+	if(last == 0) {
+	    return;
+	}
+	this.siftDown(0, releaseTime, sequence, packet, dest, linkDest);
+    }
+
+    // Puts the given entry at index i, or further down if its children should be sent first
+    private void siftDown(int i, long releaseTime, long sequence, PacketBuffer packet, EmulatorARPData dest, int linkDest) {
+	while(true) {
+	    int child = 2 * i + 1;
+	    if(child >= this.size) {
+		break;
+	    }
+	    if(child + 1 < this.size && this.before(this.releaseTimes[child + 1], this.sequences[child + 1], child)) {
+		child++;
+	    }
+	    if(this.before(releaseTime, sequence, child)) {
+		break;
+	    }
+	    this.move(child, i);
+	    i = child;
+	}
+	this.set(i, releaseTime, sequence, packet, dest, linkDest);
+    }
+}
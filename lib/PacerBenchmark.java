@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * <pre>
+ * Measures what coalescing saves. A Pacer sends a stream of Fishnet packets to one neighbor, a UDP
+ * socket on the loopback interface, once without coalescing and once with it. A receiver thread
+ * counts the datagrams that arrive and splits them into packets as an emulator does.
+ *
+ * Usage: java PacerBenchmark [packets] [gap usec] [payload bytes] [coalesce usec]
+ *
+ *        Defaults are 100000 packets, one every 10 usec, of 40 bytes, and a coalescing window of 200 usec.
+ *        Prints, for each run, how long the stream took, the datagrams and packets received, the
+ *        packets per datagram, and the pacer's lateness.
+ * </pre>
+ */
+public class PacerBenchmark {
+
+    private static final long IDLE_TIMEOUT = 2000;  // msec without a datagram before giving up on the rest
+
+    public static void main(String[] args) {
+	if(args.length > 4) {
+	    System.err.println("Usage: java PacerBenchmark [packets] [gap usec] [payload bytes] [coalesce usec]");
+	    return;
+	}
+	int numPackets = 100000;
+	long gap = 10;
+	int payloadSize = 40;
+	long coalesceWindow = 200;
+	try {
+	    if(args.length > 0) {
+		numPackets = Integer.parseInt(args[0]);
+	    }
+	    if(args.length > 1) {
+		gap = Long.parseLong(args[1]);
+	    }
+	    if(args.length > 2) {
+		payloadSize = Integer.parseInt(args[2]);
+	    }
+	    if(args.length > 3) {
+		coalesceWindow = Long.parseLong(args[3]);
+	    }
+	}catch(NumberFormatException e) {
+	    System.err.println("Invalid argument. Exception: " + e);
+	    return;
+	}
+	if(numPackets < 1 || gap < 0 || payloadSize < 0 || payloadSize > Packet.MAX_PACKET_SIZE || coalesceWindow < 1) {
+	    System.err.println("Invalid argument");
+	    return;
+	}
+
+	System.out.println(numPackets + " packets of " + payloadSize + " bytes, one every " + gap + " usec");
+	try {
+	    run("no coalescing", numPackets, gap, payloadSize, 0);
+	    run("coalesce=" + coalesceWindow, numPackets, gap, payloadSize, coalesceWindow);
+	}catch(IOException e) {
+	    System.err.println("IOException: " + e);
+	}catch(InterruptedException e) {
+	    System.err.println("Interrupted");
+	}
+    }
+
+    /******************** Private Functions ********************/
+
+    private static void run(String name, int numPackets, long gap, int payloadSize, long coalesceWindow)
+	throws IOException, InterruptedException {
+	final DatagramChannel receiveChannel = DatagramChannel.open();
+	receiveChannel.socket().setReceiveBufferSize(1 << 22);
+	receiveChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	receiveChannel.socket().setSoTimeout((int)IDLE_TIMEOUT);
+	DatagramChannel sendChannel = DatagramChannel.open();
+	sendChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+	EmulatorOptions options = new EmulatorOptions();
+	options.setMaxByteRate(0);
+	options.setCoalesceWindow(coalesceWindow);
+	PacketBufferPool pool = new PacketBufferPool(EmulatorPacket.MAX_DATAGRAM_SIZE);
+	Pacer pacer = new Pacer(sendChannel.socket(), sendChannel, pool, options, null);
+	pacer.start();
+	EmulatorARPData dest = new EmulatorARPData(InetAddress.getLoopbackAddress(), receiveChannel.socket().getLocalPort());
+
+	final int total = numPackets;
+	final long[] counts = new long[2];  // datagrams, packets
+	Thread receiver = new Thread() {
+		public void run() {
+		    ByteBuffer buffer = ByteBuffer.allocate(EmulatorPacket.MAX_DATAGRAM_SIZE);
+		    try {
+			DatagramPacket datagram = new DatagramPacket(buffer.array(), buffer.capacity());
+			while(counts[1] < total) {
+			    receiveChannel.socket().receive(datagram);
+			    counts[0]++;
+			    int offset = 0;
+			    while(offset < datagram.getLength()) {
+				counts[1]++;
+				offset += EmulatorPacket.packedLength(buffer.array(), offset);
+			    }
+			}
+		    }catch(IOException e) {
+			// timed out, the rest were lost
+		    }
+		}
+	    };
+	receiver.start();
+
+	byte[] payload = new byte[payloadSize];
+	long start = System.nanoTime();
+	for(int i = 0; i < numPackets; i++) {
+	    PacketBuffer packet = pool.acquire();
+	    packet.setLength(EmulatorPacket.packInto(1, 0, payload, packet.getData(), 0));
+	    long releaseTime = start + i * gap * 1000;
+	    while(!pacer.schedule(packet, 1, dest, releaseTime)) {
+		Thread.yield();
+	    }
+	    packet.release();
+	}
+	receiver.join();
+	long elapsed = System.nanoTime() - start;
+	// the receiver can finish before the pacer thread has counted the last datagram
+	long deadline = System.currentTimeMillis() + IDLE_TIMEOUT;
+	while(pacer.getNumSent() + pacer.getNumFailed() < numPackets && System.currentTimeMillis() < deadline) {
+	    Thread.sleep(1);
+	}
+
+	System.out.println(name + ": " + String.format("%.1f", elapsed / 1e6) + " msec" +
+			   " Received: " + counts[1] + " packets in " + counts[0] + " datagrams" +
+			   " Packets per datagram: " + String.format("%.2f", counts[0] == 0 ? 0 : counts[1] / (double)counts[0]) +
+			   " Lost: " + (numPackets - counts[1]));
+	pacer.print(System.out);
+	receiveChannel.close();
+	sendChannel.close();
+    }
+}
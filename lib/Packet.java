@@ -1,7 +1,3 @@
-import java.math.BigInteger;
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
-
 /**
  * <pre>   
  * Packet defines the Fishnet packet headers and some constants.
@@ -119,25 +115,19 @@ public class Packet {
      * @return A byte[] for transporting over the wire. Null if failed to pack for some reason
      */
     public byte[] pack() {	
-	
-	ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-	byteStream.write(this.dest);
-	byteStream.write(this.src);
-	byteStream.write(this.ttl);
-	byteStream.write(this.protocol);
-	byteStream.write(this.payload.length + Packet.HEADER_SIZE);
-
-	byte[] seqByteArray = (BigInteger.valueOf(this.seq)).toByteArray();
-	int paddingLength = 4 - seqByteArray.length;
-	for(int i = 0; i < paddingLength; i++) {
-	    byteStream.write(0);
-	}
-
-	byteStream.write(seqByteArray, 0, Math.min(seqByteArray.length, 4));
-		
-	byteStream.write(this.payload, 0, this.payload.length);
-
-	return byteStream.toByteArray();
+	byte[] packed = new byte[this.payload.length + Packet.HEADER_SIZE];
+	packed[0] = (byte)this.dest;
+	packed[1] = (byte)this.src;
+	packed[2] = (byte)this.ttl;
+	packed[3] = (byte)this.protocol;
+	packed[4] = (byte)packed.length;
+	packed[5] = (byte)(this.seq >>> 24);
+	packed[6] = (byte)(this.seq >>> 16);
+	packed[7] = (byte)(this.seq >>> 8);
+	packed[8] = (byte)this.seq;
+	System.arraycopy(this.payload, 0, packed, Packet.HEADER_SIZE, this.payload.length);
+
+	return packed;
     }
 
     /**
@@ -147,29 +137,33 @@ public class Packet {
      * @return Packet object created or null if the byte[] representation was corrupted
      */
     public static Packet unpack(byte[] packedPacket){
-	
-	ByteArrayInputStream byteStream = new ByteArrayInputStream(packedPacket);
-	
-	int dest = byteStream.read();
-	int src = byteStream.read();
-	int ttl = byteStream.read();
-	int protocol = byteStream.read();
-	int packetLength = byteStream.read();
-	
-	byte[] seqByteArray = new byte[4];
-	if(byteStream.read(seqByteArray, 0, 4) != 4) {
+	return Packet.unpack(packedPacket, 0, packedPacket.length);
+    }
+
+    /**
+     * Unpacks part of a byte array to create a Packet object, so that packets can be read
+     * straight out of a receive buffer
+     * Assumes the bytes have been formatted using pack method in Packet
+     * @param buf Buffer holding the packed packet
+     * @param offset Where in buf the packet starts
+     * @param length The number of bytes the packet takes up in buf
+     * @return Packet object created or null if the byte[] representation was corrupted
+     */
+    public static Packet unpack(byte[] buf, int offset, int length) {
+	if(length < Packet.HEADER_SIZE || (buf[offset + 4] & 0xff) != length) {
 	    return null;
 	}
 
-	int seq = (new BigInteger(seqByteArray)).intValue();
+	int dest = buf[offset] & 0xff;
+	int src = buf[offset + 1] & 0xff;
+	int ttl = buf[offset + 2] & 0xff;
+	int protocol = buf[offset + 3] & 0xff;
+	int seq = ((buf[offset + 5] & 0xff) << 24) | ((buf[offset + 6] & 0xff) << 16) |
+	          ((buf[offset + 7] & 0xff) << 8)  |  (buf[offset + 8] & 0xff);
 
-	byte[] payload = new byte[byteStream.available()];
-	byteStream.read(payload, 0, payload.length);
+	byte[] payload = new byte[length - Packet.HEADER_SIZE];
+	System.arraycopy(buf, offset + Packet.HEADER_SIZE, payload, 0, payload.length);
 
-	if((9 + payload.length) != packetLength) {
-	    return null;
-	}	
-	
 	try {
 	    return new Packet(dest, src, ttl, protocol, seq, payload);
 	}catch(IllegalArgumentException e) {
@@ -0,0 +1,162 @@
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * <pre>
+ * A reference counted byte buffer handed out by a PacketBufferPool.
+ * The buffer owns the DatagramPacket (and the ByteBuffer, for channels) used to receive into it or
+ * send from it, so moving a packet between the receive thread, the manager and the socket does not allocate.
+ *
+ * Whoever acquires a buffer holds one reference. Every additional holder (for example each neighbor
+ * a broadcast is scheduled for) must retain() it, and every holder must release() it when done.
+ * When the last reference is released the buffer goes back to its pool and must not be touched again.
+ * </pre>
+ */
+public class PacketBuffer {
+
+    private PacketBufferPool pool;
+    private byte[] data;
+    private int length;
+    private int refCount;
+    private DatagramPacket datagram;
+    private ByteBuffer byteBuffer;
+
+    /**
+     * Create a new buffer. Only called by PacketBufferPool
+     * @param pool The pool the buffer returns to when it is released for the last time
+     * @param capacity The size of the buffer in bytes
+     */
+    PacketBuffer(PacketBufferPool pool, int capacity) {
+	this.pool = pool;
+	this.data = new byte[capacity];
+	this.length = 0;
+	this.refCount = 0;
+	this.datagram = new DatagramPacket(this.data, capacity);
+	this.byteBuffer = ByteBuffer.wrap(this.data);
+    }
+
+    /**
+     * @return The backing array. Valid data runs from 0 to getLength()
+     */
+    public byte[] getData() {
+	return this.data;
+    }
+
+    /**
+     * @return The number of valid bytes in the buffer
+     */
+    public int getLength() {
+	return this.length;
+    }
+
+    /**
+     * Sets the number of valid bytes in the buffer
+     * @param length The number of valid bytes
+     */
+    public void setLength(int length) {
+	this.length = length;
+    }
+
+    /**
+     * @return The size of the backing array
+     */
+    public int getCapacity() {
+	return this.data.length;
+    }
+
+    /**
+     * Get the DatagramPacket to receive into. Its length is reset to the full capacity of the buffer
+     * @return The DatagramPacket backed by this buffer
+     */
+    public DatagramPacket getReceiveDatagram() {
+	this.datagram.setData(this.data, 0, this.data.length);
+	return this.datagram;
+    }
+
+    /**
+     * Get the DatagramPacket to send from. Its length is set to the number of valid bytes in the buffer.
+     * The caller sets the destination right before sending, since a shared buffer may go to several hosts
+     * @return The DatagramPacket backed by this buffer
+     */
+    public DatagramPacket getSendDatagram() {
+	this.datagram.setData(this.data, 0, this.length);
+	return this.datagram;
+    }
+
+    /**
+     * Get the ByteBuffer to receive into from a DatagramChannel. It is cleared to the full capacity of the buffer.
+     * Call setReceived() once the datagram has arrived
+     * @return The ByteBuffer backed by this buffer
+     */
+    public ByteBuffer getReceiveBuffer() {
+	this.byteBuffer.clear();
+	return this.byteBuffer;
+    }
+
+    /**
+     * Get the ByteBuffer to send from with a DatagramChannel. It covers the valid bytes in the buffer
+     * @return The ByteBuffer backed by this buffer
+     */
+    public ByteBuffer getSendBuffer() {
+	this.byteBuffer.clear();
+	this.byteBuffer.limit(this.length);
+	return this.byteBuffer;
+    }
+
+    /**
+     * Records a datagram received through getReceiveBuffer()
+     * @param address The address of the host the datagram was received from
+     * @param port The port of the host the datagram was received from
+     */
+    public void setReceived(InetAddress address, int port) {
+	this.length = this.byteBuffer.position();
+	this.datagram.setAddress(address);
+	this.datagram.setPort(port);
+    }
+
+    /**
+     * @return The address of the host the last datagram was received from
+     */
+    public InetAddress getAddress() {
+	return this.datagram.getAddress();
+    }
+
+    /**
+     * @return The port of the host the last datagram was received from
+     */
+    public int getPort() {
+	return this.datagram.getPort();
+    }
+
+    /**
+     * Add a reference to this buffer
+     */
+    public synchronized void retain() {
+	this.refCount++;
+    }
+
+    /**
+     * Drop a reference to this buffer, returning it to its pool if this was the last one
+     */
+    public void release() {
+	boolean free;
+	synchronized(this) {
+	    if(this.refCount <= 0) {
+		throw new IllegalStateException("PacketBuffer released more times than it was retained");
+	    }
+	    free = (--this.refCount == 0);
+	}
+	if(free) {
+	    this.pool.recycle(this);
+	}
+    }
+
+    /**
+     * Called by the pool when the buffer is handed out
+     */
+    synchronized void acquired() {
+	this.refCount = 1;
+	this.length = 0;
+    }
+}
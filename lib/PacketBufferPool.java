@@ -0,0 +1,81 @@
+/**
+ * <pre>
+ * A pool of reference counted PacketBuffers shared by the threads of a Manager.
+ * Free buffers are kept on a fixed size stack. If the stack is empty a new buffer is allocated,
+ * and if it is full a released buffer is left to the garbage collector, so the pool never blocks
+ * and holds at most maxFree idle buffers.
+ * </pre>
+ */
+public class PacketBufferPool {
+
+    public static final int DEFAULT_MAX_FREE = 1024;
+
+    private int bufferSize;
+    private PacketBuffer[] free;
+    private int numFree;
+    private long numAllocated;
+
+    /**
+     * Create a new pool
+     * @param bufferSize The capacity, in bytes, of each buffer
+     * @param maxFree The maximum number of idle buffers kept for reuse
+     */
+    public PacketBufferPool(int bufferSize, int maxFree) {
+	this.bufferSize = bufferSize;
+	this.free = new PacketBuffer[maxFree];
+	this.numFree = 0;
+	this.numAllocated = 0;
+    }
+
+    /**
+     * Create a new pool keeping up to DEFAULT_MAX_FREE idle buffers
+     * @param bufferSize The capacity, in bytes, of each buffer
+     */
+    public PacketBufferPool(int bufferSize) {
+	this(bufferSize, DEFAULT_MAX_FREE);
+    }
+
+    /**
+     * Get an empty buffer holding one reference
+     * @return An empty buffer
+     */
+    public PacketBuffer acquire() {
+	PacketBuffer buffer = null;
+	synchronized(this) {
+	    if(this.numFree > 0) {
+		buffer = this.free[--this.numFree];
+		this.free[this.numFree] = null;
+	    }else {
+		this.numAllocated++;
+	    }
+	}
+	if(buffer == null) {
+	    buffer = new PacketBuffer(this, this.bufferSize);
+	}
+	buffer.acquired();
+	return buffer;
+    }
+
+    /**
+     * @return The capacity, in bytes, of each buffer
+     */
+    public int getBufferSize() {
+	return this.bufferSize;
+    }
+
+    /**
+     * @return The number of buffers this pool has allocated so far
+     */
+    public synchronized long getNumAllocated() {
+	return this.numAllocated;
+    }
+
+    /**
+     * Called by PacketBuffer when its last reference is released
+     */
+    synchronized void recycle(PacketBuffer buffer) {
+	if(this.numFree < this.free.length) {
+	    this.free[this.numFree++] = buffer;
+	}
+    }
+}
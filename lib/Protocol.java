@@ -10,6 +10,7 @@ public class Protocol {
     public static final int LINK_INFO_PKT  = 2;
     public static final int NAME_PKT       = 3;
     public static final int TRANSPORT_PKT  = 4;
+    public static final int HELLO_PKT      = 5;
 
     /**
      * Tests if the given protocol is valid
@@ -21,7 +22,8 @@ public class Protocol {
 		protocol == PING_REPLY_PKT ||
 		protocol == LINK_INFO_PKT  ||
 		protocol == NAME_PKT       ||
-		protocol == TRANSPORT_PKT);
+		protocol == TRANSPORT_PKT  ||
+		protocol == HELLO_PKT);
     }
 
     /**
@@ -37,6 +39,7 @@ public class Protocol {
 	case LINK_INFO_PKT:  return "Link State Packet";
 	case NAME_PKT:       return "Name Packet";
 	case TRANSPORT_PKT:  return "Transport Packet";
+	case HELLO_PKT:      return "Hello Packet";
 	default:             return "Unknown Protocol";
 	}
     }
@@ -0,0 +1,42 @@
+/**
+ * <pre>
+ * Clock that runs at a fixed multiple of another clock, for running emulations faster or slower
+ * than real time. With a scale of 2, two seconds pass on this clock for every second on the base clock.
+ * </pre>
+ */
+public class ScaledClock implements Clock {
+
+    private Clock base;
+    private double scale;
+    private long originMicros;
+
+    /**
+     * Create a clock that starts at the base clock's current time
+     * @param base The clock to scale
+     * @param scale How many microseconds pass on this clock for each microsecond on the base clock. Must be > 0
+     * @throws IllegalArgumentException If scale is not > 0
+     */
+    public ScaledClock(Clock base, double scale) throws IllegalArgumentException {
+	if(!(scale > 0)) {
+	    throw new IllegalArgumentException("Clock scale must be > 0. Got: " + scale);
+	}
+	this.base = base;
+	this.scale = scale;
+	this.originMicros = base.micros();
+    }
+
+    public long micros() {
+	return this.originMicros + (long)((this.base.micros() - this.originMicros) * this.scale);
+    }
+
+    public long toRealNanos(long durationMicros) {
+	return this.base.toRealNanos((long)(durationMicros / this.scale));
+    }
+
+    /**
+     * @return How many microseconds pass on this clock for each microsecond on the base clock
+     */
+    public double getScale() {
+	return this.scale;
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+/**
+ * <pre>
+ * Measures the one-way latency of passing a datagram between two threads through loopback UDP and
+ * through a pair of SharedMemoryRings. The two threads play ping pong, and half of each round trip
+ * is taken as the one-way latency. Three ways are measured:
+ *	udp      -- blocking receives on loopback UDP sockets
+ *	shm      -- the rings, with readers that sleep on their UDP socket and are woken by an empty
+ *		    datagram, as emulators do
+ *	shm-busy -- the rings, with readers that never sleep, so no wake-ups are sent
+ *
+ * Usage: java SharedMemoryBenchmark [round trips] [datagram bytes]
+ *
+ *        Defaults are 20000 round trips of 64 byte datagrams. The first tenth of the round trips of
+ *        each way are not counted, so JIT warm up does not count.
+ * </pre>
+ */
+public class SharedMemoryBenchmark {
+
+    private static final int UDP = 0;
+    private static final int SHM = 1;
+    private static final int SHM_BUSY = 2;
+    private static final String[] NAMES = {"udp", "shm", "shm-busy"};
+
+    public static void main(String[] args) {
+	if(args.length > 2) {
+	    System.err.println("Usage: java SharedMemoryBenchmark [round trips] [datagram bytes]");
+	    return;
+	}
+	int numRoundTrips = 20000;
+	int size = 64;
+	try {
+	    if(args.length > 0) {
+		numRoundTrips = Integer.parseInt(args[0]);
+	    }
+	    if(args.length > 1) {
+		size = Integer.parseInt(args[1]);
+	    }
+	}catch(NumberFormatException e) {
+	    System.err.println("Invalid argument. Exception: " + e);
+	    return;
+	}
+	if(numRoundTrips < 10 || size < 1 || size > EmulatorPacket.MAX_DATAGRAM_SIZE) {
+	    System.err.println("Invalid argument");
+	    return;
+	}
+
+	System.out.println(numRoundTrips + " round trips of " + size + " byte datagrams. One-way latency in usec:");
+	for(int mode = 0; mode < NAMES.length; mode++) {
+	    try {
+		long[] oneWay = run(mode, numRoundTrips, size);
+		report(NAMES[mode], oneWay, numRoundTrips / 10);
+	    }catch(IOException e) {
+		System.err.println(NAMES[mode] + ": IOException: " + e);
+	    }catch(InterruptedException e) {
+		System.err.println("Interrupted");
+		return;
+	    }
+	}
+    }
+
+    /******************** Private Functions ********************/
+
+    private static void report(String name, long[] oneWay, int skip) {
+	long[] samples = Arrays.copyOfRange(oneWay, skip, oneWay.length);
+	Arrays.sort(samples);
+	long sum = 0;
+	for(int i = 0; i < samples.length; i++) {
+	    sum += samples[i];
+	}
+	System.out.println(name + ": avg " + usec(sum / samples.length) +
+			   " p50 " + usec(samples[samples.length / 2]) +
+			   " p99 " + usec(samples[(int)(samples.length * 0.99)]) +
+			   " max " + usec(samples[samples.length - 1]));
+    }
+
+    private static String usec(long nanos) {
+	return String.format("%.1f", nanos / 1000.0);
+    }
+
+    // Returns the one-way latency of each round trip in nanoseconds
+    private static long[] run(int mode, final int numRoundTrips, int size) throws IOException, InterruptedException {
+	InetAddress loopback = InetAddress.getLoopbackAddress();
+	final DatagramChannel channelA = DatagramChannel.open();
+	final DatagramChannel channelB = DatagramChannel.open();
+	channelA.socket().bind(new InetSocketAddress(loopback, 0));
+	channelB.socket().bind(new InetSocketAddress(loopback, 0));
+
+	// Each side maps the rings itself, as separate emulators do, since a ring keeps the producer's or
+	// the consumer's position
+	SharedMemoryRing outA = null;
+	SharedMemoryRing inA = null;
+	SharedMemoryRing outB = null;
+	SharedMemoryRing inB = null;
+	File fileAB = null;
+	File fileBA = null;
+	if(mode != UDP) {
+	    File shm = new File("/dev/shm");
+	    File directory = shm.isDirectory() ? shm : new File(System.getProperty("java.io.tmpdir"));
+	    String prefix = "fishnet-bench-" + channelA.socket().getLocalPort() + "-" + channelB.socket().getLocalPort();
+	    fileAB = new File(directory, prefix + "-ab.ring");
+	    fileBA = new File(directory, prefix + "-ba.ring");
+	    fileAB.deleteOnExit();
+	    fileBA.deleteOnExit();
+	    inB = new SharedMemoryRing(fileAB, true);
+	    inA = new SharedMemoryRing(fileBA, true);
+	    inB.attach(System.currentTimeMillis());
+	    inA.attach(System.currentTimeMillis());
+	    outA = new SharedMemoryRing(fileAB, false);
+	    outB = new SharedMemoryRing(fileBA, false);
+	}
+
+	// unconnected, as the emulators' channels are. An empty datagram sent on a connected channel never arrives
+	final Endpoint a = new Endpoint(mode, size, channelA, channelB.socket().getLocalSocketAddress(), outA, inA);
+	final Endpoint b = new Endpoint(mode, size, channelB, channelA.socket().getLocalSocketAddress(), outB, inB);
+	Thread echo = new Thread() {
+		public void run() {
+		    try {
+			for(int i = 0; i < numRoundTrips; i++) {
+			    b.receive();
+			    b.send();
+			}
+		    }catch(IOException e) {
+			System.err.println("Echo thread: IOException: " + e);
+		    }
+		}
+	    };
+	echo.setDaemon(true);
+	echo.start();
+
+	long[] oneWay = new long[numRoundTrips];
+	for(int i = 0; i < numRoundTrips; i++) {
+	    long start = System.nanoTime();
+	    a.send();
+	    a.receive();
+	    oneWay[i] = (System.nanoTime() - start) / 2;
+	}
+	echo.join();
+	channelA.close();
+	channelB.close();
+	if(mode != UDP) {
+	    fileAB.delete();
+	    fileBA.delete();
+	}
+	return oneWay;
+    }
+
+    // One side of the ping pong. Sends on outbound and reads inbound, or uses the channel only for UDP
+    private static class Endpoint {
+	private int mode;
+	private DatagramChannel channel;
+	private SocketAddress peer;
+	private SharedMemoryRing outbound;
+	private SharedMemoryRing inbound;
+	private byte[] datagram;
+	private ByteBuffer sendBuffer;
+	private ByteBuffer receiveBuffer;
+	private ByteBuffer wakeUp;
+
+	Endpoint(int mode, int size, DatagramChannel channel, SocketAddress peer, SharedMemoryRing outbound, SharedMemoryRing inbound) {
+	    this.mode = mode;
+	    this.channel = channel;
+	    this.peer = peer;
+	    this.outbound = outbound;
+	    this.inbound = inbound;
+	    this.datagram = new byte[size];
+	    this.sendBuffer = ByteBuffer.wrap(this.datagram);
+	    this.receiveBuffer = ByteBuffer.allocate(EmulatorPacket.MAX_DATAGRAM_SIZE);
+	    this.wakeUp = ByteBuffer.allocate(0);
+	}
+
+	void send() throws IOException {
+	    if(this.mode == UDP) {
+		this.sendBuffer.clear();
+		this.channel.send(this.sendBuffer, this.peer);
+		return;
+	    }
+	    int result;
+	    while((result = this.outbound.offer(this.datagram, this.datagram.length)) == SharedMemoryRing.FULL) {
+		Thread.yield();
+	    }
+	    if(result == SharedMemoryRing.WRITTEN_WAKE_UP) {
+		this.wakeUp.clear();
+		this.channel.send(this.wakeUp, this.peer);
+	    }
+	}
+
+	void receive() throws IOException {
+	    if(this.mode == UDP) {
+		this.receiveBuffer.clear();
+		this.channel.receive(this.receiveBuffer);
+		return;
+	    }
+	    while(true) {
+		this.receiveBuffer.clear();
+		if(this.inbound.poll(this.receiveBuffer) != -1) {
+		    return;
+		}
+		if(this.mode == SHM_BUSY) {
+		    Thread.yield();
+		    continue;
+		}
+		this.inbound.prepareToWait();
+		if(!this.inbound.hasData()) {
+		    // sleep until the writer's wake-up datagram comes
+		    this.receiveBuffer.clear();
+		    this.channel.receive(this.receiveBuffer);
+		}
+		this.inbound.finishWait(System.currentTimeMillis());
+	    }
+	}
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <pre>
+ * A single producer, single consumer ring of datagrams in a memory mapped file, used to pass
+ * packets between two emulated nodes on the same machine without going through the UDP stack.
+ * Each direction between two nodes has its own file. The sending node's pacer thread is the only
+ * producer and the receiving node's main loop is the only consumer.
+ *
+ * Layout of the file. Counters are longs in native byte order, each on its own cache line:
+ *	HEAD	  -- bytes consumed so far. Written by the consumer
+ *	TAIL	  -- bytes produced so far. Written by the producer
+ *	WAITING	  -- 1 if the consumer is about to sleep and wants a wake-up after the next datagram
+ *	HEARTBEAT -- System.currentTimeMillis() when the consumer last woke up, 0 if it is detached
+ *	DATA	  -- CAPACITY bytes of records. A record is a 4 byte length followed by the datagram,
+ *		     padded to 8 bytes. A length of PADDING means skip to the start of DATA
+ *
+ * The producer only writes while the heartbeat is recent, so a ring whose consumer is gone or
+ * asleep for long is not used, and the sender falls back to UDP.
+ * </pre>
+ */
+public class SharedMemoryRing {
+
+    public static final int CAPACITY = 1 << 18;  // bytes
+    public static final long HEARTBEAT_MILLIS = 1000;
+
+    /**
+     * Returned by offer()
+     */
+    public static final int FULL = -1;
+    public static final int WRITTEN = 0;
+    public static final int WRITTEN_WAKE_UP = 1;
+
+    private static final int HEAD = 0;
+    private static final int TAIL = 64;
+    private static final int WAITING = 128;
+    private static final int HEARTBEAT = 136;
+    private static final int DATA = 192;
+    private static final int FILE_SIZE = DATA + CAPACITY;
+    private static final int PADDING = -1;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private File file;
+    private MappedByteBuffer map;
+    private ByteBuffer data;  // view of the map for copying records, only used by one side
+    private long position;    // TAIL for the producer, HEAD for the consumer
+
+    /**
+     * Map a ring file. The consumer creates it, so that producers do not leave files behind
+     * for neighbors that never read them
+     * @param file The ring file
+     * @param create True to create the file if it does not exist
+     * @throws FileNotFoundException If the file does not exist and create is false
+     * @throws IOException If the file cannot be created or mapped
+     */
+    public SharedMemoryRing(File file, boolean create) throws FileNotFoundException, IOException {
+	if(!create && !file.exists()) {
+	    throw new FileNotFoundException(file.toString());
+	}
+	this.file = file;
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	    if(raf.length() < FILE_SIZE) {
+		raf.setLength(FILE_SIZE);
+	    }
+	    this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+	}finally {
+	    // the mapping stays valid after the file is closed
+	    raf.close();
+	}
+	this.map.order(ByteOrder.nativeOrder());
+	this.data = this.map.duplicate().order(ByteOrder.nativeOrder());
+	this.position = (long)LONGS.getVolatile(this.map, TAIL);
+    }
+
+    /**
+     * @return The ring file
+     */
+    public File getFile() {
+	return this.file;
+    }
+
+    /******************** Producer ********************/
+
+    /**
+     * Tests if a consumer has woken up recently enough to be trusted to read the ring
+     * @param now System.currentTimeMillis()
+     * @return True if datagrams may be written
+     */
+    public boolean isConsumerAlive(long now) {
+	long heartbeat = (long)LONGS.getAcquire(this.map, HEARTBEAT);
+	return heartbeat != 0 && now - heartbeat < HEARTBEAT_MILLIS;
+    }
+
+    /**
+     * Write a datagram. Only called by the producer
+     * @param buf Buffer holding the datagram
+     * @param length The length of the datagram, starting at the beginning of buf
+     * @return FULL if there is no room, WRITTEN, or WRITTEN_WAKE_UP if the consumer has to be woken up
+     */
+    public int offer(byte[] buf, int length) {
+	long head = (long)LONGS.getAcquire(this.map, HEAD);
+	int recordSize = recordSize(length);
+	int index = (int)(this.position & (CAPACITY - 1));
+	int toEnd = CAPACITY - index;
+	int padding = (toEnd < recordSize) ? toEnd : 0;
+	if(this.position + padding + recordSize - head > CAPACITY) {
+	    return FULL;
+	}
+	if(padding > 0) {
+	    this.map.putInt(DATA + index, PADDING);
+	    this.position += padding;
+	    index = 0;
+	}
+	this.data.clear();
+	this.data.position(DATA + index + 4);
+	this.data.put(buf, 0, length);
+	this.map.putInt(DATA + index, length);
+	this.position += recordSize;
+	// volatile, so the write is seen before WAITING is read
+	LONGS.setVolatile(this.map, TAIL, this.position);
+	if((long)LONGS.getVolatile(this.map, WAITING) == 1 && LONGS.compareAndSet(this.map, WAITING, 1L, 0L)) {
+	    return WRITTEN_WAKE_UP;
+	}
+	return WRITTEN;
+    }
+
+    /******************** Consumer ********************/
+
+    /**
+     * Become the consumer of the ring, discarding anything left by an earlier one
+     * @param now System.currentTimeMillis()
+     */
+    public void attach(long now) {
+	this.position = (long)LONGS.getVolatile(this.map, TAIL);
+	LONGS.setRelease(this.map, HEAD, this.position);
+	LONGS.setVolatile(this.map, WAITING, 0L);
+	LONGS.setRelease(this.map, HEARTBEAT, now);
+    }
+
+    /**
+     * Stop being the consumer. The producer falls back to UDP
+     */
+    public void detach() {
+	LONGS.setRelease(this.map, HEARTBEAT, 0L);
+    }
+
+    /**
+     * Ask for a wake-up after the next datagram. Call hasData() afterwards, before going to sleep
+     */
+    public void prepareToWait() {
+	LONGS.setVolatile(this.map, WAITING, 1L);
+    }
+
+    /**
+     * Cancel the wake-up and record that the consumer is awake
+     * @param now System.currentTimeMillis()
+     */
+    public void finishWait(long now) {
+	LONGS.setVolatile(this.map, WAITING, 0L);
+	LONGS.setRelease(this.map, HEARTBEAT, now);
+    }
+
+    /**
+     * @return True if there is a datagram to read
+     */
+    public boolean hasData() {
+	return (long)LONGS.getVolatile(this.map, TAIL) != this.position;
+    }
+
+    /**
+     * Read a datagram. Only called by the consumer
+     * @param dst Where to put the datagram. Must have room for EmulatorPacket.MAX_DATAGRAM_SIZE bytes
+     * @return The length of the datagram, or -1 if there is none
+     */
+    public int poll(ByteBuffer dst) {
+	long tail = (long)LONGS.getAcquire(this.map, TAIL);
+	while(this.position < tail) {
+	    int index = (int)(this.position & (CAPACITY - 1));
+	    int length = this.map.getInt(DATA + index);
+	    if(length == PADDING) {
+		this.position += CAPACITY - index;
+		continue;
+	    }
+	    if(length < 0 || length > EmulatorPacket.MAX_DATAGRAM_SIZE || recordSize(length) > CAPACITY - index) {
+		// Corrupt ring. Drop everything in it
+		System.err.println("Corrupt shared memory ring: " + this.file);
+		this.position = tail;
+		break;
+	    }
+	    this.data.clear();
+	    this.data.position(DATA + index + 4);
+	    this.data.limit(DATA + index + 4 + length);
+	    dst.put(this.data);
+	    this.position += recordSize(length);
+	    LONGS.setRelease(this.map, HEAD, this.position);
+	    return length;
+	}
+	LONGS.setRelease(this.map, HEAD, this.position);
+	return -1;
+    }
+
+    /******************** Private Functions ********************/
+
+    private static int recordSize(int length) {
+	return (4 + length + 7) & ~7;
+    }
+}
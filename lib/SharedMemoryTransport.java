@@ -0,0 +1,241 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * <pre>
+ * Passes packets between emulated nodes on the same machine through SharedMemoryRings instead of UDP.
+ * A neighbor is on the same machine if the Trawler gave out the same IP address for it as for this node.
+ * The ring from port a to port b is the file fishnet-a-b.ring in /dev/shm, or in the temporary
+ * directory if there is no /dev/shm.
+ *
+ * The sending side is used by the pacer thread, which tries the ring before falling back to UDP.
+ * A ring is used only while its consumer is alive and has room, so neighbors that do not use
+ * shared memory keep getting UDP. Consumers create the rings, and a sender that does not find
+ * one looks again every SharedMemoryRing.HEARTBEAT_MILLIS. A consumer about to sleep asks to be
+ * woken up, and the pacer then follows the datagram with an empty UDP datagram, which wakes the
+ * consumer up like any other.
+ *
+ * The receiving side is used by the emulator's main loop. It attaches to a ring for every neighbor
+ * on the same machine and reads them round robin.
+ * </pre>
+ */
+public class SharedMemoryTransport {
+
+    /**
+     * Returned by send()
+     */
+    public static final int NOT_SENT = -1;
+    public static final int SENT = 0;
+    public static final int SENT_WAKE_UP = 1;
+
+    private File directory;
+    private InetAddress localAddress;
+    private int localPort;
+
+    // Receiving side, indexed by fish address of the neighbor. Only used by the main loop
+    private EmulatorARPData[] neighbors;  // the ARP cache attached to last
+    private SharedMemoryRing[] inbound;
+    private EmulatorARPData[] inboundFrom;
+    private int[] attached;               // fish addresses with an inbound ring
+    private int numAttached;
+    private int nextRing;                 // where poll() starts looking
+
+    // Statistics
+    private volatile long numSent;       // written only by the pacer thread
+    private volatile long numFallbacks;  // written only by the pacer thread
+    private long numReceived;
+
+    /**
+     * Create a new transport
+     * @param localAddress The IP address of this node, as the Trawler sees it
+     * @param localPort The UDP port of this node
+     */
+    public SharedMemoryTransport(InetAddress localAddress, int localPort) {
+	File shm = new File("/dev/shm");
+	this.directory = shm.isDirectory() ? shm : new File(System.getProperty("java.io.tmpdir"));
+	this.localAddress = localAddress;
+	this.localPort = localPort;
+	this.inbound = new SharedMemoryRing[Packet.MAX_ADDRESS + 1];
+	this.inboundFrom = new EmulatorARPData[Packet.MAX_ADDRESS + 1];
+	this.attached = new int[Packet.MAX_ADDRESS + 1];
+	this.numAttached = 0;
+	this.nextRing = 0;
+    }
+
+    /**
+     * Try to send a datagram through shared memory. Only called by the pacer thread
+     * @param packet The datagram
+     * @param dest The neighbor to send it to
+     * @return NOT_SENT if it has to go by UDP, SENT, or SENT_WAKE_UP if the neighbor has to be woken up
+     */
+    public int send(PacketBuffer packet, EmulatorARPData dest) {
+	long now = System.currentTimeMillis();
+	SharedMemoryRing ring = this.getOutbound(dest, now);
+	if(ring == null || !ring.isConsumerAlive(now)) {
+	    return NOT_SENT;
+	}
+	int result = ring.offer(packet.getData(), packet.getLength());
+	if(result == SharedMemoryRing.FULL) {
+	    this.numFallbacks++;
+	    return NOT_SENT;
+	}
+	this.numSent++;
+	return (result == SharedMemoryRing.WRITTEN_WAKE_UP) ? SENT_WAKE_UP : SENT;
+    }
+
+    /**
+     * Attach to rings from neighbors that are new in the ARP cache, detach from those that are gone,
+     * cancel wake-ups and record that this node is awake. Called by the main loop each time it wakes up
+     * @param neighbors A snapshot of the ARP cache
+     */
+    public void finishWait(EmulatorARPData[] neighbors) {
+	long now = System.currentTimeMillis();
+	if(neighbors != this.neighbors) {
+	    this.attach(neighbors, now);
+	}
+	for(int i = 0; i < this.numAttached; i++) {
+	    this.inbound[this.attached[i]].finishWait(now);
+	}
+    }
+
+    /**
+     * Ask every ring for a wake-up, then check that they are all still empty
+     * @return True if the main loop may sleep, false if there is data to read
+     */
+    public boolean prepareToWait() {
+	for(int i = 0; i < this.numAttached; i++) {
+	    this.inbound[this.attached[i]].prepareToWait();
+	}
+	for(int i = 0; i < this.numAttached; i++) {
+	    if(this.inbound[this.attached[i]].hasData()) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Read the next datagram from any ring
+     * @param pool The pool to take a buffer from
+     * @return A buffer holding the datagram, as if received from the neighbor by UDP, or null if all rings are empty
+     */
+    public PacketBuffer poll(PacketBufferPool pool) {
+	for(int n = 0; n < this.numAttached; n++) {
+	    if(this.nextRing >= this.numAttached) {
+		this.nextRing = 0;
+	    }
+	    int fishAddr = this.attached[this.nextRing++];
+	    SharedMemoryRing ring = this.inbound[fishAddr];
+	    if(!ring.hasData()) {
+		continue;
+	    }
+	    PacketBuffer packet = pool.acquire();
+	    if(ring.poll(packet.getReceiveBuffer()) < 0) {
+		packet.release();
+		continue;
+	    }
+	    EmulatorARPData from = this.inboundFrom[fishAddr];
+	    packet.setReceived(from.getIPAddress(), from.getPort());
+	    this.numReceived++;
+	    return packet;
+	}
+	return null;
+    }
+
+    /**
+     * Detach from every ring and remove the files, so neighbors go back to UDP
+     */
+    public void close() {
+	for(int i = 0; i < this.numAttached; i++) {
+	    SharedMemoryRing ring = this.inbound[this.attached[i]];
+	    ring.detach();
+	    ring.getFile().delete();
+	}
+	this.numAttached = 0;
+    }
+
+    /**
+     * @return The number of datagrams sent through shared memory
+     */
+    public long getNumSent() {
+	return this.numSent;
+    }
+
+    /**
+     * @return The number of datagrams that went by UDP because a ring was full
+     */
+    public long getNumFallbacks() {
+	return this.numFallbacks;
+    }
+
+    /**
+     * @return The number of datagrams received through shared memory
+     */
+    public long getNumReceived() {
+	return this.numReceived;
+    }
+
+    /******************** Private Functions ********************/
+
+    // Returns the ring to the neighbor, or null if it is not on this machine or has no ring yet.
+    // The result is kept in the ARP data, so the file system is not searched for every packet
+    private SharedMemoryRing getOutbound(EmulatorARPData dest, long now) {
+	if(now < dest.getSharedMemoryRecheckTime()) {
+	    return dest.getSharedMemoryRing();
+	}
+	if(!dest.getIPAddress().equals(this.localAddress)) {
+	    dest.setSharedMemoryRing(null, Long.MAX_VALUE);
+	    return null;
+	}
+	SharedMemoryRing ring = this.open(this.localPort, dest.getPort(), false);
+	dest.setSharedMemoryRing(ring, (ring != null) ? Long.MAX_VALUE : now + SharedMemoryRing.HEARTBEAT_MILLIS);
+	return ring;
+    }
+
+    private void attach(EmulatorARPData[] neighbors, long now) {
+	this.neighbors = neighbors;
+	for(int i = 0; i < neighbors.length; i++) {
+	    EmulatorARPData from = neighbors[i];
+	    if(from != null && !from.getIPAddress().equals(this.localAddress)) {
+		from = null;
+	    }
+	    EmulatorARPData current = this.inboundFrom[i];
+	    if(current != null && from != null && current.getPort() == from.getPort()) {
+		continue;
+	    }
+	    if(current != null) {
+		this.inbound[i].detach();
+		this.inbound[i] = null;
+		this.inboundFrom[i] = null;
+	    }
+	    if(from != null) {
+		SharedMemoryRing ring = this.open(from.getPort(), this.localPort, true);
+		if(ring != null) {
+		    ring.attach(now);
+		    this.inbound[i] = ring;
+		    this.inboundFrom[i] = from;
+		}
+	    }
+	}
+	this.numAttached = 0;
+	for(int i = 0; i < this.inbound.length; i++) {
+	    if(this.inbound[i] != null) {
+		this.attached[this.numAttached++] = i;
+	    }
+	}
+    }
+
+    private SharedMemoryRing open(int fromPort, int toPort, boolean create) {
+	File file = new File(this.directory, "fishnet-" + fromPort + "-" + toPort + ".ring");
+	try {
+	    return new SharedMemoryRing(file, create);
+	}catch(FileNotFoundException e) {
+	    // the neighbor does not use shared memory, or has not attached yet
+	}catch(IOException e) {
+	    System.err.println("Could not map shared memory ring " + file + ", using UDP. Exception: " + e);
+	}
+	return null;
+    }
+}
@@ -37,6 +37,22 @@ public class SimulationCommandsParser extends CommandsParser {
 	}
     }
 
+    // Give the command to every node
+    protected void traffic(String[] cmd) {
+	String msg = "";
+	for(int i = 0; i < cmd.length; i++) {
+	    msg += cmd[i] + " ";
+	}
+	msg = msg.substring(0, msg.length() - 1);
+	for(int i = 0; i < this.simulator.getNumNodes(); i++) {
+	    this.simulator.sendNodeMsg(i, msg);
+	}
+    }
+
+    protected NodeLog getLog() {
+	return this.simulator.getLog();
+    }
+
     protected void exit(String[] cmd) {
 	if(cmd[0].equals("exit")) {
 	    simulator.stop();
@@ -12,8 +12,8 @@ import java.lang.reflect.Method;
 public class Simulator extends Manager {
 
     public static final int MAX_NODES_TO_SIMULATE = Packet.MAX_ADDRESS - 1;
-    private long now;  // simulated time in microseconds
-    private double timescale;
+    private VirtualClock virtualClock;  // simulated time
+    private MonotonicClock realClock;   // for waiting on user input
     private Node[] nodes;
     private SimulationCommandsParser topoFileParser;
     private IOThread ioThread;
@@ -26,15 +26,14 @@ public class Simulator extends Manager {
      * @throws FileNotFoundException If the given topology file cannot be found
      */
     public Simulator(int numNodes, String topoFile) throws IllegalArgumentException, FileNotFoundException {
-	super(0);
+	super(new VirtualClock());
 	super.setParser(new SimulationCommandsParser(this));
 	if(numNodes <= 0 || numNodes > MAX_NODES_TO_SIMULATE) {
 	    throw new IllegalArgumentException("Invalid number of nodes given to simulate. Nodes given: " + numNodes);
 	}
 
-	this.now = 0;
-
-	this.timescale = 1.0;
+	this.virtualClock = (VirtualClock)this.clock;
+	this.realClock = new MonotonicClock();
 
 	this.nodes = new Node[numNodes];
 	for(int i = 0; i < numNodes; i++) {
@@ -43,9 +42,8 @@ public class Simulator extends Manager {
 
 	this.topoFileParser = new SimulationCommandsParser(this);
 
-	long deferTill = this.topoFileParser.parseFile(topoFile, this.now);
+	this.loadCommands(topoFile, this.topoFileParser, true);
 
-	this.addEvent(deferTill, "parseRestOfTopoFile", this, null, null);
 	this.ioThread = new IOThread();
 	this.ioThread.start();
     }
@@ -59,48 +57,50 @@ public class Simulator extends Manager {
 	    this.nodes[i].start();
 	}
 
-	this.now = 1;
+	this.virtualClock.set(1);
 
 	Event nextEvent;
 	long waitTime; // time in microseconds
 	long deferParsingTill = 0;
 	while(true) {
 	    long deltaTime = 0;
-	    deferParsingTill = this.readFishFile(deferParsingTill);
+	    deferParsingTill = this.runDueCommands();
 
 	    nextEvent = null;
 	    waitTime = -1;  // wait indefinitely
+	    long nextTime = deferParsingTill;  // whichever of the next event and the next command comes first
 	    if(!this.sortedEvents.isEmpty()) {
 		nextEvent = this.sortedEvents.getNextEvent();
-		deltaTime = nextEvent.timeToOccur() - this.now;
+		if(nextTime == -1 || nextEvent.timeToOccur() < nextTime) {
+		    nextTime = nextEvent.timeToOccur();
+		}
+	    }
+	    if(nextTime >= 0) {
+		deltaTime = nextTime - this.nowMicros();
 
 		waitTime = 0; // Don't wait for user input. If delta time > 0 then will get reset below
-
-	    }else if(deferParsingTill >= 0) {
-		deltaTime = deferParsingTill - this.now;
-		waitTime = 0;
 	    }
 
-	    if(deltaTime > 0 && this.timescale > 0) {
-		waitTime = (long)(((double)deltaTime) / this.timescale);
+	    if(deltaTime > 0 && this.virtualClock.getTimescale() > 0) {
+		waitTime = this.virtualClock.toRealNanos(deltaTime) / 1000;
 	    }
 
 
-	    long beforeInputTime = Utility.fishTime();
+	    long beforeInputTime = this.realClock.micros();
 	    String userInput = this.getUserInput(waitTime);
 
 	    // Process user input if there is any
 	    if(userInput != null) {
 		// Increment now
-		this.now += (long)((Utility.fishTime() - beforeInputTime) * this.timescale);
+		this.virtualClock.advance((long)((this.realClock.micros() - beforeInputTime) * this.virtualClock.getTimescale()));
 
-		this.parser.parseLine(userInput, this.now);
+		this.parser.parseLine(userInput, this.nowMicros());
 	    }else {
 		// Have waited appropriate amount of real time, so can fast-forward now
-		this.now = Math.max(this.now, deltaTime + this.now);
+		this.virtualClock.advance(deltaTime);
 
 		// Run all pending events
-		while((nextEvent != null) && (nextEvent.timeToOccur() <= this.now)) {
+		while((nextEvent != null) && (nextEvent.timeToOccur() <= this.nowMicros())) {
 		    this.sortedEvents.removeNextEvent();
 		    try {
 			nextEvent.callback().invoke();
@@ -143,14 +143,6 @@ public class Simulator extends Manager {
 	return true;
     }
 
-    /**
-     * Retrieve current time in milliseconds
-     * @return Current time in milliseconds
-     */
-    public long now() {
-	return this.now / 1000;
-    }
-
     /**
      * Adds a timer to be fired at time t
      * @param nodeAddr Addr of node that is registering this timer
@@ -166,6 +158,13 @@ public class Simulator extends Manager {
 
     }
 
+    /**
+     * @return The number of nodes simulated. Their addresses are 0 to this number - 1
+     */
+    public int getNumNodes() {
+	return this.nodes.length;
+    }
+
     /**
      * Sends the msg to the the specified node
      * @param nodeAddr Address of the node to whom the message should be sent
@@ -185,15 +184,7 @@ public class Simulator extends Manager {
      * @param timescale The amount to scale real time by
      */
     public void setTimescale(double timescale) {
-	this.timescale = timescale;
-    }
-
-    /**
-     * Parses rest of topology file. Has public accesibility since used as a callback
-     */
-    public void parseRestOfTopoFile() {
-	long deferTill = this.topoFileParser.parseRemainder(this.now);
-	this.addEvent(deferTill, "parseRestOfTopoFile", this, null, null);
+	this.virtualClock.setTimescale(timescale);
     }
 
     /******************** Private Functions ********************/
@@ -213,7 +204,7 @@ public class Simulator extends Manager {
 	/*
          * long timeToDeliver = edge.schedulePkt(srcAddr, pkt.length, this.now);
          */
-        long timeToDeliver = edge.schedulePkt(this,srcAddr, pkt.length, this.now);
+        long timeToDeliver = edge.schedulePkt(this,srcAddr, pkt.length, this.nowMicros());
 	if(timeToDeliver == -1) {
 	    return;  // pkt dropped
 	}
@@ -228,16 +219,11 @@ public class Simulator extends Manager {
 	    return null;
 	}
 	timeout = Math.max(timeout, 0);
-	long endTime = (this.now() * 1000) + timeout;
-	try {
-	    // Test for condition in while loop in case of spurious wakeup
-	    while(this.ioThread.isEmpty() && Utility.fishTime() < endTime) {
-		synchronized(this.ioThread) {
-		    this.ioThread.wait(timeout / 1000);
-		}
-	    }
-	 }catch(InterruptedException e) {
-	    // Do nothing. This should never happen, even if it does no harm done
+	// timeout is in real time, so wait on the real clock
+	long endTime = this.realClock.micros() + timeout;
+	// Test for condition in while loop in case of spurious wakeup
+	while(this.ioThread.isEmpty() && this.realClock.micros() < endTime) {
+	    this.ioThread.awaitInput(endTime, this.realClock);
 	}
 	return this.ioThread.readLine();
     }
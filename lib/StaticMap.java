@@ -0,0 +1,272 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+
+/**
+ * <pre>
+ * A fixed map of an emulation: the IP address and UDP port of every node and the options of every edge.
+ * Emulated nodes started with "java Fishnet emulate-static" read their own port and their whole
+ * neighbor table from it in one go, instead of each registering with the Trawler in turn, so
+ * large runs start up in parallel. The map cannot change while the nodes run.
+ *
+ * Map file format. One entry per line, with the same spacing rules as the topology file:
+ *	[// | #] <comment>
+ *	node <fishAddr> <ip address> <udp port>
+ *	edge a b lossRate <double> delay <long> bw <int> bt <long>
+ *	dilation <k>  -- optional time dilation, as given by the Trawler
+ *
+ * Usage: java StaticMap <num nodes> <ip address> <first udp port> [topo file] [dilation=<k>]
+ *
+ *        Prints the map of nodes 0 to num nodes - 1, all at ip address, on consecutive UDP ports.
+ *        The edges are those of the topo file in place before its first time command.
+ *        By default all nodes are neighbors.
+ * </pre>
+ */
+public class StaticMap {
+
+    private InetAddress[] ipAddresses;  // indexed by fish address. Null if there is no such node
+    private int[] ports;
+    private ArrayList edges;
+    private double dilation;
+
+    /**
+     * Create an empty map
+     */
+    public StaticMap() {
+	this.ipAddresses = new InetAddress[Packet.MAX_ADDRESS + 1];
+	this.ports = new int[Packet.MAX_ADDRESS + 1];
+	this.edges = new ArrayList();
+	this.dilation = 1.0;
+    }
+
+    /**
+     * Read a map file
+     * @param filename The name of the map file
+     * @return The map
+     * @throws FileNotFoundException If the map file cannot be opened
+     * @throws IOException If the map file cannot be read
+     * @throws IllegalArgumentException If a line of the map file is not valid
+     */
+    public static StaticMap load(String filename) throws FileNotFoundException, IOException, IllegalArgumentException {
+	StaticMap map = new StaticMap();
+	BufferedReader reader = new BufferedReader(new FileReader(filename));
+	try {
+	    String line;
+	    while((line = reader.readLine()) != null) {
+		map.parseLine(line);
+	    }
+	}finally {
+	    reader.close();
+	}
+	return map;
+    }
+
+    /**
+     * Add a node
+     * @param fishAddr Fishnet address of the node
+     * @param ipAddress IP address of the machine the node runs on
+     * @param port UDP port the node uses to talk to its neighbors
+     * @throws IllegalArgumentException If the address or port is not valid
+     */
+    public void addNode(int fishAddr, InetAddress ipAddress, int port) throws IllegalArgumentException {
+	if(!Packet.validAddress(fishAddr) || fishAddr == Packet.BROADCAST_ADDRESS) {
+	    throw new IllegalArgumentException("Invalid fish address: " + fishAddr);
+	}
+	if(port < 1024 || port > 0xffff) {
+	    throw new IllegalArgumentException("Invalid port for node " + fishAddr + ": " + port);
+	}
+	this.ipAddresses[fishAddr] = ipAddress;
+	this.ports[fishAddr] = port;
+    }
+
+    /**
+     * Add an edge
+     * @param a Fishnet address of one end
+     * @param b Fishnet address of the other end
+     * @param options Options of the edge
+     */
+    public void addEdge(int a, int b, EdgeOptions options) {
+	this.edges.add(new Edge(a, b, options));
+    }
+
+    /**
+     * Set the time dilation the nodes run with
+     * @param dilation How many real seconds make up one second of emulated time
+     */
+    public void setDilation(double dilation) {
+	this.dilation = dilation;
+    }
+
+    /**
+     * @return How many real seconds make up one second of emulated time
+     */
+    public double getDilation() {
+	return this.dilation;
+    }
+
+    /**
+     * Check if the map has a node
+     * @param fishAddr Fishnet address of the node
+     * @return True if the map has the node
+     */
+    public boolean hasNode(int fishAddr) {
+	return Packet.validAddress(fishAddr) && this.ipAddresses[fishAddr] != null;
+    }
+
+    /**
+     * @param fishAddr Fishnet address of a node in the map
+     * @return The IP address of the machine the node runs on
+     */
+    public InetAddress getIPAddress(int fishAddr) {
+	return this.ipAddresses[fishAddr];
+    }
+
+    /**
+     * @param fishAddr Fishnet address of a node in the map
+     * @return The UDP port the node uses
+     */
+    public int getPort(int fishAddr) {
+	return this.ports[fishAddr];
+    }
+
+    /**
+     * Put all the neighbors of a node into its ARP cache
+     * @param fishAddr Fishnet address of the node
+     * @param arp The node's ARP cache
+     * @return The number of neighbors
+     */
+    public int loadNeighbors(int fishAddr, ARPTable arp) {
+	int count = 0;
+	for(int i = 0; i < this.edges.size(); i++) {
+	    Edge e = (Edge)this.edges.get(i);
+	    int neighbor;
+	    if(e.getNodeA() == fishAddr) {
+		neighbor = e.getNodeB();
+	    }else if(e.getNodeB() == fishAddr) {
+		neighbor = e.getNodeA();
+	    }else {
+		continue;
+	    }
+	    if(neighbor == fishAddr || !this.hasNode(neighbor)) {
+		continue;
+	    }
+	    arp.put(neighbor, new EmulatorARPData(this.ipAddresses[neighbor], this.ports[neighbor], e.getOptions()));
+	    count++;
+	}
+	return count;
+    }
+
+    /**
+     * Write the map in map file format
+     * @param out Where to write
+     */
+    public void write(PrintStream out) {
+	out.println("# fishnet static map");
+	if(this.dilation != 1.0) {
+	    out.println("dilation " + String.valueOf(this.dilation));
+	}
+	for(int i = 0; i <= Packet.MAX_ADDRESS; i++) {
+	    if(this.ipAddresses[i] != null) {
+		out.println("node " + i + " " + this.ipAddresses[i].getHostAddress() + " " + this.ports[i]);
+	    }
+	}
+	for(int i = 0; i < this.edges.size(); i++) {
+	    Edge e = (Edge)this.edges.get(i);
+	    EdgeOptions options = e.getOptions();
+	    out.println("edge " + e.getNodeA() + " " + e.getNodeB() +
+			" lossRate " + String.valueOf(options.getLossRate()) +
+			" delay " + String.valueOf(options.getDelay()) +
+			" bw " + String.valueOf(options.getBW()) +
+			" bt " + String.valueOf(options.getBT()));
+	}
+    }
+
+    /**
+     * Generate a map from a topology file and print it
+     */
+    public static void main(String[] args) {
+	if(args.length < 3 || args.length > 5) {
+	    System.err.println("Usage: java StaticMap <num nodes> <ip address> <first udp port> [topo file] [dilation=<k>]");
+	    return;
+	}
+	try {
+	    int numNodes = Integer.parseInt(args[0]);
+	    InetAddress ipAddress = InetAddress.getByName(args[1]);
+	    int firstPort = Integer.parseInt(args[2]);
+	    String topofile = null;
+	    StaticMap map = new StaticMap();
+	    for(int i = 3; i < args.length; i++) {
+		if(args[i].startsWith("dilation=")) {
+		    map.setDilation(Double.parseDouble(args[i].substring("dilation=".length())));
+		}else {
+		    topofile = args[i];
+		}
+	    }
+	    if(numNodes <= 0 || numNodes >= Packet.BROADCAST_ADDRESS) {
+		throw new IllegalArgumentException("Invalid number of nodes: " + numNodes);
+	    }
+
+	    // the topology in place before the first time command
+	    Topology topology = Topology.GetInstance(topofile == null);
+	    if(topofile != null && new StaticMapCommandsParser().parseFile(topofile, 0) != -1) {
+		System.err.println("StaticMap: ignoring the commands after the first time command in " + topofile);
+	    }
+	    for(int a = 0; a < numNodes; a++) {
+		map.addNode(a, ipAddress, firstPort + a);
+		for(int b = a + 1; b < numNodes; b++) {
+		    Edge e = topology.getLiveEdge(a, b);
+		    if(e != null) {
+			map.addEdge(a, b, e.getOptions());
+		    }
+		}
+	    }
+	    map.write(System.out);
+	}catch(UnknownHostException e) {
+	    System.err.println("Unknown IP address: " + args[1]);
+	}catch(FileNotFoundException e) {
+	    System.err.println("Incorrect topo file name given. Exception: " + e);
+	}catch(IllegalArgumentException e) {
+	    // NumberFormatException is an IllegalArgumentException
+	    System.err.println("Illegal arguments given to StaticMap. Exception: " + e);
+	}
+    }
+
+    /******************** Private Functions ********************/
+
+    private void parseLine(String line) throws IllegalArgumentException {
+	if(line.equals("") || line.startsWith("//") || line.startsWith("#")) {
+	    return;
+	}
+	String[] args = line.split(" ");
+	try {
+	    if(args[0].equals("node") && args.length == 4) {
+		this.addNode(Integer.parseInt(args[1]), InetAddress.getByName(args[2]), Integer.parseInt(args[3]));
+		return;
+	    }
+	    if(args[0].equals("edge") && args.length == 11 &&
+	       args[3].equals("lossRate") && args[5].equals("delay") && args[7].equals("bw") && args[9].equals("bt")) {
+		EdgeOptions options = new EdgeOptions();
+		options.setLossRate(Double.parseDouble(args[4]));
+		options.setDelay(Long.parseLong(args[6]));
+		options.setBW(Integer.parseInt(args[8]));
+		options.setBT(Long.parseLong(args[10]));
+		this.addEdge(Integer.parseInt(args[1]), Integer.parseInt(args[2]), options);
+		return;
+	    }
+	    if(args[0].equals("dilation") && args.length == 2) {
+		this.setDilation(Double.parseDouble(args[1]));
+		return;
+	    }
+	}catch(UnknownHostException e) {
+	    throw new IllegalArgumentException("Unknown IP address in map line: " + line);
+	}catch(NumberFormatException e) {
+	    // falls through to the error below
+	}
+	throw new IllegalArgumentException("Invalid map line: " + line);
+    }
+}
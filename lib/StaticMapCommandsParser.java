@@ -0,0 +1,26 @@
+/**
+ * <pre>
+ * Parser used by StaticMap to read a topology file.
+ * Edges and failures are applied to the Topology. Nothing else is of interest to a static map,
+ * and parsing stops at the first time command, since a static map cannot change over time
+ * </pre>
+ */
+public class StaticMapCommandsParser extends CommandsParser {
+
+    /**
+     * Create a new parser
+     */
+    public StaticMapCommandsParser() {
+	super();
+    }
+
+    // A static map has nothing to stop
+    protected void exit(String[] cmd) {
+    }
+
+    // A static map has no nodes to give commands to
+    protected void parseNodeCmd(String[] cmd) {
+	System.err.println("StaticMap: ignoring node command: ");
+	this.printStrArray(cmd, System.err);
+    }
+}
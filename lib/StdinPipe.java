@@ -0,0 +1,51 @@
+import java.lang.Thread;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.io.InputStream;
+import java.io.IOException;
+
+/**
+ * <pre>
+ * Standard input cannot be registered with a Selector, so this thread copies everything typed
+ * into a Pipe whose source end can be. It is the only work done outside the selector thread.
+ * </pre>
+ */
+public class StdinPipe extends Thread {
+
+    private InputStream in;
+    private Pipe pipe;
+
+    /**
+     * Create a new pipe from standard input
+     * @throws IOException If the pipe cannot be opened
+     */
+    public StdinPipe() throws IOException {
+	this.in = System.in;
+	this.pipe = Pipe.open();
+	this.setDaemon(true);
+    }
+
+    /**
+     * @return The end of the pipe to register with a Selector
+     */
+    public Pipe.SourceChannel source() {
+	return this.pipe.source();
+    }
+
+    public void run() {
+	byte[] buf = new byte[4096];
+	ByteBuffer wrapped = ByteBuffer.wrap(buf);
+	try {
+	    int count;
+	    while((count = this.in.read(buf)) >= 0) {
+		wrapped.clear();
+		wrapped.limit(count);
+		while(wrapped.hasRemaining()) {
+		    this.pipe.sink().write(wrapped);
+		}
+	    }
+	}catch(IOException e) {
+	    System.err.println("Exception while waiting for user input. Exception: " + e);
+	}
+    }
+}
@@ -1,16 +1,18 @@
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.ListIterator;
 
 /**
  * <pre>
  * Topology class keeps track of connections between nodes.
+ * Edges are kept in a hash table keyed by the pair of nodes, and in a list of edges for each node,
+ * so finding an edge takes constant time and finding a node's neighbors takes time in its degree.
  * This is a Singleton object
  * </pre>
  */
 public class Topology {
 
-    private ArrayList edges;
+    private HashMap edges;      // Long key of the pair of nodes -> Edge
+    private HashMap adjacency;  // Integer node -> ArrayList of its Edges
     private HashMap failedNodes;
     private boolean allToAll;
     private static Topology topology = null;
@@ -51,6 +53,36 @@ public class Topology {
 	return e;
     }
 
+    /**
+     * Returns the nodes that share a live edge with the given node
+     * @param a Int specifying a node
+     * @return The neighbors of a. Null if the topology is all to all, where every node is a neighbor
+     */
+    public int[] getLiveNeighbors(int a) {
+	if(this.allToAll) {
+	    return null;
+	}
+	ArrayList list = (ArrayList)this.adjacency.get(Integer.valueOf(a));
+	if(list == null || !this.isNodeAlive(a)) {
+	    return new int[0];
+	}
+	int[] neighbors = new int[list.size()];
+	int count = 0;
+	for(int i = 0; i < list.size(); i++) {
+	    Edge e = (Edge)list.get(i);
+	    int b = (e.getNodeA() == a) ? e.getNodeB() : e.getNodeA();
+	    if(e.isLive() && this.isNodeAlive(b)) {
+		neighbors[count++] = b;
+	    }
+	}
+	if(count < neighbors.length) {
+	    int[] trimmed = new int[count];
+	    System.arraycopy(neighbors, 0, trimmed, 0, count);
+	    neighbors = trimmed;
+	}
+	return neighbors;
+    }
+
     /**
      * Returns true if the given node is alive, else return false
      * @param node Int specifying node
@@ -80,7 +112,11 @@ public class Topology {
             e.setOptions(options);
 	}else {
 	    e = new Edge(a, b, options);
-	    edges.add(e);
+	    this.edges.put(edgeKey(a, b), e);
+	    this.addAdjacency(a, e);
+	    if(a != b) {
+		this.addAdjacency(b, e);
+	    }
 	}
     }
 
@@ -124,19 +160,16 @@ public class Topology {
     //********** Private Functions **********
 
     private Topology(boolean allToAll) {
-	this.edges = new ArrayList();
+	this.edges = new HashMap();
+	this.adjacency = new HashMap();
 	this.failedNodes = new HashMap();
 	this.allToAll = allToAll;
     }
 
     private Edge getEdge(int a, int b) {
-	ListIterator iter = this.edges.listIterator();
-	Edge e;
-	while(iter.hasNext()) {
-	    e = (Edge)iter.next();
-	    if (e.isEdge(a, b)) {
-		return e;
-	    }
+	Edge e = (Edge)this.edges.get(edgeKey(a, b));
+	if(e != null) {
+	    return e;
 	}
 	if(this.allToAll) {
 	    // if no edge exists create one
@@ -147,6 +180,21 @@ public class Topology {
 	return null;
     }
 
+    private void addAdjacency(int node, Edge e) {
+	Integer key = Integer.valueOf(node);
+	ArrayList list = (ArrayList)this.adjacency.get(key);
+	if(list == null) {
+	    list = new ArrayList();
+	    this.adjacency.put(key, list);
+	}
+	list.add(e);
+    }
+
+    // edges are undirected, so the key does not depend on the order of a and b
+    private static Long edgeKey(int a, int b) {
+	return Long.valueOf(((long)Math.min(a, b) << 32) | (Math.max(a, b) & 0xffffffffL));
+    }
+
     private boolean changeEdge(int a, int b, boolean state) {
 	Edge e = this.getEdge(a, b);
 	if(e != null) {
@@ -1,12 +1,16 @@
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.io.IOException;
-import java.io.PrintWriter;
 import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.lang.NumberFormatException;
 import java.lang.Integer;
@@ -20,18 +24,45 @@ import java.lang.Integer;
  * The Trawler replies with the fishnet address that the emulated node should use, as well as the current 
  * neighbor list for that node as <fishnetAddress ipAddress udpPort> pairs.
  * The trawler updates this list as it changes.
+ * All connections are handled on one thread around a Selector, so a slow node does not hold up the
+ * others. A node is removed, and its neighbors told, as soon as its connection closes.
+ * Nodes are indexed by fish address, free addresses by a bitset and UDP ports in use by a hash table,
+ * and neighbors are found from the topology, so a node joining or leaving only touches its neighbors.
+ * An EmulatorHost runs many nodes behind one UDP port. It sends "host <udpPort> <numNodes>" instead of
+ * the port, gets back all the addresses on one line, and every later command starts with "to <fishAddr>".
+ * A node that ends its handshake with " binary" is sent binary messages instead of command lines after
+ * the reply. See TrawlerNodeARPCommands.
+ *
+ * With time dilation k, the addresses are followed by "dilation <k>", and every node then runs its clock,
+ * timers and links at 1/k real speed. A link of bandwidth bw then only needs bw/k real bytes per second,
+ * so links faster than the machine can carry can be emulated. Time commands in the topo file are in
+ * dilated time as well.
+ *
+ * The whole topo file is read at start up. Commands after a time command are put in a queue of events
+ * and applied when they are due, whether or not any node is connecting. Each one is logged with how late
+ * it was applied. Absolute times count from when the Trawler started.
  *
- * Usage: java Trawler <port to listen on> [topo file]
+ * Usage: java Trawler <port to listen on> [topo file] [dilation=<k>]
  *       
  *        Topo file is the topology file. It is an optional argument. By default all nodes will be neighbors.
+ *        Dilation is optional. By default nodes run in real time.
  * </pre>   
  */
 public class Trawler {
 
     private static Trawler trawler = null;
-    private ServerSocket socket;
-    private HashMap emulatedNodes;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private EmulatedNode[] emulatedNodes;  // indexed by fish address
+    private BitSet usedFishAddrs;
+    private HashMap usedPorts;             // InetSocketAddress -> Integer number of nodes using it
+    private ArrayList failedConnections;  // connections whose writes failed, to be removed
+    private ArrayList batchingConnections; // binary connections with records not sent yet
     private TrawlerCommandsParser parser;
+    private SortedEventQueue sortedEvents;  // commands from the topo file that are not due yet
+    private long startTime;                 // when the topo file was read, in microseconds
+    private Clock clock;
+    private double dilation;  // real seconds per second of emulated time
 
     /**
      * Static method to get an instance of trawler. 
@@ -110,15 +141,14 @@ public class Trawler {
 
     /**
      * <pre>          
-     * Wait for a node to connect, then:
-     *	find out if any nodes have left while we were waiting
-     *		(and if so, update their neighbors so they stop sending them packets)
-     *	find a free fishnet Address to assign to the new node, and send it to them
-     *		(by writing to the node's TCP socket)
-     *	find out which UDP port they are listening to
-     *		(by reading from the node's TCP socket)
-     *	tell the node about all its neighbors' IP addresses and port #'s
-     *	tell all their neighbors with their IP address and port #
+     * Wait for something to happen, then:
+     *	accept new connections
+     *	when a node sends the UDP port it is listening to (by writing to the node's TCP socket):
+     *		find a free fishnet Address to assign to the new node, and send it to them
+     *		tell the node about all its neighbors' IP addresses and port #'s
+     *		tell all their neighbors with their IP address and port #
+     *	when a node's connection closes, update its neighbors so they stop sending it packets
+     *	apply the topo file commands that are due
      *	loop
      * </pre>   
      * @param topofile Name of the topology filename. If it is null then all nodes are neighbors by default
@@ -127,69 +157,88 @@ public class Trawler {
      */
     public void start(String topofile) throws FileNotFoundException, Exception {
 	
-	long deferParsingTill = -1;
-
 	if(topofile == null) {
 	    Topology.GetInstance(true);
 	}else {
-	    deferParsingTill = this.parser.parseFile(topofile, Utility.fishTime());
+	    this.loadTopoFile(topofile);
 	}
 	
 	System.out.println("Trawler awaiting fish...");
-	Socket nodeSocket;
-	PrintWriter out;
-	while((nodeSocket = this.socket.accept()) != null) {
+	while(true) {
 	    try {
-		this.checkNodesQuit();
-		
-		long now = Utility.fishTime();
-		if(deferParsingTill > -1 && deferParsingTill < now) {
-		    // Need to complete parsing topology file
-		    deferParsingTill = this.parser.parseRemainder(now);
-		}
-		
-		BufferedReader in = new BufferedReader( new InputStreamReader( nodeSocket.getInputStream() ));
-		out = new PrintWriter(nodeSocket.getOutputStream(), true);
-		
-		InetAddress ipAddress = nodeSocket.getInetAddress();
-		int port = Integer.parseInt(in.readLine());
-		
-		if(port < 1024 || this.portConflict(ipAddress, port)) {
-		    System.err.println("Trawler: Illegal port: " + port);
-		    out.println(Packet.BROADCAST_ADDRESS);
-		    out.close();
-		    nodeSocket.close();
+		long waitTime = this.waitTime();
+		if(waitTime < 0) {
+		    this.selector.select();
+		}else if(waitTime == 0) {
+		    this.selector.selectNow();
 		}else {
-		    // find a fishnet address to assign to the new node
-		    int fishAddr = this.freeFishAddr();
-		    
-		    if(fishAddr == -1) {
-			System.err.println("Trawler: out of addresses");
-			out.println(Packet.BROADCAST_ADDRESS);
-			out.close();
-			nodeSocket.close();		    
-		    }else {
-			//Disable Nagle
-			nodeSocket.setTcpNoDelay(true);
-
-			System.out.println("Got port " + port + ": assigning addr: " + fishAddr);
-			out.println(fishAddr);
-			this.emulatedNodes.put(new Integer(fishAddr), 
-					       new EmulatedNode(nodeSocket, out, fishAddr, ipAddress, port));
-			this.updateNeighbors(fishAddr);
+		    // the clock runs 1/dilation as fast as real time. Round up so as not to wake up early
+		    this.selector.select((long)Math.ceil(waitTime * this.dilation / 1000));
+		}
+
+		this.runDueCommands();
+
+		Iterator iter = this.selector.selectedKeys().iterator();
+		while(iter.hasNext()) {
+		    SelectionKey key = (SelectionKey)iter.next();
+		    iter.remove();
+		    if(!key.isValid()) {
+			continue;
+		    }
+		    if(key.isAcceptable()) {
+			this.acceptConnection();
+			continue;
+		    }
+		    TrawlerConnection connection = (TrawlerConnection)key.attachment();
+		    if(key.isWritable()) {
+			connection.flush();
+		    }
+		    if(key.isValid() && key.isReadable()) {
+			this.readConnection(connection);
 		    }
 		}
-	    }catch(NumberFormatException e) {
-		System.err.println("Msg received from node is not a port number. Socket: " + nodeSocket);
+		this.removeFailedConnections();
 	    }catch(IOException e) {
 		System.err.println("IOException occured while trying to creade new node. Exception: " + e);
 	    }catch(Exception e) {
 		System.err.println("Exception occured while trying to creade new node. Exception Stack Trace: ");
 		e.printStackTrace();		
+	    }finally {
+		this.endBatches();
 	    }
 	}	    
     }
 
+    /**
+     * Apply a command from the topo file that was put off till a time command, and log how late it is
+     * @param line The command
+     * @param dueTime When the command was due, in microseconds
+     */
+    public void applyCommand(String line, Long dueTime) {
+	long now = this.clock.micros();
+	System.out.println("Trawler: applying \"" + line + "\" at " + ((now - this.startTime) / 1000) + " ms, " +
+			   (now - dueTime.longValue()) + " usec after it was due");
+	this.parser.parseLine(line, now);
+    }
+
+    /**
+     * Called when a binary connection gets its first record since its last message. The records
+     * are sent as one message once the Trawler is done with the event it is handling
+     * @param connection The connection
+     */
+    public void batchStarted(TrawlerConnection connection) {
+	this.batchingConnections.add(connection);
+    }
+
+    /**
+     * Called when a write to a node fails. The connection is already closed. Its nodes are removed
+     * once the Trawler is done with the command it is working on, since that may be going through the nodes
+     * @param connection The connection that failed
+     */
+    public void connectionFailed(TrawlerConnection connection) {
+	this.failedConnections.add(connection);
+    }
+
 
     /**
      * An emulated node has quit so notify its neighbors
@@ -198,15 +247,14 @@ public class Trawler {
     public void remove(EmulatedNode dyingNode) {
 	System.err.println("Removing node " + dyingNode.getFishAddr());
 	try {
-	    Iterator iter = this.emulatedNodes.values().iterator();
-	    while(iter.hasNext()) {
-		EmulatedNode node = (EmulatedNode)iter.next();
-		if(node.getFishAddr() == dyingNode.getFishAddr()) {
-		    iter.remove();
-		}else { 
-		    removeNeighbors(dyingNode, node);
-		}
+	    int fishAddr = dyingNode.getFishAddr();
+	    if(this.emulatedNodes[fishAddr] != dyingNode) {
+		return;
 	    }
+	    this.emulatedNodes[fishAddr] = null;
+	    this.usedFishAddrs.clear(fishAddr);
+	    this.releasePort(dyingNode.getIPAddress(), dyingNode.getPort());
+	    this.removeAsNeighbor(dyingNode);
 	}catch(Exception e) {
 	    System.err.println("Exception occured while to remove emulated node: " + dyingNode.getFishAddr() + 
 			       " Exception: " + e);
@@ -223,10 +271,12 @@ public class Trawler {
     
 
     private void removeAsNeighbor(EmulatedNode dyingNode) {
-	Iterator iter = this.emulatedNodes.values().iterator();
-	while(iter.hasNext()) {
-	    EmulatedNode node = (EmulatedNode)iter.next();
-	    removeNeighbors(dyingNode, node);
+	int[] neighbors = this.getNeighborAddrs(dyingNode.getFishAddr());
+	for(int i = 0; i < neighbors.length; i++) {
+	    EmulatedNode node = this.getEmulatedNode(neighbors[i]);
+	    if(node != null) {
+		removeNeighbors(dyingNode, node);
+	    }
 	}
     }
 
@@ -241,11 +291,11 @@ public class Trawler {
     private void updateNeighbors(int fishAddr) {
 	EmulatedNode startingNode = this.getEmulatedNode(fishAddr);
 	if(startingNode != null) {
-	    Iterator iter = this.emulatedNodes.values().iterator();
-	    while(iter.hasNext()) {
-		EmulatedNode node = (EmulatedNode)iter.next();
+	    int[] neighbors = this.getNeighborAddrs(fishAddr);
+	    for(int i = 0; i < neighbors.length; i++) {
+		EmulatedNode node = this.getEmulatedNode(neighbors[i]);
 		
-		if( node.getFishAddr() != fishAddr  && 
+		if( node != null && node.getFishAddr() != fishAddr  && 
 		    (Topology.GetInstance().getLiveEdge(node.getFishAddr(), startingNode.getFishAddr()) != null) &&
 		    node.isAlive() ) {
 		    
@@ -257,59 +307,294 @@ public class Trawler {
     }
 
     
-    private void checkNodesQuit() {
+    // Reads the whole topo file. Commands before the first time command are applied now, the rest are
+    // queued for their time. An absolute time is counted from now, when the Trawler starts, and a
+    // relative time from the time command before it
+    private void loadTopoFile(String topofile) throws FileNotFoundException {
+	BufferedReader reader = new BufferedReader(new FileReader(topofile));
+	long now = this.clock.micros();
+	long dueTime = -1;
+	this.startTime = now;
 	try {
-	    Iterator iter = this.emulatedNodes.values().iterator();
-
-	    while(iter.hasNext()) {
-		EmulatedNode node = (EmulatedNode)iter.next();
-		if(!node.isAlive()) {
-		    node.close();
-		    iter.remove();
-		    this.removeAsNeighbor(node);
+	    String line;
+	    while((line = reader.readLine()) != null) {
+		long time = this.parser.getTime(line, now, (dueTime == -1) ? now : dueTime);
+		if(time != -1) {
+		    dueTime = time;
+		}else if(dueTime == -1) {
+		    this.parser.parseLine(line, now);
+		}else if(!this.parser.skipLine(line)) {
+		    this.addCommand(dueTime, line);
 		}
 	    }
+	    reader.close();
+	}catch(IOException e) {
+	    System.err.println("IOException occured while trying to read file: " + topofile + "\nException: " + e);
+	}
+    }
+
+    private void addCommand(long dueTime, String line) {
+	try {
+	    String[] paramTypes = {"java.lang.String", "java.lang.Long"};
+	    Object[] params = {line, Long.valueOf(dueTime)};
+	    Callback cb = new Callback(Callback.getMethod("applyCommand", this, paramTypes), this, params);
+	    this.sortedEvents.addEvent(new Event(dueTime, cb));
 	}catch(Exception e) {
-	    System.err.println("Exception occured while to remove emulated node. Exception: " + e);
+	    System.err.println("Failed to schedule command: " + line + "\nException: " + e);
 	}
-    } 
-    
+    }
 
-    // returns -1 if no fish address is available
-    private int freeFishAddr() {
-	for(int i = 0; i < Packet.BROADCAST_ADDRESS; i++) {
-	    if(!this.emulatedNodes.containsKey(new Integer(i))) {
-		return i;
+    // Returns the time (in microseconds) till the next topo file command is due. -1 if there is none
+    private long waitTime() {
+	Event nextEvent = this.sortedEvents.getNextEvent();
+	if(nextEvent == null) {
+	    return -1;
+	}
+	return Math.max(nextEvent.timeToOccur() - this.clock.micros(), 0);
+    }
+
+    private void runDueCommands() {
+	Event nextEvent;
+	while((nextEvent = this.sortedEvents.getNextEvent()) != null &&
+	      nextEvent.timeToOccur() <= this.clock.micros()) {
+
+	    this.sortedEvents.removeNextEvent();
+	    try {
+		nextEvent.callback().invoke();
+	    }catch(Exception e) {
+		System.err.println("Exception while trying to apply command in Trawler. Error: " + e);
+		e.printStackTrace();
 	    }
+	    // the command may have failed writes to nodes
+	    this.removeFailedConnections();
 	}
-	return -1;
     }
 
-    private boolean portConflict(InetAddress ipAddress, int port) {
-	Iterator iter = this.emulatedNodes.values().iterator();
-	while(iter.hasNext()) {
-	    EmulatedNode node = (EmulatedNode)iter.next();
-	    if(ipAddress.equals(node.getIPAddress()) && port == node.getPort()) {
-		return true;
+    private void acceptConnection() throws IOException {
+	SocketChannel channel;
+	while((channel = this.serverChannel.accept()) != null) {
+	    channel.configureBlocking(false);
+	    //Disable Nagle
+	    channel.socket().setTcpNoDelay(true);
+	    SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+	    key.attach(new TrawlerConnection(channel, key));
+	}
+    }
+
+    // Reads everything the node has sent. The first line is the handshake, nodes send nothing after that
+    private void readConnection(TrawlerConnection connection) {
+	int count;
+	try {
+	    count = connection.fill();
+	}catch(IOException e) {
+	    count = -1;
+	}
+	String line;
+	while(connection.isOpen() && (line = connection.readLine()) != null) {
+	    if(connection.isRegistered()) {
+		System.err.println("Trawler: ignoring message from node at " + connection.getAddress() + ": " + line);
+	    }else {
+		this.handshake(connection, line);
 	    }
 	}
-	return false;
+	if(count < 0) {
+	    this.disconnect(connection);
+	}
     }
 
-    // return null if addr not in hash
+    private void handshake(TrawlerConnection connection, String handshake) {
+	connection.setRegistered();
+	InetAddress ipAddress = connection.getAddress();
+	if(TrawlerNodeARPCommands.receiveBinary(handshake)) {
+	    connection.setBinary();
+	    handshake = TrawlerNodeARPCommands.receiveHandshake(handshake);
+	}
+	try {
+	    int[] hostData = TrawlerNodeARPCommands.receiveHost(handshake);
+	    if(hostData != null) {
+		this.acceptHost(connection, ipAddress, hostData[0], hostData[1]);
+		return;
+	    }
+	    int port = Integer.parseInt(handshake);
+
+	    if(port < 1024 || this.portConflict(ipAddress, port)) {
+		System.err.println("Trawler: Illegal port: " + port);
+		connection.send(String.valueOf(Packet.BROADCAST_ADDRESS));
+		connection.close();
+		return;
+	    }
+	    // find a fishnet address to assign to the new node
+	    int fishAddr = this.freeFishAddr();
+	    
+	    if(fishAddr == -1) {
+		System.err.println("Trawler: out of addresses");
+		connection.send(String.valueOf(Packet.BROADCAST_ADDRESS));
+		connection.close();
+		return;
+	    }
+	    System.out.println("Got port " + port + ": assigning addr: " + fishAddr);
+	    connection.send(TrawlerNodeARPCommands.assignAddresses(String.valueOf(fishAddr), this.dilation));
+	    this.addNode(new EmulatedNode(connection, fishAddr, ipAddress, port));
+	    this.updateNeighbors(fishAddr);
+	}catch(NumberFormatException e) {
+	    System.err.println("Msg received from node is not a port number. Connection: " + ipAddress + ":" + connection.getPort());
+	    connection.close();
+	}
+    }
+
+    // The node closed its connection, or a write to it failed. Remove every node using it
+    private void disconnect(TrawlerConnection connection) {
+	connection.close();
+	int[] fishAddrs = connection.getFishAddrs();
+	for(int i = 0; i < fishAddrs.length; i++) {
+	    EmulatedNode node = this.getEmulatedNode(fishAddrs[i]);
+	    if(node != null && node.getConnection() == connection) {
+		this.remove(node);
+	    }
+	}
+    }
+
+    private void endBatches() {
+	while(!this.batchingConnections.isEmpty()) {
+	    ArrayList batching = this.batchingConnections;
+	    this.batchingConnections = new ArrayList();
+	    for(int i = 0; i < batching.size(); i++) {
+		((TrawlerConnection)batching.get(i)).endBatch();
+	    }
+	    // removing the nodes of connections whose writes failed may start new batches
+	    this.removeFailedConnections();
+	}
+    }
+
+    private void removeFailedConnections() {
+	while(!this.failedConnections.isEmpty()) {
+	    this.disconnect((TrawlerConnection)this.failedConnections.remove(this.failedConnections.size() - 1));
+	}
+    }
+    
+
+    // Registers all the nodes of an EmulatorHost, which share one TCP socket and one UDP port
+    private void acceptHost(TrawlerConnection connection, InetAddress ipAddress, int port, int numNodes) {
+	int[] fishAddrs = null;
+	if(port >= 1024 && numNodes > 0 && !this.portConflict(ipAddress, port)) {
+	    fishAddrs = this.freeFishAddrs(numNodes);
+	}
+	if(fishAddrs == null) {
+	    System.err.println("Trawler: cannot host " + numNodes + " nodes on port: " + port);
+	    connection.send(String.valueOf(Packet.BROADCAST_ADDRESS));
+	    connection.close();
+	    return;
+	}
+
+	String reply = String.valueOf(fishAddrs[0]);
+	for(int i = 1; i < fishAddrs.length; i++) {
+	    reply += " " + String.valueOf(fishAddrs[i]);
+	}
+	System.out.println("Got host on port " + port + ": assigning addrs: " + reply);
+	connection.send(TrawlerNodeARPCommands.assignAddresses(reply, this.dilation));
+	// join the nodes one at a time, as if each had connected on its own
+	for(int i = 0; i < fishAddrs.length; i++) {
+	    this.addNode(new EmulatedNode(connection, fishAddrs[i], ipAddress, port, true));
+	    this.updateNeighbors(fishAddrs[i]);
+	}
+    }
+
+    private void addNode(EmulatedNode node) {
+	int fishAddr = node.getFishAddr();
+	this.emulatedNodes[fishAddr] = node;
+	this.usedFishAddrs.set(fishAddr);
+	node.getConnection().addFishAddr(fishAddr);
+	InetSocketAddress key = new InetSocketAddress(node.getIPAddress(), node.getPort());
+	Integer count = (Integer)this.usedPorts.get(key);
+	this.usedPorts.put(key, Integer.valueOf((count == null) ? 1 : count.intValue() + 1));
+    }
+
+    private void releasePort(InetAddress ipAddress, int port) {
+	InetSocketAddress key = new InetSocketAddress(ipAddress, port);
+	Integer count = (Integer)this.usedPorts.get(key);
+	if(count == null || count.intValue() <= 1) {
+	    this.usedPorts.remove(key);
+	}else {
+	    this.usedPorts.put(key, Integer.valueOf(count.intValue() - 1));
+	}
+    }
+
+    // Returns the addresses of the nodes that may be neighbors of fishAddr. With an all to all
+    // topology that is every node, otherwise only the nodes sharing a live edge with it
+    private int[] getNeighborAddrs(int fishAddr) {
+	int[] neighbors = Topology.GetInstance().getLiveNeighbors(fishAddr);
+	if(neighbors != null) {
+	    return neighbors;
+	}
+	neighbors = new int[this.usedFishAddrs.cardinality()];
+	int count = 0;
+	for(int i = this.usedFishAddrs.nextSetBit(0); i >= 0; i = this.usedFishAddrs.nextSetBit(i + 1)) {
+	    neighbors[count++] = i;
+	}
+	return neighbors;
+    }
+
+    // returns null if fewer than count fish addresses are available
+    private int[] freeFishAddrs(int count) {
+	int[] fishAddrs = new int[count];
+	int i = this.usedFishAddrs.nextClearBit(0);
+	for(int found = 0; found < count; found++) {
+	    if(i >= Packet.BROADCAST_ADDRESS) {
+		return null;
+	    }
+	    fishAddrs[found] = i;
+	    i = this.usedFishAddrs.nextClearBit(i + 1);
+	}
+	return fishAddrs;
+    }
+
+    // returns -1 if no fish address is available
+    private int freeFishAddr() {
+	int i = this.usedFishAddrs.nextClearBit(0);
+	return (i < Packet.BROADCAST_ADDRESS) ? i : -1;
+    }
+
+    private boolean portConflict(InetAddress ipAddress, int port) {
+	return this.usedPorts.containsKey(new InetSocketAddress(ipAddress, port));
+    }
+
+    // return null if no node has addr
     private EmulatedNode getEmulatedNode(int fishAddr) {
-	Integer addr = new Integer(fishAddr);
-	EmulatedNode node = null;
-	if(this.emulatedNodes.containsKey(addr)) {
-	    node = (EmulatedNode)this.emulatedNodes.get(addr);
+	if(fishAddr < 0 || fishAddr >= this.emulatedNodes.length) {
+	    return null;
 	}
-	return node;
+	return this.emulatedNodes[fishAddr];
     }
 
     private Trawler(int port) throws IOException {
-	this.socket = new ServerSocket(port);
-	this.emulatedNodes = new HashMap();
+	this.selector = Selector.open();
+	this.serverChannel = ServerSocketChannel.open();
+	this.serverChannel.socket().bind(new InetSocketAddress(port));
+	this.serverChannel.configureBlocking(false);
+	this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+	this.emulatedNodes = new EmulatedNode[Packet.BROADCAST_ADDRESS];
+	this.usedFishAddrs = new BitSet(Packet.BROADCAST_ADDRESS);
+	this.usedPorts = new HashMap();
+	this.failedConnections = new ArrayList();
+	this.batchingConnections = new ArrayList();
 	this.parser = new TrawlerCommandsParser();
+	this.sortedEvents = new SortedEventQueue();
+	this.clock = new MonotonicClock();
+	this.dilation = 1.0;
+    }
+
+    /**
+     * Sets the time dilation of the emulation. Only call this before start()
+     * @param dilation How many real seconds make up one second of emulated time. Must be > 0
+     * @throws IllegalArgumentException If dilation is not > 0
+     */
+    public void setDilation(double dilation) throws IllegalArgumentException {
+	if(!(dilation > 0)) {
+	    throw new IllegalArgumentException("Time dilation must be > 0. Got: " + dilation);
+	}
+	this.dilation = dilation;
+	Clock realClock = new MonotonicClock();
+	this.clock = (dilation == 1.0) ? realClock : new ScaledClock(realClock, 1 / dilation);
     }
 
     /**
@@ -325,27 +610,36 @@ public class Trawler {
 	try {
 	    int port = Integer.parseInt(args[0]);
 	    String topofile = null;
-	    
-	    if(args.length > 1) {
-		topofile = args[1];	  
+	    double dilation = 1.0;
+
+	    for(int i = 1; i < args.length; i++) {
+		if(args[i].startsWith("dilation=")) {
+		    dilation = Double.parseDouble(args[i].substring("dilation=".length()));
+		}else {
+		    topofile = args[i];
+		}
 	    }
 
 	    Trawler.GetInstance(port);
+	    Trawler.GetInstance().setDilation(dilation);
 	    Trawler.GetInstance().start(topofile);	    
 	}catch(FileNotFoundException e) {
 	    System.err.println("Incorrect topo file name given to Trawler. Exception: " + e);
 	}catch(IOException e) {
 	    System.err.println("Invalid port given to Trawler. Exception: " + e);	
 	}catch(NumberFormatException e) {
-	    System.err.println("First argument must be the port number, an integer. Exception: " + e);
+	    System.err.println("First argument must be the port number, an integer, and dilation a number. Exception: " + e);
+	}catch(IllegalArgumentException e) {
+	    System.err.println("Invalid time dilation given to Trawler. Exception: " + e);
 	}catch(Exception e) {
 	    System.err.println("Exception occured in Trawler!! Exception: " + e);
 	}
     }
 
     private static void usage() {
-	System.out.println("Usage: java Trawler <port to listen on> [topo file]\n\n" +        
+	System.out.println("Usage: java Trawler <port to listen on> [topo file] [dilation=<k>]\n\n" +        
 			   "Topo file is the topology file. It is an optional argument.\n" +
-			   "By default all nodes will be neighbors.");
+			   "By default all nodes will be neighbors.\n" +
+			   "Dilation makes every node run at 1/k real speed. By default nodes run in real time.");
     }
 }
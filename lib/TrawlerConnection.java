@@ -0,0 +1,262 @@
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.io.IOException;
+
+/**
+ * <pre>
+ * The Trawler's end of the TCP connection to an Emulator or an EmulatorHost.
+ * The channel is non-blocking and registered with the Trawler's Selector. Incoming lines are split
+ * by a ChannelLineReader. Outgoing lines are written right away if the socket has room, and kept
+ * otherwise until the Selector reports the socket writable, so a slow node never stalls the Trawler.
+ * A node that falls more than MAX_PENDING bytes behind is disconnected.
+ * A node that asked for the binary protocol is sent records instead of lines after the handshake.
+ * Records are gathered into a batch, which the Trawler sends as one message once it is done
+ * with the event it is handling.
+ * </pre>
+ */
+public class TrawlerConnection {
+
+    public static final int MAX_PENDING = 1 << 20;  // bytes
+    private static final int INITIAL_SIZE = 4096;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ChannelLineReader lines;
+    private ByteBuffer pending;   // bytes not written yet, kept ready for adding more
+    private boolean registered;   // true once the handshake has been answered
+    private boolean failed;       // true if a write failed
+    private int[] fishAddrs;      // fish addresses of the nodes using this connection
+    private boolean binary;       // true if the node asked for the binary protocol
+    private ByteBuffer batch;     // binary records not sent yet
+    private int numFishAddrs;
+
+    /**
+     * Create a new connection
+     * @param channel The accepted channel, already non-blocking
+     * @param key The key of channel with the Trawler's Selector
+     */
+    public TrawlerConnection(SocketChannel channel, SelectionKey key) {
+	this.channel = channel;
+	this.key = key;
+	this.lines = new ChannelLineReader(channel);
+	this.pending = ByteBuffer.allocate(INITIAL_SIZE);
+	this.registered = false;
+	this.failed = false;
+	this.fishAddrs = new int[1];
+	this.numFishAddrs = 0;
+	this.binary = false;
+	this.batch = null;
+    }
+
+    /**
+     * Read whatever the node has sent
+     * @return The number of bytes read, or -1 if the node closed the connection
+     * @throws IOException If the read fails
+     */
+    public int fill() throws IOException {
+	return this.lines.fill();
+    }
+
+    /**
+     * Get the next complete line received from the node
+     * @return The next line, or null if no complete line has been received
+     */
+    public String readLine() {
+	return this.lines.readLine();
+    }
+
+    /**
+     * Send a line to the node. Does nothing if the connection is closed
+     * @param line The line to send, without line terminator
+     */
+    public void send(String line) {
+	if(!this.isOpen()) {
+	    return;
+	}
+	byte[] bytes = Utility.stringToByteArray(line + "\n");
+	this.append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Add a binary record to the batch. Does nothing if the connection is closed
+     * @param record The record, as made by TrawlerNodeARPCommands
+     */
+    public void sendRecord(byte[] record) {
+	if(!this.isOpen()) {
+	    return;
+	}
+	if(this.batch == null) {
+	    this.batch = ByteBuffer.allocate(TrawlerNodeARPCommands.MAX_BINARY_MESSAGE);
+	    Trawler.GetInstance().batchStarted(this);
+	}else if(this.batch.remaining() < record.length) {
+	    this.sendBatch();
+	    this.batch = ByteBuffer.allocate(TrawlerNodeARPCommands.MAX_BINARY_MESSAGE);
+	}
+	this.batch.put(record);
+    }
+
+    /**
+     * Send the records added since the last call as one message
+     */
+    public void endBatch() {
+	if(this.batch != null) {
+	    this.sendBatch();
+	    this.batch = null;
+	}
+    }
+
+    /**
+     * Write as much of the pending output as the socket takes. Called when the Selector reports the socket writable
+     */
+    public void flush() {
+	if(!this.isOpen()) {
+	    return;
+	}
+	try {
+	    this.pending.flip();
+	    this.channel.write(this.pending);
+	    this.pending.compact();
+	    if(this.pending.position() > 0) {
+		this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	    }else {
+		this.key.interestOps(SelectionKey.OP_READ);
+	    }
+	}catch(IOException e) {
+	    System.err.println("Trawler: failed to write to node at " + this.getAddress() + ". Exception: " + e);
+	    this.fail();
+	}
+    }
+
+    /**
+     * Close the connection, after trying once more to write any pending output
+     */
+    public void close() {
+	if(!this.isOpen()) {
+	    return;
+	}
+	this.flush();
+	this.key.cancel();
+	try {
+	    this.channel.close();
+	}catch(IOException e) {
+	    System.err.println("Encountered IO Exception while trying to close connection to " + this.getAddress() +
+			       " Exception: " + e);
+	}
+    }
+
+    /**
+     * @return True until the connection is closed
+     */
+    public boolean isOpen() {
+	return this.channel.isOpen() && !this.failed;
+    }
+
+    /**
+     * @return True if the node asked for the binary protocol
+     */
+    public boolean isBinary() {
+	return this.binary;
+    }
+
+    /**
+     * Record that the node asked for the binary protocol
+     */
+    public void setBinary() {
+	this.binary = true;
+    }
+
+    /**
+     * @return True once the handshake has been answered
+     */
+    public boolean isRegistered() {
+	return this.registered;
+    }
+
+    /**
+     * Record that the handshake has been answered
+     */
+    public void setRegistered() {
+	this.registered = true;
+    }
+
+    /**
+     * Record that a node uses this connection
+     * @param fishAddr The fish address of the node
+     */
+    public void addFishAddr(int fishAddr) {
+	if(this.numFishAddrs == this.fishAddrs.length) {
+	    int[] bigger = new int[this.fishAddrs.length * 2];
+	    System.arraycopy(this.fishAddrs, 0, bigger, 0, this.numFishAddrs);
+	    this.fishAddrs = bigger;
+	}
+	this.fishAddrs[this.numFishAddrs++] = fishAddr;
+    }
+
+    /**
+     * @return The fish addresses of the nodes using this connection. An EmulatorHost's connection has several
+     */
+    public int[] getFishAddrs() {
+	int[] addrs = new int[this.numFishAddrs];
+	System.arraycopy(this.fishAddrs, 0, addrs, 0, this.numFishAddrs);
+	return addrs;
+    }
+
+    /**
+     * @return The IP address of the node's machine
+     */
+    public InetAddress getAddress() {
+	return this.channel.socket().getInetAddress();
+    }
+
+    /**
+     * @return The TCP port the node connected from
+     */
+    public int getPort() {
+	return this.channel.socket().getPort();
+    }
+
+    /******************** Private Functions ********************/
+
+    // Add bytes to the pending output and write what the socket takes
+    private void append(byte[] bytes, int offset, int length) {
+	if(this.pending.remaining() < length) {
+	    int needed = this.pending.position() + length;
+	    if(needed > MAX_PENDING) {
+		System.err.println("Trawler: node at " + this.getAddress() + " is not reading commands. Disconnecting");
+		this.fail();
+		return;
+	    }
+	    ByteBuffer bigger = ByteBuffer.allocate(Math.min(Math.max(needed, this.pending.capacity() * 2), MAX_PENDING));
+	    this.pending.flip();
+	    bigger.put(this.pending);
+	    this.pending = bigger;
+	}
+	this.pending.put(bytes, offset, length);
+	this.flush();
+    }
+
+    private void sendBatch() {
+	int length = this.batch.position();
+	byte[] message = new byte[2 + length];
+	message[0] = (byte)(length >> 8);
+	message[1] = (byte)length;
+	System.arraycopy(this.batch.array(), 0, message, 2, length);
+	if(this.isOpen()) {
+	    this.append(message, 0, message.length);
+	}
+    }
+
+    // Close the connection and have the Trawler remove its nodes once it is done with the current command
+    private void fail() {
+	this.failed = true;
+	this.key.cancel();
+	try {
+	    this.channel.close();
+	}catch(IOException e) {
+	    // already failing, nothing more to do
+	}
+	Trawler.GetInstance().connectionFailed(this);
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * <pre>
+ * Measures what a node joining costs the Trawler. Starts a Trawler in this process, then joins nodes one at
+ * a time over TCP, each with its own UDP port, as emulators do. Nothing listens on the UDP ports, since
+ * the Trawler never sends to them. The topology is one of:
+ *	ring -- every node has two neighbors, so a join should cost the same however many nodes there are
+ *	all  -- all to all, so every node is a neighbor and a join costs more the more nodes there are
+ *
+ * Usage: java TrawlerJoinBenchmark [nodes] [ring|all]
+ *
+ *        Defaults are 254 nodes, the most there are fish addresses for, in a ring. Prints how long joins
+ *        took on average in each quarter of the joins, the first quarter including JIT warm up, and how
+ *        many neighbor updates the nodes were sent per join. The Trawler's own output is discarded while nodes join.
+ * </pre>
+ */
+public class TrawlerJoinBenchmark {
+
+    private static final int FIRST_UDP_PORT = 20000;
+    private static final long DRAIN_TIME = 500;  // msec to wait for the last updates
+
+    public static void main(String[] args) {
+	if(args.length > 2) {
+	    System.err.println("Usage: java TrawlerJoinBenchmark [nodes] [ring|all]");
+	    return;
+	}
+	int numNodes = Packet.BROADCAST_ADDRESS - 1;
+	boolean ring = true;
+	try {
+	    if(args.length > 0) {
+		numNodes = Integer.parseInt(args[0]);
+	    }
+	}catch(NumberFormatException e) {
+	    System.err.println("Invalid argument. Exception: " + e);
+	    return;
+	}
+	if(args.length > 1) {
+	    if(args[1].equals("all")) {
+		ring = false;
+	    }else if(!args[1].equals("ring")) {
+		System.err.println("Topology must be ring or all");
+		return;
+	    }
+	}
+	if(numNodes < 4 || numNodes >= Packet.BROADCAST_ADDRESS) {
+	    System.err.println("Nodes must be between 4 and " + (Packet.BROADCAST_ADDRESS - 1));
+	    return;
+	}
+
+	PrintStream out = System.out;
+	try {
+	    final String topofile = ring ? writeRing(numNodes) : null;
+	    int port = freePort();
+	    Trawler.GetInstance(port);
+	    Thread trawlerThread = new Thread() {
+		    public void run() {
+			try {
+			    Trawler.GetInstance().start(topofile);
+			}catch(Exception e) {
+			    System.err.println("Trawler failed. Exception: " + e);
+			}
+		    }
+		};
+	    trawlerThread.setDaemon(true);
+	    System.setOut(new PrintStream(new OutputStream() {
+		    public void write(int b) {
+		    }
+		}));
+	    trawlerThread.start();
+
+	    long[] joinTimes = new long[numNodes];
+	    Socket[] sockets = new Socket[numNodes];
+	    BufferedReader[] readers = new BufferedReader[numNodes];
+	    long start = System.nanoTime();
+	    for(int i = 0; i < numNodes; i++) {
+		long joinStart = System.nanoTime();
+		// the Trawler listens from when it is created, so this does not wait for its thread
+		sockets[i] = new Socket(InetAddress.getLoopbackAddress(), port);
+		sockets[i].setTcpNoDelay(true);
+		readers[i] = new BufferedReader(new InputStreamReader(sockets[i].getInputStream()));
+		PrintWriter writer = new PrintWriter(sockets[i].getOutputStream(), true);
+		writer.println(String.valueOf(FIRST_UDP_PORT + i));
+		// the reply, the node's address, comes before the node's neighbors are told
+		if(readers[i].readLine() == null) {
+		    throw new IOException("Trawler closed the connection of node " + i);
+		}
+		joinTimes[i] = System.nanoTime() - joinStart;
+	    }
+	    long elapsed = System.nanoTime() - start;
+
+	    Thread.sleep(DRAIN_TIME);
+	    long numUpdates = 0;
+	    for(int i = 0; i < numNodes; i++) {
+		while(readers[i].ready() && readers[i].readLine() != null) {
+		    numUpdates++;
+		}
+	    }
+	    // the sockets are left open. Closing them would have the Trawler tell every node's neighbors
+	    if(topofile != null) {
+		new File(topofile).delete();
+	    }
+
+	    out.println(numNodes + " nodes joined, " + (ring ? "ring" : "all to all") + ": " +
+			String.format("%.1f", elapsed / 1e6) + " msec");
+	    StringBuffer buf = new StringBuffer("average join time by quarter of the joins, usec:");
+	    for(int q = 0; q < 4; q++) {
+		buf.append(" " + usec(average(joinTimes, q * numNodes / 4, (q + 1) * numNodes / 4)));
+	    }
+	    out.println(buf.toString());
+	    out.println("neighbor updates sent: " + numUpdates + ", " + String.format("%.1f", (double)numUpdates / numNodes) +
+			" per join");
+	}catch(IOException e) {
+	    System.err.println("IOException: " + e);
+	}catch(InterruptedException e) {
+	    System.err.println("Interrupted");
+	}finally {
+	    System.setOut(out);
+	}
+    }
+
+    /******************** Private Functions ********************/
+
+    private static long average(long[] times, int from, int to) {
+	long sum = 0;
+	for(int i = from; i < to; i++) {
+	    sum += times[i];
+	}
+	return sum / (to - from);
+    }
+
+    private static String usec(long nanos) {
+	return String.format("%.1f", nanos / 1000.0);
+    }
+
+    // Returns the name of a topo file linking nodes 0 to numNodes - 1 in a ring
+    private static String writeRing(int numNodes) throws IOException {
+	File file = File.createTempFile("fishnet-ring", ".topo");
+	file.deleteOnExit();
+	PrintWriter writer = new PrintWriter(new FileWriter(file));
+	for(int i = 0; i < numNodes; i++) {
+	    writer.println("edge " + i + " " + ((i + 1) % numNodes));
+	}
+	writer.close();
+	return file.getPath();
+    }
+
+    private static int freePort() throws IOException {
+	ServerSocket socket = new ServerSocket(0);
+	int port = socket.getLocalPort();
+	socket.close();
+	return port;
+    }
+}
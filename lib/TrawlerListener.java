@@ -0,0 +1,39 @@
+import java.lang.Thread;
+import java.io.BufferedReader;
+import java.io.IOException;
+
+/**
+ * <pre>
+ * In a seperate thread, this class applies the ARP updates sent by the Trawler to an emulated
+ * node's ARP cache as soon as they arrive, so that sending never has to check the Trawler socket
+ * </pre>
+ */
+public class TrawlerListener extends Thread {
+
+    private BufferedReader reader;
+    private ARPTable arp;
+
+    /**
+     * Create a new TrawlerListener
+     * @param reader Reads from the TCP socket connected to the Trawler
+     * @param arp The ARP cache to update
+     */
+    public TrawlerListener(BufferedReader reader, ARPTable arp) {
+	this.reader = reader;
+	this.arp = arp;
+	this.setDaemon(true);
+    }
+
+    public void run() {
+	try {
+	    String trawlerCmd;
+	    while((trawlerCmd = this.reader.readLine()) != null) {
+		this.arp.applyTrawlerCommand(trawlerCmd);
+	    }
+	    System.err.println("Trawler closed the connection. Is Trawler dead?..");
+	}catch(IOException e) {
+	    System.err.println("Encountered IOException while trying to refresh ARP cache. Is Trawler dead?..\n Stack trace: ");
+	    e.printStackTrace();
+	}
+    }
+}
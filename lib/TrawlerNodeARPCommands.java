@@ -1,13 +1,41 @@
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 /**
  * <pre>
  * Provides method to create and parse commands sent between the Trawler and the emulated node
+ *
+ * Commands are text lines, one per line, unless the node asks for the binary protocol by ending
+ * its handshake with " binary". The reply to the handshake is still a text line. After it the Trawler
+ * sends messages made of a 2 byte length followed by that many bytes of records. All the updates the
+ * Trawler makes while handling one event go to a node in as few messages as fit. A record is:
+ *	type (1 byte), fish address of the node it is for (1 byte), then for
+ *	BINARY_ADD:	neighbor (1 byte), IP address length (1 byte, 4 or 16), IP address, UDP port (2 bytes),
+ *			loss rate (8 byte double), delay (8 bytes), bandwidth (4 bytes), buffering time (8 bytes)
+ *	BINARY_REMOVE:	neighbor (1 byte)
+ *	BINARY_RESET:	nothing
+ * IP addresses are sent as raw bytes, so neither end has to look up any host name.
  * </pre>
  */
 public class TrawlerNodeARPCommands {
 
+    /**
+     * Types of binary records
+     */
+    public static final int BINARY_ADD = 1;
+    public static final int BINARY_REMOVE = 2;
+    public static final int BINARY_RESET = 3;
+
+    /**
+     * Largest number of bytes of records in one binary message
+     */
+    public static final int MAX_BINARY_MESSAGE = 0xffff;
+
+    private static final String BINARY = " binary";
+
     /**
      * Return a command to add a neighbor.
      * @param fishAddr Fishnet address of neighbor
@@ -16,8 +44,9 @@ public class TrawlerNodeARPCommands {
      * @return A command to add a neighbor.
      */
     public static String addNeighbor(int fishAddr, InetAddress ipAddress, int port) {
+	// the address literal, so the node does not have to resolve a name
 	String cmd = "add " + String.valueOf(fishAddr) + " ";
-	cmd += ipAddress.getHostName() + " " + String.valueOf(port);
+	cmd += ipAddress.getHostAddress() + " " + String.valueOf(port);
 	return cmd;
     }
 
@@ -60,6 +89,239 @@ public class TrawlerNodeARPCommands {
 	return new String("reset");
     }
 
+    /**
+     * Return the handshake line an EmulatorHost sends instead of a bare port
+     * @param port The UDP port shared by all the nodes of the host
+     * @param numNodes The number of nodes the host runs
+     * @return The handshake line
+     */
+    public static String host(int port, int numNodes) {
+	return new String("host " + String.valueOf(port) + " " + String.valueOf(numNodes));
+    }
+
+    /**
+     * Ask for the binary protocol in a handshake
+     * @param handshake A port or host handshake line
+     * @return The handshake line, asking for binary commands
+     */
+    public static String binary(String handshake) {
+	return new String(handshake + BINARY);
+    }
+
+    /**
+     * Check if a handshake asks for the binary protocol
+     * @param handshake The handshake line received
+     * @return True if the node wants binary commands
+     */
+    public static boolean receiveBinary(String handshake) {
+	return handshake.endsWith(BINARY);
+    }
+
+    /**
+     * Get a handshake without the request for the binary protocol
+     * @param handshake The handshake line received
+     * @return The handshake as a text mode node would send it
+     */
+    public static String receiveHandshake(String handshake) {
+	if(!receiveBinary(handshake)) {
+	    return handshake;
+	}
+	return handshake.substring(0, handshake.length() - BINARY.length());
+    }
+
+    /**
+     * Return a binary record to add a neighbor
+     * @param target Fishnet address of the node the record is for
+     * @param fishAddr Fishnet address of neighbor
+     * @param ipAddress IP Address of neighbor
+     * @param port Port the neighbor is using for communication with peers
+     * @param options Options of edge to this neighbor
+     * @return The record
+     */
+    public static byte[] addNeighborBinary(int target, int fishAddr, InetAddress ipAddress, int port, EdgeOptions options) {
+	byte[] ip = ipAddress.getAddress();
+	ByteBuffer buf = ByteBuffer.allocate(6 + ip.length + 28);
+	buf.put((byte)BINARY_ADD);
+	buf.put((byte)target);
+	buf.put((byte)fishAddr);
+	buf.put((byte)ip.length);
+	buf.put(ip);
+	buf.putShort((short)port);
+	buf.putDouble(options.getLossRate());
+	buf.putLong(options.getDelay());
+	buf.putInt(options.getBW());
+	buf.putLong(options.getBT());
+	return buf.array();
+    }
+
+    /**
+     * Return a binary record to remove a neighbor
+     * @param target Fishnet address of the node the record is for
+     * @param fishAddr Fishnet address of neighbor to remove
+     * @return The record
+     */
+    public static byte[] removeNeighborBinary(int target, int fishAddr) {
+	byte[] record = {(byte)BINARY_REMOVE, (byte)target, (byte)fishAddr};
+	return record;
+    }
+
+    /**
+     * Return a binary record to reset a node
+     * @param target Fishnet address of the node the record is for
+     * @return The record
+     */
+    public static byte[] resetBinary(int target) {
+	byte[] record = {(byte)BINARY_RESET, (byte)target};
+	return record;
+    }
+
+    /**
+     * Parse the next record of a binary message.
+     * @param message The message, positioned at the record. Its position is moved past the record
+     * @param data An ArrayList that will be populated with the data of the record.
+     *             data[0] = fishnet address of the node it is for. For BINARY_ADD and BINARY_REMOVE
+     *             data[1] = fishnet address of the neighbor. For BINARY_ADD data[2] = EmulatorARPData.
+     * @return The type of the record, or -1 if there are no more records or the rest of the message is not valid
+     */
+    public static int receiveBinaryCommand(ByteBuffer message, ArrayList data) {
+	if(!message.hasRemaining()) {
+	    return -1;
+	}
+	try {
+	    int type = message.get();
+	    data.add(Integer.valueOf(message.get() & 0xff));
+	    switch(type) {
+	    case BINARY_ADD:
+		data.add(Integer.valueOf(message.get() & 0xff));
+		int length = message.get() & 0xff;
+		if(length != 4 && length != 16) {
+		    System.err.println("Invalid IP address length in record from trawler: " + length);
+		    data.clear();
+		    return -1;
+		}
+		byte[] ip = new byte[length];
+		message.get(ip);
+		int port = message.getShort() & 0xffff;
+		EdgeOptions options = new EdgeOptions();
+		options.setLossRate(message.getDouble());
+		options.setDelay(message.getLong());
+		options.setBW(message.getInt());
+		options.setBT(message.getLong());
+		data.add(new EmulatorARPData(InetAddress.getByAddress(ip), port, options));
+		return type;
+	    case BINARY_REMOVE:
+		data.add(Integer.valueOf(message.get() & 0xff));
+		return type;
+	    case BINARY_RESET:
+		return type;
+	    }
+	    System.err.println("Unrecognized record from trawler. Type: " + type);
+	}catch(BufferUnderflowException e) {
+	    System.err.println("Truncated record from trawler");
+	}catch(UnknownHostException e) {
+	    System.err.println("Invalid IP address in record from trawler");
+	}
+	data.clear();
+	return -1;
+    }
+
+    /**
+     * Return the reply to a handshake. Emulated nodes are told the time dilation along with their
+     * addresses, so that they all keep time the same way
+     * @param fishAddrs The addresses assigned, separated by spaces
+     * @param dilation How many real seconds make up one second of emulated time
+     * @return The reply. Just the addresses if there is no time dilation
+     */
+    public static String assignAddresses(String fishAddrs, double dilation) {
+	if(dilation == 1.0) {
+	    return fishAddrs;
+	}
+	return new String(fishAddrs + " dilation " + String.valueOf(dilation));
+    }
+
+    /**
+     * Get the addresses out of the reply to a handshake
+     * @param reply The reply received
+     * @return The addresses assigned, separated by spaces
+     */
+    public static String receiveAddresses(String reply) {
+	int index = reply.indexOf(" dilation ");
+	if(index < 0) {
+	    return reply;
+	}
+	return reply.substring(0, index);
+    }
+
+    /**
+     * Get the time dilation out of the reply to a handshake
+     * @param reply The reply received
+     * @return How many real seconds make up one second of emulated time. 1 if not given
+     * @throws NumberFormatException If the dilation is not a number
+     */
+    public static double receiveDilation(String reply) throws NumberFormatException {
+	int index = reply.indexOf(" dilation ");
+	if(index < 0) {
+	    return 1.0;
+	}
+	return Double.parseDouble(reply.substring(index + " dilation ".length()));
+    }
+
+    /**
+     * Return a command for one of the nodes of an EmulatorHost
+     * @param fishAddr Fishnet address of the hosted node
+     * @param cmd The command for that node
+     * @return The command, addressed to the hosted node
+     */
+    public static String hostedCommand(int fishAddr, String cmd) {
+	return new String("to " + String.valueOf(fishAddr) + " " + cmd);
+    }
+
+    /**
+     * Parse the handshake line of an EmulatorHost
+     * @param cmd The line received
+     * @return {UDP port, number of nodes}, or null if this was not a host handshake
+     */
+    public static int[] receiveHost(String cmd) {
+	String[] args = cmd.split(" ");
+	if(args.length != 3 || !args[0].equals("host")) {
+	    return null;
+	}
+	try {
+	    int[] data = {Integer.parseInt(args[1]), Integer.parseInt(args[2])};
+	    return data;
+	}catch(Exception e) {
+	    // Do nothing. Will return null
+	}
+	return null;
+    }
+
+    /**
+     * Parse the address of a command for a hosted node
+     * @param cmd The command received
+     * @return The address of the hosted node. -1 if this was not a command for a hosted node
+     */
+    public static int receiveHostedAddress(String cmd) {
+	String[] args = cmd.split(" ", 3);
+	if(args.length != 3 || !args[0].equals("to")) {
+	    return -1;
+	}
+	try {
+	    return Integer.parseInt(args[1]);
+	}catch(Exception e) {
+	    //Do nothing. Will return -1
+	}
+	return -1;
+    }
+
+    /**
+     * Get the command for a hosted node without its address
+     * @param cmd A command for which receiveHostedAddress() returned an address
+     * @return The command for the hosted node
+     */
+    public static String receiveHostedCommand(String cmd) {
+	return cmd.split(" ", 3)[2];
+    }
+
     /**
      * Parse an addNeighbor command.
      * @param cmd The command received
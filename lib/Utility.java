@@ -44,4 +44,20 @@ public class Utility {
 	return null;
     }
 
+    /**
+     * Convert part of a byte[] to a string
+     * @param msg The byte[] holding the bytes to convert
+     * @param offset Index of the first byte to convert
+     * @param length The number of bytes to convert
+     * @return The converted String
+     */
+    public static String byteArrayToString(byte[] msg, int offset, int length) {
+	try {
+	    return new String(msg, offset, length, CHARSET);
+	}catch(UnsupportedEncodingException e) {
+	    System.err.println("Exception occured while converting byte array to string. Exception: " + e);
+	}
+	return null;
+    }
+
 }
@@ -0,0 +1,63 @@
+/**
+ * <pre>
+ * Simulated time. The clock only moves when the Simulator advances it.
+ * The timescale sets how much real time the Simulator waits for each unit of simulated time,
+ * giving the user a chance to type commands between events. A timescale of 0, the default, means never
+ * wait, so a simulation runs as fast as it can.
+ * </pre>
+ */
+public class VirtualClock implements Clock {
+
+    private long now;  // in microseconds
+    private double timescale;
+
+    /**
+     * Create a clock at time 0 with a timescale of 0
+     */
+    public VirtualClock() {
+	this.now = 0;
+	this.timescale = 0;
+    }
+
+    public long micros() {
+	return this.now;
+    }
+
+    public long toRealNanos(long durationMicros) {
+	if(this.timescale <= 0) {
+	    return 0;
+	}
+	return (long)(durationMicros * 1000 / this.timescale);
+    }
+
+    /**
+     * Set the current time. Time never moves backwards, so earlier times are ignored
+     * @param micros The new time in microseconds
+     */
+    public void set(long micros) {
+	this.now = Math.max(this.now, micros);
+    }
+
+    /**
+     * Move the clock forward
+     * @param durationMicros How far to move the clock, in microseconds. Negative values are ignored
+     */
+    public void advance(long durationMicros) {
+	this.set(this.now + durationMicros);
+    }
+
+    /**
+     * Sets the amount to scale real time by
+     * @param timescale Units of simulated time per unit of real time. 0 for never waiting
+     */
+    public void setTimescale(double timescale) {
+	this.timescale = timescale;
+    }
+
+    /**
+     * @return Units of simulated time per unit of real time
+     */
+    public double getTimescale() {
+	return this.timescale;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * <pre>
+ * Remembers which flooded packets a node has seen, so that it delivers and floods on each only once.
+ * A flooded packet is known by its source address and sequence number.
+ *
+ * For every source the cache keeps the highest sequence number seen and a WINDOW bit map of the sequence
+ * numbers just below it, so a lookup is a shift and a mask and the cache never grows. A packet newer than the
+ * highest slides the window up. A packet older than the window is taken for a duplicate, since a flood is over
+ * long before WINDOW newer packets from the same source come through.
+ *
+ * A source not heard from for FORGET_AFTER msec is forgotten, so that a node that restarts and numbers its
+ * packets from the beginning again is heard.
+ * </pre>
+ */
+public class FloodCache {
+
+    public static final int WINDOW = 64;              // sequence numbers per source, the bits of a long
+    public static final long FORGET_AFTER = 10000;    // msec
+
+    private static final int NUM_ADDRESSES = Packet.MAX_ADDRESS + 1;
+
+    private boolean[] known;     // indexed by source address
+    private int[] highest;       // highest sequence number seen
+    private long[] seen;         // bit i set if sequence number highest - i was seen
+    private long[] lastHeard;    // msec
+    private int[] suppressed;    // duplicates dropped, per source
+    private int numAccepted;
+    private int numSuppressed;
+
+    /**
+     * Create an empty cache
+     */
+    public FloodCache() {
+	this.known = new boolean[NUM_ADDRESSES];
+	this.highest = new int[NUM_ADDRESSES];
+	this.seen = new long[NUM_ADDRESSES];
+	this.lastHeard = new long[NUM_ADDRESSES];
+	this.suppressed = new int[NUM_ADDRESSES];
+	this.numAccepted = 0;
+	this.numSuppressed = 0;
+    }
+
+    /**
+     * Check if a flooded packet is new, and remember it
+     * @param src Source address of the packet
+     * @param seq Sequence number of the packet
+     * @param now The current time in msec
+     * @return True if the packet has not been seen before, false if it is a duplicate and should be dropped
+     */
+    public boolean accept(int src, int seq, long now) {
+	src &= Packet.MAX_ADDRESS;
+	if(!this.known[src] || now - this.lastHeard[src] > FORGET_AFTER) {
+	    this.known[src] = true;
+	    this.highest[src] = seq;
+	    this.seen[src] = 1;
+	    this.lastHeard[src] = now;
+	    this.numAccepted++;
+	    return true;
+	}
+	this.lastHeard[src] = now;
+
+	int age = this.highest[src] - seq;
+	if(age < 0) {
+	    // newer than any seen. Slide the window up
+	    this.seen[src] = (-age >= WINDOW) ? 1 : (this.seen[src] << -age) | 1;
+	    this.highest[src] = seq;
+	    this.numAccepted++;
+	    return true;
+	}
+	if(age < WINDOW && (this.seen[src] & (1L << age)) == 0) {
+	    this.seen[src] |= 1L << age;
+	    this.numAccepted++;
+	    return true;
+	}
+	this.suppressed[src]++;
+	this.numSuppressed++;
+	return false;
+    }
+
+    /**
+     * @return The number of packets accepted as new
+     */
+    public int getNumAccepted() {
+	return this.numAccepted;
+    }
+
+    /**
+     * @return The number of duplicates suppressed, from all sources
+     */
+    public int getNumSuppressed() {
+	return this.numSuppressed;
+    }
+
+    /**
+     * @param src A source address
+     * @return The number of duplicates suppressed from the source
+     */
+    public int getNumSuppressed(int src) {
+	return this.suppressed[src & Packet.MAX_ADDRESS];
+    }
+
+    /**
+     * @return String representation: the totals, then the sources duplicates were suppressed from
+     */
+    public String toString() {
+	StringBuffer buf = new StringBuffer("flooded packets: accepted " + this.numAccepted + " suppressed " + this.numSuppressed);
+	for(int i = 0; i < NUM_ADDRESSES; i++) {
+	    if(this.suppressed[i] != 0) {
+		buf.append(" " + i + ":" + this.suppressed[i]);
+	    }
+	}
+	return buf.toString();
+    }
+}
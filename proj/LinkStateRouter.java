@@ -0,0 +1,570 @@
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * <pre>
+ * Link state routing for a node.
+ *
+ * The node's NeighborDiscovery reports neighbors coming and going. HOLD_DOWN msec after a change, so that a
+ * burst of changes goes out together, the node floods a link state packet: a LINK_INFO_PKT to the broadcast
+ * address, carrying a CompactLinkState with its neighbors, with the node as source and the next of its
+ * sequence numbers. It is sent as a delta against the previous one when that is smaller, and in full at least
+ * every REFRESH_INTERVAL msec so nodes that missed a delta catch up. A new neighbor is sent every link state
+ * the node has, so it need not wait for refreshes.
+ *
+ * Every node keeps the newest full link state of each origin. A link state packet whose sequence number is not
+ * newer than the last one seen from its origin is dropped, otherwise it is stored and flooded on. Link states
+ * not refreshed for MAX_AGE msec are dropped, which also lets a restarted node start its sequence numbers over.
+ * A link is used only if both its ends list each other.
+ *
+ * Routes come from a shortest path tree rooted at the node. When a link state changes, only the links of its
+ * origin are compared:
+ *   - a tree link that got worse or went away invalidates the subtree below it. Those nodes are reset and
+ *     reached again from the nodes around them
+ *   - a link that got better or came up is tried as a shortcut
+ * and Dijkstra's algorithm runs from just those nodes, so a change far away touches few nodes.
+ * </pre>
+ */
+public class LinkStateRouter {
+
+    public static final long HOLD_DOWN = 10;              // msec
+    public static final long REFRESH_INTERVAL = 30000;    // msec
+    public static final long MAX_AGE = 3 * REFRESH_INTERVAL + 5000;  // msec
+    public static final long AGE_CHECK_INTERVAL = 5000;   // msec
+
+    private static final int INFINITY = Integer.MAX_VALUE;
+    private static final int NUM_ADDRESSES = Packet.MAX_ADDRESS + 1;
+
+    private Manager manager;
+    private Node node;
+    private int addr;
+    private Callback originateCallback;
+    private Callback ageCallback;
+
+    // This node's link state
+    private boolean[] neighbors;
+    private int seq;                     // sequence number of the last link state sent
+    private boolean originationPending;
+    private boolean fullPending;         // send the next one in full
+    private long lastFull;               // msec
+
+    // Link state database, indexed by origin
+    private CompactLinkState[] states;   // newest full link state, null if none
+    private int[] stateSeqs;             // the sequence number it came with
+    private long[] stateTimes;           // msec, when it came
+    private boolean[] heard;             // true if lastSeqs holds a sequence number
+    private int[] lastSeqs;              // newest sequence number seen, for dropping duplicates
+
+    // Shortest path tree, indexed by destination
+    private int[] dist;
+    private int[] parent;
+    private int[] firstHop;
+    private long[] heap;                 // (distance << 8) | address, stale entries are skipped
+    private int heapSize;
+    private boolean[] affected;
+    private int[] affectedRoots;
+    private int numAffectedRoots;
+    private int[] shortcuts;             // links that got better: tail, head and cost, one after the other
+    private int numShortcuts;
+
+    // Statistics
+    private int numSpfRuns;
+    private long numSpfNodes;            // nodes taken off the heap over all runs
+    private int numReceived;
+    private int numDuplicates;
+    private int numUnappliedDeltas;
+
+    /**
+     * Create a router for a node
+     * @param manager The manager that is managing Fishnet
+     * @param node The node to route for
+     */
+    public LinkStateRouter(Manager manager, Node node) {
+	this.manager = manager;
+	this.node = node;
+	this.addr = node.getAddr();
+
+	this.neighbors = new boolean[NUM_ADDRESSES];
+	this.states = new CompactLinkState[NUM_ADDRESSES];
+	this.stateSeqs = new int[NUM_ADDRESSES];
+	this.stateTimes = new long[NUM_ADDRESSES];
+	this.heard = new boolean[NUM_ADDRESSES];
+	this.lastSeqs = new int[NUM_ADDRESSES];
+
+	this.dist = new int[NUM_ADDRESSES];
+	this.parent = new int[NUM_ADDRESSES];
+	this.firstHop = new int[NUM_ADDRESSES];
+	Arrays.fill(this.dist, INFINITY);
+	Arrays.fill(this.parent, -1);
+	Arrays.fill(this.firstHop, -1);
+	this.heap = new long[4 * NUM_ADDRESSES];
+	this.heapSize = 0;
+	this.affected = new boolean[NUM_ADDRESSES];
+	this.affectedRoots = new int[2 * NUM_ADDRESSES];
+	this.numAffectedRoots = 0;
+	this.shortcuts = new int[3 * 2 * NUM_ADDRESSES];
+	this.numShortcuts = 0;
+
+	try {
+	    Method method = Callback.getMethod("originate", this, null);
+	    this.originateCallback = new Callback(method, this, null);
+	    method = Callback.getMethod("checkAge", this, null);
+	    this.ageCallback = new Callback(method, this, null);
+	}catch(Exception e) {
+	    // This should not happen
+	    this.node.logError("failed to initialize LinkStateRouter. Exception: " + e);
+	    System.exit(1);
+	}
+    }
+
+    /**
+     * Start routing. The node is the only one reachable until neighbors are found
+     */
+    public void start() {
+	// An emulated node that restarts should not reuse its old sequence numbers. Neighbors that still
+	// have a newer one send it back, see receiveLinkState()
+	this.seq = (int)(this.manager.now() / 1000);
+	this.originationPending = false;
+	this.fullPending = true;
+	this.lastFull = this.manager.now();
+	this.states[this.addr] = new CompactLinkState(new int[0]);
+	this.stateSeqs[this.addr] = this.seq;
+	this.stateTimes[this.addr] = this.manager.now();
+	this.dist[this.addr] = 0;
+	this.manager.addTimer(this.addr, AGE_CHECK_INTERVAL, this.ageCallback);
+    }
+
+    /**
+     * Called by NeighborDiscovery when a neighbor is found
+     * @param neighbor Address of the neighbor
+     */
+    public void neighborUp(int neighbor) {
+	this.neighbors[neighbor] = true;
+	this.scheduleOrigination();
+	this.sendDatabase(neighbor);
+    }
+
+    /**
+     * Called by NeighborDiscovery when a neighbor is lost
+     * @param neighbor Address of the neighbor
+     */
+    public void neighborDown(int neighbor) {
+	this.neighbors[neighbor] = false;
+	this.scheduleOrigination();
+    }
+
+    /**
+     * Flood this node's link state. Has public accesibility since used as a callback
+     */
+    public void originate() {
+	this.originationPending = false;
+	this.advertise(this.fullPending);
+    }
+
+    /**
+     * Drop link states that have not been refreshed, and refresh this node's own.
+     * Has public accesibility since used as a callback
+     */
+    public void checkAge() {
+	long now = this.manager.now();
+	for(int origin = 0; origin < NUM_ADDRESSES; origin++) {
+	    if(origin != this.addr && this.states[origin] != null && now - this.stateTimes[origin] > MAX_AGE) {
+		this.node.logDebug("link state of " + origin + " expired");
+		CompactLinkState old = this.states[origin];
+		this.states[origin] = null;
+		this.heard[origin] = false;
+		this.update(origin, old, null);
+	    }
+	}
+	if(now - this.lastFull >= REFRESH_INTERVAL) {
+	    this.advertise(true);
+	}
+	this.manager.addTimer(this.addr, AGE_CHECK_INTERVAL, this.ageCallback);
+    }
+
+    /**
+     * Called by the node when a link state packet arrives
+     * @param from The neighbor it came from
+     * @param packet The packet
+     */
+    public void receiveLinkState(int from, Packet packet) {
+	int origin = packet.getSrc();
+	int seq = packet.getSeq();
+	this.numReceived++;
+	if(origin == this.addr) {
+	    if(seq - this.seq > 0) {
+		// sent before this node restarted. Go past it, in full since nobody has the base of a delta
+		this.seq = seq;
+		this.fullPending = true;
+		this.scheduleOrigination();
+	    }
+	    return;
+	}
+	if(this.heard[origin] && seq - this.lastSeqs[origin] <= 0) {
+	    this.numDuplicates++;
+	    return;
+	}
+	CompactLinkState state = CompactLinkState.unpack(packet.getPayload());
+	if(state == null) {
+	    this.node.logError("Unable to unpack link state from " + origin + " received from " + from);
+	    return;
+	}
+	this.heard[origin] = true;
+	this.lastSeqs[origin] = seq;
+
+	if(packet.getTTL() > 1) {
+	    this.node.sendToNeighbor(Packet.BROADCAST_ADDRESS, new Packet(Packet.BROADCAST_ADDRESS, origin, packet.getTTL() - 1,
+									 Protocol.LINK_INFO_PKT, seq, packet.getPayload()));
+	}
+
+	if(state.isDelta()) {
+	    if(this.states[origin] == null || this.stateSeqs[origin] != state.getBaseSeq()) {
+		// missed the base. Keep the old link state until the next full one
+		this.numUnappliedDeltas++;
+		this.node.logDebug("cannot apply delta from " + origin + " to seq " + state.getBaseSeq());
+		return;
+	    }
+	    state = state.applyTo(this.states[origin]);
+	}
+	this.install(origin, state, seq);
+    }
+
+    /**
+     * Get the neighbor to send a packet for a destination to
+     * @param dest Address of the destination
+     * @return Address of the neighbor, or -1 if there is no route
+     */
+    public int getNextHop(int dest) {
+	if(!Packet.validAddress(dest) || dest == this.addr || this.dist[dest] == INFINITY) {
+	    return -1;
+	}
+	return this.firstHop[dest];
+    }
+
+    /**
+     * Get the cost of the route to a destination
+     * @param dest Address of the destination
+     * @return The sum of the link costs along the route, 0 for this node, or -1 if there is no route
+     */
+    public int getCost(int dest) {
+	if(!Packet.validAddress(dest) || dest == Packet.BROADCAST_ADDRESS || this.dist[dest] == INFINITY) {
+	    return -1;
+	}
+	return this.dist[dest];
+    }
+
+    /**
+     * Print the link state database
+     */
+    public void dumpLinkState() {
+	long now = this.manager.now();
+	this.node.logOutput("link states: received " + this.numReceived + " duplicates " + this.numDuplicates +
+			    " unapplied deltas " + this.numUnappliedDeltas);
+	for(int origin = 0; origin < NUM_ADDRESSES; origin++) {
+	    CompactLinkState state = this.states[origin];
+	    if(state == null) {
+		continue;
+	    }
+	    StringBuffer buf = new StringBuffer("  " + origin + " seq " + this.stateSeqs[origin] +
+						" age " + (now - this.stateTimes[origin]) + " msec:");
+	    int[] nbrs = state.getNeighbors();
+	    int[] costs = state.getCosts();
+	    for(int i = 0; i < nbrs.length; i++) {
+		buf.append(" " + nbrs[i]);
+		if(costs[i] != CompactLinkState.MIN_COST) {
+		    buf.append("(" + costs[i] + ")");
+		}
+	    }
+	    this.node.logOutput(buf.toString());
+	}
+    }
+
+    /**
+     * Print the routing table
+     */
+    public void dumpTable() {
+	int count = 0;
+	for(int dest = 0; dest < NUM_ADDRESSES; dest++) {
+	    if(dest != this.addr && this.dist[dest] != INFINITY) {
+		count++;
+	    }
+	}
+	this.node.logOutput("routing table: " + count + " destinations, " + this.numSpfRuns + " route updates, " +
+			    this.numSpfNodes + " nodes visited");
+	for(int dest = 0; dest < NUM_ADDRESSES; dest++) {
+	    if(dest != this.addr && this.dist[dest] != INFINITY) {
+		this.node.logOutput("  " + dest + " via " + this.firstHop[dest] + " cost " + this.dist[dest]);
+	    }
+	}
+    }
+
+    /******************** Private Functions ********************/
+
+    private void scheduleOrigination() {
+	if(!this.originationPending) {
+	    this.originationPending = true;
+	    this.manager.addTimer(this.addr, HOLD_DOWN, this.originateCallback);
+	}
+    }
+
+    private void advertise(boolean full) {
+	int count = 0;
+	for(int i = 0; i < NUM_ADDRESSES; i++) {
+	    if(this.neighbors[i]) {
+		count++;
+	    }
+	}
+	int[] list = new int[count];
+	count = 0;
+	for(int i = 0; i < NUM_ADDRESSES; i++) {
+	    if(this.neighbors[i]) {
+		list[count++] = i;
+	    }
+	}
+
+	CompactLinkState state;
+	try {
+	    state = new CompactLinkState(list);
+	}catch(IllegalArgumentException e) {
+	    this.node.logError("Cannot advertise link state. Exception: " + e);
+	    return;
+	}
+	CompactLinkState payload = full ? null : CompactLinkState.diff(this.stateSeqs[this.addr], this.states[this.addr], state);
+	if(payload == null) {
+	    payload = state;
+	    this.lastFull = this.manager.now();
+	    this.fullPending = false;
+	}
+	this.seq++;
+	this.node.sendToNeighbor(Packet.BROADCAST_ADDRESS, new Packet(Packet.BROADCAST_ADDRESS, this.addr, Packet.MAX_TTL,
+								     Protocol.LINK_INFO_PKT, this.seq, payload.pack()));
+	this.install(this.addr, state, this.seq);
+    }
+
+    // Send every link state held to a new neighbor, which floods on the ones it did not have
+    private void sendDatabase(int neighbor) {
+	for(int origin = 0; origin < NUM_ADDRESSES; origin++) {
+	    if(this.states[origin] != null) {
+		this.node.sendToNeighbor(neighbor, new Packet(Packet.BROADCAST_ADDRESS, origin, Packet.MAX_TTL, Protocol.LINK_INFO_PKT,
+							      this.stateSeqs[origin], this.states[origin].pack()));
+	    }
+	}
+    }
+
+    private void install(int origin, CompactLinkState state, int seq) {
+	CompactLinkState old = this.states[origin];
+	this.states[origin] = state;
+	this.stateSeqs[origin] = seq;
+	this.stateTimes[origin] = this.manager.now();
+	this.update(origin, old, state);
+    }
+
+    // Find the links that changed when origin's link state went from oldState to newState, and fix the tree
+    private void update(int origin, CompactLinkState oldState, CompactLinkState newState) {
+	int[] oldNbrs = (oldState == null) ? new int[0] : oldState.getNeighbors();
+	int[] oldCosts = (oldState == null) ? new int[0] : oldState.getCosts();
+	int[] newNbrs = (newState == null) ? new int[0] : newState.getNeighbors();
+	int[] newCosts = (newState == null) ? new int[0] : newState.getCosts();
+
+	// both are in ascending order
+	int i = 0;
+	int j = 0;
+	while(i < oldNbrs.length || j < newNbrs.length) {
+	    int v;
+	    int oldCost = 0;
+	    int newCost = 0;
+	    if(j == newNbrs.length || (i < oldNbrs.length && oldNbrs[i] < newNbrs[j])) {
+		v = oldNbrs[i];
+		oldCost = oldCosts[i++];
+	    }else if(i == oldNbrs.length || newNbrs[j] < oldNbrs[i]) {
+		v = newNbrs[j];
+		newCost = newCosts[j++];
+	    }else {
+		v = oldNbrs[i];
+		oldCost = oldCosts[i++];
+		newCost = newCosts[j++];
+	    }
+	    int back = costOf(this.states[v], origin);
+	    if(oldCost == newCost || back == 0 || v == origin) {
+		continue;
+	    }
+	    this.linkChanged(origin, v, (oldCost == 0) ? INFINITY : oldCost, (newCost == 0) ? INFINITY : newCost);
+	    this.linkChanged(v, origin, (oldCost == 0) ? INFINITY : back, (newCost == 0) ? INFINITY : back);
+	}
+	this.recompute();
+    }
+
+    private void linkChanged(int tail, int head, int oldCost, int newCost) {
+	if(head == this.addr || oldCost == newCost) {
+	    return;
+	}
+	if(newCost > oldCost) {
+	    if(this.parent[head] == tail) {
+		this.affectedRoots[this.numAffectedRoots++] = head;
+	    }
+	}else {
+	    this.shortcuts[this.numShortcuts++] = tail;
+	    this.shortcuts[this.numShortcuts++] = head;
+	    this.shortcuts[this.numShortcuts++] = newCost;
+	}
+    }
+
+    private void recompute() {
+	if(this.numAffectedRoots == 0 && this.numShortcuts == 0) {
+	    return;
+	}
+	this.numSpfRuns++;
+
+	if(this.numAffectedRoots > 0) {
+	    int[] affectedNodes = this.markSubtrees();
+	    for(int n = 0; n < affectedNodes.length; n++) {
+		int w = affectedNodes[n];
+		this.dist[w] = INFINITY;
+		this.parent[w] = -1;
+		this.firstHop[w] = -1;
+	    }
+	    // reach them again from the nodes around them
+	    for(int n = 0; n < affectedNodes.length; n++) {
+		int w = affectedNodes[n];
+		CompactLinkState state = this.states[w];
+		if(state == null) {
+		    continue;
+		}
+		int[] nbrs = state.getNeighbors();
+		for(int k = 0; k < nbrs.length; k++) {
+		    int u = nbrs[k];
+		    if(this.affected[u] || this.dist[u] == INFINITY) {
+			continue;
+		    }
+		    int cost = costOf(this.states[u], w);
+		    if(cost != 0) {
+			this.relax(u, w, this.dist[u] + cost);
+		    }
+		}
+	    }
+	    for(int n = 0; n < affectedNodes.length; n++) {
+		this.affected[affectedNodes[n]] = false;
+	    }
+	    this.numAffectedRoots = 0;
+	}
+
+	for(int n = 0; n < this.numShortcuts; n += 3) {
+	    int tail = this.shortcuts[n];
+	    if(this.dist[tail] != INFINITY) {
+		this.relax(tail, this.shortcuts[n + 1], this.dist[tail] + this.shortcuts[n + 2]);
+	    }
+	}
+	this.numShortcuts = 0;
+
+	while(this.heapSize > 0) {
+	    long entry = this.pop();
+	    int u = (int)(entry & 0xff);
+	    if((int)(entry >>> 8) != this.dist[u]) {
+		continue;  // stale
+	    }
+	    this.numSpfNodes++;
+	    CompactLinkState state = this.states[u];
+	    if(state == null) {
+		continue;
+	    }
+	    int[] nbrs = state.getNeighbors();
+	    int[] costs = state.getCosts();
+	    for(int k = 0; k < nbrs.length; k++) {
+		int v = nbrs[k];
+		if(v != this.addr && costOf(this.states[v], u) != 0) {
+		    this.relax(u, v, this.dist[u] + costs[k]);
+		}
+	    }
+	}
+    }
+
+    // Marks the nodes in the subtrees under the affected roots and returns them
+    private int[] markSubtrees() {
+	int[] firstChild = new int[NUM_ADDRESSES];
+	int[] nextSibling = new int[NUM_ADDRESSES];
+	Arrays.fill(firstChild, -1);
+	for(int v = 0; v < NUM_ADDRESSES; v++) {
+	    if(this.parent[v] != -1) {
+		nextSibling[v] = firstChild[this.parent[v]];
+		firstChild[this.parent[v]] = v;
+	    }
+	}
+	int[] stack = new int[NUM_ADDRESSES];
+	int[] marked = new int[NUM_ADDRESSES];
+	int numMarked = 0;
+	for(int r = 0; r < this.numAffectedRoots; r++) {
+	    int root = this.affectedRoots[r];
+	    if(this.affected[root]) {
+		continue;
+	    }
+	    int top = 0;
+	    stack[top++] = root;
+	    this.affected[root] = true;
+	    while(top > 0) {
+		int v = stack[--top];
+		marked[numMarked++] = v;
+		for(int c = firstChild[v]; c != -1; c = nextSibling[c]) {
+		    if(!this.affected[c]) {
+			this.affected[c] = true;
+			stack[top++] = c;
+		    }
+		}
+	    }
+	}
+	int[] result = new int[numMarked];
+	System.arraycopy(marked, 0, result, 0, numMarked);
+	return result;
+    }
+
+    private void relax(int u, int v, int d) {
+	if(d >= this.dist[v]) {
+	    return;
+	}
+	this.dist[v] = d;
+	this.parent[v] = u;
+	this.firstHop[v] = (u == this.addr) ? v : this.firstHop[u];
+	this.push(((long)d << 8) | v);
+    }
+
+    private void push(long entry) {
+	if(this.heapSize == this.heap.length) {
+	    long[] bigger = new long[this.heap.length * 2];
+	    System.arraycopy(this.heap, 0, bigger, 0, this.heapSize);
+	    this.heap = bigger;
+	}
+	int i = this.heapSize++;
+	while(i > 0 && this.heap[(i - 1) / 2] > entry) {
+	    this.heap[i] = this.heap[(i - 1) / 2];
+	    i = (i - 1) / 2;
+	}
+	this.heap[i] = entry;
+    }
+
+    private long pop() {
+	long top = this.heap[0];
+	long last = this.heap[--this.heapSize];
+	int i = 0;
+	while(2 * i + 1 < this.heapSize) {
+	    int child = 2 * i + 1;
+	    if(child + 1 < this.heapSize && this.heap[child + 1] < this.heap[child]) {
+		child++;
+	    }
+	    if(this.heap[child] >= last) {
+		break;
+	    }
+	    this.heap[i] = this.heap[child];
+	    i = child;
+	}
+	this.heap[i] = last;
+	return top;
+    }
+
+    // Cost of the link to neighbor in a full link state, 0 if it does not list neighbor
+    private static int costOf(CompactLinkState state, int neighbor) {
+	if(state == null) {
+	    return 0;
+	}
+	int index = Arrays.binarySearch(state.getNeighbors(), neighbor);
+	return (index < 0) ? 0 : state.getCosts()[index];
+    }
+}
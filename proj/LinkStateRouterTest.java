@@ -0,0 +1,332 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * <pre>
+ * Checks the routes LinkStateRouter keeps up to date incrementally against Dijkstra's algorithm run from
+ * scratch. The router is one node's, node 0 or a random one. Other nodes' link states are made up by the test
+ * and given to it as packets, in full or as deltas. The router's own neighbors come and go through neighborUp()
+ * and neighborDown().
+ * Timers never fire by themselves, so the test calls originate() where the hold down timer would.
+ *
+ * After every change the test checks, for every destination, that the router has a route exactly when
+ * Dijkstra's algorithm finds one, at the same cost, and through a neighbor that starts a shortest path.
+ * When there are several shortest paths any of their first hops will do.
+ *
+ * Usage: java LinkStateRouterTest [trials] [seed]
+ *
+ *        Defaults are 2600 trials of 60 changes each, seed 1. Prints PASS or FAIL for each check, with the
+ *        first few mismatches, and exits with status 1 if any failed.
+ * </pre>
+ */
+public class LinkStateRouterTest {
+
+    private static final int CHANGES_PER_TRIAL = 60;
+    private static final int MAX_TEST_COST = 20;     // costs are kept small so that equal cost paths are common
+    private static final int MAX_REPORTED = 10;      // mismatches printed
+
+    private static int numFailed = 0;
+
+    public static void main(String[] args) {
+	if(args.length > 2) {
+	    System.err.println("Usage: java LinkStateRouterTest [trials] [seed]");
+	    System.exit(1);
+	}
+	int numTrials = 2600;
+	long seed = 1;
+	try {
+	    if(args.length > 0) {
+		numTrials = Integer.parseInt(args[0]);
+	    }
+	    if(args.length > 1) {
+		seed = Long.parseLong(args[1]);
+	    }
+	}catch(NumberFormatException e) {
+	    System.err.println("Invalid argument. Exception: " + e);
+	    System.exit(1);
+	}
+
+	testWorseTreeLink();
+	testRandomChanges(numTrials, seed);
+	if(numFailed > 0) {
+	    System.out.println(numFailed + " checks failed");
+	    System.exit(1);
+	}
+	System.out.println("All checks passed");
+    }
+
+    // 0 - 1 - 2 with a longer way round through 3. Raising the cost of 1 - 2 moves the subtree under 2,
+    // which holds 4, to the way through 3, and lowering it again brings it back
+    private static void testWorseTreeLink() {
+	Network net = new Network(5, 0);
+	net.setNeighbor(1, true);
+	net.setNeighbor(3, true);
+	net.setLink(1, 0, 1);
+	net.setLink(3, 0, 1);
+	net.setLink(1, 2, 1);
+	net.setLink(3, 2, 3);
+	net.setLink(2, 4, 1);
+	net.advertiseAll(false);
+	check("4 is reached through 1 at cost 3", net.router.getNextHop(4) == 1 && net.router.getCost(4) == 3);
+
+	net.setLink(1, 2, 10);
+	net.advertise(1, true);
+	net.advertise(2, true);
+	check("4 moves to the way through 3 at cost 5 when 1 - 2 gets worse",
+	      net.router.getNextHop(4) == 3 && net.router.getCost(4) == 5);
+
+	net.setLink(1, 2, 1);
+	net.advertise(2, false);
+	net.advertise(1, false);
+	check("4 comes back through 1 when 1 - 2 gets better", net.router.getNextHop(4) == 1 && net.router.getCost(4) == 3);
+
+	net.setNeighbor(3, false);
+	net.setLink(1, 2, 0);
+	net.advertise(1, true);
+	check("2 and 4 are unreachable once their links to 0's side are gone",
+	      net.router.getNextHop(2) == -1 && net.router.getCost(4) == -1);
+	check("routes match Dijkstra", net.mismatch() == null);
+    }
+
+    // Random link changes, each checked against Dijkstra's algorithm
+    private static void testRandomChanges(int numTrials, long seed) {
+	Random random = new Random(seed);
+	int numMismatches = 0;
+	int numChecked = 0;
+	for(int trial = 0; trial < numTrials; trial++) {
+	    int numNodes = 4 + random.nextInt(29);
+	    Network net = new Network(numNodes, random.nextInt(numNodes));
+	    for(int change = 0; change < CHANGES_PER_TRIAL; change++) {
+		String description = net.randomChange(random);
+		numChecked++;
+		String mismatch = net.mismatch();
+		if(mismatch != null) {
+		    if(numMismatches < MAX_REPORTED) {
+			System.out.println("trial " + trial + " change " + change + " (" + description + "): " + mismatch);
+		    }
+		    numMismatches++;
+		    break;  // the rest of the trial would only repeat the error
+		}
+	    }
+	}
+	check("routes match Dijkstra after " + numChecked + " changes in " + numTrials + " trials, " +
+	      numMismatches + " trials failed", numMismatches == 0);
+    }
+
+    /******************** Private Functions ********************/
+
+    private static void check(String name, boolean passed) {
+	System.out.println((passed ? "PASS: " : "FAIL: ") + name);
+	if(!passed) {
+	    numFailed++;
+	}
+    }
+
+    // A made up network of numNodes nodes and the router of one of them. costs[u][v] is the cost u
+    // advertises for its link to v, 0 if it does not list v. The router's node always advertises MIN_COST
+    private static class Network {
+	private int numNodes;
+	private int self;
+	private int[][] costs;
+	private CompactLinkState[] states;  // last advertised by each other node, null if none
+	private int[] seqs;
+	private TestManager manager;
+	private LinkStateRouter router;
+
+	Network(int numNodes, int self) {
+	    this.numNodes = numNodes;
+	    this.self = self;
+	    this.costs = new int[numNodes][numNodes];
+	    this.states = new CompactLinkState[numNodes];
+	    this.seqs = new int[numNodes];
+	    this.manager = new TestManager();
+	    this.router = new LinkStateRouter(this.manager, new Node(this.manager, self));
+	    this.router.start();
+	}
+
+	void setNeighbor(int neighbor, boolean up) {
+	    if(up == (this.costs[this.self][neighbor] != 0)) {
+		return;
+	    }
+	    this.costs[this.self][neighbor] = up ? CompactLinkState.MIN_COST : 0;
+	    if(up) {
+		this.router.neighborUp(neighbor);
+	    }else {
+		this.router.neighborDown(neighbor);
+	    }
+	    // the hold down timer would fire now
+	    this.router.originate();
+	}
+
+	// Sets the cost both ends give a link between two other nodes, 0 to remove it
+	void setLink(int u, int v, int cost) {
+	    this.costs[u][v] = cost;
+	    this.costs[v][u] = cost;
+	}
+
+	void advertiseAll(boolean delta) {
+	    for(int u = 0; u < this.numNodes; u++) {
+		if(u != this.self) {
+		    this.advertise(u, delta);
+		}
+	    }
+	}
+
+	// Sends the router origin's links as a packet, as a delta against the last one if asked and it is smaller
+	void advertise(int origin, boolean delta) {
+	    int count = 0;
+	    for(int v = 0; v < this.numNodes; v++) {
+		if(this.costs[origin][v] != 0) {
+		    count++;
+		}
+	    }
+	    int[] nbrs = new int[count];
+	    int[] linkCosts = new int[count];
+	    count = 0;
+	    for(int v = 0; v < this.numNodes; v++) {
+		if(this.costs[origin][v] != 0) {
+		    nbrs[count] = v;
+		    linkCosts[count++] = this.costs[origin][v];
+		}
+	    }
+	    CompactLinkState state = new CompactLinkState(nbrs, linkCosts);
+	    CompactLinkState payload = null;
+	    if(delta && this.states[origin] != null) {
+		payload = CompactLinkState.diff(this.seqs[origin], this.states[origin], state);
+	    }
+	    if(payload == null) {
+		payload = state;
+	    }
+	    this.states[origin] = state;
+	    this.seqs[origin]++;
+	    // TTL 1 so the router does not flood it on
+	    this.router.receiveLinkState(origin, new Packet(Packet.BROADCAST_ADDRESS, origin, 1, Protocol.LINK_INFO_PKT,
+							    this.seqs[origin], payload.pack()));
+	}
+
+	// Makes one random change and returns what it was
+	String randomChange(Random random) {
+	    int u = random.nextInt(this.numNodes);
+	    int v = random.nextInt(this.numNodes - 1);
+	    if(v >= u) {
+		v++;
+	    }
+	    int cost = (random.nextInt(3) == 0) ? 0 : 1 + random.nextInt(MAX_TEST_COST);
+	    if(u == this.self) {
+		boolean up = this.costs[this.self][v] == 0;
+		// usually the neighbor's side changes too, before or after
+		boolean both = random.nextInt(4) != 0;
+		boolean first = random.nextBoolean();
+		if(both && first) {
+		    this.costs[v][this.self] = up ? 1 + random.nextInt(MAX_TEST_COST) : 0;
+		    this.advertise(v, random.nextBoolean());
+		}
+		this.setNeighbor(v, up);
+		if(both && !first) {
+		    this.costs[v][this.self] = up ? 1 + random.nextInt(MAX_TEST_COST) : 0;
+		    this.advertise(v, random.nextBoolean());
+		}
+		return "link " + this.self + " - " + v + (up ? " up" : " down") + (both ? ", back cost " + this.costs[v][this.self] : "");
+	    }
+	    if(v == this.self) {
+		this.costs[u][this.self] = cost;
+		this.advertise(u, random.nextBoolean());
+		return u + " lists " + this.self + " at cost " + cost;
+	    }
+	    String description;
+	    switch(random.nextInt(3)) {
+	    case 0:
+		// one end only. The link is not used until both list each other
+		this.costs[u][v] = cost;
+		description = u + " lists " + v + " at cost " + cost;
+		break;
+	    case 1:
+		// different costs each way
+		this.costs[u][v] = cost;
+		this.costs[v][u] = (cost == 0) ? 0 : 1 + random.nextInt(MAX_TEST_COST);
+		description = "link " + u + " - " + v + " costs " + this.costs[u][v] + " and " + this.costs[v][u];
+		this.advertise(v, random.nextBoolean());
+		break;
+	    default:
+		this.setLink(u, v, cost);
+		description = "link " + u + " - " + v + " cost " + cost;
+		this.advertise(v, random.nextBoolean());
+		break;
+	    }
+	    this.advertise(u, random.nextBoolean());
+	    return description;
+	}
+
+	// Returns the first destination whose route differs from Dijkstra's, described, or null if all match
+	String mismatch() {
+	    long[] dist = new long[this.numNodes];
+	    long[] firstHops = new long[this.numNodes];  // bit h set if a shortest path starts with neighbor h
+	    boolean[] done = new boolean[this.numNodes];
+	    Arrays.fill(dist, Long.MAX_VALUE);
+	    dist[this.self] = 0;
+	    for(int round = 0; round < this.numNodes; round++) {
+		int u = -1;
+		for(int w = 0; w < this.numNodes; w++) {
+		    if(!done[w] && dist[w] != Long.MAX_VALUE && (u == -1 || dist[w] < dist[u])) {
+			u = w;
+		    }
+		}
+		if(u == -1) {
+		    break;
+		}
+		done[u] = true;
+		for(int v = 0; v < this.numNodes; v++) {
+		    // a link is used only if both ends list each other
+		    if(v == this.self || this.costs[u][v] == 0 || this.costs[v][u] == 0) {
+			continue;
+		    }
+		    long d = dist[u] + this.costs[u][v];
+		    long hops = (u == this.self) ? (1L << v) : firstHops[u];
+		    if(d < dist[v]) {
+			dist[v] = d;
+			firstHops[v] = hops;
+		    }else if(d == dist[v]) {
+			firstHops[v] |= hops;
+		    }
+		}
+	    }
+
+	    for(int dest = 0; dest < this.numNodes; dest++) {
+		if(dest == this.self) {
+		    continue;
+		}
+		int cost = this.router.getCost(dest);
+		int hop = this.router.getNextHop(dest);
+		if(dist[dest] == Long.MAX_VALUE) {
+		    if(cost != -1 || hop != -1) {
+			return "route to unreachable " + dest + " via " + hop + " cost " + cost;
+		    }
+		}else if(cost != dist[dest]) {
+		    return "route to " + dest + " costs " + cost + ", expected " + dist[dest];
+		}else if(hop < 0 || (firstHops[dest] & (1L << hop)) == 0) {
+		    return "route to " + dest + " via " + hop + ", which does not start a shortest path";
+		}
+	    }
+	    return null;
+	}
+    }
+
+    // Throws away the packets nodes send, and leaves the time to the test
+    private static class TestManager extends Manager {
+	TestManager() {
+	    super(new VirtualClock());
+	}
+
+	public void start() {
+	}
+
+	public boolean sendNodeMsg(int nodeAddr, String msg) {
+	    return false;
+	}
+
+	public boolean sendPkt(int from, int to, byte[] pkt) throws IllegalArgumentException {
+	    super.sendPkt(from, to, pkt);
+	    return true;
+	}
+    }
+}
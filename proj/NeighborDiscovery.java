@@ -0,0 +1,246 @@
+import java.lang.reflect.Method;
+
+/**
+ * <pre>
+ * Finds out which nodes are neighbors of a node, and tells its LinkStateRouter when one comes or goes.
+ *
+ * The node broadcasts hello packets with TTL 1. A node that hears a hello from another node takes it as a
+ * neighbor, since fishnet links work both ways. Hellos go out every MIN_HELLO_INTERVAL msec after a neighbor
+ * comes or goes, and the interval doubles with every hello while nothing changes, up to MAX_HELLO_INTERVAL.
+ * So a changing neighborhood is learned quickly and a stable one costs few packets.
+ *
+ * Each hello carries the interval until the sender's next hello. A neighbor is dropped when nothing has been
+ * heard from it for 3 of its intervals plus MIN_HELLO_INTERVAL, so one lost hello is not taken for a failure.
+ * Any packet from a neighbor counts as hearing from it.
+ *
+ * Waiting for missed hellos is slow once the interval has grown, so the node also watches the data it
+ * sends. When a neighbor it sent data through has not been heard from for PROBE_DELAY msec, the node sends it
+ * probes, hellos that ask for an answer, every CHECK_INTERVAL msec. A neighbor that leaves MAX_PROBES probes
+ * unanswered is dropped.
+ *
+ * The payload of a hello is a flags byte, PROBE if it asks for an answer, and the interval in msec as
+ * 2 bytes, most significant first.
+ * </pre>
+ */
+public class NeighborDiscovery {
+
+    public static final long MIN_HELLO_INTERVAL = 500;   // msec
+    public static final long MAX_HELLO_INTERVAL = 8000;  // msec, must fit in 2 bytes
+    public static final long CHECK_INTERVAL = 250;       // msec, for dropping neighbors and probing
+    public static final long PROBE_DELAY = 250;          // msec after data is sent without hearing back
+    public static final int MAX_PROBES = 3;
+
+    private static final int PROBE = 1;
+    private static final int HELLO_SIZE = 3;  // bytes
+
+    private Manager manager;
+    private Node node;
+    private int addr;
+    private LinkStateRouter router;
+    private Callback helloCallback;
+    private Callback checkCallback;
+
+    private long helloInterval;  // msec, until the next hello
+    private long nextHello;      // msec. Timers set for other times are stale and ignored
+
+    // Indexed by address
+    private long[] lastHeard;    // msec. -1 if the node is not a neighbor
+    private long[] holdTime;     // msec, how long the neighbor may stay quiet
+    private long[] awaiting;     // msec, when data was first sent to the neighbor since it was last heard. -1 if none
+    private int[] probesSent;    // since the neighbor was last heard
+
+    private int numNeighbors;
+    private int numHellosSent;
+    private int numProbesSent;
+    private int numProbeFailures;
+
+    /**
+     * Create neighbor discovery for a node
+     * @param manager The manager that is managing Fishnet
+     * @param node The node whose neighbors are to be found
+     * @param router Told when a neighbor comes or goes
+     */
+    public NeighborDiscovery(Manager manager, Node node, LinkStateRouter router) {
+	this.manager = manager;
+	this.node = node;
+	this.addr = node.getAddr();
+	this.router = router;
+	this.lastHeard = new long[Packet.MAX_ADDRESS + 1];
+	this.holdTime = new long[Packet.MAX_ADDRESS + 1];
+	this.awaiting = new long[Packet.MAX_ADDRESS + 1];
+	this.probesSent = new int[Packet.MAX_ADDRESS + 1];
+	for(int i = 0; i <= Packet.MAX_ADDRESS; i++) {
+	    this.lastHeard[i] = -1;
+	    this.awaiting[i] = -1;
+	}
+	this.numNeighbors = 0;
+	this.numHellosSent = 0;
+	this.numProbesSent = 0;
+	this.numProbeFailures = 0;
+
+	try {
+	    Method method = Callback.getMethod("sendHello", this, null);
+	    this.helloCallback = new Callback(method, this, null);
+	    method = Callback.getMethod("checkNeighbors", this, null);
+	    this.checkCallback = new Callback(method, this, null);
+	}catch(Exception e) {
+	    // This should not happen
+	    this.node.logError("failed to initialize NeighborDiscovery. Exception: " + e);
+	    System.exit(1);
+	}
+    }
+
+    /**
+     * Start sending hellos
+     */
+    public void start() {
+	this.helloInterval = MIN_HELLO_INTERVAL;
+	this.nextHello = this.manager.now();
+	this.sendHello();
+	this.manager.addTimer(this.addr, CHECK_INTERVAL, this.checkCallback);
+    }
+
+    /**
+     * Broadcast a hello and set the timer for the next one, backing off while nothing changes.
+     * Has public accesibility since used as a callback
+     */
+    public void sendHello() {
+	long now = this.manager.now();
+	if(now < this.nextHello) {
+	    // the hello was moved earlier, see changed()
+	    return;
+	}
+	long interval = this.helloInterval;
+	this.helloInterval = Math.min(this.helloInterval * 2, MAX_HELLO_INTERVAL);
+	this.nextHello = now + interval;
+	this.node.sendToNeighbor(Packet.BROADCAST_ADDRESS, this.makeHello(Packet.BROADCAST_ADDRESS, false, interval));
+	this.numHellosSent++;
+	this.manager.addTimer(this.addr, interval, this.helloCallback);
+    }
+
+    /**
+     * Drop the neighbors that have gone quiet or left probes unanswered, and probe the ones data was sent
+     * to without hearing back. Has public accesibility since used as a callback
+     */
+    public void checkNeighbors() {
+	long now = this.manager.now();
+	for(int i = 0; i <= Packet.MAX_ADDRESS; i++) {
+	    if(this.lastHeard[i] == -1) {
+		continue;
+	    }
+	    if(now - this.lastHeard[i] > this.holdTime[i]) {
+		this.neighborLost(i, "not heard from for " + (now - this.lastHeard[i]) + " msec");
+	    }else if(this.awaiting[i] != -1 && now - this.awaiting[i] >= PROBE_DELAY) {
+		if(this.probesSent[i] == MAX_PROBES) {
+		    this.numProbeFailures++;
+		    this.neighborLost(i, MAX_PROBES + " probes unanswered");
+		}else {
+		    this.node.sendToNeighbor(i, this.makeHello(i, true, Math.max(this.nextHello - now, 0)));
+		    this.probesSent[i]++;
+		    this.numProbesSent++;
+		}
+	    }
+	}
+	this.manager.addTimer(this.addr, CHECK_INTERVAL, this.checkCallback);
+    }
+
+    /**
+     * Called by the node when a hello arrives
+     * @param from The neighbor that sent it
+     * @param packet The hello
+     */
+    public void receiveHello(int from, Packet packet) {
+	byte[] payload = packet.getPayload();
+	if(from == this.addr || from == Packet.BROADCAST_ADDRESS || payload.length != HELLO_SIZE) {
+	    return;
+	}
+	long interval = ((payload[1] & 0xff) << 8) | (payload[2] & 0xff);
+	this.holdTime[from] = 3 * interval + MIN_HELLO_INTERVAL;
+	if(this.lastHeard[from] == -1) {
+	    this.lastHeard[from] = this.manager.now();
+	    this.numNeighbors++;
+	    this.node.logDebug(() -> "found neighbor " + from);
+	    this.changed();
+	    this.router.neighborUp(from);
+	}
+	if((payload[0] & PROBE) != 0) {
+	    this.node.sendToNeighbor(from, this.makeHello(from, false, Math.max(this.nextHello - this.manager.now(), 0)));
+	}
+    }
+
+    /**
+     * Called by the node for every packet that arrives
+     * @param from The neighbor it came from
+     */
+    public void heardFrom(int from) {
+	if(Packet.validAddress(from) && this.lastHeard[from] != -1) {
+	    this.lastHeard[from] = this.manager.now();
+	    this.awaiting[from] = -1;
+	    this.probesSent[from] = 0;
+	}
+    }
+
+    /**
+     * Called by the node when it sends data to a neighbor. If the neighbor is not heard from soon it is probed
+     * @param neighbor Address of the neighbor
+     */
+    public void dataSent(int neighbor) {
+	if(Packet.validAddress(neighbor) && this.lastHeard[neighbor] != -1 && this.awaiting[neighbor] == -1) {
+	    this.awaiting[neighbor] = this.manager.now();
+	}
+    }
+
+    /**
+     * @param addr Address of a node
+     * @return True if the node is a neighbor
+     */
+    public boolean isNeighbor(int addr) {
+	return Packet.validAddress(addr) && this.lastHeard[addr] != -1;
+    }
+
+    /**
+     * Print the neighbors and when each was last heard from
+     */
+    public void dump() {
+	long now = this.manager.now();
+	StringBuffer buf = new StringBuffer("neighbors (" + this.numNeighbors + ", " + this.numHellosSent + " hellos sent, next in " +
+					    (this.nextHello - now) + " msec, " + this.numProbesSent + " probes sent, " +
+					    this.numProbeFailures + " lost by probing):");
+	for(int i = 0; i <= Packet.MAX_ADDRESS; i++) {
+	    if(this.lastHeard[i] != -1) {
+		buf.append(" " + i + " (heard " + (now - this.lastHeard[i]) + " msec ago)");
+	    }
+	}
+	this.node.logOutput(buf.toString());
+    }
+
+    /******************** Private Functions ********************/
+
+    private void neighborLost(int neighbor, String reason) {
+	this.lastHeard[neighbor] = -1;
+	this.awaiting[neighbor] = -1;
+	this.probesSent[neighbor] = 0;
+	this.numNeighbors--;
+	this.node.logDebug(() -> "lost neighbor " + neighbor + ", " + reason);
+	this.changed();
+	this.router.neighborDown(neighbor);
+    }
+
+    // The neighborhood changed. Go back to frequent hellos, and send the next one soon
+    private void changed() {
+	this.helloInterval = MIN_HELLO_INTERVAL;
+	long now = this.manager.now();
+	if(this.nextHello - now > MIN_HELLO_INTERVAL) {
+	    this.nextHello = now + MIN_HELLO_INTERVAL;
+	    this.manager.addTimer(this.addr, MIN_HELLO_INTERVAL, this.helloCallback);
+	}
+    }
+
+    private Packet makeHello(int dest, boolean probe, long interval) {
+	byte[] payload = new byte[HELLO_SIZE];
+	payload[0] = (byte)(probe ? PROBE : 0);
+	payload[1] = (byte)(interval >> 8);
+	payload[2] = (byte)interval;
+	return new Packet(dest, this.addr, 1, Protocol.HELLO_PKT, 0, payload);
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.ArrayList;
+
+/**
+ * <pre>
+ * Checks NeighborDiscovery on two nodes, 0 and 1, whose timers never fire by themselves. The test sets the
+ * time and calls the callbacks, so it can make a timer fire late. Packets sent are kept, not delivered.
+ *
+ * Usage: java NeighborDiscoveryTest
+ *
+ *        Prints PASS or FAIL for each check, and exits with status 1 if any failed.
+ * </pre>
+ */
+public class NeighborDiscoveryTest {
+
+    private static int numFailed = 0;
+
+    public static void main(String[] args) {
+	testLateHelloTimer();
+	if(numFailed > 0) {
+	    System.out.println(numFailed + " checks failed");
+	    System.exit(1);
+	}
+	System.out.println("All checks passed");
+    }
+
+    // The hello timer of node 0 is due at 500 msec but has not fired by 800 msec, when node 0 probes node 1.
+    // The probe must not advertise a negative interval, which would reach node 1 as about 65 seconds
+    private static void testLateHelloTimer() {
+	TestManager manager = new TestManager();
+	Node node0 = new Node(manager, 0);
+	Node node1 = new Node(manager, 1);
+	NeighborDiscovery discovery0 = new NeighborDiscovery(manager, node0, new LinkStateRouter(manager, node0));
+	NeighborDiscovery discovery1 = new NeighborDiscovery(manager, node1, new LinkStateRouter(manager, node1));
+
+	discovery0.start();
+	discovery1.start();
+	Packet hello0 = manager.lastSent(0, Packet.BROADCAST_ADDRESS);
+	Packet hello1 = manager.lastSent(1, Packet.BROADCAST_ADDRESS);
+	discovery0.receiveHello(1, hello1);
+	discovery1.receiveHello(0, hello0);
+	check("nodes find each other", discovery0.isNeighbor(1) && discovery1.isNeighbor(0));
+
+	discovery0.dataSent(1);
+	manager.setTime(800);
+	discovery0.checkNeighbors();
+	Packet probe = manager.lastSent(0, 1);
+	check("node 0 probes node 1", probe != null);
+	if(probe == null) {
+	    return;
+	}
+	long interval = interval(probe);
+	check("probe sent after a late hello timer advertises 0 msec, got " + interval, interval == 0);
+
+	// node 1 should now expect to hear from node 0 within 3 * 0 + MIN_HELLO_INTERVAL msec
+	discovery1.receiveHello(0, probe);
+	manager.setTime(800 + NeighborDiscovery.MIN_HELLO_INTERVAL + NeighborDiscovery.CHECK_INTERVAL);
+	discovery1.checkNeighbors();
+	check("node 1 drops node 0 once its hold time is over", !discovery1.isNeighbor(0));
+    }
+
+    /******************** Private Functions ********************/
+
+    private static void check(String name, boolean passed) {
+	System.out.println((passed ? "PASS: " : "FAIL: ") + name);
+	if(!passed) {
+	    numFailed++;
+	}
+    }
+
+    // The interval a hello advertises, in msec
+    private static long interval(Packet hello) {
+	byte[] payload = hello.getPayload();
+	return ((payload[1] & 0xff) << 8) | (payload[2] & 0xff);
+    }
+
+    // Keeps the packets nodes send, and leaves the time to the test
+    private static class TestManager extends Manager {
+	private VirtualClock virtualClock;
+	private ArrayList sent;  // int[] {from, to} and Packet, in turn
+
+	TestManager() {
+	    super(new VirtualClock());
+	    this.virtualClock = (VirtualClock)this.clock;
+	    this.sent = new ArrayList();
+	}
+
+	public void start() {
+	}
+
+	public boolean sendNodeMsg(int nodeAddr, String msg) {
+	    return false;
+	}
+
+	public boolean sendPkt(int from, int to, byte[] pkt) throws IllegalArgumentException {
+	    super.sendPkt(from, to, pkt);
+	    this.sent.add(new int[] {from, to});
+	    this.sent.add(Packet.unpack(pkt));
+	    return true;
+	}
+
+	void setTime(long msec) {
+	    this.virtualClock.set(msec * 1000);
+	}
+
+	// Returns the last packet sent from one node to another, or null if there is none
+	Packet lastSent(int from, int to) {
+	    for(int i = this.sent.size() - 2; i >= 0; i -= 2) {
+		int[] ends = (int[])this.sent.get(i);
+		if(ends[0] == from && ends[1] == to) {
+		    return (Packet)this.sent.get(i + 1);
+		}
+	    }
+	    return null;
+	}
+    }
+}
@@ -1,7 +1,7 @@
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.lang.reflect.Method;
+import java.util.function.Supplier;
 
 /**
  * <pre>
@@ -28,7 +28,18 @@ public class Node {
 
     private Manager manager;
     private int addr;
-    private ArrayList pings; // To store PingRequests.
+    private IntHashMap pings; // To store PingRequests that have not been answered, by sequence number.
+    private LinkedList pingTimeouts; // The same PingRequests, and answered ones not removed yet, in the order they were sent
+    private boolean pingTimerSet;
+    private int nextPingSeq;
+    private int[] pingsSent; // Indexed by destination address
+    private int[] pingsTimedOut;
+    private RttStats[] pingRtts;
+    private TrafficGenerator[] trafficGenerators; // Indexed by id modulo TrafficGenerator.MAX_GENERATORS
+    private int numTrafficCommands;
+    private LinkStateRouter router;
+    private NeighborDiscovery discovery;
+    private FloodCache floodCache; // Broadcast packets seen, so each is delivered and flooded on once
 
     // Fishnet reliable data transfer
     // TCP manager
@@ -42,7 +53,18 @@ public class Node {
     public Node(Manager manager, int addr) {
 	this.manager = manager;
 	this.addr = addr;
-	this.pings = new ArrayList();
+	this.pings = new IntHashMap();
+	this.pingTimeouts = new LinkedList();
+	this.pingTimerSet = false;
+	this.nextPingSeq = 1;  // never has TrafficGenerator.TRAFFIC_SEQ set
+	this.pingsSent = new int[Packet.MAX_ADDRESS + 1];
+	this.pingsTimedOut = new int[Packet.MAX_ADDRESS + 1];
+	this.pingRtts = new RttStats[Packet.MAX_ADDRESS + 1];
+	this.trafficGenerators = new TrafficGenerator[TrafficGenerator.MAX_GENERATORS];
+	this.numTrafficCommands = 0;
+	this.router = new LinkStateRouter(manager, this);
+	this.discovery = new NeighborDiscovery(manager, this, this.router);
+	this.floodCache = new FloodCache();
 
         // Fishnet reliable data transfer
         this.tcpMan = new TCPManager(this, addr, manager);
@@ -53,7 +75,8 @@ public class Node {
      */
     public void start() {
 	logOutput("started");
-	this.addTimer(PingTimeout, "pingTimedOut");
+	this.router.start();
+	this.discovery.start();
 
         // Fishnet reliable data transfer
         // Start TCP manager
@@ -66,14 +89,42 @@ public class Node {
      * @param msg The serialized form of the packet.
      */
     public void onReceive(Integer from, byte[] msg) {
-	Packet packet = Packet.unpack(msg);
-	//logOutput("received packet from " + from);
+	this.onReceive(from.intValue(), msg, 0, msg.length);
+    }
+
+    /**
+     * Called by the manager when a packet has arrived for this node in a buffer that the manager reuses.
+     * The bytes must not be kept after this method returns
+     * @param from The address of the node that has sent this packet
+     * @param buf Buffer holding the serialized form of the packet
+     * @param offset Where in buf the packet starts
+     * @param length The length of the packet in bytes
+     */
+    public void onReceive(int from, byte[] buf, int offset, int length) {
+	Packet packet = Packet.unpack(buf, offset, length);
 	if(packet == null) {
-	    logError("Unable to unpack message: " + Utility.byteArrayToString(msg) + " Received from " + from);
+	    logError("Unable to unpack message: " + Utility.byteArrayToString(buf, offset, length) + " Received from " + from);
 	    return;
 	}
+	if(this.isLogEnabled(NodeLog.TRACE)) {
+	    logTrace("received packet from " + from + ": " + packet);
+	}
 
-	this.receivePacket(from.intValue(), packet);
+	this.discovery.heardFrom(from);
+	if(packet.getDest() != this.addr && packet.getDest() != Packet.BROADCAST_ADDRESS) {
+	    this.forward(packet);
+	    return;
+	}
+	if(packet.getDest() == Packet.BROADCAST_ADDRESS && this.isFlooded(packet.getProtocol())) {
+	    if(!this.floodCache.accept(packet.getSrc(), packet.getSeq(), this.manager.now())) {
+		return;
+	    }
+	    if(packet.getTTL() > 1) {
+		this.sendToNeighbor(Packet.BROADCAST_ADDRESS, new Packet(Packet.BROADCAST_ADDRESS, packet.getSrc(), packet.getTTL() - 1,
+									 packet.getProtocol(), packet.getSeq(), packet.getPayload()));
+	    }
+	}
+	this.receivePacket(from, packet);
     }
 
     /**
@@ -91,6 +142,19 @@ public class Node {
             return;
         }
 
+	if(this.matchTrafficCommand(command)) {
+	    return;
+	}
+
+	if(this.matchDumpCommand(command)) {
+	    return;
+	}
+
+	if(command.equals("pingstats")) {
+	    this.printPingStats();
+	    return;
+	}
+
 	if(this.matchPingCommand(command)) {
 	    return;
 	}
@@ -100,22 +164,32 @@ public class Node {
 
     /**
      * Callback method given to manager to invoke when a timer fires.
+     * The timer is set for when the oldest ping times out. Pings are timed out in the order they were sent,
+     * so only the pings that time out are looked at
      */
     public void pingTimedOut() {
-	Iterator iter = this.pings.iterator();
-	while(iter.hasNext()) {
-	    PingRequest pingRequest = (PingRequest)iter.next();
-	    if((pingRequest.getTimeSent() + PingTimeout) < this.manager.now()) {
-		try {
-		    logOutput("Timing out ping: " + pingRequest);
-		    iter.remove();
-		}catch(Exception e) {
-		    logError("Exception occured while trying to remove an element from ArrayList pings.  Exception: " + e);
-		    return;
-		}
+	this.pingTimerSet = false;
+	long now = this.manager.nowMicros();
+	while(!this.pingTimeouts.isEmpty()) {
+	    PingRequest pingRequest = (PingRequest)this.pingTimeouts.getFirst();
+	    if(!this.pings.containsKey(pingRequest.getSeq())) {
+		// answered already. Sequence numbers are not reused, so the seq alone tells
+		this.pingTimeouts.removeFirst();
+		continue;
+	    }
+	    if(pingRequest.getTimeSent() + PingTimeout * 1000 > now) {
+		break;
+	    }
+	    this.pingTimeouts.removeFirst();
+	    this.pings.remove(pingRequest.getSeq());
+	    if(pingRequest.getDestAddr() == Packet.BROADCAST_ADDRESS) {
+		// done collecting replies
+		continue;
 	    }
+	    logOutput("Timing out ping: " + pingRequest);
+	    this.pingsTimedOut[pingRequest.getDestAddr()]++;
 	}
-	this.addTimer(PingTimeout, "pingTimedOut");
+	this.setPingTimer();
     }
 
     private boolean matchPingCommand(String command) {
@@ -126,11 +200,17 @@ public class Node {
 	try {
 	    int destAddr = Integer.parseInt(command.substring(0, index));
 	    String message = command.substring(index+1);
-	    Packet packet = new Packet(destAddr, this.addr, Packet.MAX_TTL, Protocol.PING_PKT, 0,
+	    int seq = this.nextPingSeq;
+	    this.nextPingSeq = (this.nextPingSeq + 1) & ~TrafficGenerator.TRAFFIC_SEQ;
+	    Packet packet = new Packet(destAddr, this.addr, Packet.MAX_TTL, Protocol.PING_PKT, seq,
 				       Utility.stringToByteArray(message));
 
 	    this.send(destAddr, packet);
-	    this.pings.add(new PingRequest(destAddr, Utility.stringToByteArray(message), this.manager.now()));
+	    PingRequest pingRequest = new PingRequest(seq, destAddr, Utility.stringToByteArray(message), this.manager.nowMicros());
+	    this.pings.put(seq, pingRequest);
+	    this.pingTimeouts.addLast(pingRequest);
+	    this.pingsSent[destAddr]++;
+	    this.setPingTimer();
 	    return true;
 	}catch(Exception e) {
 	    logError("Exception: " + e);
@@ -139,9 +219,62 @@ public class Node {
 	return false;
     }
 
+    private boolean matchTrafficCommand(String command) {
+	String[] args = command.split(" ");
+	if(!args[0].equals("traffic")) {
+	    return false;
+	}
+	try {
+	    int id = this.numTrafficCommands + 1;
+	    int slot = id & (TrafficGenerator.MAX_GENERATORS - 1);
+	    if(this.trafficGenerators[slot] != null && !this.trafficGenerators[slot].isDone()) {
+		logError("Error in traffic command: " + command + " Exception: " + TrafficGenerator.MAX_GENERATORS +
+			 " traffic commands are running already");
+		return true;
+	    }
+	    TrafficGenerator generator = new TrafficGenerator(this.manager, this, id, args);
+	    this.numTrafficCommands++;
+	    if(generator.hasDestinations()) {
+		this.trafficGenerators[slot] = generator;
+		generator.start();
+	    }
+	}catch(IllegalArgumentException e) {
+	    // NumberFormatException is an IllegalArgumentException
+	    logError("Error in traffic command: " + command + " Exception: " + e);
+	}
+	return true;
+    }
+
+    private boolean matchDumpCommand(String command) {
+	String[] args = command.split(" ");
+	if(args.length != 2 || !args[0].equals("dump")) {
+	    return false;
+	}
+	if(args[1].equals("linkstate")) {
+	    this.router.dumpLinkState();
+	}else if(args[1].equals("table")) {
+	    this.router.dumpTable();
+	}else if(args[1].equals("neighbors")) {
+	    this.discovery.dump();
+	}else if(args[1].equals("flood")) {
+	    logOutput(this.floodCache.toString());
+	}else {
+	    logError("Unknown dump command: " + command + ". Use dump linkstate|table|neighbors|flood");
+	}
+	return true;
+    }
+
     private void receivePacket(int from, Packet packet) {
 	switch(packet.getProtocol()) {
 
+	case Protocol.HELLO_PKT:
+	    this.discovery.receiveHello(from, packet);
+	    break;
+
+	case Protocol.LINK_INFO_PKT:
+	    this.router.receiveLinkState(from, packet);
+	    break;
+
 	case Protocol.PING_PKT:
 	    this.receivePing(packet);
 	    break;
@@ -156,10 +289,17 @@ public class Node {
     }
 
     private void receivePing(Packet packet) {
+	if(TrafficGenerator.isTrafficPing(packet.getSeq(), packet.getPayload())) {
+	    // answered without logging, there may be thousands
+	    this.send(packet.getSrc(), new Packet(packet.getSrc(), this.addr, Packet.MAX_TTL, Protocol.PING_REPLY_PKT,
+						  packet.getSeq(), packet.getPayload()));
+	    return;
+	}
 	logOutput("Received Ping from " + packet.getSrc() + " with message: " + Utility.byteArrayToString(packet.getPayload()));
 
 	try {
-	    Packet reply = new Packet(packet.getSrc(), this.addr, Packet.MAX_TTL, Protocol.PING_REPLY_PKT, 0, packet.getPayload());
+	    Packet reply = new Packet(packet.getSrc(), this.addr, Packet.MAX_TTL, Protocol.PING_REPLY_PKT, packet.getSeq(),
+				      packet.getPayload());
 	    this.send(packet.getSrc(), reply);
 	}catch(IllegalArgumentException e) {
 	    logError("Exception while trying to send a Ping Reply. Exception: " + e);
@@ -168,31 +308,112 @@ public class Node {
 
     // Check that ping reply matches what was sent
     private void receivePingReply(Packet packet) {
-	Iterator iter = this.pings.iterator();
-	String payload = Utility.byteArrayToString(packet.getPayload());
-	while(iter.hasNext()) {
-	    PingRequest pingRequest = (PingRequest)iter.next();
-	    if( (pingRequest.getDestAddr() == packet.getSrc()) &&
-		( Utility.byteArrayToString(pingRequest.getMsg()).equals(payload))) {
-
-		logOutput("Got Ping Reply from " + packet.getSrc() + ": " + payload);
-		try {
-		    iter.remove();
-		}catch(Exception e) {
-		    logError("Exception occured while trying to remove an element from ArrayList pings while processing Ping Reply.  Exception: " + e);
-		}
-		return;
+	if(TrafficGenerator.isTrafficPing(packet.getSeq(), packet.getPayload())) {
+	    TrafficGenerator generator = this.trafficGenerators[TrafficGenerator.generatorSlot(packet.getSeq())];
+	    if(generator != null) {
+		// it ignores answers that come after its report
+		generator.receiveReply(packet.getSeq());
+	    }
+	    return;
+	}
+	int seq = packet.getSeq();
+	PingRequest pingRequest = (PingRequest)this.pings.get(seq);
+	if(pingRequest != null && pingRequest.getDestAddr() == Packet.BROADCAST_ADDRESS &&
+	   Arrays.equals(pingRequest.getMsg(), packet.getPayload())) {
+	    // every node answers, so it stays until it times out
+	    logOutput("Got Ping Reply from " + packet.getSrc() + ": " + Utility.byteArrayToString(packet.getPayload()));
+	    if(this.pingRtts[Packet.BROADCAST_ADDRESS] == null) {
+		this.pingRtts[Packet.BROADCAST_ADDRESS] = new RttStats();
+	    }
+	    this.pingRtts[Packet.BROADCAST_ADDRESS].add(this.manager.nowMicros() - pingRequest.getTimeSent());
+	    return;
+	}
+	if(pingRequest != null && pingRequest.getDestAddr() == packet.getSrc() &&
+	   Arrays.equals(pingRequest.getMsg(), packet.getPayload())) {
+	    logOutput("Got Ping Reply from " + packet.getSrc() + ": " + Utility.byteArrayToString(packet.getPayload()));
+	    // left in pingTimeouts, pingTimedOut() skips it
+	    this.pings.remove(seq);
+	    int destAddr = pingRequest.getDestAddr();
+	    if(this.pingRtts[destAddr] == null) {
+		this.pingRtts[destAddr] = new RttStats();
 	    }
+	    this.pingRtts[destAddr].add(this.manager.nowMicros() - pingRequest.getTimeSent());
+	    return;
 	}
-	logError("Unexpected Ping Reply from " + packet.getSrc() + ": " + payload);
+	logError("Unexpected Ping Reply from " + packet.getSrc() + ": " + Utility.byteArrayToString(packet.getPayload()));
     }
 
+    // Sets a timer for when the oldest ping times out, unless one is set already
+    private void setPingTimer() {
+	if(this.pingTimerSet || this.pingTimeouts.isEmpty()) {
+	    return;
+	}
+	PingRequest oldest = (PingRequest)this.pingTimeouts.getFirst();
+	long deltaT = (oldest.getTimeSent() + PingTimeout * 1000 - this.manager.nowMicros() + 999) / 1000;
+	this.addTimer(Math.max(deltaT, 0), "pingTimedOut");
+	this.pingTimerSet = true;
+    }
+
+    // Prints, for every destination pinged, how many pings were answered and their round trip times
+    private void printPingStats() {
+	boolean any = false;
+	for(int i = 0; i <= Packet.MAX_ADDRESS; i++) {
+	    if(this.pingsSent[i] == 0) {
+		continue;
+	    }
+	    any = true;
+	    RttStats rtts = this.pingRtts[i];
+	    int answered = (rtts == null) ? 0 : rtts.getCount();
+	    if(i == Packet.BROADCAST_ADDRESS) {
+		logOutput("broadcast pings: sent " + this.pingsSent[i] + " replies " + answered + ((answered > 0) ? " " + rtts : ""));
+		continue;
+	    }
+	    String line = "pings to " + i + ": sent " + this.pingsSent[i] + " answered " + answered +
+		" timed out " + this.pingsTimedOut[i] + " outstanding " + (this.pingsSent[i] - answered - this.pingsTimedOut[i]);
+	    if(answered > 0) {
+		line += " " + rtts;
+	    }
+	    logOutput(line);
+	}
+	if(!any) {
+	    logOutput("no pings sent");
+	}
+    }
+
+    // Passes on a packet for another node, one hop closer
+    private void forward(Packet packet) {
+	if(packet.getTTL() <= 1) {
+	    if(this.isLogEnabled(NodeLog.DEBUG)) {
+		logDebug("dropping packet, TTL expired: " + packet);
+	    }
+	    return;
+	}
+	this.send(packet.getDest(), new Packet(packet.getDest(), packet.getSrc(), packet.getTTL() - 1, packet.getProtocol(),
+					       packet.getSeq(), packet.getPayload()));
+    }
+
+    // Broadcast packets, other than hellos and link state packets, are flooded to every node
+    private boolean isFlooded(int protocol) {
+	return protocol != Protocol.HELLO_PKT && protocol != Protocol.LINK_INFO_PKT;
+    }
+
+    // Sends a packet towards its destination through the next hop the router gives.
+    // Without a route it is sent straight to the destination, which works if it is a neighbor not found yet.
+    // A broadcast packet is flooded, and remembered so that it is not taken for new when it comes back
     private void send(int destAddr, Packet packet) {
-	try {
-	    this.manager.sendPkt(this.addr, destAddr, packet.pack());
-	}catch(IllegalArgumentException e) {
-	    logError("Exception: " + e);
+	if(destAddr == Packet.BROADCAST_ADDRESS) {
+	    this.floodCache.accept(this.addr, packet.getSeq(), this.manager.now());
+	    this.sendToNeighbor(Packet.BROADCAST_ADDRESS, packet);
+	    return;
 	}
+	int nextHop = this.router.getNextHop(destAddr);
+	if(nextHop == -1) {
+	    this.sendToNeighbor(destAddr, packet);
+	    return;
+	}
+	// if the next hop has failed, probing finds out long before its hellos are missed
+	this.discovery.dataSent(nextHop);
+	this.sendToNeighbor(nextHop, packet);
     }
 
     // Adds a timer, to fire in deltaT milliseconds, with a callback to a public function of this class that takes no parameters
@@ -219,25 +440,79 @@ public class Node {
      * @param payload byte[] Payload to be sent
      */
     public void sendSegment(int srcAddr, int destAddr, int protocol, byte[] payload) {
+        this.sendSegment(srcAddr, destAddr, protocol, 0, payload);
+    }
+
+    /**
+     * Send a segment with a sequence number
+     * @param srcAddr Source node address
+     * @param destAddr Destination node address
+     * @param protocol Transport layer protocol to use
+     * @param seq Sequence number of the packet
+     * @param payload Payload to be sent
+     */
+    public void sendSegment(int srcAddr, int destAddr, int protocol, int seq, byte[] payload) {
         Packet packet = new Packet(destAddr, srcAddr, Packet.MAX_TTL,
-                                   protocol, 0, payload);
+                                   protocol, seq, payload);
         this.send(destAddr, packet);
     }
 
+    /**
+     * Send a packet to a neighbor, or to every neighbor, without routing it
+     * @param neighbor Address of the neighbor, or Packet.BROADCAST_ADDRESS
+     * @param packet The packet
+     */
+    public void sendToNeighbor(int neighbor, Packet packet) {
+	try {
+	    this.manager.sendPkt(this.addr, neighbor, packet.pack());
+	}catch(IllegalArgumentException e) {
+	    logError("Exception: " + e);
+	}
+    }
+
     public int getAddr() {
         return this.addr;
     }
 
     public void logError(String output) {
-	this.log(output, System.err);
+	this.manager.getLog().log(this.addr, NodeLog.ERROR, output);
     }
 
     public void logOutput(String output) {
-	this.log(output, System.out);
+	this.manager.getLog().log(this.addr, NodeLog.OUTPUT, output);
+    }
+
+    public void logDebug(String output) {
+	this.manager.getLog().log(this.addr, NodeLog.DEBUG, output);
     }
 
-    private void log(String output, PrintStream stream) {
-	stream.println("Node " + this.addr + ": " + output);
+    public void logTrace(String output) {
+	this.manager.getLog().log(this.addr, NodeLog.TRACE, output);
+    }
+
+    /**
+     * Log a debug message, building it only if debug messages of this node are logged
+     * @param output Builds the message
+     */
+    public void logDebug(Supplier<String> output) {
+	this.manager.getLog().log(this.addr, NodeLog.DEBUG, output);
+    }
+
+    /**
+     * Log a trace message, building it only if trace messages of this node are logged
+     * @param output Builds the message
+     */
+    public void logTrace(Supplier<String> output) {
+	this.manager.getLog().log(this.addr, NodeLog.TRACE, output);
+    }
+
+    /**
+     * Check if messages of a level are logged, so building messages that are not can be skipped
+     * @param level One of the levels in NodeLog
+     * @return True if messages of the level are logged
+     */
+    public boolean isLogEnabled(int level) {
+	return this.manager.getLog().isEnabled(this.addr, level);
     }
 
     private boolean matchTransferCommand(String command) {
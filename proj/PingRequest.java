@@ -5,22 +5,32 @@
  */
 public class PingRequest {
 
+    private int seq;
     private int destAddr;
     private byte[] msg;
     private long timeSent;
 
     /**
      * Initialize member variables
+     * @param seq The sequence number the Ping was sent with. The reply carries it back
      * @param destAddr The address of the destination host
      * @param msg The message that was sent
-     * @param timeSent The time that the ping was sent
+     * @param timeSent The time that the ping was sent, in microseconds
      */
-    public PingRequest(int destAddr, byte[] msg, long timeSent) {
+    public PingRequest(int seq, int destAddr, byte[] msg, long timeSent) {
+	this.seq = seq;
 	this.destAddr = destAddr;
 	this.msg = msg;
 	this.timeSent = timeSent;
     }
 
+    /**
+     * @return The sequence number the Ping was sent with
+     */
+    public int getSeq() {
+	return this.seq;
+    }
+
     /**
      * @return The address of the destination host
      */
@@ -36,7 +46,7 @@ public class PingRequest {
     }
 
     /**
-     * @return The time that the ping was sent
+     * @return The time that the ping was sent, in microseconds
      */
     public long getTimeSent() {
 	return this.timeSent;
@@ -46,6 +56,6 @@ public class PingRequest {
      * @return String representation
      */
     public String toString() {
-	return new String("Dest: " + destAddr + " Send Time: " + timeSent + " Message: " + Utility.byteArrayToString(msg));
+	return new String("Seq: " + seq + " Dest: " + destAddr + " Send Time: " + (timeSent / 1000) + " Message: " + Utility.byteArrayToString(msg));
     }
 }
@@ -0,0 +1,86 @@
+import java.util.Arrays;
+
+/**
+ * <pre>
+ * Round trip times measured by a node, with their minimum, average, maximum and percentiles.
+ * Every sample is kept, so percentiles are exact. They are sorted only when a percentile is asked for
+ * </pre>
+ */
+public class RttStats {
+
+    private long[] samples;  // microseconds
+    private int count;
+    private long sum;
+    private boolean sorted;
+
+    /**
+     * Create empty statistics
+     */
+    public RttStats() {
+	this.samples = new long[16];
+	this.count = 0;
+	this.sum = 0;
+	this.sorted = true;
+    }
+
+    /**
+     * Add a round trip time
+     * @param rtt The round trip time in microseconds
+     */
+    public void add(long rtt) {
+	if(this.count == this.samples.length) {
+	    long[] bigger = new long[this.samples.length * 2];
+	    System.arraycopy(this.samples, 0, bigger, 0, this.count);
+	    this.samples = bigger;
+	}
+	this.samples[this.count++] = rtt;
+	this.sum += rtt;
+	this.sorted = false;
+    }
+
+    /**
+     * @return The number of round trip times
+     */
+    public int getCount() {
+	return this.count;
+    }
+
+    /**
+     * @return The average round trip time in microseconds, 0 if there are none
+     */
+    public long getAverage() {
+	return (this.count == 0) ? 0 : this.sum / this.count;
+    }
+
+    /**
+     * Nearest rank percentile. Percentile 0 is the minimum and percentile 100 the maximum
+     * @param p The percentile, from 0 to 100
+     * @return The round trip time in microseconds, 0 if there are none
+     */
+    public long getPercentile(int p) {
+	if(this.count == 0) {
+	    return 0;
+	}
+	if(!this.sorted) {
+	    Arrays.sort(this.samples, 0, this.count);
+	    this.sorted = true;
+	}
+	int rank = (int)Math.ceil(p / 100.0 * this.count);
+	return this.samples[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * @return String representation, in milliseconds
+     */
+    public String toString() {
+	return "rtt msec min " + toMillis(this.getPercentile(0)) + " avg " + toMillis(this.getAverage()) +
+	    " p50 " + toMillis(this.getPercentile(50)) + " p90 " + toMillis(this.getPercentile(90)) +
+	    " p99 " + toMillis(this.getPercentile(99)) + " max " + toMillis(this.getPercentile(100));
+    }
+
+    /******************** Private Functions ********************/
+
+    private static String toMillis(long micros) {
+	return String.format("%.3f", micros / 1000.0);
+    }
+}
@@ -0,0 +1,390 @@
+import java.lang.reflect.Method;
+import java.util.Random;
+
+/**
+ * <pre>
+ * Generates ping traffic from a node for load testing, and reports what got through.
+ * Started by the traffic command:
+ *
+ *	traffic poisson rate=<pings per second> nodes=<n>|dests=<a,b,...>|pairs=... [duration=<msec>] [size=<bytes>]
+ *		[seed=<long>] [timeout=<msec>]
+ *		-- pings random destinations, at random times with the given average rate, for duration msec
+ *		defaults: 10000 msec duration, 32 byte payloads, seed 0, 2000 msec timeout
+ *	traffic allpairs nodes=<n>|dests=<a,b,...>|pairs=... [count=<rounds>] [interval=<msec>] [size=<bytes>] [timeout=<msec>]
+ *		-- pings every destination once per round, one round every interval msec
+ *		defaults: 10 rounds, 1000 msec interval, 32 byte payloads, 2000 msec timeout
+ *
+ * nodes=n stands for the destinations 0 to n - 1. A node never pings itself.
+ * Instead of nodes= or dests=, pairs=<a>-<b>,<c>-<d>,... gives source and destination pairs. Each node then
+ * only pings the destinations it is the source of, and a node that is the source of none sends nothing, so
+ * one command given to every node loads just those paths. With nodes= or dests=, pairs=random makes each
+ * node pick one of the destinations at random and send all its pings there.
+ * Random choices are made by a Random seeded with seed * 256 + the node's address, so a run can be
+ * repeated exactly, and nodes given the same command do not all pick the same destinations.
+ *
+ * Timeout msec after the last ping is sent, the node prints how many pings were answered, the loss rate,
+ * the throughput of the answered pings' payloads and the 50th, 90th and 99th percentile round trip times.
+ * Pings answered after that are not counted.
+ *
+ * A traffic ping carries TRAFFIC_SEQ, the generator id and the ping's number in the packet's sequence number,
+ * and its payload is "traffic " padded with dots to its size. The node that answers tells it from a ping
+ * given by the user by the sequence number and a compare of the first bytes, answers it without logging it,
+ * and echoes the sequence number, so the reply goes straight to its generator and ping without parsing text.
+ * A generator sends at most MAX_PINGS pings. Ids count up from 1, and a node keeps its generators by
+ * id modulo MAX_GENERATORS.
+ * </pre>
+ */
+public class TrafficGenerator {
+
+    public static final String PAYLOAD_PREFIX = "traffic ";
+    public static final int TRAFFIC_SEQ = 1 << 31;    // set in the sequence number of traffic pings only
+    public static final int MAX_GENERATORS = 1 << 7;  // the id modulo this is in bits 24 to 30 of the sequence number
+    public static final int MAX_PINGS = 1 << 24;      // the ping's number is in bits 0 to 23
+    public static final long DEFAULT_DURATION = 10000;  // msec
+    public static final int DEFAULT_SIZE = 32;          // bytes
+    public static final long DEFAULT_TIMEOUT = 2000;    // msec
+    public static final int DEFAULT_COUNT = 10;
+    public static final long DEFAULT_INTERVAL = 1000;   // msec
+
+    private static final int POISSON = 0;
+    private static final int ALL_PAIRS = 1;
+    private static final byte[] PREFIX_BYTES = Utility.stringToByteArray(PAYLOAD_PREFIX);
+
+    private Manager manager;
+    private Node node;
+    private int addr;
+    private int id;
+    private Callback sendCallback;
+    private Callback reportCallback;
+
+    private int mode;
+    private int[] dests;
+    private Random random;
+    private double rate;         // pings per second
+    private long duration;       // msec
+    private int size;            // payload bytes
+    private byte[] payload;      // the same for every ping
+    private long timeout;        // msec
+    private int count;           // rounds
+    private long interval;       // msec
+
+    private long startTime;      // microseconds
+    private double nextSendTime; // microseconds
+    private int numRounds;
+    private long[] sendTimes;    // indexed by sequence number. -1 once answered
+    private int numSent;
+    private RttStats rtts;
+    private long lastAnswerTime; // microseconds
+    private boolean done;
+
+    /**
+     * Create a traffic generator from the arguments of a traffic command
+     * @param manager The manager that is managing Fishnet
+     * @param node The node that sends the pings
+     * @param id Number that tells this generator's pings from those of earlier generators of the node
+     * @param args The traffic command, split at spaces
+     * @throws IllegalArgumentException If the command is not valid
+     */
+    public TrafficGenerator(Manager manager, Node node, int id, String[] args) throws IllegalArgumentException {
+	this.manager = manager;
+	this.node = node;
+	this.addr = node.getAddr();
+	this.id = id;
+
+	if(args.length < 2 || !args[0].equals("traffic")) {
+	    throw new IllegalArgumentException("Not a traffic command");
+	}
+	if(args[1].equals("poisson")) {
+	    this.mode = POISSON;
+	}else if(args[1].equals("allpairs")) {
+	    this.mode = ALL_PAIRS;
+	}else {
+	    throw new IllegalArgumentException("Unknown traffic pattern: " + args[1]);
+	}
+
+	this.rate = -1;
+	this.duration = DEFAULT_DURATION;
+	this.size = DEFAULT_SIZE;
+	this.timeout = DEFAULT_TIMEOUT;
+	this.count = DEFAULT_COUNT;
+	this.interval = DEFAULT_INTERVAL;
+	long seed = 0;
+	String pairs = null;
+	for(int i = 2; i < args.length; i++) {
+	    int index = args[i].indexOf("=");
+	    if(index == -1) {
+		throw new IllegalArgumentException("Invalid traffic option: " + args[i]);
+	    }
+	    String name = args[i].substring(0, index);
+	    String value = args[i].substring(index + 1);
+	    if(name.equals("rate")) {
+		this.rate = Double.parseDouble(value);
+	    }else if(name.equals("nodes")) {
+		this.dests = this.allNodes(Integer.parseInt(value));
+	    }else if(name.equals("dests")) {
+		this.dests = this.parseDests(value);
+	    }else if(name.equals("pairs")) {
+		pairs = value;
+	    }else if(name.equals("duration")) {
+		this.duration = Long.parseLong(value);
+	    }else if(name.equals("size")) {
+		this.size = Integer.parseInt(value);
+	    }else if(name.equals("seed")) {
+		seed = Long.parseLong(value);
+	    }else if(name.equals("timeout")) {
+		this.timeout = Long.parseLong(value);
+	    }else if(name.equals("count")) {
+		this.count = Integer.parseInt(value);
+	    }else if(name.equals("interval")) {
+		this.interval = Long.parseLong(value);
+	    }else {
+		throw new IllegalArgumentException("Unknown traffic option: " + name);
+	    }
+	}
+
+	boolean randomPair = "random".equals(pairs);
+	if(pairs != null && !randomPair) {
+	    if(this.dests != null) {
+		throw new IllegalArgumentException("pairs=<a>-<b>,... cannot be given with nodes= or dests=");
+	    }
+	    this.dests = this.parsePairs(pairs);
+	}else if(this.dests == null || this.dests.length == 0) {
+	    throw new IllegalArgumentException("No destinations given. Use nodes=<n>, dests=<a,b,...> or pairs=<a>-<b>,...");
+	}
+	if(this.mode == POISSON && this.rate <= 0) {
+	    throw new IllegalArgumentException("A positive rate=<pings per second> is needed");
+	}
+	if(this.size < PREFIX_BYTES.length || this.size > Packet.MAX_PAYLOAD_SIZE) {
+	    throw new IllegalArgumentException("Payload size must be between " + PREFIX_BYTES.length + " and " + Packet.MAX_PAYLOAD_SIZE);
+	}
+	if(this.duration < 0 || this.timeout < 0 || this.count < 0 || this.interval <= 0) {
+	    throw new IllegalArgumentException("Invalid traffic option");
+	}
+
+	this.random = new Random(seed * 256 + this.addr);
+	this.payload = new byte[this.size];
+	System.arraycopy(PREFIX_BYTES, 0, this.payload, 0, PREFIX_BYTES.length);
+	for(int i = PREFIX_BYTES.length; i < this.size; i++) {
+	    this.payload[i] = (byte)'.';
+	}
+	if(randomPair) {
+	    this.dests = new int[] {this.dests[this.random.nextInt(this.dests.length)]};
+	}
+	this.sendTimes = new long[64];
+	this.rtts = new RttStats();
+	this.numSent = 0;
+	this.done = false;
+
+	try {
+	    Method method = Callback.getMethod("sendPings", this, null);
+	    this.sendCallback = new Callback(method, this, null);
+	    method = Callback.getMethod("report", this, null);
+	    this.reportCallback = new Callback(method, this, null);
+	}catch(Exception e) {
+	    throw new IllegalArgumentException("Failed to create traffic generator callbacks. Exception: " + e);
+	}
+    }
+
+    /**
+     * Start sending pings
+     */
+    public void start() {
+	this.startTime = this.manager.nowMicros();
+	this.lastAnswerTime = this.startTime;
+	this.nextSendTime = this.startTime;
+	this.numRounds = 0;
+	if(this.mode == POISSON) {
+	    this.nextSendTime += this.nextGap();
+	}
+	this.sendPings();
+    }
+
+    /**
+     * Send the pings that are due, and set a timer for the next ones.
+     * Has public accesibility since used as a callback
+     */
+    public void sendPings() {
+	if(this.done) {
+	    return;
+	}
+	long now = this.manager.nowMicros();
+	long end = this.startTime + this.duration * 1000;
+	while(this.nextSendTime <= now) {
+	    if(this.mode == POISSON) {
+		if(this.nextSendTime > end) {
+		    break;
+		}
+		this.sendPing(this.dests[this.random.nextInt(this.dests.length)], now);
+		this.nextSendTime += this.nextGap();
+	    }else {
+		if(this.numRounds >= this.count) {
+		    break;
+		}
+		for(int i = 0; i < this.dests.length; i++) {
+		    this.sendPing(this.dests[i], now);
+		}
+		this.numRounds++;
+		this.nextSendTime += this.interval * 1000;
+	    }
+	}
+
+	boolean finished = (this.mode == POISSON) ? this.nextSendTime > end : this.numRounds >= this.count;
+	if(finished) {
+	    this.manager.addTimer(this.addr, this.timeout, this.reportCallback);
+	}else {
+	    // round up, so the timer does not fire before the ping is due
+	    this.manager.addTimerAt(this.addr, ((long)this.nextSendTime + 999) / 1000, this.sendCallback);
+	}
+    }
+
+    /**
+     * Print what got through, and stop counting answers. Has public accesibility since used as a callback
+     */
+    public void report() {
+	if(this.done) {
+	    return;
+	}
+	this.done = true;
+
+	int numAnswered = this.rtts.getCount();
+	double loss = (this.numSent == 0) ? 0 : 100.0 * (this.numSent - numAnswered) / this.numSent;
+	long elapsed = this.lastAnswerTime - this.startTime;
+	long bytes = (long)numAnswered * this.size;
+	double throughput = (elapsed <= 0) ? 0 : bytes * 1000000.0 / elapsed;
+	this.node.logOutput("traffic " + this.id + ": " + numAnswered + " of " + this.numSent + " pings answered, loss " +
+			    String.format("%.2f", loss) + "%, " + bytes + " bytes in " + (elapsed / 1000) + " msec = " +
+			    String.format("%.1f", throughput) + " Bps");
+	if(numAnswered > 0) {
+	    this.node.logOutput("traffic " + this.id + ": " + this.rtts);
+	}
+    }
+
+    /**
+     * Count the answer to a ping
+     * @param packetSeq The sequence number of the ping reply
+     */
+    public void receiveReply(int packetSeq) {
+	int seq = packetSeq & (MAX_PINGS - 1);
+	if(this.done || seq >= this.numSent || this.sendTimes[seq] == -1) {
+	    // late or duplicate
+	    return;
+	}
+	long now = this.manager.nowMicros();
+	this.rtts.add(now - this.sendTimes[seq]);
+	this.sendTimes[seq] = -1;
+	this.lastAnswerTime = now;
+    }
+
+    /**
+     * @return False if the node has nothing to ping, as when pairs= does not make it the source of any pair
+     */
+    public boolean hasDestinations() {
+	return this.dests.length > 0;
+    }
+
+    /**
+     * @return True once the report has been printed
+     */
+    public boolean isDone() {
+	return this.done;
+    }
+
+    /**
+     * Check if a ping or ping reply was sent for a traffic generator
+     * @param seq The sequence number of the packet
+     * @param payload The payload of the packet
+     * @return True if the packet belongs to a traffic ping
+     */
+    public static boolean isTrafficPing(int seq, byte[] payload) {
+	if((seq & TRAFFIC_SEQ) == 0 || payload.length < PREFIX_BYTES.length) {
+	    return false;
+	}
+	for(int i = 0; i < PREFIX_BYTES.length; i++) {
+	    if(payload[i] != PREFIX_BYTES[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * @param seq The sequence number of a traffic ping or ping reply
+     * @return The id of the generator that sent the ping, modulo MAX_GENERATORS
+     */
+    public static int generatorSlot(int seq) {
+	return (seq >>> 24) & (MAX_GENERATORS - 1);
+    }
+
+    /******************** Private Functions ********************/
+
+    private void sendPing(int dest, long now) {
+	if(this.numSent == MAX_PINGS) {
+	    return;
+	}
+	if(this.numSent == this.sendTimes.length) {
+	    long[] bigger = new long[this.sendTimes.length * 2];
+	    System.arraycopy(this.sendTimes, 0, bigger, 0, this.numSent);
+	    this.sendTimes = bigger;
+	}
+	int seq = this.numSent++;
+	this.sendTimes[seq] = now;
+	try {
+	    this.node.sendSegment(this.addr, dest, Protocol.PING_PKT,
+				  TRAFFIC_SEQ | ((this.id & (MAX_GENERATORS - 1)) << 24) | seq, this.payload);
+	}catch(IllegalArgumentException e) {
+	    this.node.logError("traffic: failed to send ping to " + dest + ". Exception: " + e);
+	}
+    }
+
+    // Time to the next ping of a Poisson process, in microseconds
+    private double nextGap() {
+	return -Math.log(1.0 - this.random.nextDouble()) * 1000000.0 / this.rate;
+    }
+
+    private int[] allNodes(int numNodes) {
+	StringBuffer list = new StringBuffer();
+	for(int i = 0; i < numNodes; i++) {
+	    list.append(i).append(',');
+	}
+	return (numNodes <= 0) ? new int[0] : this.parseDests(list.toString());
+    }
+
+    // Returns the destinations of the pairs this node is the source of
+    private int[] parsePairs(String value) {
+	String[] fields = value.split(",");
+	StringBuffer list = new StringBuffer();
+	for(int i = 0; i < fields.length; i++) {
+	    int index = fields[i].indexOf("-");
+	    if(index == -1) {
+		throw new IllegalArgumentException("Invalid pair: " + fields[i] + ". Use <source>-<destination>");
+	    }
+	    int src = Integer.parseInt(fields[i].substring(0, index));
+	    int dest = Integer.parseInt(fields[i].substring(index + 1));
+	    if(!Packet.validAddress(src) || src == Packet.BROADCAST_ADDRESS || src == dest) {
+		throw new IllegalArgumentException("Invalid pair: " + fields[i]);
+	    }
+	    if(src == this.addr) {
+		list.append(dest).append(',');
+	    }
+	}
+	return (list.length() == 0) ? new int[0] : this.parseDests(list.toString());
+    }
+
+    private int[] parseDests(String value) {
+	String[] fields = value.split(",");
+	int[] nodes = new int[fields.length];
+	int n = 0;
+	for(int i = 0; i < fields.length; i++) {
+	    int dest = Integer.parseInt(fields[i]);
+	    if(!Packet.validAddress(dest) || dest == Packet.BROADCAST_ADDRESS) {
+		throw new IllegalArgumentException("Invalid destination: " + dest);
+	    }
+	    if(dest != this.addr) {
+		nodes[n++] = dest;
+	    }
+	}
+	int[] result = new int[n];
+	System.arraycopy(nodes, 0, result, 0, n);
+	return result;
+    }
+}
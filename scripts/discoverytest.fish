@@ -9,6 +9,10 @@ time + 5000
 time + 20000
 echo ------- Failing node 0 ---------
 fail 0
+time + 10
+1 4 Ping right after failing node 0, probing finds the failure
+time + 1500
+1 4 Ping 1.5 seconds after failing node 0
 time + 50000
 1 4 Ping after failing node 0
 time + 20000
@@ -17,4 +21,7 @@ restart 0
 time + 50000
 1 4 Ping after restarting node 0
 time + 25000
+1 pingstats
+0 dump neighbors
+1 dump neighbors
 exit
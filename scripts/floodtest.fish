@@ -3,9 +3,18 @@ edge 0 1
 edge 1 2
 edge 2 3
 edge 3 4
-time + 10
+edge 4 0
+time + 100
 echo ------- Test basic flooding -------
 0 2 Basic flooding
 time + 20
+echo ------- Test broadcast flooding on a cycle -------
+0 255 Broadcast flooding
+time + 20
+0 dump flood
+1 dump flood
+2 dump flood
+3 dump flood
+4 dump flood
+0 pingstats
 exit
-
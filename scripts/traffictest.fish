@@ -0,0 +1,11 @@
+// perl fishnet.pl simulate 3 scripts/traffictest.fish
+edge 0 1 delay 5
+edge 0 2 lossRate 0.1 delay 20
+edge 1 2
+time + 5
+traffic allpairs nodes=3 count=5 interval=100
+0 traffic poisson rate=50 dests=1,2 duration=2000 seed=1
+traffic allpairs pairs=1-0,2-1 count=5 interval=100
+traffic poisson rate=20 nodes=3 pairs=random duration=1000 seed=2
+time + 5000
+exit
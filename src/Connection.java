@@ -276,7 +276,6 @@ public class Connection {
 
     private void sendAck(int ackNum) {
         // 实现发送ACK的逻辑
-        System.out.print(":"); // 打印确认包跟踪字符
     }
 
     // 修改处理确认包方法以支持滑动窗口
@@ -325,7 +324,6 @@ public class Connection {
     // 重传数据包
     private synchronized void retransmitPacket() {
         if (!sendWindow.isEmpty()) {
-            System.out.print("!"); // 打印重传标记
             // 重新发送窗口中的所有包
             for (Packet packet : sendWindow) {
                 // 实际发送包的代码